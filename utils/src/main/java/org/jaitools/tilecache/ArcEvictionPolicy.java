@@ -0,0 +1,236 @@
+/* 
+ *  Copyright (c) 2013, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.tilecache;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * A scan-resistant eviction policy for {@code DiskMemTileCache} based on the
+ * Adaptive Replacement Cache (ARC) algorithm of Megiddo and Modha, in the
+ * CLOCK-based form (CAR) described by Bansal and Modha, which fits the cache's
+ * practice of marking tile accesses rather than reporting them to the policy.
+ * <p>
+ * Resident tiles are divided between a list of tiles which have been requested
+ * once since being placed into memory and a list of tiles which have been
+ * requested repeatedly. The policy also remembers the IDs of tiles recently
+ * removed from each list. When one of these tiles returns to memory, the target
+ * size of the first list is adjusted in favour of the list it came from. A tile
+ * read once, as in a scan through all of the tiles of a large image, only ever
+ * displaces other such tiles, unless the workload shows that recency is a better
+ * predictor of reuse than frequency.
+ * <p>
+ * The policy sizes its lists by the largest number of tiles that have been
+ * resident at once, so it works best when cached tiles are of similar size.
+ * Example of use:
+ * <pre><code>
+ * DiskMemTileCache cache = new DiskMemTileCache();
+ * cache.setEvictionPolicy(new ArcEvictionPolicy());
+ * </code></pre>
+ *
+ * @author Michael Bedward
+ * @since 1.4
+ * @version $Id$
+ */
+public final class ArcEvictionPolicy implements EvictionPolicy {
+
+    // resident tiles seen once (t1) and more than once (t2), oldest first
+    private final LinkedHashSet<DiskCachedTile> t1;
+    private final LinkedHashSet<DiskCachedTile> t2;
+
+    // IDs of tiles recently removed from t1 and t2
+    private final LinkedHashSet<Object> b1;
+    private final LinkedHashSet<Object> b2;
+
+    // tiles passed over by the cache and the list each came from
+    private final Map<DiskCachedTile, LinkedHashSet<DiskCachedTile>> skipped;
+
+    // target size of t1
+    private int p;
+
+    // largest number of resident tiles seen
+    private int c;
+
+    /**
+     * Creates a new policy.
+     */
+    public ArcEvictionPolicy() {
+        t1 = new LinkedHashSet<DiskCachedTile>();
+        t2 = new LinkedHashSet<DiskCachedTile>();
+        b1 = new LinkedHashSet<Object>();
+        b2 = new LinkedHashSet<Object>();
+        skipped = new IdentityHashMap<DiskCachedTile, LinkedHashSet<DiskCachedTile>>();
+    }
+
+    public void add(DiskCachedTile tile) {
+        if (t1.contains(tile) || t2.contains(tile) || skipped.containsKey(tile)) {
+            return;
+        }
+
+        // the request which made the tile resident is not a reuse
+        tile.clearReferenced();
+
+        Object key = tile.getTileId();
+        if (b1.contains(key)) {
+            // t1 was too small
+            p = Math.min(p + Math.max(1, b2.size() / b1.size()), c);
+            b1.remove(key);
+            t2.add(tile);
+
+        } else if (b2.contains(key)) {
+            // t2 was too small
+            p = Math.max(p - Math.max(1, b1.size() / b2.size()), 0);
+            b2.remove(key);
+            t2.add(tile);
+
+        } else {
+            t1.add(tile);
+        }
+
+        c = Math.max(c, t1.size() + t2.size());
+        trimHistory();
+    }
+
+    public void remove(DiskCachedTile tile) {
+        Object key = tile.getTileId();
+        LinkedHashSet<DiskCachedTile> list = skipped.remove(tile);
+        if (t1.remove(tile) || list == t1) {
+            b1.add(key);
+        } else if (t2.remove(tile) || list == t2) {
+            b2.add(key);
+        } else {
+            return;
+        }
+
+        trimHistory();
+    }
+
+    public DiskCachedTile nextVictim() {
+        final int n = t1.size() + t2.size();
+        if (n == 0) {
+            return null;
+        }
+
+        /*
+         * Referenced tiles are moved to the tail of t2 with their
+         * mark cleared, so we examine no more than n tiles before
+         * returning to an unreferenced one
+         */
+        for (int i = 0; i < n; i++) {
+            if (!t1.isEmpty() && (t1.size() >= Math.max(1, p) || t2.isEmpty())) {
+                DiskCachedTile tile = t1.iterator().next();
+                if (!tile.clearReferenced()) {
+                    return tile;
+                }
+                t1.remove(tile);
+                t2.add(tile);
+
+            } else {
+                DiskCachedTile tile = t2.iterator().next();
+                if (!tile.clearReferenced()) {
+                    return tile;
+                }
+                t2.remove(tile);
+                t2.add(tile);
+            }
+        }
+
+        return t1.isEmpty() ? t2.iterator().next() : t1.iterator().next();
+    }
+
+    /**
+     * {@inheritDoc}
+     * The tile leaves its list without its ID being added to the history,
+     * so neither the target size of the first list nor the tile's list
+     * changes when it is requeued, at the tail of that list.
+     */
+    public void skip(DiskCachedTile tile) {
+        if (t1.remove(tile)) {
+            skipped.put(tile, t1);
+        } else if (t2.remove(tile)) {
+            skipped.put(tile, t2);
+        }
+    }
+
+    public void requeue(DiskCachedTile tile) {
+        LinkedHashSet<DiskCachedTile> list = skipped.remove(tile);
+        if (list != null) {
+            list.add(tile);
+        }
+    }
+
+    public void clear() {
+        t1.clear();
+        t2.clear();
+        skipped.clear();
+        b1.clear();
+        b2.clear();
+        p = 0;
+        c = 0;
+    }
+
+    /**
+     * Gets the target size of the list of tiles seen once. Used by
+     * unit tests.
+     *
+     * @return target size
+     */
+    int getTargetSize() {
+        return p;
+    }
+
+    /**
+     * Gets the sizes of the lists of resident tiles seen once and more than
+     * once, and of the histories of tiles removed from each. Used by unit tests.
+     *
+     * @return list sizes as {@code {t1, t2, b1, b2}}
+     */
+    int[] getListSizes() {
+        return new int[] {t1.size(), t2.size(), b1.size(), b2.size()};
+    }
+
+    /**
+     * Discards the oldest tile IDs from the history lists to keep
+     * them within bounds.
+     */
+    private void trimHistory() {
+        while (!b1.isEmpty() && t1.size() + b1.size() > c) {
+            removeFirst(b1);
+        }
+
+        while (!b2.isEmpty() && t1.size() + t2.size() + b1.size() + b2.size() > 2 * c) {
+            removeFirst(b2);
+        }
+    }
+
+    private static void removeFirst(LinkedHashSet<Object> set) {
+        Iterator<Object> iter = set.iterator();
+        iter.next();
+        iter.remove();
+    }
+}
@@ -0,0 +1,389 @@
+/* 
+ *  Copyright (c) 2013, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.tilecache;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Performance metrics for a {@linkplain DiskMemTileCache}. An instance is
+ * created by each cache and retrieved with {@linkplain DiskMemTileCache#getMetrics()}.
+ * Metrics are always collected: recording is cheap enough to leave enabled in
+ * production.
+ * <p>
+ * Counters are striped across several slots, chosen by thread, to avoid
+ * contention between threads updating the same counter. Each slot is padded
+ * to occupy its own cache line. Latencies are recorded in histograms with
+ * logarithmically-spaced buckets (four per power of 2), so that percentiles
+ * are reported to within about 12%. Recording a value does not allocate
+ * any objects.
+ * <p>
+ * The class is also a standard MBean which can be registered with the platform
+ * MBean server using {@linkplain DiskMemTileCache#registerMBean(String)}.
+ *
+ * @author Michael Bedward
+ * @since 1.4
+ * @version $Id$
+ */
+public final class CacheMetrics implements CacheMetricsMBean {
+
+    // Counter indices
+    private static final int MEMORY_HITS = 0;
+    private static final int DISK_HITS = 1;
+    private static final int MISSES = 2;
+    private static final int EVICTIONS = 3;
+    private static final int BYTES_WRITTEN = 4;
+    private static final int BYTES_READ = 5;
+    private static final int LOCK_WAIT = 6;
+    private static final int READ_AHEAD = 7;
+    private static final int OFF_HEAP_HITS = 8;
+
+    // Array elements per stripe: 16 longs = 128 bytes, enough to avoid false sharing
+    private static final int STRIDE = 16;
+
+    // Histogram buckets: four per power of 2 over the range of long values
+    private static final int NUM_BUCKETS = 256;
+
+    private final int stripeMask;
+    private final AtomicLongArray counters;
+    private final Histogram getTileLatency;
+    private final Histogram addLatency;
+    private final AtomicLong residentHighWater;
+
+    /**
+     * Striped histogram with logarithmic buckets.
+     */
+    private static final class Histogram {
+        private final AtomicLongArray buckets;
+        private final int stripeMask;
+
+        Histogram(int numStripes) {
+            buckets = new AtomicLongArray(numStripes * NUM_BUCKETS);
+            stripeMask = numStripes - 1;
+        }
+
+        void record(long value) {
+            buckets.incrementAndGet(stripe(stripeMask) * NUM_BUCKETS + bucket(value));
+        }
+
+        long percentile(double p) {
+            long[] counts = new long[NUM_BUCKETS];
+            long total = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                long n = buckets.get(i);
+                counts[i % NUM_BUCKETS] += n;
+                total += n;
+            }
+
+            if (total == 0) {
+                return 0;
+            }
+
+            long rank = (long) Math.ceil(p * total);
+            long cum = 0;
+            for (int b = 0; b < NUM_BUCKETS; b++) {
+                cum += counts[b];
+                if (cum >= rank) {
+                    return (lowerBound(b) + upperBound(b)) / 2;
+                }
+            }
+            return upperBound(NUM_BUCKETS - 1);
+        }
+
+        void reset() {
+            for (int i = 0; i < buckets.length(); i++) {
+                buckets.set(i, 0);
+            }
+        }
+
+        static int bucket(long v) {
+            if (v < 4) {
+                return v < 0 ? 0 : (int) v;
+            }
+            int msb = 63 - Long.numberOfLeadingZeros(v);
+            int sub = (int) ((v >>> (msb - 2)) & 3);
+            return (msb - 1) * 4 + sub;
+        }
+
+        static long lowerBound(int b) {
+            if (b < 4) {
+                return b;
+            }
+            int msb = b / 4 + 1;
+            return (4L + b % 4) << (msb - 2);
+        }
+
+        static long upperBound(int b) {
+            if (b < 4) {
+                return b;
+            }
+            int msb = b / 4 + 1;
+            return ((5L + b % 4) << (msb - 2)) - 1;
+        }
+    }
+
+    /**
+     * Package-private constructor called by the owning cache.
+     */
+    CacheMetrics() {
+        int n = 1;
+        int nproc = Runtime.getRuntime().availableProcessors();
+        while (n < nproc && n < 16) {
+            n <<= 1;
+        }
+
+        stripeMask = n - 1;
+        counters = new AtomicLongArray(n * STRIDE);
+        getTileLatency = new Histogram(n);
+        addLatency = new Histogram(n);
+        residentHighWater = new AtomicLong();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getMemoryHits() {
+        return sum(MEMORY_HITS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getDiskHits() {
+        return sum(DISK_HITS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getOffHeapHits() {
+        return sum(OFF_HEAP_HITS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getMisses() {
+        return sum(MISSES);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getReadAheadTiles() {
+        return sum(READ_AHEAD);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getEvictions() {
+        return sum(EVICTIONS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getBytesWritten() {
+        return sum(BYTES_WRITTEN);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getBytesRead() {
+        return sum(BYTES_READ);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getLockWaitNanos() {
+        return sum(LOCK_WAIT);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getGetTileLatencyP50Nanos() {
+        return getTileLatency.percentile(0.5);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getGetTileLatencyP99Nanos() {
+        return getTileLatency.percentile(0.99);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getAddLatencyP50Nanos() {
+        return addLatency.percentile(0.5);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getAddLatencyP99Nanos() {
+        return addLatency.percentile(0.99);
+    }
+
+    /**
+     * Gets a percentile of the latency of {@code getTile} requests.
+     *
+     * @param p the percentile as a proportion between 0 and 1
+     * @return latency in nanoseconds
+     */
+    public long getGetTileLatencyNanos(double p) {
+        checkProportion(p);
+        return getTileLatency.percentile(p);
+    }
+
+    /**
+     * Gets a percentile of the latency of {@code add} requests.
+     *
+     * @param p the percentile as a proportion between 0 and 1
+     * @return latency in nanoseconds
+     */
+    public long getAddLatencyNanos(double p) {
+        checkProportion(p);
+        return addLatency.percentile(p);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getResidentBytesHighWaterMark() {
+        return residentHighWater.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void reset() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, 0);
+        }
+        getTileLatency.reset();
+        addLatency.reset();
+        residentHighWater.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "CacheMetrics[memoryHits=" + getMemoryHits() +
+                " offHeapHits=" + getOffHeapHits() +
+                " diskHits=" + getDiskHits() +
+                " misses=" + getMisses() +
+                " readAhead=" + getReadAheadTiles() +
+                " evictions=" + getEvictions() +
+                " bytesWritten=" + getBytesWritten() +
+                " bytesRead=" + getBytesRead() +
+                " lockWaitNanos=" + getLockWaitNanos() +
+                " getTileP50=" + getGetTileLatencyP50Nanos() +
+                " getTileP99=" + getGetTileLatencyP99Nanos() +
+                " addP50=" + getAddLatencyP50Nanos() +
+                " addP99=" + getAddLatencyP99Nanos() +
+                " residentHighWater=" + getResidentBytesHighWaterMark() + "]";
+    }
+
+    void recordMemoryHit() {
+        add(MEMORY_HITS, 1);
+    }
+
+    void recordOffHeapHit() {
+        add(OFF_HEAP_HITS, 1);
+    }
+
+    void recordDiskHit() {
+        add(DISK_HITS, 1);
+    }
+
+    void recordMiss() {
+        add(MISSES, 1);
+    }
+
+    void recordReadAhead() {
+        add(READ_AHEAD, 1);
+    }
+
+    void recordEviction() {
+        add(EVICTIONS, 1);
+    }
+
+    void recordBytesWritten(long n) {
+        add(BYTES_WRITTEN, n);
+    }
+
+    void recordBytesRead(long n) {
+        add(BYTES_READ, n);
+    }
+
+    void recordLockWait(long nanos) {
+        add(LOCK_WAIT, nanos);
+    }
+
+    void recordGetTile(long nanos) {
+        getTileLatency.record(nanos);
+    }
+
+    void recordAdd(long nanos) {
+        addLatency.record(nanos);
+    }
+
+    void recordResidentBytes(long bytes) {
+        long cur;
+        while (bytes > (cur = residentHighWater.get())) {
+            if (residentHighWater.compareAndSet(cur, bytes)) {
+                break;
+            }
+        }
+    }
+
+    private void add(int counter, long n) {
+        counters.addAndGet(stripe(stripeMask) * STRIDE + counter, n);
+    }
+
+    private long sum(int counter) {
+        long total = 0;
+        for (int s = 0; s <= stripeMask; s++) {
+            total += counters.get(s * STRIDE + counter);
+        }
+        return total;
+    }
+
+    private static int stripe(int mask) {
+        return (int) Thread.currentThread().getId() & mask;
+    }
+
+    private static void checkProportion(double p) {
+        if (p < 0 || p > 1) {
+            throw new IllegalArgumentException("percentile must be between 0 and 1");
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/* 
+ *  Copyright (c) 2013, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.tilecache;
+
+/**
+ * Management interface for {@linkplain CacheMetrics}, allowing a cache's
+ * metrics to be monitored through JMX.
+ *
+ * @see DiskMemTileCache#registerMBean(String)
+ *
+ * @author Michael Bedward
+ * @since 1.4
+ * @version $Id$
+ */
+public interface CacheMetricsMBean {
+
+    /**
+     * Gets the number of {@code getTile} requests served from memory.
+     *
+     * @return number of memory hits
+     */
+    long getMemoryHits();
+
+    /**
+     * Gets the number of {@code getTile} requests for which tile data
+     * were reloaded from disk.
+     *
+     * @return number of disk hits
+     */
+    long getDiskHits();
+
+    /**
+     * Gets the number of {@code getTile} requests for which tile data
+     * were restored from the off-heap tier.
+     *
+     * @return number of off-heap hits
+     * @see DiskMemTileCache#KEY_OFF_HEAP_CAPACITY
+     */
+    long getOffHeapHits();
+
+    /**
+     * Gets the number of {@code getTile} requests for tiles not in the cache.
+     *
+     * @return number of misses
+     */
+    long getMisses();
+
+    /**
+     * Gets the number of tiles read from disk ahead of being requested.
+     *
+     * @return number of tiles read ahead
+     * @see DiskMemTileCache#KEY_READ_AHEAD_TILES
+     */
+    long getReadAheadTiles();
+
+    /**
+     * Gets the number of tiles removed from memory to free space.
+     *
+     * @return number of evictions
+     */
+    long getEvictions();
+
+    /**
+     * Gets the number of bytes of tile data written to disk.
+     *
+     * @return bytes written
+     */
+    long getBytesWritten();
+
+    /**
+     * Gets the number of bytes of tile data read from disk.
+     *
+     * @return bytes read
+     */
+    long getBytesRead();
+
+    /**
+     * Gets the total time, in nanoseconds, that threads have waited to
+     * acquire the cache's locks.
+     *
+     * @return lock wait time in nanoseconds
+     */
+    long getLockWaitNanos();
+
+    /**
+     * Gets the median latency of {@code getTile} requests.
+     *
+     * @return latency in nanoseconds
+     */
+    long getGetTileLatencyP50Nanos();
+
+    /**
+     * Gets the 99th percentile latency of {@code getTile} requests.
+     *
+     * @return latency in nanoseconds
+     */
+    long getGetTileLatencyP99Nanos();
+
+    /**
+     * Gets the median latency of {@code add} requests.
+     *
+     * @return latency in nanoseconds
+     */
+    long getAddLatencyP50Nanos();
+
+    /**
+     * Gets the 99th percentile latency of {@code add} requests.
+     *
+     * @return latency in nanoseconds
+     */
+    long getAddLatencyP99Nanos();
+
+    /**
+     * Gets the largest amount of memory, in bytes, occupied by resident tiles.
+     *
+     * @return resident bytes high-water mark
+     */
+    long getResidentBytesHighWaterMark();
+
+    /**
+     * Resets all counters, latency records and the high-water mark.
+     */
+    void reset();
+}
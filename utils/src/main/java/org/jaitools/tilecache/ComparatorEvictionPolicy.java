@@ -0,0 +1,118 @@
+/* 
+ *  Copyright (c) 2013, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.tilecache;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import javax.media.jai.CachedTile;
+
+/**
+ * An eviction policy for {@code DiskMemTileCache} which orders tiles with
+ * a user-supplied comparator. This is used when a comparator other than the
+ * default {@linkplain TileAccessTimeComparator} is set with
+ * {@linkplain DiskMemTileCache#setTileComparator(java.util.Comparator)}.
+ * <p>
+ * Since tile priorities can change between memory-control events (e.g. when
+ * the comparator uses tile access times), the priority queue is rebuilt, in
+ * linear time, at the first request for a victim after tiles have been added.
+ * Subsequent victims are then taken from the queue in logarithmic time.
+ *
+ * @author Michael Bedward
+ * @since 1.4
+ * @version $Id$
+ */
+final class ComparatorEvictionPolicy implements EvictionPolicy {
+
+    private final Comparator<CachedTile> comparator;
+    private final Set<DiskCachedTile> members;
+    private PriorityQueue<DiskCachedTile> queue;
+    private boolean stale;
+
+    /**
+     * Creates a new policy.
+     *
+     * @param comparator comparator which orders tiles from highest to
+     *        lowest priority
+     */
+    ComparatorEvictionPolicy(Comparator<CachedTile> comparator) {
+        this.comparator = comparator;
+        this.members = new HashSet<DiskCachedTile>();
+        this.stale = true;
+    }
+
+    public void add(DiskCachedTile tile) {
+        if (members.add(tile)) {
+            stale = true;
+        }
+    }
+
+    public void remove(DiskCachedTile tile) {
+        // the queue is cleaned up lazily in nextVictim
+        members.remove(tile);
+    }
+
+    public DiskCachedTile nextVictim() {
+        if (stale) {
+            queue = new PriorityQueue<DiskCachedTile>(
+                    Math.max(1, members.size()), Collections.reverseOrder(comparator));
+            queue.addAll(members);
+            stale = false;
+        }
+
+        DiskCachedTile tile = queue.peek();
+        while (tile != null && !members.contains(tile)) {
+            queue.poll();
+            tile = queue.peek();
+        }
+
+        return tile;
+    }
+
+    /**
+     * {@inheritDoc}
+     * The queue is not rebuilt when skipped tiles are requeued.
+     */
+    public void skip(DiskCachedTile tile) {
+        // the queue is cleaned up lazily in nextVictim
+        members.remove(tile);
+    }
+
+    public void requeue(DiskCachedTile tile) {
+        if (members.add(tile) && !stale) {
+            queue.add(tile);
+        }
+    }
+
+    public void clear() {
+        members.clear();
+        queue = null;
+        stale = true;
+    }
+}
@@ -0,0 +1,389 @@
+/* 
+ *  Copyright (c) 2013, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+
+package org.jaitools.tilecache;
+
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferDouble;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferShort;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Package-private registry of shared data buffers used by {@code DiskMemTileCache}
+ * for constant tiles: that is, tiles in which every pixel has the same value
+ * (eg. nodata borders or blank tiles). The data of such a tile are described by
+ * a small {@linkplain Key} which stands in for the tile's disk copy, and all
+ * constant tiles with the same key are given rasters backed by a single shared
+ * data buffer.
+ * <p>
+ * A shared buffer is only held while some raster refers to it. All methods
+ * are thread-safe.
+ *
+ * @author Michael Bedward
+ * @since 1.4
+ * @version $Id$
+ */
+final class ConstantTileRegistry {
+
+    /**
+     * Describes the data of a constant tile: the data type and bank length,
+     * and the repeating sequence of elements for each bank.
+     */
+    static final class Key {
+        final int dataType;
+        final int dataLen;
+        final int period;
+        final long[] values;
+        private final int hash;
+
+        /**
+         * Creates a new key.
+         *
+         * @param dataType data type
+         * @param dataLen number of elements in each bank
+         * @param period length of the repeating sequence of elements
+         * @param values element values (as raw bits for floating point
+         *        types), {@code period} per bank
+         */
+        Key(int dataType, int dataLen, int period, long[] values) {
+            this.dataType = dataType;
+            this.dataLen = dataLen;
+            this.period = period;
+            this.values = values;
+
+            int h = 31 * dataType + dataLen;
+            h = 31 * h + period;
+            this.hash = 31 * h + Arrays.hashCode(values);
+        }
+
+        /**
+         * Gets the number of banks.
+         *
+         * @return number of banks
+         */
+        int getNumBanks() {
+            return values.length / period;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return dataType == other.dataType &&
+                    dataLen == other.dataLen &&
+                    period == other.period &&
+                    Arrays.equals(values, other.values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final int MIN_PURGE_SIZE = 64;
+
+    // shared buffers by key
+    private final Map<Key, WeakReference<DataBuffer>> buffers;
+
+    // keys of shared buffers (DataBuffer does not override equals)
+    private final Map<DataBuffer, Key> shared;
+
+    private int purgeSize;
+
+    /**
+     * Creates a new registry.
+     */
+    ConstantTileRegistry() {
+        buffers = new HashMap<Key, WeakReference<DataBuffer>>();
+        shared = new WeakHashMap<DataBuffer, Key>();
+        purgeSize = MIN_PURGE_SIZE;
+    }
+
+    /**
+     * Tests whether a raster's data are constant. The test compares the
+     * raster's data buffer, element by element, against its first pixel
+     * and gives up at the first difference, so it is cheap for all but
+     * constant tiles. Rasters with data buffer offsets are not tested.
+     *
+     * @param raster the raster
+     * @return a key describing the data, or {@code null} if not constant
+     */
+    static Key detect(Raster raster) {
+        DataBuffer db = raster.getDataBuffer();
+        final int dataLen = db.getSize();
+        final int numBanks = db.getNumBanks();
+        for (int offset : db.getOffsets()) {
+            if (offset != 0) {
+                return null;
+            }
+        }
+
+        SampleModel sm = raster.getSampleModel();
+        int period = 1;
+        if (sm instanceof ComponentSampleModel) {
+            period = ((ComponentSampleModel) sm).getPixelStride();
+        }
+        if (period < 1 || period > dataLen) {
+            return null;
+        }
+
+        long[] values = new long[numBanks * period];
+        for (int b = 0; b < numBanks; b++) {
+            if (!isPeriodic(db, b, dataLen, period)) {
+                return null;
+            }
+            for (int i = 0; i < period; i++) {
+                values[b * period + i] = getElem(db, b, i);
+            }
+        }
+
+        return new Key(db.getDataType(), dataLen, period, values);
+    }
+
+    /**
+     * Gets the shared data buffer for constant tiles with the given key,
+     * creating it if necessary.
+     *
+     * @param key the key
+     * @return the shared buffer
+     */
+    synchronized DataBuffer getBuffer(Key key) {
+        WeakReference<DataBuffer> ref = buffers.get(key);
+        DataBuffer db = ref == null ? null : ref.get();
+        if (db == null) {
+            db = createBuffer(key);
+            buffers.put(key, new WeakReference<DataBuffer>(db));
+            shared.put(db, key);
+
+            if (buffers.size() >= purgeSize) {
+                purge();
+            }
+        }
+        return db;
+    }
+
+    /**
+     * Queries whether a data buffer is shared by constant tiles.
+     *
+     * @param db the buffer
+     * @return {@code true} if the buffer is shared
+     */
+    synchronized boolean isShared(DataBuffer db) {
+        return shared.containsKey(db);
+    }
+
+    /**
+     * Creates an unshared copy of a shared data buffer.
+     *
+     * @param db the buffer
+     * @return a new buffer with the same data, or {@code null} if
+     *         {@code db} is not a shared buffer
+     */
+    DataBuffer copyOf(DataBuffer db) {
+        Key key;
+        synchronized (this) {
+            key = shared.get(db);
+        }
+        return key == null ? null : createBuffer(key);
+    }
+
+    /**
+     * Gets the number of shared buffers currently held.
+     *
+     * @return number of buffers
+     */
+    synchronized int size() {
+        return shared.size();
+    }
+
+    /**
+     * Removes entries for buffers which have been garbage collected.
+     */
+    private void purge() {
+        Iterator<WeakReference<DataBuffer>> iter = buffers.values().iterator();
+        while (iter.hasNext()) {
+            if (iter.next().get() == null) {
+                iter.remove();
+            }
+        }
+        purgeSize = Math.max(MIN_PURGE_SIZE, 2 * buffers.size());
+    }
+
+    /**
+     * Tests whether every element of a bank equals the element
+     * {@code period} places before it.
+     */
+    private static boolean isPeriodic(DataBuffer db, int bank, int dataLen, int period) {
+        if (db instanceof DataBufferByte) {
+            byte[] data = ((DataBufferByte) db).getData(bank);
+            for (int i = period; i < dataLen; i++) {
+                if (data[i] != data[i - period]) return false;
+            }
+        } else if (db instanceof DataBufferUShort) {
+            short[] data = ((DataBufferUShort) db).getData(bank);
+            for (int i = period; i < dataLen; i++) {
+                if (data[i] != data[i - period]) return false;
+            }
+        } else if (db instanceof DataBufferShort) {
+            short[] data = ((DataBufferShort) db).getData(bank);
+            for (int i = period; i < dataLen; i++) {
+                if (data[i] != data[i - period]) return false;
+            }
+        } else if (db instanceof DataBufferInt) {
+            int[] data = ((DataBufferInt) db).getData(bank);
+            for (int i = period; i < dataLen; i++) {
+                if (data[i] != data[i - period]) return false;
+            }
+        } else if (db instanceof DataBufferFloat) {
+            // compare bits so that NaN nodata values are matched
+            float[] data = ((DataBufferFloat) db).getData(bank);
+            for (int i = period; i < dataLen; i++) {
+                if (Float.floatToRawIntBits(data[i]) !=
+                        Float.floatToRawIntBits(data[i - period])) return false;
+            }
+        } else if (db instanceof DataBufferDouble) {
+            double[] data = ((DataBufferDouble) db).getData(bank);
+            for (int i = period; i < dataLen; i++) {
+                if (Double.doubleToRawLongBits(data[i]) !=
+                        Double.doubleToRawLongBits(data[i - period])) return false;
+            }
+        } else {
+            for (int i = period; i < dataLen; i++) {
+                if (getElem(db, bank, i) != getElem(db, bank, i - period)) return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets an element as a long value, or its raw bits for floating
+     * point types.
+     */
+    private static long getElem(DataBuffer db, int bank, int i) {
+        switch (db.getDataType()) {
+            case DataBuffer.TYPE_FLOAT:
+                return Float.floatToRawIntBits(db.getElemFloat(bank, i));
+
+            case DataBuffer.TYPE_DOUBLE:
+                return Double.doubleToRawLongBits(db.getElemDouble(bank, i));
+
+            default:
+                return db.getElem(bank, i);
+        }
+    }
+
+    /**
+     * Creates a new data buffer filled with the data described by a key.
+     */
+    private static DataBuffer createBuffer(Key key) {
+        final int numBanks = key.getNumBanks();
+        final int len = key.dataLen;
+        final int period = key.period;
+
+        switch (key.dataType) {
+            case DataBuffer.TYPE_BYTE: {
+                byte[][] banks = new byte[numBanks][len];
+                for (int b = 0; b < numBanks; b++) {
+                    for (int i = 0; i < len; i++) {
+                        banks[b][i] = (byte) key.values[b * period + i % period];
+                    }
+                }
+                return new DataBufferByte(banks, len);
+            }
+
+            case DataBuffer.TYPE_DOUBLE: {
+                double[][] banks = new double[numBanks][len];
+                for (int b = 0; b < numBanks; b++) {
+                    for (int i = 0; i < len; i++) {
+                        banks[b][i] = Double.longBitsToDouble(key.values[b * period + i % period]);
+                    }
+                }
+                return new DataBufferDouble(banks, len);
+            }
+
+            case DataBuffer.TYPE_FLOAT: {
+                float[][] banks = new float[numBanks][len];
+                for (int b = 0; b < numBanks; b++) {
+                    for (int i = 0; i < len; i++) {
+                        banks[b][i] = Float.intBitsToFloat((int) key.values[b * period + i % period]);
+                    }
+                }
+                return new DataBufferFloat(banks, len);
+            }
+
+            case DataBuffer.TYPE_INT: {
+                int[][] banks = new int[numBanks][len];
+                for (int b = 0; b < numBanks; b++) {
+                    for (int i = 0; i < len; i++) {
+                        banks[b][i] = (int) key.values[b * period + i % period];
+                    }
+                }
+                return new DataBufferInt(banks, len);
+            }
+
+            case DataBuffer.TYPE_SHORT: {
+                short[][] banks = new short[numBanks][len];
+                for (int b = 0; b < numBanks; b++) {
+                    for (int i = 0; i < len; i++) {
+                        banks[b][i] = (short) key.values[b * period + i % period];
+                    }
+                }
+                return new DataBufferShort(banks, len);
+            }
+
+            case DataBuffer.TYPE_USHORT: {
+                short[][] banks = new short[numBanks][len];
+                for (int b = 0; b < numBanks; b++) {
+                    for (int i = 0; i < len; i++) {
+                        banks[b][i] = (short) key.values[b * period + i % period];
+                    }
+                }
+                return new DataBufferUShort(banks, len);
+            }
+
+            default:
+                throw new IllegalArgumentException("Unsupported data type: " + key.dataType);
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/* 
+ *  Copyright (c) 2013, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.tilecache;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * An eviction policy for {@code DiskMemTileCache} which keeps tiles that are
+ * expensive to recompute in memory longer than those that are cheap. It uses
+ * the GreedyDual-Size algorithm of Cao and Irani.
+ * <p>
+ * The cost of a tile is taken from the {@code tileCacheMetric} argument of
+ * {@linkplain DiskMemTileCache#add(java.awt.image.RenderedImage, int, int,
+ * java.awt.image.Raster, Object)}, which must be a {@code Number}. JAI operators
+ * pass the value of the {@code JAI.KEY_TILE_CACHE_METRIC} rendering hint, so
+ * relative costs can be assigned to nodes of a rendering chain as follows:
+ * <pre><code>
+ * RenderingHints hints = new RenderingHints(JAI.KEY_TILE_CACHE_METRIC, 20.0);
+ * RenderedOp op = JAI.create("KernelStats", pb, hints);
+ * </code></pre>
+ * Tiles without a numeric metric are given a default cost.
+ * <p>
+ * Each resident tile has a priority equal to its cost per byte plus an inflation
+ * value, and the lowest priority tile is removed first. The inflation value is
+ * raised to the priority of each removed tile, and the priority of a tile that
+ * has been accessed is recalculated with the current inflation value. Cheap tiles
+ * thus remain in memory while in use, but expensive tiles survive periods of
+ * disuse.
+ *
+ * @author Michael Bedward
+ * @since 1.4
+ * @version $Id$
+ */
+public final class CostAwareEvictionPolicy implements EvictionPolicy {
+
+    /**
+     * Default cost (1.0) of tiles without a numeric metric.
+     */
+    public static final double DEFAULT_COST = 1.0;
+
+    private static final class Entry implements Comparable<Entry> {
+        final DiskCachedTile tile;
+        final double priority;
+        final long seq;
+
+        Entry(DiskCachedTile tile, double priority, long seq) {
+            this.tile = tile;
+            this.priority = priority;
+            this.seq = seq;
+        }
+
+        public int compareTo(Entry other) {
+            if (priority < other.priority) {
+                return -1;
+            } else if (priority > other.priority) {
+                return 1;
+            }
+            // older entry first
+            return seq < other.seq ? -1 : (seq > other.seq ? 1 : 0);
+        }
+    }
+
+    private final double defaultCost;
+
+    // current entry for each resident tile; the queue may hold stale entries
+    private final Map<DiskCachedTile, Entry> members;
+    private final PriorityQueue<Entry> queue;
+
+    // entries of tiles passed over by the cache
+    private final Map<DiskCachedTile, Entry> skipped;
+
+    private double inflation;
+
+    // inflation value before the last call to nextVictim
+    private double priorInflation;
+    private long seq;
+
+    /**
+     * Creates a new policy which gives tiles without a numeric
+     * metric the {@linkplain #DEFAULT_COST}.
+     */
+    public CostAwareEvictionPolicy() {
+        this(DEFAULT_COST);
+    }
+
+    /**
+     * Creates a new policy.
+     *
+     * @param defaultCost cost of tiles without a numeric metric (must be positive)
+     */
+    public CostAwareEvictionPolicy(double defaultCost) {
+        if (!(defaultCost > 0)) {
+            throw new IllegalArgumentException("defaultCost must be positive");
+        }
+
+        this.defaultCost = defaultCost;
+        members = new HashMap<DiskCachedTile, Entry>();
+        queue = new PriorityQueue<Entry>();
+        skipped = new IdentityHashMap<DiskCachedTile, Entry>();
+    }
+
+    public void add(DiskCachedTile tile) {
+        if (!members.containsKey(tile) && !skipped.containsKey(tile)) {
+            tile.clearReferenced();
+            enqueue(tile);
+        }
+    }
+
+    public void remove(DiskCachedTile tile) {
+        skipped.remove(tile);
+
+        // the queue is cleaned up lazily in nextVictim
+        if (members.remove(tile) != null && queue.size() > 2 * members.size() + 16) {
+            queue.clear();
+            queue.addAll(members.values());
+        }
+    }
+
+    public DiskCachedTile nextVictim() {
+        priorInflation = inflation;
+        final int n = members.size();
+        int examined = 0;
+
+        Entry e;
+        while ((e = queue.peek()) != null) {
+            if (members.get(e.tile) != e) {
+                queue.poll();
+
+            } else if (examined++ < n && e.tile.clearReferenced()) {
+                // accessed since its priority was set
+                queue.poll();
+                enqueue(e.tile);
+
+            } else {
+                inflation = e.priority;
+                return e.tile;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     * The tile keeps its priority, and the inflation value is restored to
+     * what it was before the tile was chosen.
+     */
+    public void skip(DiskCachedTile tile) {
+        // the queue is cleaned up lazily in nextVictim
+        Entry e = members.remove(tile);
+        if (e != null) {
+            skipped.put(tile, e);
+            inflation = priorInflation;
+        }
+    }
+
+    public void requeue(DiskCachedTile tile) {
+        Entry e = skipped.remove(tile);
+        if (e != null) {
+            members.put(tile, e);
+            queue.add(e);
+        }
+    }
+
+    public void clear() {
+        members.clear();
+        queue.clear();
+        skipped.clear();
+        inflation = 0;
+    }
+
+    /**
+     * Gets the cost of a tile.
+     *
+     * @param tile the tile
+     * @return cost
+     */
+    private double getCost(DiskCachedTile tile) {
+        Object metric = tile.getTileCacheMetric();
+        if (metric instanceof Number) {
+            double cost = ((Number) metric).doubleValue();
+            if (cost > 0) {
+                return cost;
+            }
+        }
+        return defaultCost;
+    }
+
+    private void enqueue(DiskCachedTile tile) {
+        double priority = inflation + getCost(tile) / Math.max(1L, tile.getTileSize());
+        Entry e = new Entry(tile, priority, seq++);
+        members.put(tile, e);
+        queue.add(e);
+    }
+}
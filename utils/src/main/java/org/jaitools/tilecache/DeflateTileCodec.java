@@ -0,0 +1,341 @@
+/* 
+ *  Copyright (c) 2013, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.tilecache;
+
+import java.awt.image.DataBuffer;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A {@code TileCodec} which compresses tile data with the deflate algorithm.
+ * Optionally, a predictor suited to the data type is applied before compression:
+ * for integral types each element is replaced by its difference from the
+ * previous element; for floating point types the bits of each element are
+ * XOR-ed with those of the previous element. Both turn runs of equal values,
+ * common in classification and elevation rasters, into runs of zeroes which
+ * compress very well.
+ * <p>
+ * Example of use:
+ * <pre><code>
+ * Map&lt;String, Object&gt; params = new HashMap&lt;String, Object&gt;();
+ * params.put(DiskMemTileCache.KEY_TILE_CODEC, new DeflateTileCodec());
+ * DiskMemTileCache cache = new DiskMemTileCache(params);
+ * </code></pre>
+ *
+ * @author Michael Bedward
+ * @since 1.4
+ * @version $Id$
+ */
+public final class DeflateTileCodec implements TileCodec {
+
+    /**
+     * The default compression level ({@code Deflater.BEST_SPEED}).
+     */
+    public static final int DEFAULT_LEVEL = Deflater.BEST_SPEED;
+
+    /*
+     * Per-thread compressor state and work arrays. The arrays
+     * are grown as required and never shrink.
+     */
+    private static class Work {
+        final Deflater deflater;
+        final Inflater inflater;
+        byte[] in = new byte[0];
+        byte[] out = new byte[0];
+
+        Work(int level) {
+            deflater = new Deflater(level);
+            inflater = new Inflater();
+        }
+    }
+
+    private final int level;
+    private final boolean usePredictor;
+    private final ThreadLocal<Work> work;
+
+    /**
+     * Creates a codec using the default compression level with a predictor.
+     */
+    public DeflateTileCodec() {
+        this(DEFAULT_LEVEL, true);
+    }
+
+    /**
+     * Creates a codec.
+     *
+     * @param level compression level (0-9 as for {@code java.util.zip.Deflater})
+     * @param usePredictor whether to apply a predictor to data before compression
+     */
+    public DeflateTileCodec(final int level, boolean usePredictor) {
+        if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("level must be between 0 and 9");
+        }
+        this.level = level;
+        this.usePredictor = usePredictor;
+        this.work = new ThreadLocal<Work>() {
+            @Override
+            protected Work initialValue() {
+                return new Work(level);
+            }
+        };
+    }
+
+    /**
+     * Gets the compression level.
+     *
+     * @return compression level
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Queries whether a predictor is applied to data before compression.
+     *
+     * @return {@code true} if a predictor is used
+     */
+    public boolean isUsingPredictor() {
+        return usePredictor;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public ByteBuffer encode(ByteBuffer data, int dataType) throws IOException {
+        Work w = work.get();
+        int len = data.remaining();
+
+        if (w.in.length < len) {
+            w.in = new byte[len];
+        }
+        data.get(w.in, 0, len);
+
+        if (usePredictor) {
+            predict(ByteBuffer.wrap(w.in, 0, len).order(ByteOrder.nativeOrder()), dataType);
+        }
+
+        // deflate output can slightly exceed its input for incompressible data
+        int maxLen = len + len / 1000 + 64;
+        if (w.out.length < maxLen) {
+            w.out = new byte[maxLen];
+        }
+
+        Deflater deflater = w.deflater;
+        deflater.reset();
+        deflater.setInput(w.in, 0, len);
+        deflater.finish();
+
+        int n = 0;
+        while (!deflater.finished()) {
+            if (n == w.out.length) {
+                byte[] grown = new byte[w.out.length * 2];
+                System.arraycopy(w.out, 0, grown, 0, n);
+                w.out = grown;
+            }
+            n += deflater.deflate(w.out, n, w.out.length - n);
+        }
+
+        return ByteBuffer.wrap(w.out, 0, n);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public ByteBuffer decode(ByteBuffer data, int dataType, int length) throws IOException {
+        Work w = work.get();
+        int encLen = data.remaining();
+
+        if (w.in.length < encLen) {
+            w.in = new byte[encLen];
+        }
+        data.get(w.in, 0, encLen);
+
+        if (w.out.length < length) {
+            w.out = new byte[length];
+        }
+
+        Inflater inflater = w.inflater;
+        inflater.reset();
+        inflater.setInput(w.in, 0, encLen);
+
+        int n = 0;
+        try {
+            while (n < length && !inflater.finished()) {
+                int k = inflater.inflate(w.out, n, length - n);
+                if (k == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += k;
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("Corrupt compressed tile data: " + ex.getMessage());
+        }
+
+        if (n < length) {
+            throw new IOException("Compressed tile data appear to be truncated");
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(w.out, 0, length).order(ByteOrder.nativeOrder());
+        if (usePredictor) {
+            unpredict(buf, dataType);
+        }
+        return buf;
+    }
+
+    /**
+     * Applies the predictor for the given data type in place.
+     */
+    private static void predict(ByteBuffer buf, int dataType) {
+        switch (dataType) {
+            case DataBuffer.TYPE_BYTE: {
+                byte prev = 0;
+                for (int i = buf.position(), end = buf.limit(); i < end; i++) {
+                    byte cur = buf.get(i);
+                    buf.put(i, (byte) (cur - prev));
+                    prev = cur;
+                }
+                break;
+            }
+
+            case DataBuffer.TYPE_SHORT:
+            case DataBuffer.TYPE_USHORT: {
+                ShortBuffer sb = buf.asShortBuffer();
+                short prev = 0;
+                for (int i = 0, n = sb.limit(); i < n; i++) {
+                    short cur = sb.get(i);
+                    sb.put(i, (short) (cur - prev));
+                    prev = cur;
+                }
+                break;
+            }
+
+            case DataBuffer.TYPE_INT: {
+                IntBuffer ib = buf.asIntBuffer();
+                int prev = 0;
+                for (int i = 0, n = ib.limit(); i < n; i++) {
+                    int cur = ib.get(i);
+                    ib.put(i, cur - prev);
+                    prev = cur;
+                }
+                break;
+            }
+
+            case DataBuffer.TYPE_FLOAT: {
+                // XOR of raw bits, read through an int view
+                IntBuffer ib = buf.asIntBuffer();
+                int prev = 0;
+                for (int i = 0, n = ib.limit(); i < n; i++) {
+                    int cur = ib.get(i);
+                    ib.put(i, cur ^ prev);
+                    prev = cur;
+                }
+                break;
+            }
+
+            case DataBuffer.TYPE_DOUBLE: {
+                // XOR of raw bits, read through a long view
+                LongBuffer lb = buf.asLongBuffer();
+                long prev = 0;
+                for (int i = 0, n = lb.limit(); i < n; i++) {
+                    long cur = lb.get(i);
+                    lb.put(i, cur ^ prev);
+                    prev = cur;
+                }
+                break;
+            }
+
+            default:
+                throw new UnsupportedOperationException("Unsupported data type: " + dataType);
+        }
+    }
+
+    /**
+     * Reverses the predictor for the given data type in place.
+     */
+    private static void unpredict(ByteBuffer buf, int dataType) {
+        switch (dataType) {
+            case DataBuffer.TYPE_BYTE: {
+                byte prev = 0;
+                for (int i = buf.position(), end = buf.limit(); i < end; i++) {
+                    prev = (byte) (buf.get(i) + prev);
+                    buf.put(i, prev);
+                }
+                break;
+            }
+
+            case DataBuffer.TYPE_SHORT:
+            case DataBuffer.TYPE_USHORT: {
+                ShortBuffer sb = buf.asShortBuffer();
+                short prev = 0;
+                for (int i = 0, n = sb.limit(); i < n; i++) {
+                    prev = (short) (sb.get(i) + prev);
+                    sb.put(i, prev);
+                }
+                break;
+            }
+
+            case DataBuffer.TYPE_INT: {
+                IntBuffer ib = buf.asIntBuffer();
+                int prev = 0;
+                for (int i = 0, n = ib.limit(); i < n; i++) {
+                    prev = ib.get(i) + prev;
+                    ib.put(i, prev);
+                }
+                break;
+            }
+
+            case DataBuffer.TYPE_FLOAT: {
+                IntBuffer ib = buf.asIntBuffer();
+                int prev = 0;
+                for (int i = 0, n = ib.limit(); i < n; i++) {
+                    prev = ib.get(i) ^ prev;
+                    ib.put(i, prev);
+                }
+                break;
+            }
+
+            case DataBuffer.TYPE_DOUBLE: {
+                LongBuffer lb = buf.asLongBuffer();
+                long prev = 0;
+                for (int i = 0, n = lb.limit(); i < n; i++) {
+                    prev = lb.get(i) ^ prev;
+                    lb.put(i, prev);
+                }
+                break;
+            }
+
+            default:
+                throw new UnsupportedOperationException("Unsupported data type: " + dataType);
+        }
+    }
+}
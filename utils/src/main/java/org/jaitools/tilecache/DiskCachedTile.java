@@ -27,28 +27,20 @@ package org.jaitools.tilecache;
 
 import java.awt.Point;
 import java.awt.image.DataBuffer;
-import java.awt.image.DataBufferByte;
-import java.awt.image.DataBufferDouble;
-import java.awt.image.DataBufferFloat;
-import java.awt.image.DataBufferInt;
-import java.awt.image.DataBufferShort;
-import java.awt.image.DataBufferUShort;
 import java.awt.image.Raster;
 import java.awt.image.RenderedImage;
 import java.awt.image.WritableRaster;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.imageio.ImageIO;
-import javax.imageio.stream.ImageInputStream;
-import javax.imageio.stream.ImageOutputStream;
 import javax.media.jai.CachedTile;
 
 /**
@@ -192,20 +184,91 @@ public final class DiskCachedTile implements CachedTile {
     private static File cacheFolder = null;
     private static final Object folderLock = new Object();
 
+    /*
+     * Whether data for tiles which are not writable are read from disk
+     * via a memory-mapped buffer.
+     */
+    private static volatile boolean useMemoryMappedReads = false;
+
     private final Object id;
     private final WeakReference<RenderedImage> ownerRef;
     private final int tileX;
     private final int tileY;
     private final Object tileCacheMetric;
-    private long timeStamp;
+    private volatile long timeStamp;
+    private final int  dataType;
     private final int  numBanks;
     private final int  dataLen;
     private final long memorySize;
-    private File file;
+    private final SpillStore store;
+    private final TileCodec codec;
+    private SpillStore.Slot slot;
     private final Point location;
+
+    // stripe of the spill store chosen for the tile's data (-1 until chosen)
+    private int stripe = -1;
     private final boolean isWritable;
 
-    private TileAction action =TileAction.getDefault();
+    // set when the tile has been discarded by its cache
+    private boolean disposed;
+
+    // set for a tile reattached from a persistent cache until its data are verified
+    private boolean verifyChecksum;
+
+    // set when the tile is accessed via the cache
+    private volatile boolean referenced;
+
+    /*
+     * Version of the tile's data, incremented each time the data are
+     * changed, and the version held by the disk copy (-1 if there is
+     * no valid disk copy). The tile is dirty when these differ.
+     */
+    private final AtomicLong version = new AtomicLong();
+    private volatile long diskVersion = -1;
+
+    /*
+     * Links for the LruEvictionPolicy list of resident tiles. These
+     * are guarded by the controlling cache's memory lock.
+     */
+    DiskCachedTile prev;
+    DiskCachedTile next;
+
+    /*
+     * Per-image state held by the controlling cache. Set by the
+     * cache before the tile is published.
+     */
+    OwnerRecord ownerRecord;
+
+    /*
+     * The memory quota, if any, that the tile was charged to when
+     * last made resident. Guarded by the controlling cache's memory
+     * lock.
+     */
+    QuotaGroup quotaGroup;
+
+    /*
+     * Number of pins held on the tile, which is never removed from memory
+     * while pinned. Guarded by the controlling cache's memory lock.
+     */
+    int pinCount;
+
+    /*
+     * Pool supplying recycled data arrays when the tile's raster is
+     * re-created (null if recycling is disabled). Set by the cache
+     * before the tile is published.
+     */
+    TileBufferPool bufferPool;
+
+    /*
+     * Registry of shared buffers for constant tiles (null if constant
+     * tiles are not shared). Set by the cache before the tile is published.
+     */
+    ConstantTileRegistry constantTiles;
+
+    // description of the tile's data, held instead of a disk copy, when constant
+    private ConstantTileRegistry.Key constant;
+
+    private volatile TileAction action =TileAction.getDefault();
 
     /**
      * Get the current cache folder. This is the folder in which
@@ -245,6 +308,41 @@ public final class DiskCachedTile implements CachedTile {
         }
     }
 
+    /**
+     * Sets whether data for tiles which are not writable (ie. tiles whose
+     * data are not represented by a {@code WritableRaster}) will be read from
+     * disk through a memory-mapped buffer rather than a direct read. Memory
+     * mapping avoids copying data through an intermediate buffer but, on some
+     * platforms, a file cannot be deleted while a mapping of it is still to be
+     * garbage collected. The default is {@code false}.
+     * <p>
+     * A mapped buffer is only used while the tile's data are copied into a new
+     * raster; no reference to it is retained by the tile or the cache. There is
+     * no explicit unmapping: the mapping is released when the buffer is garbage
+     * collected, which may be after the tile has been disposed and its disk copy
+     * deleted.
+     * <p>
+     * Regardless of this setting, tile data are always transferred with
+     * {@code FileChannel} bulk I/O in native byte order.
+     *
+     * @param useMapping {@code true} to use memory-mapped reads; {@code false}
+     *        to use direct reads
+     */
+    public static void setMemoryMappedReads(boolean useMapping) {
+        useMemoryMappedReads = useMapping;
+    }
+
+    /**
+     * Queries whether data for tiles which are not writable will be read
+     * from disk through a memory-mapped buffer.
+     *
+     * @return {@code true} if memory-mapped reads are used
+     * @see #setMemoryMappedReads(boolean)
+     */
+    public static boolean isUsingMemoryMappedReads() {
+        return useMemoryMappedReads;
+    }
+
     /**
      * Package-private constructor
      *
@@ -268,6 +366,37 @@ public final class DiskCachedTile implements CachedTile {
                   boolean writeToFile,
                   Object tileCacheMetric) throws IOException {
 
+        this(id, owner, tileX, tileY, raster, writeToFile, tileCacheMetric,
+                FileSpillStore.INSTANCE, RawTileCodec.INSTANCE);
+    }
+
+    /**
+     * Package-private constructor
+     *
+     * @param id the tile's unique identifier, allocated by the cache
+     * @param owner the image to which this tile belongs
+     * @param tileX the column index for this tile in the image's tile grid
+     * @param tileY the row index for this tile in the image's tile grid
+     * @param raster the image data for this tile
+     * @param writeToFile if true, the tile's data will be cached to disk
+     *        immediately; if false, disk caching is deferred
+     * @param tileCacheMetric optional tile cache metric for use in scheduling
+     *        (may be {@code null})
+     * @param store the store to which the tile's data will be written
+     * @param codec the codec used to encode the tile's data for storage
+     *
+     * @throws IOException if an attempt to write the tile to disk fails
+     */
+    DiskCachedTile(Object id,
+                  RenderedImage owner,
+                  int tileX,
+                  int tileY,
+                  Raster raster,
+                  boolean writeToFile,
+                  Object tileCacheMetric,
+                  SpillStore store,
+                  TileCodec codec) throws IOException {
+
         if (owner == null || raster == null) {
             throw new IllegalArgumentException(
                     "All of owner, tile and file args must be non-null");
@@ -278,10 +407,13 @@ public final class DiskCachedTile implements CachedTile {
         this.tileX = tileX;
         this.tileY = tileY;
         this.tileCacheMetric = tileCacheMetric;
+        this.store = store;
+        this.codec = codec;
         this.location = raster.getBounds().getLocation();
         this.isWritable = (raster instanceof WritableRaster);
 
         DataBuffer db = raster.getDataBuffer();
+        dataType = db.getDataType();
         numBanks = db.getNumBanks();
         dataLen = db.getSize();
         memorySize = DataBuffer.getDataTypeSize(db.getDataType()) / 8L * dataLen * numBanks;
@@ -293,6 +425,60 @@ public final class DiskCachedTile implements CachedTile {
         setTileTimeStamp(System.currentTimeMillis());
     }
 
+    /**
+     * Package-private constructor for a tile whose data were saved by a
+     * persistent cache in an earlier session. The tile's disk copy is
+     * the slot given by the index entry and the tile is not dirty. The
+     * slot's checksum is verified when the data are first read.
+     *
+     * @param id the tile's unique identifier, allocated by the cache
+     * @param owner the image to which this tile belongs
+     * @param entry the index entry
+     * @param tileCacheMetric optional tile cache metric for use in scheduling
+     *        (may be {@code null})
+     * @param store the store holding the tile's data
+     * @param codec the codec used to encode the tile's data for storage
+     *
+     * @throws IllegalArgumentException if the entry does not match the layout
+     *         of the image's tiles
+     */
+    DiskCachedTile(Object id,
+                  RenderedImage owner,
+                  PersistentIndex.Entry entry,
+                  Object tileCacheMetric,
+                  SpillStore store,
+                  TileCodec codec) {
+
+        if (entry.dataType != owner.getSampleModel().getDataType() ||
+                entry.tileWidth != owner.getTileWidth() ||
+                entry.tileHeight != owner.getTileHeight()) {
+            throw new IllegalArgumentException("Saved tile does not match image layout");
+        }
+
+        this.id = id;
+        this.ownerRef = new WeakReference<RenderedImage>(owner);
+        this.tileX = entry.tileX;
+        this.tileY = entry.tileY;
+        this.tileCacheMetric = tileCacheMetric;
+        this.store = store;
+        this.codec = codec;
+        this.location = new Point(
+                owner.getTileGridXOffset() + tileX * owner.getTileWidth(),
+                owner.getTileGridYOffset() + tileY * owner.getTileHeight());
+        this.isWritable = entry.writable;
+
+        dataType = entry.dataType;
+        numBanks = entry.numBanks;
+        dataLen = entry.dataLen;
+        memorySize = DataBuffer.getDataTypeSize(dataType) / 8L * dataLen * numBanks;
+
+        slot = entry.slot;
+        diskVersion = version.get();
+        verifyChecksum = true;
+
+        setTileTimeStamp(System.currentTimeMillis());
+    }
+
     /**
      * Returns a string representation of this cached tile
      */
@@ -312,7 +498,7 @@ public final class DiskCachedTile implements CachedTile {
                " id = " + ((id instanceof Long)? Long.toHexString(((Long)id).longValue()) : id.toString()) +
                " memorySize = " + Long.toString(memorySize) +
                " timeStamp = " + Long.toString(timeStamp) +
-               " file = " + file.getPath();
+               " file = " + (slot == null ? "null" : slot.file.getPath());
     }
 
     /**
@@ -386,31 +572,92 @@ public final class DiskCachedTile implements CachedTile {
      * 
      * @return {@code true} if the tile is cached on disk; {@code false} otherwise
      */
-    public boolean cachedToDisk() {
-        return file != null;
+    public synchronized boolean cachedToDisk() {
+        return slot != null;
     }
 
     /**
      * Gets this tile's disk cache file. Returns {@code null} if the tile has not
-     * been cached to disk.
+     * been cached to disk. If the controlling cache uses slab files (see
+     * {@linkplain DiskMemTileCache#KEY_USE_SLAB_FILES}) the file returned is the
+     * slab file holding the tile's data, which is shared with other tiles.
      * 
      * @return the disk cache file for this tile or {@code null}
      */
-    public File getFile() {
-        return file;
+    public synchronized File getFile() {
+        return slot == null ? null : slot.file;
+    }
+
+    /**
+     * Gets the number of bytes occupied by this tile's disk copy. This will
+     * be less than {@linkplain #getTileSize()} if the controlling cache
+     * compresses tile data (see {@linkplain DiskMemTileCache#KEY_TILE_CODEC}).
+     * 
+     * @return size of the disk copy in bytes or 0 if the tile is not cached
+     *         to disk
+     */
+    public synchronized long getDiskSize() {
+        return slot == null ? 0 : slot.length;
+    }
+
+    /**
+     * Deletes this tile's disk copy. With the default per-tile files, the
+     * file is deleted and a warning is logged if this fails. With slab files,
+     * the tile's slot is released for reuse.
+     */
+    public synchronized void deleteDiskCopy() {
+        diskVersion = -1;
+        constant = null;
+        if (slot != null) {
+            store.free(slot);
+            slot = null;
+        }
     }
 
     /**
-     * Deletes this tile's disk cache file. If the file could not be deleted
-     * a warning is logged.
+     * Queries whether this tile's data have changed since they were last
+     * written to disk. A tile which has never been written to disk is dirty.
+     * 
+     * @return {@code true} if the tile's disk copy is missing or out of date
+     */
+    public boolean isDirty() {
+        return diskVersion != version.get();
+    }
+
+    /**
+     * Package-private method called by the controlling cache when the tile's
+     * data have been changed, making any disk copy out of date. This method
+     * does not require the tile's lock.
      */
-    public void deleteDiskCopy() {
-        if (file != null) {
-            if (!file.delete()) {
-                LOGGER.log(Level.WARNING, 
-                        "Unable to delete cached image tile file: {0}", file.getPath());
+    void markChanged() {
+        version.incrementAndGet();
+    }
+
+    /**
+     * Package-private method called by the controlling cache when the tile
+     * is removed. The disk copy is deleted and any subsequent request to write
+     * the tile's data (e.g. from a concurrent memory swap) is ignored.
+     */
+    synchronized void dispose() {
+        disposed = true;
+        deleteDiskCopy();
+        if (stripe >= 0) {
+            store.releaseStripe(stripe, getByteLength());
         }
     }
+
+    /**
+     * Package-private method that gets the stripe of the spill store which
+     * holds, or will hold, this tile's disk copy. The stripe is chosen when
+     * first requested.
+     *
+     * @return the stripe index
+     */
+    synchronized int getStripe() {
+        if (stripe < 0) {
+            stripe = store.selectStripe(getByteLength());
+        }
+        return stripe;
     }
 
     /**
@@ -477,112 +724,210 @@ public final class DiskCachedTile implements CachedTile {
         this.timeStamp = time;
     }
 
+    /**
+     * Package-private method called by the controlling cache when the
+     * tile is accessed. Marks the tile as referenced.
+     */
+    void setReferenced() {
+        referenced = true;
+    }
+
+    /**
+     * Tests whether the tile has been accessed since this method was last
+     * called, and clears the mark. This is intended for use by
+     * {@linkplain EvictionPolicy} implementations.
+     *
+     * @return {@code true} if the tile was referenced; {@code false} otherwise
+     */
+    public boolean clearReferenced() {
+        if (referenced) {
+            referenced = false;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Package-private method that queries whether the tile's data must be
+     * written to disk when it is removed from memory. This is the case for a
+     * dirty tile which is writable or which belongs to an image whose tiles
+     * are saved by a persistent cache.
+     *
+     * @return {@code true} if the data must be written
+     */
+    boolean needsWrite() {
+        if (!isWritable) {
+            OwnerRecord rec = ownerRecord;
+            if (rec == null || rec.getPersistentKey() == null) {
+                return false;
+            }
+        }
+        return isDirty();
+    }
+
+    /**
+     * Package-private method that creates an entry for a persistent index
+     * describing this tile's disk copy.
+     *
+     * @param ownerKey persistent key of the owning image
+     * @return the entry, or {@code null} if the tile has no up to date disk
+     *         copy or its owner has been garbage collected
+     */
+    synchronized PersistentIndex.Entry createIndexEntry(String ownerKey) {
+        RenderedImage img = ownerRef.get();
+        if (slot == null || isDirty() || img == null) {
+            return null;
+        }
+
+        return new PersistentIndex.Entry(ownerKey, tileX, tileY,
+                img.getTileWidth(), img.getTileHeight(),
+                dataType, numBanks, dataLen, isWritable, slot);
+    }
+
+    /**
+     * Package-private method that gets the data type of this tile.
+     *
+     * @return a {@code DataBuffer} type constant
+     */
+    int getDataType() {
+        return dataType;
+    }
+
+    /**
+     * Package-private method that gets the number of bytes required to hold
+     * this tile's data in native (unencoded) form.
+     *
+     * @return length in bytes
+     */
+    int getByteLength() {
+        return TileBuffers.getByteLength(dataType, numBanks, dataLen);
+    }
+
+    /**
+     * Package-private method that copies this tile's data from a raster into
+     * a byte buffer in native form. The buffer's position is advanced past the
+     * data.
+     *
+     * @param raster the tile's raster
+     * @param dst destination buffer in native byte order
+     */
+    void putData(Raster raster, ByteBuffer dst) {
+        TileBuffers.put(raster.getDataBuffer(), dataLen, dst);
+    }
+
+    /**
+     * Package-private method that creates a new raster for this tile from data
+     * held in native form in a byte buffer. The buffer's position is advanced
+     * past the data.
+     *
+     * @param src source buffer in native byte order
+     * @return a new instance of Raster or WritableRaster, or {@code null} if
+     *         the owning image has been garbage collected
+     */
+    Raster createRaster(ByteBuffer src) {
+        RenderedImage img = ownerRef.get();
+        if (img == null) {
+            return null;
+        }
+
+        TileBufferPool pool = bufferPool;
+        Object bankData = pool == null ? null : pool.take(dataType, numBanks, dataLen);
+        DataBuffer dataBuf = TileBuffers.get(src, dataType, numBanks, dataLen, bankData);
+        return createRaster(img, dataBuf);
+    }
+
+    /**
+     * Creates a raster for this tile backed by the given data buffer.
+     */
+    private Raster createRaster(RenderedImage img, DataBuffer dataBuf) {
+        if (isWritable) {
+            return Raster.createWritableRaster(img.getSampleModel(), dataBuf, location);
+        } else {
+            return Raster.createRaster(img.getSampleModel(), dataBuf, location);
+        }
+    }
+
     /**
      * Package-private method that reads data for the raster associated with this tile
      * from disk
      *
      * @return a new instance of Raster or WritableRaster
      */
-    Raster readData() {
-        ImageInputStream strm = null;
-        DataBuffer dataBuf = null;
+    synchronized Raster readData() {
         RenderedImage img = ownerRef.get();
-        Raster raster = null;
-
-        if (file != null && img != null) {
-            try {
-                strm = ImageIO.createImageInputStream(file);
-
-                switch (img.getSampleModel().getDataType()) {
-                    case DataBuffer.TYPE_BYTE: {
-                        byte[][] bankData = new byte[numBanks][dataLen];
-                        for (int i = 0; i < numBanks; i++) {
-                            int numRead = strm.read(bankData[i], 0, dataLen);
-                            if (numRead < numBanks) {
-                                throw new RuntimeException(
-                                        "Cached tile file appears to be truncated");
-                            }
-                        }
-                        dataBuf = new DataBufferByte(bankData, dataLen);
-                    }
-                    break;
-
-                    case DataBuffer.TYPE_DOUBLE: {
-                        double[][] bankData = new double[numBanks][dataLen];
-                        for (int i = 0; i < numBanks; i++) {
-                            strm.readFully(bankData[i], 0, dataLen);
-                        }
-                        dataBuf = new DataBufferDouble(bankData, dataLen);
-                    }
-                    break;
-
-                    case DataBuffer.TYPE_FLOAT: {
-                        float[][] bankData = new float[numBanks][dataLen];
-                        for (int i = 0; i < numBanks; i++) {
-                            strm.readFully(bankData[i], 0, dataLen);
-                        }
-                        dataBuf = new DataBufferFloat(bankData, dataLen);
-                    }
-                    break;
-
-                    case DataBuffer.TYPE_INT: {
-                        int[][] bankData = new int[numBanks][dataLen];
-                        for (int i = 0; i < numBanks; i++) {
-                            strm.readFully(bankData[i], 0, dataLen);
-                        }
-                        dataBuf = new DataBufferInt(bankData, dataLen);
-                    }
-                    break;
-
-                    case DataBuffer.TYPE_SHORT: {
-                        short[][] bankData = new short[numBanks][dataLen];
-                        for (int i = 0; i < numBanks; i++) {
-                            strm.readFully(bankData[i], 0, dataLen);
-                        }
-                        dataBuf = new DataBufferShort(bankData, dataLen);
-                    }
-                    break;
-
-                    case DataBuffer.TYPE_USHORT: {
-                        short[][] bankData = new short[numBanks][dataLen];
-                        for (int i = 0; i < numBanks; i++) {
-                            strm.readFully(bankData[i], 0, dataLen);
-                        }
-                        dataBuf = new DataBufferUShort(bankData, dataLen);
-                    }
-                    break;
-
-                    default:
-                        throw new UnsupportedOperationException("Unsupported image data type");
-                }
-
-            } catch (FileNotFoundException ex) {
-                LOGGER.log(Level.SEVERE, "Failed to read image tile data", ex);
-                return null;
-
-            } catch (IOException ex) {
-                LOGGER.log(Level.SEVERE, "Failed to read image tile data", ex);
-                return null;
-            }
-            finally{
-            	if(strm!=null)
-            		try{
-            			strm.close();
-            		}catch (Throwable e) {
-						// chew me
-					}
-            }
+        if (img == null) {
+            return null;
+        }
+        if (constant != null) {
+            return createRaster(img, constantTiles.getBuffer(constant));
+        }
+        if (slot == null) {
+            return null;
         }
 
-        if (dataBuf != null) {
-            if (isWritable) {
-                raster = Raster.createWritableRaster(img.getSampleModel(), dataBuf, location);
-            } else {
-                raster = Raster.createRaster(img.getSampleModel(), dataBuf, location);
+        try {
+            return decode(store.read(slot, useMemoryMappedReads && !isWritable));
+
+        } catch (IOException ex) {
+            LOGGER.log(Level.SEVERE, "Failed to read image tile data", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Package-private method that creates the raster for this tile from
+     * data already read from the given slot, as when reading a batch of
+     * tiles. If the tile's data have moved since the slot was obtained
+     * from {@linkplain #getSlot()} they are read again with {@linkplain #readData()}.
+     *
+     * @param readSlot the slot that the data were read from
+     * @param buf the data
+     *
+     * @return a new instance of Raster or WritableRaster
+     */
+    synchronized Raster readData(SpillStore.Slot readSlot, ByteBuffer buf) {
+        if (readSlot != slot || constant != null) {
+            return readData();
+        }
+        if (ownerRef.get() == null) {
+            return null;
+        }
+
+        try {
+            return decode(buf);
+
+        } catch (IOException ex) {
+            LOGGER.log(Level.SEVERE, "Failed to read image tile data", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Package-private method that returns the slot holding this tile's
+     * data, or {@code null} if the data are not on disk.
+     */
+    synchronized SpillStore.Slot getSlot() {
+        return slot;
+    }
+
+    /**
+     * Checks and decodes data read from this tile's slot and creates
+     * the raster.
+     */
+    private Raster decode(ByteBuffer buf) throws IOException {
+        final int byteLen = getByteLength();
+        if (verifyChecksum) {
+            if (SlabSpillStore.checksum(buf.duplicate()) != slot.checksum) {
+                throw new IOException("Saved tile data do not match checksum");
             }
+            verifyChecksum = false;
+        }
+        buf = codec.decode(buf, dataType, byteLen);
+        if (buf.remaining() < byteLen) {
+            throw new IOException("Cached tile data appear to be truncated");
         }
 
-        return raster;
+        return createRaster(buf);
     }
 
 
@@ -590,108 +935,139 @@ public final class DiskCachedTile implements CachedTile {
      * Write data for the raster associated with this tile to
      * disk. This may be called by <code>DiskMemTileCache</code>
      * as well as be the tile itself.
+     *
+     * @throws IOException if the data could not be written, in which
+     *         case the tile remains dirty
      */
-    void writeData(Raster raster) throws IOException {
-        ImageOutputStream strm = null;
-        DataBuffer dataBuf = raster.getDataBuffer();
+    synchronized void writeData(Raster raster) throws IOException {
+        if (disposed) {
+            return;
+        }
 
-        if (file == null) {
-            // first time this tile has been written to disk
-            file = createFile();
+        /*
+         * Record the version before copying the data. If the data are
+         * changed during the copy, the tile will remain dirty.
+         */
+        final long v = version.get();
+        if (storeConstant(raster, v)) {
+            return;
         }
 
-        try {
-            strm = ImageIO.createImageOutputStream(file);
-
-            switch (dataBuf.getDataType()) {
-                case DataBuffer.TYPE_BYTE:
-                     {
-                        byte[] bankData;
-                        for (int i = 0; i < numBanks; i++) {
-                            bankData = ((DataBufferByte) dataBuf).getData(i);
-                            strm.write(bankData);
-                        }
-                    }
-                    break;
-
-                case DataBuffer.TYPE_DOUBLE:
-                     {
-                        double[] bankData;
-                        for (int i = 0; i < numBanks; i++) {
-                            bankData = ((DataBufferDouble) dataBuf).getData(i);
-                            strm.writeDoubles(bankData, 0, dataLen);
-                        }
-                    }
-                    break;
-
-                case DataBuffer.TYPE_FLOAT:
-                     {
-                        float[] bankData;
-                        for (int i = 0; i < numBanks; i++) {
-                            bankData = ((DataBufferFloat) dataBuf).getData(i);
-                            strm.writeFloats(bankData, 0, dataLen);
-                        }
-                    }
-                    break;
-
-                case DataBuffer.TYPE_INT:
-                     {
-                        int[] bankData;
-                        for (int i = 0; i < numBanks; i++) {
-                            bankData = ((DataBufferInt) dataBuf).getData(i);
-                            strm.writeInts(bankData, 0, dataLen);
-                        }
-                    }
-                    break;
-
-                case DataBuffer.TYPE_SHORT:
-                     {
-                        short[] bankData;
-                        for (int i = 0; i < numBanks; i++) {
-                            bankData = ((DataBufferShort) dataBuf).getData(i);
-                            strm.writeShorts(bankData, 0, dataLen);
-                        }
-                    }
-                    break;
-
-                case DataBuffer.TYPE_USHORT:
-                    {
-                        short[] bankData;
-                        for (int i = 0; i < numBanks; i++) {
-                            bankData = ((DataBufferUShort) dataBuf).getData(i);
-                            strm.writeShorts(bankData, 0, dataLen);
-                        }
-                    }
-                    break;
-
-                default:
-                    throw new UnsupportedOperationException("Unsupported image data type");
-            }
+        ByteBuffer buf = TileBuffers.getScratchBuffer(getByteLength());
+        putData(raster, buf);
+        buf.flip();
+        writeBuffer(buf, v);
+    }
 
+    /**
+     * Package-private method that records this tile's data in place of a disk
+     * copy if they are constant and the controlling cache shares constant tiles.
+     * Any existing disk copy is released.
+     *
+     * @param raster the tile's raster
+     * @return {@code true} if the data were constant and have been recorded;
+     *         {@code false} if they must be written to disk as usual
+     */
+    synchronized boolean writeConstant(Raster raster) {
+        if (disposed) {
+            return false;
+        }
+        return storeConstant(raster, version.get());
+    }
 
-        } catch (FileNotFoundException ex) {
-            LOGGER.log(Level.SEVERE, "Failed to write image tile data", ex);
+    /**
+     * Records constant data as the given version of the tile.
+     */
+    private boolean storeConstant(Raster raster, long v) {
+        if (constantTiles == null) {
+            return false;
+        }
 
-        } catch (IOException ex) {
-            LOGGER.log(Level.SEVERE, "Failed to write image tile data", ex);
+        ConstantTileRegistry.Key key = ConstantTileRegistry.detect(raster);
+        if (key == null) {
+            return false;
         }
-        finally{
-        	if(strm!=null)
-        		try{
-        			strm.close();
-        		}catch (Throwable e) {
-					// chew me
-				}
+
+        if (slot != null) {
+            store.free(slot);
+            slot = null;
         }
+        constant = key;
+        diskVersion = v;
+        return true;
     }
 
     /**
-     * Create a file to cache the given tile on disk. Presently
+     * Package-private method that writes this tile's data to disk from a
+     * buffer holding them in native form. Nothing is written if the tile
+     * has changed since the buffer was filled.
+     *
+     * @param data tile data, from position to limit, in native byte order
+     * @param v the tile's version, as returned by {@linkplain #getVersion()},
+     *        when the buffer was filled
+     * @throws IOException if the data could not be written, in which
+     *         case the tile remains dirty
+     */
+    synchronized void writeData(ByteBuffer data, long v) throws IOException {
+        if (disposed || v != version.get()) {
+            return;
+        }
+
+        writeBuffer(data, v);
+    }
+
+    /**
+     * Gets the version of this tile's data, which is incremented each time
+     * the data are marked as changed.
+     *
+     * @return the version
+     */
+    long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Encodes and writes data to disk, recording the version of the data
+     * now held by the disk copy. If the data cannot be written the disk
+     * copy is treated as out of date, since it may have been partly
+     * overwritten.
+     *
+     * @throws IOException on error encoding or writing the data
+     */
+    private void writeBuffer(ByteBuffer data, long v) throws IOException {
+        try {
+            slot = store.write(slot, codec.encode(data, dataType), getStripe());
+
+        } catch (IOException ex) {
+            diskVersion = -1;
+            throw ex;
+        }
+
+        constant = null;
+        diskVersion = v;
+    }
+
+    /**
+     * Create a file in the current cache folder to hold tile data. Presently
      * this method does nothing more than delegate to File.createTempFile
      *
      * @throws java.io.IOException
      */
-    private File createFile() throws IOException {
+    static File createFile() throws IOException {
+        return createFile(null);
+    }
+
+    /**
+     * Create a file to hold tile data in the given folder or, if {@code null},
+     * the current cache folder.
+     *
+     * @param folder the folder or {@code null}
+     * @throws java.io.IOException
+     */
+    static File createFile(File folder) throws IOException {
+        if (folder != null) {
+            return File.createTempFile(FILE_PREFIX, FILE_SUFFIX, folder);
+        }
         synchronized(folderLock) {
             return File.createTempFile(FILE_PREFIX, FILE_SUFFIX, cacheFolder);
         }
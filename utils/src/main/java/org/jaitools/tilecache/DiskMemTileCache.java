@@ -26,32 +26,51 @@
 package org.jaitools.tilecache;
 
 import java.awt.Point;
+import java.awt.image.DataBuffer;
 import java.awt.image.Raster;
 import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.ReferenceQueue;
+import java.io.File;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Observable;
+import java.util.Queue;
 import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.media.jai.CachedTile;
 import javax.media.jai.PlanarImage;
 import javax.media.jai.TileCache;
 
-import org.jaitools.CollectionFactory;
 import org.jaitools.DaemonThreadFactory;
 
 
@@ -79,10 +98,136 @@ import org.jaitools.DaemonThreadFactory;
  * be set to auto-flush resident tiles at regular intervals.
  * <p>
  * 
+ * <h4>Concurrency</h4>
+ * Cached tiles are held in concurrent maps, so requests for memory-resident
+ * tiles do not contend for a cache-wide lock. Operations which load, add or
+ * remove a given tile are serialized by a lock chosen from a set of lock
+ * stripes according to the tile's ID. Tiles in different stripes can be read
+ * from, or written to, disk in parallel. By default the number of stripes is
+ * a small multiple of the number of processors (see
+ * {@linkplain #DEFAULT_CONCURRENCY_LEVEL}). Setting the
+ * {@linkplain #KEY_CONCURRENCY_LEVEL} parameter to 1 restores the behaviour
+ * of earlier versions of this class, in which such operations were handled
+ * one at a time. Recording an access to a resident tile takes no lock. Disk I/O is never performed while
+ * holding the lock which guards the cache's memory accounting.
+ * <p>
+ * By default, the data of a tile removed from memory are written to disk by
+ * the thread whose request required the memory to be freed. Setting the
+ * {@linkplain #KEY_WRITE_BEHIND_THREADS} parameter to a positive value enables
+ * write-behind mode, in which such tiles are queued for writing by a pool of
+ * background threads. Requests for a queued tile are served from memory. The
+ * total size of queued tiles is limited by the {@linkplain #KEY_WRITE_BEHIND_BUDGET}
+ * parameter: when it is reached, a thread evicting further tiles waits for
+ * queued writes to complete.
+ * <p>
+ * 
+ * <h4>Read-ahead</h4>
+ * Many consumers of tiled images scan tiles in row-major order. If the
+ * {@linkplain #KEY_READ_AHEAD_TILES} parameter is set to a positive value, the
+ * cache watches the order of {@code getTile} requests for each image and, when it
+ * sees sequential access, reads the following non-resident tiles of the image
+ * into memory on a background thread, hiding disk latency behind computation.
+ * <p>
+ * 
+ * <h4>Off-heap tier</h4>
+ * If the {@linkplain #KEY_OFF_HEAP_CAPACITY} parameter is set to a positive value,
+ * tiles removed from memory are first moved to a tier of direct (off-heap) buffers
+ * of that total size, from which they are copied back into memory when requested
+ * rather than being read from disk. Tiles are only written to disk when displaced
+ * from the off-heap tier. This allows a large cache without a correspondingly large
+ * Java heap and the garbage collection pauses that come with it. Memory capacity,
+ * as set with {@linkplain #setMemoryCapacity(long)}, applies only to tiles held as
+ * rasters on the heap.
+ * <p>
+ * Tiles in the off-heap tier can be held in compressed form by setting the
+ * {@linkplain #KEY_OFF_HEAP_CODEC} parameter, for example to a {@linkplain DeflateTileCodec}.
+ * For images with large uniform areas, such as classified rasters, this lets the
+ * tier hold many times more tiles, at the cost of compressing and decompressing
+ * tiles as they move between the heap and the tier. The cache then forms a
+ * three-level hierarchy of heap memory, compressed off-heap memory and disk, with
+ * the capacity of each tier set separately and hits on each tier counted
+ * separately by the cache's {@linkplain #getMetrics() metrics}.
+ * <p>
+ * 
+ * <h4>Monitoring</h4>
+ * The cache records hit and miss counts, disk traffic, lock wait time and request
+ * latencies, available via {@linkplain #getMetrics()}. These can also be published
+ * as a JMX MBean with {@linkplain #registerMBean(String)}.
+ * <p>
+ * 
+ * <h4>Persistence</h4>
+ * If the {@linkplain #KEY_PERSISTENT_FOLDER} parameter is set, tile data are kept
+ * in that folder when the JVM exits. Images whose tiles should survive are given
+ * a stable key with {@linkplain #setPersistentKey(RenderedImage, String)}, and
+ * {@linkplain #checkpoint()} records their saved tiles in an index. A cache
+ * later opened on the same folder serves those tiles to images presenting the
+ * same keys, giving a warm start to long-running processing chains.
+ * <p>
+ * 
+ * <h4>Eviction policies</h4>
+ * By default, the tiles removed from memory to make space for others are chosen
+ * in approximately least-recently-used order. A different order can be set with
+ * {@linkplain #setTileComparator(Comparator)} or, for policies which keep their
+ * own state such as the scan-resistant {@linkplain ArcEvictionPolicy} and the
+ * {@linkplain CostAwareEvictionPolicy}, with {@linkplain #setEvictionPolicy(EvictionPolicy)}.
+ * <p>
+ * 
+ * <h4>Quotas</h4>
+ * When many images share a cache, such as the common cache returned by
+ * {@code DiskMemImage.getCommonTileCache()}, one image being read in bulk can
+ * push the tiles of all others out of memory. To prevent this, an image can be
+ * given its own memory quota with {@linkplain #setOwnerQuota(RenderedImage, long, long)},
+ * or be placed in a named group with {@linkplain #setOwnerGroup(RenderedImage, String)}
+ * whose quota is set with {@linkplain #setGroupQuota(String, long, long)}. A quota's
+ * maximum caps the memory used by its tiles: a tile which takes the quota over
+ * its maximum replaces the quota's oldest resident tile. When memory is needed,
+ * tiles over their quota's maximum are removed first, and tiles within their
+ * quota's guaranteed minimum are only removed if no other tiles are left. The
+ * cache does not check that guaranteed minimums sum to less than its capacity.
+ * <p>
+ * 
+ * <h4>Adaptive capacity</h4>
+ * A fixed memory capacity must be chosen with the rest of the application's heap
+ * use in mind. If the {@linkplain #KEY_HEAP_FRACTION} parameter is set, the cache
+ * instead adapts its capacity to the state of the heap. Capacity starts at the
+ * given fraction of the maximum heap size. When the memory still in use after a
+ * garbage collection exceeds the {@linkplain #KEY_HEAP_PRESSURE_THRESHOLD}, the
+ * cache is notified (via the platform's {@code MemoryPoolMXBean} usage thresholds)
+ * and reduces its capacity to the {@linkplain #setMemoryThreshold(float) memory
+ * threshold} fraction of the memory it occupies, removing tiles from memory and
+ * releasing recycled data arrays on a background thread. Capacity grows back
+ * towards its maximum when the cache needs memory and the heap has had headroom
+ * for a few seconds. In this mode, timer-driven auto-flushing is not used: memory
+ * is flushed in response to heap pressure instead.
+ * <p>
+ * 
+ * <h4>Pinned tiles</h4>
+ * A tile pinned with {@linkplain #pinTile(RenderedImage, int, int)} stays in
+ * memory until unpinned with {@linkplain #unpinTile(RenderedImage, int, int)}:
+ * it is never chosen for removal, nor removed by {@linkplain #flushMemory()}.
+ * {@code DiskMemImage} pins each tile while it is checked out for writing, so
+ * that writes to the tile cannot be lost when other tiles need memory. If the
+ * cache is full of pinned tiles, new tiles are admitted beyond its capacity
+ * and the excess is removed as tiles are unpinned.
+ * <p>
+ * 
+ * <h4>Constant tiles</h4>
+ * Many images have tiles in which every pixel has the same value, such as nodata
+ * borders, blank tiles of a {@code DiskMemImage} or the output of a constant
+ * image operation. If the {@linkplain #KEY_SHARE_CONSTANT_TILES} parameter is
+ * set, the cache detects these tiles when they are added or removed from memory.
+ * Their data are never written to disk or moved to the off-heap tier, and all
+ * constant tiles with the same data are given rasters backed by a single shared
+ * data buffer. A caller which modifies a tile's data must obtain the tile with
+ * {@linkplain #getTileForWriting(RenderedImage, int, int)}, which gives the tile
+ * its own copy of shared data (copy-on-write).
+ * <p>
+ * 
  * <h4>Implementation note</h4>
- * Tile polling and auto-flushing of memory resident tiles (if enabled) both run
- * on low-priority background threads. These are marked as daemon threads to 
- * avoid these services blocking application shutdown.
+ * Removal of the tiles of garbage collected images, and auto-flushing of memory
+ * resident tiles (if enabled), both run on low-priority background threads. These,
+ * and write-behind threads, are marked as daemon threads to avoid these services
+ * blocking application shutdown.
  *
  * @author Michael Bedward
  * @author Simone Giannecchini, GeoSolutions SAS
@@ -110,6 +255,13 @@ public class DiskMemTileCache extends Observable implements TileCache {
      */
     public static final float DEFAULT_MEMORY_THRESHOLD = 0.75F;
 
+    /**
+     * The default heap pressure threshold (0.8) for adaptive capacity mode.
+     * 
+     * @see #KEY_HEAP_PRESSURE_THRESHOLD
+     */
+    public static final float DEFAULT_HEAP_PRESSURE_THRESHOLD = 0.8F;
+
     /**
      * The default minimum period (2.5 seconds) of cache inactivity that 
      * must elapse before memory-resident tiles are automatically flushed.
@@ -123,9 +275,88 @@ public class DiskMemTileCache extends Observable implements TileCache {
      * its owning image has been garbage collected.
      * 
      * @see #setTilePollingInterval(long) 
+     * @deprecated Tiles are no longer polled: they are removed as soon as
+     *             their owning image is found to have been garbage collected
      */
+    @Deprecated
     public static final long DEFAULT_TILE_POLLING_INTERVAL = 2000L;
 
+    /**
+     * The default concurrency level, ie. the number of lock stripes
+     * used to serialize operations on individual tiles. This is four
+     * times the number of processors available to the JVM, so that
+     * threads working on different tiles seldom share a stripe.
+     * 
+     * @see #KEY_CONCURRENCY_LEVEL
+     */
+    public static final int DEFAULT_CONCURRENCY_LEVEL =
+            4 * Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The default size (256Mb) of the files used to hold spilled tile data
+     * when slab files are enabled.
+     * 
+     * @see #KEY_USE_SLAB_FILES
+     * @see #KEY_SLAB_FILE_SIZE
+     */
+    public static final long DEFAULT_SLAB_FILE_SIZE = 256L * 1024L * 1024L;
+
+    /**
+     * The default number of write-behind threads (0), ie. evicted tiles
+     * are written to disk synchronously.
+     * 
+     * @see #KEY_WRITE_BEHIND_THREADS
+     */
+    public static final int DEFAULT_WRITE_BEHIND_THREADS = 0;
+
+    /**
+     * The default limit (16Mb) on the total size of tiles queued for writing
+     * to disk in write-behind mode.
+     * 
+     * @see #KEY_WRITE_BEHIND_BUDGET
+     */
+    public static final long DEFAULT_WRITE_BEHIND_BUDGET = 16L * 1024L * 1024L;
+
+    /**
+     * The default number of tiles (0) to read ahead when sequential
+     * access is detected, ie. read-ahead is disabled.
+     * 
+     * @see #KEY_READ_AHEAD_TILES
+     */
+    public static final int DEFAULT_READ_AHEAD_TILES = 0;
+
+    /**
+     * The default capacity (0) of the off-heap tier, ie. the tier
+     * is disabled.
+     * 
+     * @see #KEY_OFF_HEAP_CAPACITY
+     */
+    public static final long DEFAULT_OFF_HEAP_CAPACITY = 0;
+
+    /**
+     * The default capacity (0) of the pool of recycled tile data arrays,
+     * ie. recycling is disabled.
+     * 
+     * @see #KEY_RECYCLE_CAPACITY
+     */
+    public static final long DEFAULT_RECYCLE_CAPACITY = 0;
+
+
+    /**
+     * Constants for the placement of tiles across multiple spill folders.
+     * 
+     * @see DiskMemTileCache#KEY_SPILL_PLACEMENT
+     */
+    public enum SpillPlacement {
+        /** Tiles are placed in each folder in turn. */
+        ROUND_ROBIN,
+
+        /**
+         * Each tile is placed in the folder currently holding the least
+         * tile data written by the cache.
+         */
+        LEAST_USED;
+    }
 
     // @todo use JAI ParameterList or some other ready-made class for this ?
     private static class ParamDesc {
@@ -166,6 +397,17 @@ public class DiskMemTileCache extends Observable implements TileCache {
      */
     public static final String KEY_ALWAYS_DISK_CACHE = "diskcache";
 
+    /**
+     * Key for the parameter specifying how tile data are encoded when written
+     * to disk. The value must be an instance of {@linkplain TileCodec}. The
+     * default is {@linkplain RawTileCodec#INSTANCE} which writes data unchanged.
+     * Using a {@linkplain DeflateTileCodec} trades CPU time for less disk I/O,
+     * which can be worthwhile for compressible images on slow disks or network
+     * volumes.
+     * @see #getDiskCompressionRatio()
+     */
+    public static final String KEY_TILE_CODEC = "tilecodec";
+
     /**
      * Key for the parameter controlling whether the cache will auto-flush
      * memory-resident tiles. The value must be Boolean. If the value is
@@ -184,6 +426,177 @@ public class DiskMemTileCache extends Observable implements TileCache {
      */
     public static final String KEY_AUTO_FLUSH_MEMORY_INTERVAL = "autoflushinterval";
 
+    /**
+     * Key for the parameter controlling the number of lock stripes used
+     * to serialize tile loading, adding and removal. Operations on tiles
+     * in different stripes can proceed in parallel, including any disk I/O
+     * that they require. The value must be numeric and will be rounded up
+     * to the next power of 2. Values less than 1 are ignored. A value equal
+     * to the expected number of tile scheduler threads (e.g. 16) is a
+     * reasonable choice for a cache shared by many threads.
+     * @see #DEFAULT_CONCURRENCY_LEVEL
+     */
+    public static final String KEY_CONCURRENCY_LEVEL = "concurrencylevel";
+
+    /**
+     * Key for the parameter controlling how tile data are stored on disk.
+     * The value must be Boolean. If the value is {@code Boolean.FALSE} (the
+     * default), each tile's data are written to a separate temporary file.
+     * If {@code Boolean.TRUE}, tile data are written into slots within a small
+     * number of large slab files which are allocated as required, each having
+     * the size given by the {@linkplain #KEY_SLAB_FILE_SIZE} parameter. Slots
+     * released by removed tiles are reused by later tiles of the same size,
+     * so that writing a tile to disk requires a single positioned write
+     * rather than the creation and deletion of a file. Slab files are deleted
+     * when the JVM exits.
+     */
+    public static final String KEY_USE_SLAB_FILES = "slabfiles";
+
+    /**
+     * Key for the parameter controlling the size, in bytes, of slab files.
+     * The value must be numeric and will be treated as Long. Values less than
+     * or equal to zero are ignored. A tile larger than this size is given a
+     * slab file of its own. This parameter is ignored unless the
+     * {@linkplain #KEY_USE_SLAB_FILES} parameter is {@code Boolean.TRUE}.
+     * @see #DEFAULT_SLAB_FILE_SIZE
+     */
+    public static final String KEY_SLAB_FILE_SIZE = "slabfilesize";
+
+    /**
+     * Key for the parameter giving the folders in which tile data are written.
+     * The value must be a {@code File[]}; folders which do not exist are created.
+     * If more than one folder is given, tiles are placed across them as set by the
+     * {@linkplain #KEY_SPILL_PLACEMENT} parameter, and in write-behind mode each
+     * folder has its own queue and {@linkplain #KEY_WRITE_BEHIND_THREADS} threads,
+     * so that with folders on separate disks the disks are written in parallel.
+     * By default, tile data are written to the folder given by
+     * {@linkplain DiskCachedTile#getCacheFolder()}. This parameter is ignored
+     * for a persistent cache (see {@linkplain #KEY_PERSISTENT_FOLDER}).
+     */
+    public static final String KEY_SPILL_FOLDERS = "spillfolders";
+
+    /**
+     * Key for the parameter controlling how tiles are placed across the folders
+     * given by {@linkplain #KEY_SPILL_FOLDERS}. The value must be a
+     * {@linkplain SpillPlacement} constant. The default is
+     * {@linkplain SpillPlacement#ROUND_ROBIN}.
+     */
+    public static final String KEY_SPILL_PLACEMENT = "spillplacement";
+
+    /**
+     * Key for the parameter controlling whether constant tiles share their data.
+     * The value must be Boolean. If {@code TRUE}, tiles whose pixels all have the
+     * same value are recorded in place of a disk copy and are held in memory as
+     * rasters backed by a data buffer shared with all other constant tiles having
+     * the same data. The default is {@code FALSE}.
+     * <p>
+     * When this is enabled, the raster passed to {@code add} is not necessarily
+     * the one held by the cache, and rasters returned by {@code getTile} may
+     * share their data. Tiles which are to be modified must be obtained with
+     * {@linkplain #getTileForWriting(RenderedImage, int, int)}.
+     */
+    public static final String KEY_SHARE_CONSTANT_TILES = "shareconstanttiles";
+
+    /**
+     * Key for the parameter which enables adaptive capacity. The value must be
+     * numeric and is treated as a fraction, greater than 0 and no greater than 1,
+     * of the maximum heap size. If set, this is the cache's initial and maximum
+     * memory capacity (overriding {@linkplain #KEY_INITIAL_MEMORY_CAPACITY}), and
+     * capacity is reduced in response to heap pressure as described in the class
+     * notes. Other values are ignored. By default, adaptive capacity is disabled.
+     * @see #KEY_HEAP_PRESSURE_THRESHOLD
+     */
+    public static final String KEY_HEAP_FRACTION = "heapfraction";
+
+    /**
+     * Key for the parameter giving the level of heap use at which a cache with
+     * adaptive capacity (see {@linkplain #KEY_HEAP_FRACTION}) reduces its
+     * capacity. The value must be numeric, between 0 and 1, and is the fraction
+     * of the old generation heap pool which is in use after garbage collection.
+     * @see #DEFAULT_HEAP_PRESSURE_THRESHOLD
+     */
+    public static final String KEY_HEAP_PRESSURE_THRESHOLD = "heappressurethreshold";
+
+    /**
+     * Key for the parameter controlling the number of background threads used
+     * to write tiles removed from memory to disk. The value must be numeric.
+     * If zero (the default) tiles are written synchronously by the thread which
+     * caused them to be removed from memory. If positive, write-behind mode is
+     * enabled and tiles are queued for writing by this number of threads.
+     * @see #DEFAULT_WRITE_BEHIND_THREADS
+     * @see #KEY_WRITE_BEHIND_BUDGET
+     */
+    public static final String KEY_WRITE_BEHIND_THREADS = "writebehindthreads";
+
+    /**
+     * Key for the parameter controlling the maximum total size, in bytes, of
+     * tiles queued for writing in write-behind mode. When this limit would be
+     * exceeded, threads evicting tiles from memory wait for queued writes to
+     * complete. A single tile larger than the limit can still be queued when
+     * no other tiles are waiting. The value must be numeric and will be treated
+     * as Long. Values less than or equal to zero are ignored.
+     * @see #DEFAULT_WRITE_BEHIND_BUDGET
+     * @see #KEY_WRITE_BEHIND_THREADS
+     */
+    public static final String KEY_WRITE_BEHIND_BUDGET = "writebehindbudget";
+
+    /**
+     * Key for the parameter controlling read-ahead of tiles. The value must be
+     * numeric. If positive, when the cache detects that an image's tiles are being
+     * requested in row-major order, up to this number of the following tiles
+     * which are not resident will be read from disk into memory by a background
+     * thread. The default value of zero disables read-ahead. The value should be
+     * small in relation to the number of tiles which can be resident at once, lest
+     * tiles read ahead displace those in use.
+     * @see #DEFAULT_READ_AHEAD_TILES
+     */
+    public static final String KEY_READ_AHEAD_TILES = "readaheadtiles";
+
+    /**
+     * Key for the parameter controlling the capacity, in bytes, of the off-heap
+     * tier. The value must be numeric. If positive, tiles removed from memory are
+     * held in direct buffers, allocated as required up to this size, until
+     * displaced by other tiles. The default value of zero disables the tier.
+     * @see #DEFAULT_OFF_HEAP_CAPACITY
+     */
+    public static final String KEY_OFF_HEAP_CAPACITY = "offheapcapacity";
+
+    /**
+     * Key for the parameter giving the codec used to encode tiles held in the
+     * off-heap tier. The value must be a {@linkplain TileCodec}. The default is
+     * {@linkplain RawTileCodec#INSTANCE}, which stores tile data uncompressed.
+     * @see #KEY_OFF_HEAP_CAPACITY
+     */
+    public static final String KEY_OFF_HEAP_CODEC = "offheapcodec";
+
+    /**
+     * Key for the parameter which makes the cache persistent. The value must be
+     * a {@code File} for a folder, which will be created if it does not exist.
+     * Tile data are written to segment files in this folder (as with
+     * {@linkplain #KEY_USE_SLAB_FILES}, whose size is given by
+     * {@linkplain #KEY_SLAB_FILE_SIZE}), which are kept when the JVM exits,
+     * together with an index written by {@linkplain #checkpoint()}.
+     * A folder must not be used by more than one cache at a time.
+     * @see #setPersistentKey(RenderedImage, String)
+     */
+    public static final String KEY_PERSISTENT_FOLDER = "persistentfolder";
+
+    /**
+     * Key for the parameter controlling the capacity, in bytes, of a pool of
+     * recycled tile data arrays. The value must be numeric. If positive, the
+     * data arrays of tiles removed from memory, once no longer needed by the
+     * cache, are pooled and reused for tiles reloaded from disk or the off-heap
+     * tier, so that in steady state reloading allocates no new arrays. The
+     * default value of zero disables recycling.
+     * <p>
+     * <b>Warning:</b> the cache cannot know whether a raster it has returned is
+     * still referenced by the application. Only enable recycling if rasters
+     * obtained from the cache are not used after their tiles may have been removed
+     * from memory, otherwise their data will change unexpectedly.
+     * @see #DEFAULT_RECYCLE_CAPACITY
+     */
+    public static final String KEY_RECYCLE_CAPACITY = "recyclecapacity";
+
     private static final Map<String, ParamDesc> paramDescriptors;
     static {
         ParamDesc desc;
@@ -195,18 +608,66 @@ public class DiskMemTileCache extends Observable implements TileCache {
         desc = new ParamDesc(KEY_ALWAYS_DISK_CACHE, Boolean.class, Boolean.FALSE);
         paramDescriptors.put( desc.key, desc );
 
+        desc = new ParamDesc(KEY_TILE_CODEC, TileCodec.class, RawTileCodec.INSTANCE);
+        paramDescriptors.put( desc.key, desc );
+
         desc = new ParamDesc(KEY_AUTO_FLUSH_MEMORY_ENABLED, Boolean.class, Boolean.FALSE);
         paramDescriptors.put( desc.key, desc );
 
         desc = new ParamDesc(KEY_AUTO_FLUSH_MEMORY_INTERVAL, Number.class, DEFAULT_AUTO_FLUSH_MEMORY_INTERVAL);
         paramDescriptors.put( desc.key, desc );
+
+        desc = new ParamDesc(KEY_CONCURRENCY_LEVEL, Number.class, DEFAULT_CONCURRENCY_LEVEL);
+        paramDescriptors.put( desc.key, desc );
+
+        desc = new ParamDesc(KEY_USE_SLAB_FILES, Boolean.class, Boolean.FALSE);
+        paramDescriptors.put( desc.key, desc );
+
+        desc = new ParamDesc(KEY_SLAB_FILE_SIZE, Number.class, DEFAULT_SLAB_FILE_SIZE);
+        paramDescriptors.put( desc.key, desc );
+
+        desc = new ParamDesc(KEY_WRITE_BEHIND_THREADS, Number.class, DEFAULT_WRITE_BEHIND_THREADS);
+        paramDescriptors.put( desc.key, desc );
+
+        desc = new ParamDesc(KEY_WRITE_BEHIND_BUDGET, Number.class, DEFAULT_WRITE_BEHIND_BUDGET);
+        paramDescriptors.put( desc.key, desc );
+
+        desc = new ParamDesc(KEY_READ_AHEAD_TILES, Number.class, DEFAULT_READ_AHEAD_TILES);
+        paramDescriptors.put( desc.key, desc );
+
+        desc = new ParamDesc(KEY_OFF_HEAP_CAPACITY, Number.class, DEFAULT_OFF_HEAP_CAPACITY);
+        paramDescriptors.put( desc.key, desc );
+
+        desc = new ParamDesc(KEY_OFF_HEAP_CODEC, TileCodec.class, RawTileCodec.INSTANCE);
+        paramDescriptors.put( desc.key, desc );
+
+        desc = new ParamDesc(KEY_PERSISTENT_FOLDER, File.class, null);
+        paramDescriptors.put( desc.key, desc );
+
+        desc = new ParamDesc(KEY_RECYCLE_CAPACITY, Number.class, DEFAULT_RECYCLE_CAPACITY);
+        paramDescriptors.put( desc.key, desc );
+
+        desc = new ParamDesc(KEY_SPILL_FOLDERS, File[].class, null);
+        paramDescriptors.put( desc.key, desc );
+
+        desc = new ParamDesc(KEY_SPILL_PLACEMENT, SpillPlacement.class, SpillPlacement.ROUND_ROBIN);
+        paramDescriptors.put( desc.key, desc );
+
+        desc = new ParamDesc(KEY_SHARE_CONSTANT_TILES, Boolean.class, Boolean.FALSE);
+        paramDescriptors.put( desc.key, desc );
+
+        desc = new ParamDesc(KEY_HEAP_FRACTION, Number.class, 0.0);
+        paramDescriptors.put( desc.key, desc );
+
+        desc = new ParamDesc(KEY_HEAP_PRESSURE_THRESHOLD, Number.class, DEFAULT_HEAP_PRESSURE_THRESHOLD);
+        paramDescriptors.put( desc.key, desc );
     }
 
     // maximum memory available for resident tiles
-    private long memCapacity;
+    private volatile long memCapacity;
 
     // current memory used for resident tiles
-    private long curMemory;
+    private volatile long curMemory;
 
     /*
      * A value between 0.0 and 1.0 that may be used for memory control
@@ -216,6 +677,15 @@ public class DiskMemTileCache extends Observable implements TileCache {
 
     private boolean writeNewTilesToDisk;
 
+    // disk storage for tile data
+    private final SpillStore spillStore;
+
+    // encoding of tile data on disk
+    private final TileCodec tileCodec;
+
+    // tiles saved in an earlier session (null unless the cache is persistent)
+    private final PersistentIndex persistentIndex;
+
     /**
      * Map of all cached tiles.
      */
@@ -226,41 +696,125 @@ public class DiskMemTileCache extends Observable implements TileCache {
      */
     protected Map<Object, Raster> residentTiles;
 
+    /**
+     * Tiles sorted according to the current tile priority comparator.
+     *
+     * @deprecated Resident tiles are now ordered by the cache's
+     *             {@linkplain EvictionPolicy} (see {@linkplain #setEvictionPolicy(EvictionPolicy)})
+     *             and this list is no longer maintained: it is always empty.
+     *             It will be removed in a future release.
+     */
+    @Deprecated
+    protected List<DiskCachedTile> sortedResidentTiles;
+
+    /*
+     * Tiles which have been removed from memory but whose data are
+     * still being written to disk. Requests for these tiles are
+     * served from here.
+     */
+    private final ConcurrentMap<Object, PendingWrite> evictingTiles;
+
+    /*
+     * Evicted tiles whose disk writes failed and which could not yet
+     * be returned to memory because their lock stripes were busy.
+     */
+    private final Queue<PendingWrite> failedWrites;
+
+    /*
+     * Background writers for write-behind mode (null when tiles are
+     * written synchronously) with the byte budget for queued tiles.
+     */
+    private final ExecutorService[] writeBehindServices;
+    private final long writeBehindBudget;
+    private long pendingWriteBytes;
+    private final ReentrantLock writeBudgetLock = new ReentrantLock();
+    private final Condition writeBudgetAvailable = writeBudgetLock.newCondition();
+
+    /*
+     * Records for images with tiles in the cache, and the background
+     * thread used for read-ahead (null if read-ahead is disabled)
+     */
+    private final Map<RenderedImage, OwnerRecord> owners;
+    private final int readAheadTiles;
+    private final ExecutorService readAheadService;
+
+    /*
+     * Named memory quotas, and the quotas which currently have
+     * resident tiles charged to them. Guarded by memLock.
+     */
+    private final Map<String, QuotaGroup> quotaGroups;
+    private final Set<QuotaGroup> chargedQuotas;
+
+    // pinned resident tiles and the memory they occupy, guarded by memLock
+    private volatile int numPinnedTiles;
+    private volatile long pinnedMemory;
+
+    // data arrays of tiles removed from memory (null if recycling is disabled)
+    private final TileBufferPool bufferPool;
+
+    // shared data of constant tiles (null if not enabled)
+    private final ConstantTileRegistry constantTiles;
+
+    // tiles removed from memory and held in direct buffers (null if disabled)
+    private final OffHeapTier offHeapTier;
+
     /**
      * A tile comparator used to determine the priority of tiles for
      * storage in memory.
      */
     private Comparator<CachedTile> comparator;
 
-    /* List of tile references that is sorted into tile priority order when
-     * required for memory swapping.
-     * <p>
-     * Implementation note: we use this in preference to a SortedSet or similar
-     * because of the complications of using the remove(obj) method with a sorted
-     * collection, where the comparator is used rather than the equals method.
-     */
-    
-    /**
-     * Tiles sorted according to the current tile priority comparator.
+    /*
+     * Orders resident tiles for removal from memory. This is an
+     * access-ordered list for the default comparator, or a priority
+     * queue for a user-supplied comparator.
      */
-    protected List<DiskCachedTile> sortedResidentTiles;
+    private EvictionPolicy evictionPolicy;
 
     // whether to send cache diagnostics to observers
-    private boolean diagnosticsEnabled;
+    private volatile boolean diagnosticsEnabled;
+
+    // performance metrics and the name under which they are registered with JMX
+    private final CacheMetrics metrics = new CacheMetrics();
+    private ObjectName mbeanName;
     
-    // Lock for tile access
-    private final ReentrantLock tileLock = new ReentrantLock();
+    // Lock stripes for loading, adding and removing individual tiles
+    private final ReentrantLock[] tileLocks;
+
+    // Lock for memory accounting and the eviction policy.
+    // No disk I/O is done while holding this lock.
+    private final ReentrantLock memLock = new ReentrantLock();
 
     // Variables used for auto-flushing of resident tiles
     private ScheduledExecutorService flushService;
     private ScheduledFuture flushFuture;
     private long autoFlushInterval = DEFAULT_AUTO_FLUSH_MEMORY_INTERVAL;
     private AtomicBoolean okToFlush = new AtomicBoolean(false);
+
+    /*
+     * Adaptive capacity: the heap monitor (null if adaptive capacity is
+     * disabled), the maximum capacity, and the times of the last heap
+     * pressure event and check for headroom (guarded by memLock)
+     */
+    private static final long HEAP_QUIET_PERIOD = 5000;
+    private static final int MIN_CAPACITY_DIVISOR = 16;
+
+    /*
+     * Maximum number of bytes read from disk at a time when getting a batch of tiles
+     */
+    private static final long MAX_BATCH_READ_BYTES = 16L * 1024 * 1024;
+    private final HeapPressureMonitor heapMonitor;
+    private volatile long maxCapacity;
+    private long lastPressureTime;
+    private long lastHeadroomCheck;
+    private final AtomicBoolean pressurePending = new AtomicBoolean(false);
     
-    // Variables used for polling each tile to check if its owning image has been 
-    // garbage collected
-    private final ScheduledExecutorService tilePollingService;
-    private ScheduledFuture tilePollingFuture;
+    /*
+     * Queue to which the records of garbage collected images are
+     * delivered, and the background thread which removes their tiles
+     */
+    private final ReferenceQueue<RenderedImage> ownerQueue;
+    private final ExecutorService ownerCleanupService;
     private long tilePollingInterval = DEFAULT_TILE_POLLING_INTERVAL; 
 
     
@@ -282,8 +836,14 @@ public class DiskMemTileCache extends Observable implements TileCache {
         }
 
         diagnosticsEnabled = false;
-        tiles = new HashMap<Object, DiskCachedTile>();
-        residentTiles = CollectionFactory.map();
+        tiles = new ConcurrentHashMap<Object, DiskCachedTile>();
+        residentTiles = new ConcurrentHashMap<Object, Raster>();
+        sortedResidentTiles = new ArrayList<DiskCachedTile>();
+        evictingTiles = new ConcurrentHashMap<Object, PendingWrite>();
+        failedWrites = new ConcurrentLinkedQueue<PendingWrite>();
+        owners = new WeakHashMap<RenderedImage, OwnerRecord>();
+        quotaGroups = new HashMap<String, QuotaGroup>();
+        chargedQuotas = new LinkedHashSet<QuotaGroup>();
         curMemory = 0L;
         memThreshold = DEFAULT_MEMORY_THRESHOLD;
 
@@ -308,6 +868,54 @@ public class DiskMemTileCache extends Observable implements TileCache {
             }
         }
 
+        desc = paramDescriptors.get(KEY_TILE_CODEC);
+        TileCodec codec = (TileCodec)desc.defaultValue;
+        o = params.get(desc.key);
+        if (o != null) {
+            if (desc.typeOK(o)) {
+                codec = (TileCodec)o;
+            }
+        }
+        tileCodec = codec;
+
+        desc = paramDescriptors.get(KEY_HEAP_FRACTION);
+        double heapFraction = ((Number)desc.defaultValue).doubleValue();
+        o = params.get(desc.key);
+        if (o != null) {
+            if (desc.typeOK(o)) {
+                double dval = ((Number)o).doubleValue();
+                if (dval > 0 && dval <= 1) {
+                    heapFraction = dval;
+                }
+            }
+        }
+        desc = paramDescriptors.get(KEY_HEAP_PRESSURE_THRESHOLD);
+        float heapThreshold = ((Number)desc.defaultValue).floatValue();
+        o = params.get(desc.key);
+        if (o != null) {
+            if (desc.typeOK(o)) {
+                float fval = ((Number)o).floatValue();
+                if (fval > 0 && fval < 1) {
+                    heapThreshold = fval;
+                }
+            }
+        }
+
+        HeapPressureMonitor monitor = null;
+        if (heapFraction > 0) {
+            monitor = new HeapPressureMonitor(this, heapThreshold);
+            if (monitor.isMonitoring()) {
+                memCapacity = (long) (heapFraction * Runtime.getRuntime().maxMemory());
+                flushService = Executors.newSingleThreadScheduledExecutor(
+                        new DaemonThreadFactory(Thread.NORM_PRIORITY, "cache-flush"));
+            } else {
+                LOGGER.warning("Heap usage cannot be monitored: adaptive capacity is disabled");
+                monitor = null;
+            }
+        }
+        heapMonitor = monitor;
+        maxCapacity = memCapacity;
+
         desc = paramDescriptors.get(KEY_AUTO_FLUSH_MEMORY_INTERVAL);
         autoFlushInterval = ((Number)desc.defaultValue).longValue();
         o = params.get(desc.key);
@@ -328,72 +936,346 @@ public class DiskMemTileCache extends Observable implements TileCache {
             }
         }
 
-        comparator = new TileAccessTimeComparator();
-        sortedResidentTiles = new ArrayList<DiskCachedTile>();
-
-        tilePollingService = Executors.newSingleThreadScheduledExecutor(
-                new DaemonThreadFactory(Thread.MIN_PRIORITY, "cache-polling"));
+        desc = paramDescriptors.get(KEY_CONCURRENCY_LEVEL);
+        int numStripes = ((Number)desc.defaultValue).intValue();
+        o = params.get(desc.key);
+        if (o != null) {
+            if (desc.typeOK(o)) {
+                int ival = ((Number)o).intValue();
+                if (ival > 0) {
+                    numStripes = ival;
+                }
+            }
+        }
         
-        startTilePolling();
-    }
-
-    /**
-     * Adds a tile to the cache if not already present.
-     *
-     * @param owner the image that this tile belongs to
-     * @param tileX the tile column
-     * @param tileY the tile row
-     * @param data the tile data
-     */
-    public void add(RenderedImage owner, int tileX, int tileY, Raster data) {
-        add(owner, tileX, tileY, data, null);
-    }
-		 
-    /**
-     * Adds a tile to the cache if not already present.
-     *
-     * @param owner the image that this tile belongs to
-     * @param tileX the tile column
-     * @param tileY the tile row
-     * @param data the tile data
-     * @param tileCacheMetric optional tile cache metric (may be {@code null}
-     */
-    public void add(RenderedImage owner,
-                int tileX,
-                int tileY,
-                Raster data,
-                Object tileCacheMetric) {
-
-        tileLock.lock();
+        int n = 1;
+        while (n < numStripes) {
+            n <<= 1;
+        }
+        tileLocks = new ReentrantLock[n];
+        for (int i = 0; i < n; i++) {
+            tileLocks[i] = new ReentrantLock();
+        }
 
-        try {
-            okToFlush.set(false);
-            Object key = getTileId(owner, tileX, tileY);
-            if (tiles.containsKey(key)) {
-                // tile is already cached
-                return;
+        desc = paramDescriptors.get(KEY_USE_SLAB_FILES);
+        boolean useSlabFiles = (Boolean)desc.defaultValue;
+        o = params.get(desc.key);
+        if (o != null) {
+            if (desc.typeOK(o)) {
+                useSlabFiles = (Boolean)o;
             }
+        }
 
-            DiskCachedTile tile = new DiskCachedTile(
-                    key, owner, tileX, tileY, data, writeNewTilesToDisk, tileCacheMetric);
-            tiles.put(key, tile);
+        desc = paramDescriptors.get(KEY_PERSISTENT_FOLDER);
+        File persistentFolder = (File)desc.defaultValue;
+        o = params.get(desc.key);
+        if (o != null) {
+            if (desc.typeOK(o)) {
+                persistentFolder = (File)o;
+                if (!persistentFolder.isDirectory() && !persistentFolder.mkdirs()) {
+                    LOGGER.log(Level.SEVERE, "Unable to create cache folder {0}", persistentFolder);
+                    persistentFolder = null;
+                }
+            }
+        }
+
+        File[] spillFolders = getSpillFolders(params.get(KEY_SPILL_FOLDERS));
+        if (persistentFolder != null && spillFolders[0] != null) {
+            LOGGER.warning("Spill folders are ignored by a persistent cache");
+        }
+
+        desc = paramDescriptors.get(KEY_SPILL_PLACEMENT);
+        SpillPlacement spillPlacement = (SpillPlacement)desc.defaultValue;
+        o = params.get(desc.key);
+        if (o != null) {
+            if (desc.typeOK(o)) {
+                spillPlacement = (SpillPlacement)o;
+            }
+        }
+
+        if (useSlabFiles || persistentFolder != null) {
+            desc = paramDescriptors.get(KEY_SLAB_FILE_SIZE);
+            long slabFileSize = ((Number)desc.defaultValue).longValue();
+            o = params.get(desc.key);
+            if (o != null) {
+                if (desc.typeOK(o)) {
+                    long lval = ((Number)o).longValue();
+                    if (lval > 0) {
+                        slabFileSize = lval;
+                    }
+                }
+            }
+            if (persistentFolder != null) {
+                SlabSpillStore store = new SlabSpillStore(slabFileSize, persistentFolder);
+                persistentIndex = new PersistentIndex(persistentFolder, store, tileCodec);
+                spillStore = store;
 
-            if ( makeResident(tile, data) ) {
-                tile.setAction(DiskCachedTile.TileAction.ACTION_ADDED_RESIDENT);
             } else {
-                tile.setAction(DiskCachedTile.TileAction.ACTION_ADDED);
+                SpillStore[] stores = new SpillStore[spillFolders.length];
+                for (int i = 0; i < stores.length; i++) {
+                    stores[i] = new SlabSpillStore(slabFileSize, spillFolders[i], false);
+                }
+                spillStore = createSpillStore(stores, spillPlacement);
+                persistentIndex = null;
             }
 
-            if (diagnosticsEnabled) {
-                setChanged();
-                notifyObservers(tile);
+        } else {
+            SpillStore[] stores = new SpillStore[spillFolders.length];
+            for (int i = 0; i < stores.length; i++) {
+                stores[i] = spillFolders[i] == null ?
+                        FileSpillStore.INSTANCE : new FileSpillStore(spillFolders[i]);
+            }
+            spillStore = createSpillStore(stores, spillPlacement);
+            persistentIndex = null;
+        }
+
+        desc = paramDescriptors.get(KEY_WRITE_BEHIND_THREADS);
+        int numWriters = ((Number)desc.defaultValue).intValue();
+        o = params.get(desc.key);
+        if (o != null) {
+            if (desc.typeOK(o)) {
+                int ival = ((Number)o).intValue();
+                if (ival >= 0) {
+                    numWriters = ival;
+                }
+            }
+        }
+
+        desc = paramDescriptors.get(KEY_WRITE_BEHIND_BUDGET);
+        long budget = ((Number)desc.defaultValue).longValue();
+        o = params.get(desc.key);
+        if (o != null) {
+            if (desc.typeOK(o)) {
+                long lval = ((Number)o).longValue();
+                if (lval > 0) {
+                    budget = lval;
+                }
+            }
+        }
+        writeBehindBudget = budget;
+
+        if (numWriters > 0) {
+            // a separate queue for each spill folder
+            writeBehindServices = new ExecutorService[spillStore.getNumStripes()];
+            for (int i = 0; i < writeBehindServices.length; i++) {
+                writeBehindServices[i] = Executors.newFixedThreadPool(numWriters,
+                        new DaemonThreadFactory(Thread.NORM_PRIORITY, "cache-writer"));
+            }
+        } else {
+            writeBehindServices = null;
+        }
+
+        desc = paramDescriptors.get(KEY_READ_AHEAD_TILES);
+        int numReadAhead = ((Number)desc.defaultValue).intValue();
+        o = params.get(desc.key);
+        if (o != null) {
+            if (desc.typeOK(o)) {
+                int ival = ((Number)o).intValue();
+                if (ival >= 0) {
+                    numReadAhead = ival;
+                }
+            }
+        }
+        readAheadTiles = numReadAhead;
+
+        if (readAheadTiles > 0) {
+            // requests beyond the queue capacity are discarded
+            readAheadService = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(16),
+                    new DaemonThreadFactory(Thread.MIN_PRIORITY, "cache-readahead"),
+                    new ThreadPoolExecutor.DiscardPolicy());
+        } else {
+            readAheadService = null;
+        }
+
+        desc = paramDescriptors.get(KEY_OFF_HEAP_CAPACITY);
+        long offHeapCapacity = ((Number)desc.defaultValue).longValue();
+        o = params.get(desc.key);
+        if (o != null) {
+            if (desc.typeOK(o)) {
+                long lval = ((Number)o).longValue();
+                if (lval >= 0) {
+                    offHeapCapacity = lval;
+                }
+            }
+        }
+        desc = paramDescriptors.get(KEY_OFF_HEAP_CODEC);
+        TileCodec offHeapCodec = (TileCodec)desc.defaultValue;
+        o = params.get(desc.key);
+        if (o != null) {
+            if (desc.typeOK(o)) {
+                offHeapCodec = (TileCodec)o;
+            }
+        }
+
+        if (offHeapCapacity >= OffHeapTier.BLOCK_SIZE) {
+            offHeapTier = new OffHeapTier(offHeapCapacity, offHeapCodec);
+        } else {
+            offHeapTier = null;
+        }
+
+        desc = paramDescriptors.get(KEY_RECYCLE_CAPACITY);
+        long recycleCapacity = ((Number)desc.defaultValue).longValue();
+        o = params.get(desc.key);
+        if (o != null) {
+            if (desc.typeOK(o)) {
+                long lval = ((Number)o).longValue();
+                if (lval >= 0) {
+                    recycleCapacity = lval;
+                }
+            }
+        }
+        if (recycleCapacity > 0) {
+            LOGGER.warning("Tile data arrays will be recycled: rasters obtained "
+                    + "from the cache must not be used once their tiles leave memory");
+            bufferPool = new TileBufferPool(recycleCapacity);
+        } else {
+            bufferPool = null;
+        }
+
+        desc = paramDescriptors.get(KEY_SHARE_CONSTANT_TILES);
+        boolean shareConstantTiles = (Boolean)desc.defaultValue;
+        o = params.get(desc.key);
+        if (o != null) {
+            if (desc.typeOK(o)) {
+                shareConstantTiles = (Boolean)o;
+            }
+        }
+        constantTiles = shareConstantTiles ? new ConstantTileRegistry() : null;
+
+        comparator = new TileAccessTimeComparator();
+        evictionPolicy = new LruEvictionPolicy();
+
+        ownerQueue = new ReferenceQueue<RenderedImage>();
+        ownerCleanupService = Executors.newSingleThreadExecutor(
+                new DaemonThreadFactory(Thread.MIN_PRIORITY, "cache-cleanup"));
+
+        ownerCleanupService.submit(new Runnable() {
+            public void run() {
+                removeCollectedOwnerTiles();
+            }
+        });
+    }
+
+    /**
+     * Adds a tile to the cache if not already present.
+     *
+     * @param owner the image that this tile belongs to
+     * @param tileX the tile column
+     * @param tileY the tile row
+     * @param data the tile data
+     */
+    public void add(RenderedImage owner, int tileX, int tileY, Raster data) {
+        add(owner, tileX, tileY, data, null);
+    }
+		 
+    /**
+     * Adds a tile to the cache if not already present.
+     *
+     * @param owner the image that this tile belongs to
+     * @param tileX the tile column
+     * @param tileY the tile row
+     * @param data the tile data
+     * @param tileCacheMetric optional tile cache metric (may be {@code null}
+     */
+    public void add(RenderedImage owner,
+                int tileX,
+                int tileY,
+                Raster data,
+                Object tileCacheMetric) {
+
+        okToFlush.set(false);
+        Object key = getTileId(owner, tileX, tileY);
+        if (tiles.containsKey(key)) {
+            // tile is already cached
+            return;
+        }
+
+        long t0 = System.nanoTime();
+        ReentrantLock lock = getTileLock(key);
+        acquire(lock);
+        try {
+            if (tiles.containsKey(key)) {
+                return;
+            }
+
+            data = cacheNewTile(key, owner, tileX, tileY, data, tileCacheMetric);
+            if (data != null) {
+                DiskCachedTile tile = tiles.get(key);
+                tileAdded(tile, makeResident(tile, data));
+            }
+
+        } finally {
+            lock.unlock();
+            metrics.recordAdd(System.nanoTime() - t0);
+        }
+    }
+
+    /**
+     * Creates a tile, writes its data to disk if required and records it in the
+     * cache, without placing it in memory. The caller holds the tile's lock and
+     * has checked that the tile is not already cached.
+     *
+     * @param key the tile's unique id
+     * @param owner the image that the tile belongs to
+     * @param tileX the tile column
+     * @param tileY the tile row
+     * @param data the tile data
+     * @param tileCacheMetric optional tile cache metric (may be {@code null})
+     * @return the data to hold in memory for the tile, which are shared data
+     *         if the tile is constant, or {@code null} if the tile could not
+     *         be cached
+     */
+    private Raster cacheNewTile(Object key, RenderedImage owner, int tileX, int tileY,
+            Raster data, Object tileCacheMetric) {
+
+        DiskCachedTile tile;
+        try {
+            tile = new DiskCachedTile(
+                    key, owner, tileX, tileY, data, false, tileCacheMetric,
+                    spillStore, tileCodec);
+            tile.ownerRecord = getOwnerRecord(owner);
+            tile.bufferPool = bufferPool;
+            tile.constantTiles = constantTiles;
+
+            if (tile.writeConstant(data)) {
+                // hold the tile with shared data
+                Raster shared = tile.readData();
+                if (shared != null) {
+                    data = shared;
+                }
+            } else if (writeNewTilesToDisk) {
+                tile.writeData(data);
+                metrics.recordBytesWritten(tile.getDiskSize());
             }
 
         } catch (IOException ex) {
             LOGGER.log(Level.SEVERE, "Unable to cache this tile on disk", ex);
-            
-        } finally {
-            tileLock.unlock();
+            return null;
+        }
+
+        tiles.put(key, tile);
+        tile.ownerRecord.addTileKey(key);
+        return data;
+    }
+
+    /**
+     * Records the action for a newly added tile and notifies observers
+     * if diagnostics are enabled.
+     *
+     * @param tile the tile
+     * @param resident whether the tile was placed in memory
+     */
+    private void tileAdded(DiskCachedTile tile, boolean resident) {
+        if (resident) {
+            tile.setAction(DiskCachedTile.TileAction.ACTION_ADDED_RESIDENT);
+        } else {
+            tile.setAction(DiskCachedTile.TileAction.ACTION_ADDED);
+        }
+
+        if (diagnosticsEnabled) {
+            setChanged();
+            notifyObservers(tile);
         }
     }
 
@@ -405,31 +1287,58 @@ public class DiskMemTileCache extends Observable implements TileCache {
      * @param tileY the tile row
      */
     public void remove(RenderedImage owner, int tileX, int tileY) {
-        tileLock.lock();
+        okToFlush.set(false);
+        removeTile(getTileId(owner, tileX, tileY));
+    }
+
+    /**
+     * Removes a tile from memory, disk and the cache's records.
+     * 
+     * @param key the tile's unique id
+     */
+    private void removeTile(Object key) {
+        removeTile(key, null);
+    }
 
+    /**
+     * Removes a tile from memory, disk and the cache's records if it
+     * belongs to the image described by {@code rec}.
+     * 
+     * @param key the tile's unique id
+     * @param rec the record of the tile's owning image, or {@code null}
+     *        to remove the tile whatever its owner
+     */
+    private void removeTile(Object key, OwnerRecord rec) {
+        ReentrantLock lock = getTileLock(key);
+        acquire(lock);
         try {
-            okToFlush.set(false);
-            Object key = getTileId(owner, tileX, tileY);
             DiskCachedTile tile = tiles.get(key);
-
-            if (tile == null) {
+            if (tile == null || (rec != null && tile.ownerRecord != rec)) {
                 return;
             }
 
-            if (residentTiles.containsKey(key)) {
-                try {
-                    removeResidentTile(key, false);
-
-                } catch (DiskCacheFailedException ex) {
-                    /*
-                     * It would be nicer to just throw this exception
-                     * upwards but we can't in the overidden method
-                     */
-                    LOGGER.log(Level.SEVERE, null, ex);
+            acquire(memLock);
+            try {
+                if (residentTiles.remove(key) != null) {
+                    evictionPolicy.remove(tile);
+                    releaseQuota(tile);
+                    curMemory -= tile.getTileSize();
+                }
+                evictingTiles.remove(key);
+                if (tile.pinCount > 0) {
+                    tile.pinCount = 0;
+                    numPinnedTiles-- ;
+                    pinnedMemory -= tile.getTileSize();
                 }
+            } finally {
+                memLock.unlock();
+            }
+
+            if (offHeapTier != null) {
+                offHeapTier.remove(key);
             }
 
-            tile.deleteDiskCopy();
+            tile.dispose();
 
             tile.setAction(DiskCachedTile.TileAction.ACTION_REMOVED);
             if (diagnosticsEnabled) {
@@ -438,9 +1347,12 @@ public class DiskMemTileCache extends Observable implements TileCache {
             }
 
             tiles.remove(key);
+            if (tile.ownerRecord != null) {
+                tile.ownerRecord.removeTileKey(key);
+            }
             
         } finally {
-            tileLock.unlock();
+            lock.unlock();
         }
     }
 
@@ -455,784 +1367,2694 @@ public class DiskMemTileCache extends Observable implements TileCache {
      * @return the requested tile or {@code null} if the tile was not cached
      */
     public Raster getTile(RenderedImage owner, int tileX, int tileY) {
-        tileLock.lock();
-
+        okToFlush.set(false);
+        long t0 = System.nanoTime();
         try {
-            okToFlush.set(false);
-            Raster r = null;
             Object key = getTileId(owner, tileX, tileY);
 
             DiskCachedTile tile = tiles.get(key);
-            if (tile != null) {
-
-                // is the tile resident ?
-                r = residentTiles.get(key);
+            if (tile == null) {
+                Raster r = persistentIndex == null ? null : reattach(owner, tileX, tileY, key);
                 if (r == null) {
-                    /*
-                     * The tile is not resident. Attempt
-                     * to read it from the disk.
-                     */
-                    r = tile.readData();
-                    if (r == null) {
-                        /* The tile was not cached on disk. It may have
-                         * been resident only, and then flushed.
-                         */
-                        return null;
-                    }
+                    metrics.recordMiss();
+                }
+                return r;
+            }
 
-                    if (makeResident(tile, r)) {
-                        tile.setAction(DiskCachedTile.TileAction.ACTION_RESIDENT);
-                        if (diagnosticsEnabled) {
-                            setChanged();
-                            notifyObservers(tile);
-                        }
-                    }
+            // is the tile resident ?
+            Raster r = residentTiles.get(key);
+            final boolean wasResident = r != null;
+            if (r == null) {
+                r = loadTile(tile, false);
+                if (r == null) {
+                    metrics.recordMiss();
+                    return null;
                 }
+            } else {
+                metrics.recordMemoryHit();
+            }
 
-                tile.setAction(DiskCachedTile.TileAction.ACTION_ACCESSED);
-                tile.setTileTimeStamp(System.currentTimeMillis());
+            tile.setAction(DiskCachedTile.TileAction.ACTION_ACCESSED);
+            touch(tile, wasResident);
 
-                if (diagnosticsEnabled) {
-                    setChanged();
-                    notifyObservers(tile);
-                }
+            if (diagnosticsEnabled) {
+                setChanged();
+                notifyObservers(tile);
+            }
+
+            if (readAheadService != null) {
+                readAhead(owner, tile);
             }
 
             return r;
+
         } finally {
-            tileLock.unlock();
+            metrics.recordGetTile(System.nanoTime() - t0);
         }
     }
 
     /**
-     * Gets all cached tiles associated with the given image.
-     * The tiles will be loaded into memory as space allows.
-     * 
-     * @param owner the image for which tiles are requested
-     * @return an array of tile Rasters
+     * Gets the specified tile from the cache, as for {@linkplain #getTile(RenderedImage, int, int)},
+     * in order to modify its data. If the tile's raster shares its data with
+     * other constant tiles (see {@linkplain #KEY_SHARE_CONSTANT_TILES}) it is
+     * first replaced by a raster holding a copy of the data. After modifying
+     * the data, the caller should call {@linkplain #setTileChanged(RenderedImage, int, int)}.
+     *
+     * @param owner the image that the tile belongs to
+     * @param tileX the tile column
+     * @param tileY the tile row
+     * @return the requested tile or {@code null} if the tile was not cached
      */
-    public Raster[] getTiles(RenderedImage owner) {
-        tileLock.lock();
+    public Raster getTileForWriting(RenderedImage owner, int tileX, int tileY) {
+        Object key = getTileId(owner, tileX, tileY);
 
-        try {
-            okToFlush.set(false);
-            int minX = owner.getMinTileX();
-            int minY = owner.getMinTileY();
-            int numX = owner.getNumXTiles();
-            int numY = owner.getNumYTiles();
-
-            List<Object> keys = new ArrayList<Object>();
-            for (int y = minY, ny = 0; ny < numY; y++, ny++) {
-                for (int x = minX, nx = 0; nx < numX; x++, nx++) {
-                    Object key = getTileId(owner, x, y);
-                    if (tiles.containsKey(key)) {
-                        keys.add(key);
-                    }
-                }
+        for (;;) {
+            Raster r = getTile(owner, tileX, tileY);
+            if (r == null || constantTiles == null || !constantTiles.isShared(r.getDataBuffer())) {
+                return r;
             }
 
-            Raster[] rasters = new Raster[keys.size()];
-            int k = 0;
-            for (Object key : keys) {
-                DiskCachedTile tile = tiles.get(key);
-                Raster r = residentTiles.get(tile.getTileId());
-                if (r == null) {
-                    r = tile.readData();
-                    makeResident(tile, r);
+            ReentrantLock lock = getTileLock(key);
+            acquire(lock);
+            try {
+                Raster cur = residentTiles.get(key);
+                if (cur == null) {
+                    // removed from memory meanwhile
+                    continue;
+                }
+
+                DataBuffer copy = constantTiles.copyOf(cur.getDataBuffer());
+                if (copy == null) {
+                    return cur;
                 }
 
-                rasters[k++] = r;
+                Point location = new Point(cur.getMinX(), cur.getMinY());
+                Raster r2;
+                if (cur instanceof WritableRaster) {
+                    r2 = Raster.createWritableRaster(cur.getSampleModel(), copy, location);
+                } else {
+                    r2 = Raster.createRaster(cur.getSampleModel(), copy, location);
+                }
 
-                tile.setTileTimeStamp(System.currentTimeMillis());
-                tile.setAction(DiskCachedTile.TileAction.ACTION_ACCESSED);
-                if (diagnosticsEnabled) {
-                    setChanged();
-                    notifyObservers(tile);
+                boolean replaced;
+                acquire(memLock);
+                try {
+                    replaced = residentTiles.replace(key, cur, r2);
+                } finally {
+                    memLock.unlock();
+                }
+                if (replaced) {
+                    return r2;
                 }
-            }
 
-            return rasters;
-            
-        } finally {
-            tileLock.unlock();
+            } finally {
+                lock.unlock();
+            }
         }
     }
 
     /**
-     * Removes all tiles that belong to the given image from the cache.
-     * 
-     * @param owner the image owning the tiles to be removed
-     */
-    public void removeTiles(RenderedImage owner) {
-        tileLock.lock();
+     * Pins a tile so that it stays in memory until unpinned. If the tile is
+     * not resident it is first loaded. Pins are counted: a tile pinned more
+     * than once must be unpinned the same number of times. A tile which is
+     * too large to be held in memory cannot be pinned.
+     *
+     * @param owner the image that the tile belongs to
+     * @param tileX the tile column
+     * @param tileY the tile row
+     * @return {@code true} if the tile was pinned; {@code false} if it is not
+     *         in the cache or cannot be held in memory
+     * @see #unpinTile(RenderedImage, int, int)
+     */
+    public boolean pinTile(RenderedImage owner, int tileX, int tileY) {
+        okToFlush.set(false);
+        Object key = getTileId(owner, tileX, tileY);
+
+        for (int attempt = 0; attempt < 2; attempt++) {
+            ReentrantLock lock = getTileLock(key);
+            acquire(lock);
+            try {
+                DiskCachedTile tile = tiles.get(key);
+                if (tile != null) {
+                    acquire(memLock);
+                    try {
+                        if (residentTiles.containsKey(key)) {
+                            if (tile.pinCount++ == 0) {
+                                numPinnedTiles++ ;
+                                pinnedMemory += tile.getTileSize();
+                            }
+                            return true;
+                        }
+                    } finally {
+                        memLock.unlock();
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            // load the tile and try again
+            if (getTile(owner, tileX, tileY) == null) {
+                return false;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Removes a pin from a tile. When its last pin is removed the tile may
+     * again be removed from memory, and if the cache is over capacity (because
+     * it was full of pinned tiles) resident tiles are removed to restore it.
+     * Nothing is done if the tile is not pinned.
+     *
+     * @param owner the image that the tile belongs to
+     * @param tileX the tile column
+     * @param tileY the tile row
+     * @see #pinTile(RenderedImage, int, int)
+     */
+    public void unpinTile(RenderedImage owner, int tileX, int tileY) {
+        okToFlush.set(false);
+        DiskCachedTile tile = tiles.get(getTileId(owner, tileX, tileY));
+        if (tile == null) {
+            return;
+        }
+
+        List<PendingWrite> victims = new ArrayList<PendingWrite>();
+        acquire(memLock);
+        try {
+            if (tile.pinCount == 0) {
+                return;
+            }
+            if (--tile.pinCount == 0) {
+                numPinnedTiles-- ;
+                pinnedMemory -= tile.getTileSize();
+
+                while (curMemory > memCapacity) {
+                    DiskCachedTile victim = nextVictim();
+                    if (victim == null) {
+                        break;
+                    }
+                    victims.add(evictResidentTile(victim));
+                }
+            }
+        } finally {
+            memLock.unlock();
+        }
+
+        writeEvictedTiles(victims);
+    }
+
+    /**
+     * Queries whether a tile is pinned.
+     *
+     * @param owner the image that the tile belongs to
+     * @param tileX the tile column
+     * @param tileY the tile row
+     * @return {@code true} if the tile is pinned
+     */
+    public boolean isTilePinned(RenderedImage owner, int tileX, int tileY) {
+        DiskCachedTile tile = tiles.get(getTileId(owner, tileX, tileY));
+        if (tile == null) {
+            return false;
+        }
+
+        acquire(memLock);
+        try {
+            return tile.pinCount > 0;
+        } finally {
+            memLock.unlock();
+        }
+    }
+
+    /**
+     * Makes a non-resident tile resident, reading its data from disk if
+     * necessary. Only the lock stripe for the tile is held while doing so.
+     * 
+     * @param tile the tile
+     * @param readAhead {@code true} if the tile is being read ahead of a request
+     * @return the tile data or {@code null} if the data were not available
+     */
+    private Raster loadTile(DiskCachedTile tile, boolean readAhead) {
+        return loadTile(tile, readAhead, null, null);
+    }
+
+    /**
+     * Makes a non-resident tile resident as for {@linkplain #loadTile(DiskCachedTile, boolean)},
+     * using data already read from disk if the tile is not held in memory.
+     * 
+     * @param tile the tile
+     * @param readAhead {@code true} if the tile is being read ahead of a request
+     * @param slot the slot the data were read from, or {@code null}
+     * @param data the data read from the slot, or {@code null}
+     * @return the tile data or {@code null} if the data were not available
+     */
+    private Raster loadTile(DiskCachedTile tile, boolean readAhead,
+            SpillStore.Slot slot, ByteBuffer data) {
+        Object key = tile.getTileId();
+        ReentrantLock lock = getTileLock(key);
+        acquire(lock);
+        try {
+            if (tiles.get(key) != tile) {
+                // removed by another thread
+                return null;
+            }
+
+            // another thread might have loaded the tile while we waited
+            Raster r = residentTiles.get(key);
+            if (r != null) {
+                if (!readAhead) {
+                    metrics.recordMemoryHit();
+                }
+                return r;
+            }
+
+            // the tile might be in the process of being written to disk
+            PendingWrite pw = evictingTiles.get(key);
+            if (pw != null) {
+                r = pw.raster;
+                // the data are resident again, even if the write fails
+                evictingTiles.remove(key, pw);
+                if (!readAhead) {
+                    metrics.recordMemoryHit();
+                }
+            } else if ((r = takeOffHeap(tile)) != null) {
+                if (readAhead) {
+                    metrics.recordReadAhead();
+                } else {
+                    metrics.recordOffHeapHit();
+                }
+            } else {
+                /*
+                 * The tile is not resident. Attempt
+                 * to read it from the disk.
+                 */
+                r = data == null ? tile.readData() : tile.readData(slot, data);
+                if (r == null) {
+                    /* The tile was not cached on disk. It may have
+                     * been resident only, and then flushed.
+                     */
+                    return null;
+                }
+                if (readAhead) {
+                    metrics.recordReadAhead();
+                } else {
+                    metrics.recordDiskHit();
+                }
+                metrics.recordBytesRead(tile.getDiskSize());
+            }
+
+            if (makeResident(tile, r)) {
+                tile.setAction(DiskCachedTile.TileAction.ACTION_RESIDENT);
+                if (diagnosticsEnabled) {
+                    setChanged();
+                    notifyObservers(tile);
+                }
+            }
+
+            return r;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a tile from the off-heap tier, if enabled and holding the
+     * tile, and re-creates its raster.
+     * 
+     * @param tile the tile
+     * @return the tile data or {@code null} if not held off-heap
+     */
+    private Raster takeOffHeap(DiskCachedTile tile) {
+        if (offHeapTier == null) {
+            return null;
+        }
+
+        OffHeapTier.Entry e = offHeapTier.take(tile.getTileId());
+        if (e == null) {
+            return null;
+        }
+
+        try {
+            /*
+             * If the tile was changed while being moved off-heap,
+             * its current data are on disk
+             */
+            if (e.version != tile.getVersion()) {
+                return null;
+            }
+            return tile.createRaster(e.data());
+
+        } catch (IOException ex) {
+            LOGGER.log(Level.SEVERE, "Failed to restore tile from off-heap tier", ex);
+            return null;
+
+        } finally {
+            offHeapTier.release(e);
+        }
+    }
+
+    /**
+     * Reattaches a tile saved by a persistent cache in an earlier session,
+     * if the owning image has a persistent key and the tile is listed in
+     * the index. The tile is added to the cache and made resident.
+     * 
+     * @param owner the image that the tile belongs to
+     * @param tileX the tile column
+     * @param tileY the tile row
+     * @param key the tile's unique id
+     * @return the tile data or {@code null} if not available
+     */
+    private Raster reattach(RenderedImage owner, int tileX, int tileY, Object key) {
+        OwnerRecord rec;
+        synchronized (owners) {
+            rec = owners.get(owner);
+        }
+        String ownerKey = rec == null ? null : rec.getPersistentKey();
+        if (ownerKey == null) {
+            return null;
+        }
+
+        ReentrantLock lock = getTileLock(key);
+        acquire(lock);
+        try {
+            if (tiles.containsKey(key)) {
+                // reattached or added by another thread
+                return residentTiles.get(key);
+            }
+
+            PersistentIndex.Entry entry = persistentIndex.take(ownerKey, tileX, tileY);
+            if (entry == null) {
+                return null;
+            }
+
+            DiskCachedTile tile;
+            try {
+                tile = new DiskCachedTile(key, owner, entry, null, spillStore, tileCodec);
+                tile.bufferPool = bufferPool;
+                tile.constantTiles = constantTiles;
+            } catch (IllegalArgumentException ex) {
+                LOGGER.log(Level.WARNING, "Discarding saved tile: {0}", ex.getMessage());
+                spillStore.free(entry.slot);
+                return null;
+            }
+
+            Raster r = tile.readData();
+            if (r == null) {
+                // data missing or changed since saved
+                tile.dispose();
+                return null;
+            }
+
+            tile.ownerRecord = rec;
+            tiles.put(key, tile);
+            rec.addTileKey(key);
+            metrics.recordDiskHit();
+            metrics.recordBytesRead(tile.getDiskSize());
+
+            if (makeResident(tile, r)) {
+                tile.setAction(DiskCachedTile.TileAction.ACTION_ADDED_RESIDENT);
+            } else {
+                tile.setAction(DiskCachedTile.TileAction.ACTION_ADDED);
+            }
+
+            if (diagnosticsEnabled) {
+                setChanged();
+                notifyObservers(tile);
+            }
+
+            return r;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the key which identifies an image's tiles in a persistent cache
+     * (see {@linkplain #KEY_PERSISTENT_FOLDER}). When the image's tiles are
+     * removed from memory, their data are written to disk and, once listed in
+     * the cache's index by {@linkplain #checkpoint()}, they can be used by an
+     * image presenting the same key to a persistent cache opened on the same
+     * folder in a later session, instead of being recomputed.
+     * <p>
+     * The key must identify the image's content: for example, a description of
+     * the operations and source data that produce it. Images with different
+     * content must not share a key. The key should be set before the image's
+     * tiles are requested from the cache.
+     * 
+     * @param owner the image
+     * @param key the key or {@code null} to stop saving the image's tiles
+     */
+    public void setPersistentKey(RenderedImage owner, String key) {
+        getOwnerRecord(owner).setPersistentKey(key);
+    }
+
+    /**
+     * Gets the key which identifies an image's tiles in a persistent cache.
+     * 
+     * @param owner the image
+     * @return the key or {@code null} if none has been set
+     * @see #setPersistentKey(RenderedImage, String)
+     */
+    public String getPersistentKey(RenderedImage owner) {
+        synchronized (owners) {
+            OwnerRecord rec = owners.get(owner);
+            return rec == null ? null : rec.getPersistentKey();
+        }
+    }
+
+    /**
+     * Sets the memory quota for a named group of images. The resident tiles of
+     * all images in the group, taken together, are guaranteed {@code minBytes}
+     * of the cache's memory and may occupy no more than {@code maxBytes}. The
+     * group is created if it does not already exist. If the group's tiles
+     * currently occupy more than the new maximum, the oldest are removed from
+     * memory.
+     * 
+     * @param group the group name
+     * @param minBytes guaranteed memory in bytes
+     * @param maxBytes maximum memory in bytes
+     * 
+     * @throws IllegalArgumentException if {@code group} is {@code null} or the
+     *         limits are not {@code 0 <= minBytes <= maxBytes}
+     * @see #setOwnerGroup(RenderedImage, String)
+     */
+    public void setGroupQuota(String group, long minBytes, long maxBytes) {
+        if (group == null) {
+            throw new IllegalArgumentException("group must not be null");
+        }
+
+        List<PendingWrite> victims = new ArrayList<PendingWrite>();
+        acquire(memLock);
+        try {
+            setQuotaLimits(getQuotaGroup(group), minBytes, maxBytes, victims);
+        } finally {
+            memLock.unlock();
+        }
+
+        writeEvictedTiles(victims);
+    }
+
+    /**
+     * Adds an image to a named group whose members share a memory quota. If the
+     * group does not exist it is created with no minimum or maximum, which can be
+     * set later with {@linkplain #setGroupQuota(String, long, long)}. An image
+     * belongs to at most one group, or has its own quota: adding it to a group
+     * replaces any previous assignment.
+     * <p>
+     * Tiles which are already resident stay charged to the image's previous
+     * quota, if any, until they leave memory.
+     * 
+     * @param owner the image
+     * @param group the group name or {@code null} to remove the image's quota
+     */
+    public void setOwnerGroup(RenderedImage owner, String group) {
+        OwnerRecord rec = getOwnerRecord(owner);
+        acquire(memLock);
+        try {
+            rec.setQuota(group == null ? null : getQuotaGroup(group));
+        } finally {
+            memLock.unlock();
+        }
+    }
+
+    /**
+     * Sets a memory quota for a single image. The image's resident tiles are
+     * guaranteed {@code minBytes} of the cache's memory and may occupy no more
+     * than {@code maxBytes}. This replaces any group assignment made with
+     * {@linkplain #setOwnerGroup(RenderedImage, String)}.
+     * 
+     * @param owner the image
+     * @param minBytes guaranteed memory in bytes
+     * @param maxBytes maximum memory in bytes
+     * 
+     * @throws IllegalArgumentException if the limits are not
+     *         {@code 0 <= minBytes <= maxBytes}
+     */
+    public void setOwnerQuota(RenderedImage owner, long minBytes, long maxBytes) {
+        OwnerRecord rec = getOwnerRecord(owner);
+
+        List<PendingWrite> victims = new ArrayList<PendingWrite>();
+        acquire(memLock);
+        try {
+            QuotaGroup quota = rec.getQuota();
+            if (quota == null || quota.name != null) {
+                quota = new QuotaGroup(null);
+            }
+            setQuotaLimits(quota, minBytes, maxBytes, victims);
+            rec.setQuota(quota);
+        } finally {
+            memLock.unlock();
+        }
+
+        writeEvictedTiles(victims);
+    }
+
+    /**
+     * Gets the amount of memory occupied by resident tiles charged to a
+     * named group's quota.
+     * 
+     * @param group the group name
+     * @return memory in bytes (0 if the group does not exist)
+     */
+    public long getGroupMemory(String group) {
+        acquire(memLock);
+        try {
+            QuotaGroup quota = quotaGroups.get(group);
+            return quota == null ? 0 : quota.getResidentBytes();
+        } finally {
+            memLock.unlock();
+        }
+    }
+
+    /**
+     * Gets the amount of memory occupied by resident tiles charged to the
+     * quota which applies to an image: either the image's own quota or
+     * that of its group.
+     * 
+     * @param owner the image
+     * @return memory in bytes (0 if no quota applies to the image)
+     */
+    public long getQuotaMemory(RenderedImage owner) {
+        QuotaGroup quota;
+        synchronized (owners) {
+            OwnerRecord rec = owners.get(owner);
+            quota = rec == null ? null : rec.getQuota();
+        }
+        if (quota == null) {
+            return 0;
+        }
+
+        acquire(memLock);
+        try {
+            return quota.getResidentBytes();
+        } finally {
+            memLock.unlock();
+        }
+    }
+
+    /**
+     * Gets a named quota, creating it if necessary. Must be called while
+     * holding the memory lock.
+     * 
+     * @param group the group name
+     * @return the quota
+     */
+    private QuotaGroup getQuotaGroup(String group) {
+        QuotaGroup quota = quotaGroups.get(group);
+        if (quota == null) {
+            quota = new QuotaGroup(group);
+            quotaGroups.put(group, quota);
+        }
+        return quota;
+    }
+
+    /**
+     * Validates and sets the limits of a quota, removing the oldest of its
+     * resident tiles from memory while it is over the new maximum. Must be
+     * called while holding the memory lock.
+     * 
+     * @param quota the quota
+     * @param minBytes guaranteed memory in bytes
+     * @param maxBytes maximum memory in bytes
+     * @param victims receives the tiles removed from memory
+     */
+    private void setQuotaLimits(QuotaGroup quota, long minBytes, long maxBytes,
+            List<PendingWrite> victims) {
+        if (minBytes < 0 || minBytes > maxBytes) {
+            throw new IllegalArgumentException(
+                    "quota limits must satisfy 0 <= minBytes <= maxBytes");
+        }
+
+        quota.setLimits(minBytes, maxBytes);
+        DiskCachedTile oldest;
+        while (quota.isOverQuota() && (oldest = quota.getOldest()) != null) {
+            victims.add(evictResidentTile(oldest));
+        }
+    }
+
+    /**
+     * Saves the tiles of images with persistent keys. The data of such tiles
+     * which are held in memory and have changed since last written are written
+     * to disk, and the cache's index is rewritten to list all saved tiles. This
+     * should be called periodically, and before the application exits, for a
+     * persistent cache. Tiles held in the off-heap tier (if enabled) are only
+     * saved once written to disk.
+     * 
+     * @throws IOException on error writing tile data or the index
+     * @throws IllegalStateException if the cache is not persistent
+     * @see #KEY_PERSISTENT_FOLDER
+     */
+    public void checkpoint() throws IOException {
+        if (persistentIndex == null) {
+            throw new IllegalStateException("This cache is not persistent");
+        }
+
+        List<PersistentIndex.Entry> saved = new ArrayList<PersistentIndex.Entry>();
+        for (DiskCachedTile tile : tiles.values()) {
+            OwnerRecord rec = tile.ownerRecord;
+            String ownerKey = rec == null ? null : rec.getPersistentKey();
+            if (ownerKey == null) {
+                continue;
+            }
+
+            Object key = tile.getTileId();
+            ReentrantLock lock = getTileLock(key);
+            acquire(lock);
+            try {
+                if (tiles.get(key) != tile) {
+                    continue;
+                }
+
+                if (tile.isDirty()) {
+                    Raster r = residentTiles.get(key);
+                    if (r == null) {
+                        PendingWrite pw = evictingTiles.get(key);
+                        r = pw == null ? null : pw.raster;
+                    }
+                    if (r != null) {
+                        tile.writeData(r);
+                        metrics.recordBytesWritten(tile.getDiskSize());
+                    }
+                }
+
+                PersistentIndex.Entry e = tile.createIndexEntry(ownerKey);
+                if (e != null) {
+                    saved.add(e);
+                }
+
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        persistentIndex.write(saved);
+    }
+
+    /**
+     * Gets the record for an image, creating it if necessary.
+     * 
+     * @param owner the image
+     * @return the record
+     */
+    private OwnerRecord getOwnerRecord(RenderedImage owner) {
+        synchronized (owners) {
+            OwnerRecord rec = owners.get(owner);
+            if (rec == null) {
+                rec = new OwnerRecord(owner, ownerQueue);
+                owners.put(owner, rec);
+            }
+            return rec;
+        }
+    }
+
+    /**
+     * Notes a request for a tile and, if the owning image's tiles are being
+     * requested in row-major order, queues the following tiles to be read
+     * into memory.
+     * 
+     * @param owner the image that the tile belongs to
+     * @param tile the requested tile
+     */
+    private void readAhead(RenderedImage owner, DiskCachedTile tile) {
+        OwnerRecord rec = tile.ownerRecord;
+        if (rec == null) {
+            return;
+        }
+
+        final int numX = owner.getNumXTiles();
+        final long index = (long)(tile.getTileY() - owner.getMinTileY()) * numX +
+                (tile.getTileX() - owner.getMinTileX());
+
+        final long from = rec.claimReadAhead(index, readAheadTiles);
+        if (from < 0) {
+            return;
+        }
+
+        final long to = Math.min(index + readAheadTiles, (long)numX * owner.getNumYTiles() - 1);
+        if (from <= to) {
+            readAheadService.execute(new ReadAhead(rec, from, to));
+        }
+    }
+
+    /**
+     * Reads a range of an image's tiles, identified by row-major index,
+     * into memory.
+     */
+    private final class ReadAhead implements Runnable {
+        final OwnerRecord rec;
+        final long from;
+        final long to;
+
+        ReadAhead(OwnerRecord rec, long from, long to) {
+            this.rec = rec;
+            this.from = from;
+            this.to = to;
+        }
+
+        public void run() {
+            RenderedImage owner = rec.getOwner();
+            if (owner == null) {
+                return;
+            }
+
+            int numX = owner.getNumXTiles();
+            for (long i = from; i <= to; i++) {
+                int tileX = owner.getMinTileX() + (int)(i % numX);
+                int tileY = owner.getMinTileY() + (int)(i / numX);
+
+                Object key = getTileId(owner, tileX, tileY);
+                DiskCachedTile tile = tiles.get(key);
+                if (tile != null && !residentTiles.containsKey(key)) {
+                    loadTile(tile, true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets all cached tiles associated with the given image.
+     * The tiles will be loaded into memory as space allows.
+     * 
+     * @param owner the image for which tiles are requested
+     * @return an array of tile Rasters
+     */
+    public Raster[] getTiles(RenderedImage owner) {
+        okToFlush.set(false);
+        int minX = owner.getMinTileX();
+        int minY = owner.getMinTileY();
+        int numX = owner.getNumXTiles();
+        int numY = owner.getNumYTiles();
+
+        Point[] tileIndices = new Point[numX * numY];
+        int k = 0;
+        for (int y = minY, ny = 0; ny < numY; y++, ny++) {
+            for (int x = minX, nx = 0; nx < numX; x++, nx++) {
+                tileIndices[k++] = new Point(x, y);
+            }
+        }
+
+        List<Raster> rasters = new ArrayList<Raster>();
+        if (tileIndices.length > 0) {
+            for (Raster r : getTiles(owner, tileIndices)) {
+                if (r != null) {
+                    rasters.add(r);
+                }
+            }
+        }
+
+        return rasters.toArray(new Raster[rasters.size()]);
+    }
+
+    /**
+     * Removes all tiles that belong to the given image from the cache.
+     * 
+     * @param owner the image owning the tiles to be removed
+     */
+    public void removeTiles(RenderedImage owner) {
+        for (int y = owner.getMinTileY(), ny = 0; ny < owner.getNumYTiles(); y++, ny++) {
+            for (int x = owner.getMinTileX(), nx = 0; nx < owner.getNumXTiles(); x++, nx++) {
+                remove(owner, x, y);
+            }
+        }
+    }
+
+    /**
+     * Sets the interval between polling each tile to check if its owning image
+     * has been garbage collected.
+     *
+     * @param interval interval in milliseconds
+     *        (values less than or equal to zero are ignored)
+     * @deprecated Tiles are no longer polled: they are removed as soon as their
+     *             owning image is found to have been garbage collected. The
+     *             interval is recorded but has no effect.
+     */
+    @Deprecated
+    public void setTilePollingInterval(long interval) {
+        if (interval > 0) {
+            tilePollingInterval = interval;
+        }
+    }
+
+    /**
+     * Gets the interval between polling each tile to check if its owning image
+     * has been garbage collected.
+     *
+     * @return interval in milliseconds
+     * @deprecated The interval has no effect: see {@linkplain #setTilePollingInterval(long)}
+     */
+    @Deprecated
+    public long getTilePollingInterval() {
+        return tilePollingInterval;
+    }
+
+    /**
+     * Waits for the records of garbage collected images to be delivered to
+     * the owner queue and removes each image's tiles from the cache, freeing
+     * their memory and disk space. This runs until the cleanup thread is
+     * interrupted. The work done for each image is proportional to its
+     * number of tiles, rather than to the number of tiles in the cache.
+     */
+    private void removeCollectedOwnerTiles() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                OwnerRecord rec = (OwnerRecord) ownerQueue.remove();
+                for (Object key : rec.getTileKeys()) {
+                    removeTile(key, rec);
+                }
+            }
+        } catch (InterruptedException ex) {
+            // cleanup thread shut down
+        }
+    }
+
+    /**
+     * Adds all tiles for the given image to the cache. The lock stripes for
+     * the tiles are acquired once for the whole batch, and the tiles are placed
+     * into memory with a single acquisition of the memory lock.
+     * 
+     * @param owner the image that the tiles belong to
+     * @param tileIndices an array of Points specifying the column-row coordinates
+     * of each tile
+     * @param tiles tile data in the form of Raster objects
+     * @param tileCacheMetric optional metric (may be {@code null})
+     */
+    public void addTiles(RenderedImage owner,
+                     Point[] tileIndices,
+                     Raster[] tiles,
+                     Object tileCacheMetric) {
+
+        if (tileIndices.length != tiles.length) {
+            throw new IllegalArgumentException(
+                    "tileIndices and tiles args must be the same length");
+        }
+
+        List<Object> keys = new ArrayList<Object>(tileIndices.length);
+        for (Point p : tileIndices) {
+            keys.add(getTileId(owner, p.x, p.y));
+        }
+
+        okToFlush.set(false);
+        long t0 = System.nanoTime();
+        List<ReentrantLock> held = acquireTileLocks(keys);
+        try {
+            List<DiskCachedTile> added = new ArrayList<DiskCachedTile>(keys.size());
+            List<Raster> addedData = new ArrayList<Raster>(keys.size());
+            for (int i = 0; i < tiles.length; i++) {
+                Object key = keys.get(i);
+                if (!this.tiles.containsKey(key)) {
+                    Raster data = cacheNewTile(key, owner, tileIndices[i].x, tileIndices[i].y,
+                            tiles[i], tileCacheMetric);
+                    if (data != null) {
+                        added.add(this.tiles.get(key));
+                        addedData.add(data);
+                    }
+                }
+            }
+
+            boolean[] resident = makeResident(added, addedData);
+            for (int i = 0; i < added.size(); i++) {
+                tileAdded(added.get(i), resident[i]);
+            }
+
+        } finally {
+            releaseTileLocks(held);
+
+            long nanos = (System.nanoTime() - t0) / Math.max(1, tiles.length);
+            for (int i = 0; i < tiles.length; i++) {
+                metrics.recordAdd(nanos);
+            }
+        }
+    }
+
+    /**
+     * Gets the specified tiles for the given image. Tiles which are cached but
+     * not resident in memory are loaded as a batch: the lock stripes for the
+     * tiles are acquired once, and tile data held on disk are read in order
+     * of file and position. Adjacent data are read together only when tiles
+     * share slab files (see {@linkplain #KEY_USE_SLAB_FILES}); with one file per
+     * tile, each tile is still read separately.
+     *
+     * @param owner the image that the tiles belong to
+     * @param tileIndices an array of Points specifying the column-row coordinates
+     * of each tile
+     * @return data for the requested tiles as Raster objects, with {@code null}
+     *         for tiles which were not cached
+     */
+    public Raster[] getTiles(RenderedImage owner, Point[] tileIndices) {
+        Raster[] r = null;
+
+        if (tileIndices.length > 0) {
+            okToFlush.set(false);
+            r = new Raster[tileIndices.length];
+
+            List<Integer> pending = new ArrayList<Integer>();
+            for (int i = 0; i < tileIndices.length; i++) {
+                Object key = getTileId(owner, tileIndices[i].x, tileIndices[i].y);
+                if (tiles.containsKey(key) && !residentTiles.containsKey(key)) {
+                    pending.add(i);
+                } else {
+                    r[i] = getTile(owner, tileIndices[i].x, tileIndices[i].y);
+                }
+            }
+
+            if (!pending.isEmpty()) {
+                loadTiles(owner, tileIndices, pending, r);
+            }
+        }
+
+        return r;
+    }
+
+    /**
+     * Loads a batch of tiles which were not resident when requested.
+     * 
+     * @param owner the image that the tiles belong to
+     * @param tileIndices the requested tiles
+     * @param pending indices into {@code tileIndices} of the tiles to load
+     * @param r receives the tile data
+     */
+    private void loadTiles(RenderedImage owner, Point[] tileIndices,
+            List<Integer> pending, Raster[] r) {
+
+        List<Object> keys = new ArrayList<Object>(pending.size());
+        for (int i : pending) {
+            keys.add(getTileId(owner, tileIndices[i].x, tileIndices[i].y));
+        }
+
+        List<ReentrantLock> held = acquireTileLocks(keys);
+        try {
+            /*
+             * Find the tiles whose current data are only on disk
+             * and order them by file and position
+             */
+            List<DiskRead> reads = new ArrayList<DiskRead>();
+            for (int k = 0; k < keys.size(); k++) {
+                Object key = keys.get(k);
+                DiskCachedTile tile = tiles.get(key);
+                if (tile != null && !residentTiles.containsKey(key) &&
+                        !evictingTiles.containsKey(key) &&
+                        (offHeapTier == null || !offHeapTier.contains(key))) {
+
+                    SpillStore.Slot slot = tile.getSlot();
+                    if (slot != null) {
+                        reads.add(new DiskRead(pending.get(k), tile, slot));
+                    }
+                }
+            }
+            Collections.sort(reads);
+
+            int start = 0;
+            while (start < reads.size()) {
+                int end = start;
+                long bytes = 0;
+                do {
+                    bytes += reads.get(end).slot.length;
+                    end++ ;
+                } while (end < reads.size() &&
+                        bytes + reads.get(end).slot.length <= MAX_BATCH_READ_BYTES);
+
+                SpillStore.Slot[] slots = new SpillStore.Slot[end - start];
+                for (int k = start; k < end; k++) {
+                    slots[k - start] = reads.get(k).slot;
+                }
+
+                ByteBuffer[] data = null;
+                try {
+                    data = spillStore.read(slots);
+                } catch (IOException ex) {
+                    LOGGER.log(Level.WARNING, "Failed to read batch of tiles: reading tiles singly", ex);
+                }
+
+                for (int k = start; k < end; k++) {
+                    DiskRead dr = reads.get(k);
+                    r[dr.index] = data == null ?
+                            getLoadedTile(dr.tile, null, null) :
+                            getLoadedTile(dr.tile, dr.slot, data[k - start]);
+                }
+
+                start = end;
+            }
+
+            // the remaining tiles are in memory or no longer cached
+            boolean[] done = new boolean[r.length];
+            for (DiskRead dr : reads) {
+                done[dr.index] = true;
+            }
+
+            for (int i : pending) {
+                if (!done[i]) {
+                    r[i] = getTile(owner, tileIndices[i].x, tileIndices[i].y);
+                }
+            }
+
+        } finally {
+            releaseTileLocks(held);
+        }
+    }
+
+    /**
+     * Loads a tile as part of a batch and records the access, as for
+     * {@linkplain #getTile(RenderedImage, int, int)}. The caller holds
+     * the tile's lock.
+     * 
+     * @param tile the tile
+     * @param slot the slot the tile's data were read from, or {@code null}
+     * @param data the data read from the slot, or {@code null}
+     * @return the tile data or {@code null} if the data were not available
+     */
+    private Raster getLoadedTile(DiskCachedTile tile, SpillStore.Slot slot, ByteBuffer data) {
+        Raster r = loadTile(tile, false, slot, data);
+        if (r == null) {
+            metrics.recordMiss();
+            return null;
+        }
+
+        tile.setAction(DiskCachedTile.TileAction.ACTION_ACCESSED);
+        touch(tile, false);
+
+        if (diagnosticsEnabled) {
+            setChanged();
+            notifyObservers(tile);
+        }
+
+        return r;
+    }
+
+    /**
+     * Removes ALL tiles from the cache: all resident tiles will be
+     * removed from memory and all files for disk-cached tiles will
+     * be discarded.
+     * <p>
+     * The update action of each tile will be set to {@linkplain DiskCachedTile#ACTION_REMOVED}.
+     * Spill files which no longer hold any tile data are closed and deleted.
+     */
+    public void flush() {
+        flushMemory();
+
+        for (Object key : tiles.keySet()) {
+            removeTile(key);
+        }
+
+        spillStore.trim();
+    }
+
+    /**
+     * Releases the resources held by this cache. All tiles are removed as with
+     * {@linkplain #flush()}, auto-flushing, heap monitoring, read-ahead and the
+     * removal of tiles of collected images are stopped, any write-behind
+     * threads are shut down once queued writes have finished, and the spill
+     * files are closed and, unless the cache is persistent, deleted.
+     * The cache must not be used after this method has been called.
+     * <p>
+     * The tiles of a persistent cache are not saved by this method: call
+     * {@linkplain #checkpoint()} first.
+     */
+    public void dispose() {
+        setAutoFlushMemoryEnabled(false);
+        if (heapMonitor != null) {
+            heapMonitor.stop();
+        }
+        if (flushService != null) {
+            flushService.shutdownNow();
+        }
+        if (readAheadService != null) {
+            readAheadService.shutdownNow();
+        }
+        ownerCleanupService.shutdownNow();
+
+        flush();
+
+        if (writeBehindServices != null) {
+            for (ExecutorService service : writeBehindServices) {
+                service.shutdown();
+            }
+            try {
+                for (ExecutorService service : writeBehindServices) {
+                    service.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        unregisterMBean();
+        spillStore.close();
+    }
+
+    /**
+     * Removes all resident tiles from memory, other than pinned tiles, including
+     * those held in the off-heap tier, and releases any recycled tile data
+     * arrays. The data of tiles which have changed since they were last written
+     * to disk are written first (or, in write-behind mode, queued for writing),
+     * so no changes are lost.
+     */
+    public void flushMemory() {
+        List<PendingWrite> victims = new ArrayList<PendingWrite>();
+        acquire(memLock);
+        try {
+            List<DiskCachedTile> pinned = null;
+            for (Object key : new ArrayList<Object>(residentTiles.keySet())) {
+                DiskCachedTile tile = tiles.get(key);
+                if (tile != null && tile.pinCount > 0) {
+                    if (pinned == null) {
+                        pinned = new ArrayList<DiskCachedTile>();
+                    }
+                    pinned.add(tile);
+                } else if (tile != null) {
+                    victims.add(evictResidentTile(tile));
+                } else {
+                    residentTiles.remove(key);
+                }
+            }
+
+            // forget the access history of the tiles removed
+            evictionPolicy.clear();
+            if (pinned != null) {
+                for (DiskCachedTile tile : pinned) {
+                    evictionPolicy.add(tile);
+                }
+            }
+            
+        } finally {
+            memLock.unlock();
+        }
+
+        writeEvictedTiles(victims, false);
+
+        if (offHeapTier != null) {
+            List<OffHeapTier.Entry> spills = new ArrayList<OffHeapTier.Entry>();
+            offHeapTier.clear(spills);
+            for (OffHeapTier.Entry e : spills) {
+                write(new OffHeapSpill(e), e.tile);
+            }
+        }
+        if (bufferPool != null) {
+            bufferPool.clear();
+        }
+    }
+
+    /**
+     * Frees memory for resident tiles so that the fraction of memory occupied is
+     * no more than the current value of the mamory threshold. 
+     *
+     * @see DiskMemTileCache#setMemoryThreshold(float)
+     */
+    public void memoryControl() {
+        List<PendingWrite> victims = new ArrayList<PendingWrite>();
+        acquire(memLock);
+        try {
+            thresholdMemoryControl(victims);
+        } finally {
+            memLock.unlock();
+        }
+
+        writeEvictedTiles(victims);
+    }
+
+    /**
+     * Selects resident tiles for removal until the fraction of memory
+     * occupied is no more than the memory threshold. Must be called
+     * while holding the memory lock.
+     * 
+     * @param victims receives the tiles removed from memory
+     */
+    private void thresholdMemoryControl(List<PendingWrite> victims) {
+        long maxUsed = (long) (memThreshold * memCapacity);
+        long toFree = curMemory - maxUsed;
+        if (toFree > 0) {
+            // memory in use can exceed the capacity while writes are failing
+            defaultMemoryControl(Math.min(toFree, memCapacity), victims);
+        }
+    }
+
+    /**
+     * Makes the requested amount of memory cache available, removing
+     * resident tiles as necessary. Must be called while holding the
+     * memory lock. The data of removed tiles are not written to disk
+     * here: instead the tiles are added to {@code victims} for the caller
+     * to pass to {@linkplain #writeEvictedTiles(List)} once the lock
+     * has been released.
+     *
+     * @param memRequired memory requested (bytes)
+     * @param victims receives the tiles removed from memory
+     */
+    private void defaultMemoryControl( long memRequired, List<PendingWrite> victims ) {
+        if (memRequired > memCapacity) {
+            // @todo something better than this...
+            throw new RuntimeException("space required is greater than cache memory capacity");
+        }
+
+        /*
+         * Remove one or more lowest priority tiles to free
+         * space
+         */
+        while (memCapacity - curMemory < memRequired) {
+            DiskCachedTile tile = nextVictim();
+            if (tile == null) {
+                break;
+            }
+            victims.add(evictResidentTile(tile));
+        }
+    }
+
+
+    /**
+     * Does nothing.
+     * 
+     * @deprecated Please do not use this method  
+     */
+    @Deprecated
+    public void setTileCapacity(int arg0) {
+    }
+
+    /**
+     * Always returns 0.
+     * 
+     * @deprecated Please do not use this method  
+     */
+    public int getTileCapacity() {
+        return 0;
+    }
+
+    /**
+     * Resets the memory capacity of the cache. Setting capacity to 0 will
+     * flush all resident tiles from memory, as with {@linkplain #flushMemory()}.
+     * Setting a capacity less than the
+     * current capacity could cause some memory-resident tiles being
+     * removed from memory. For a cache with adaptive capacity, this also
+     * sets the maximum to which capacity can grow.
+     *
+     * @param newCapacity requested memory capacity for resident tiles
+     */
+    public void setMemoryCapacity(long newCapacity) {
+        if (newCapacity < 0) {
+            throw new IllegalArgumentException("memory capacity must be >= 0");
+        }
+
+        List<PendingWrite> victims = new ArrayList<PendingWrite>();
+        acquire(memLock);
+        try {
+            okToFlush.set(false);
+
+            long oldCapacity = memCapacity;
+            memCapacity = newCapacity;
+            maxCapacity = newCapacity;
+
+            if (newCapacity > 0 && newCapacity < oldCapacity && curMemory > newCapacity) {
+                /*
+                 * Note: we free memory here directly rather than using
+                 * memoryControl or defaultMemoryControl methods because
+                 * they will fail when memCapacity has been reduced
+                 */
+                while (curMemory > newCapacity) {
+                    DiskCachedTile tile = nextVictim();
+                    if (tile == null) {
+                        break;
+                    }
+                    victims.add(evictResidentTile(tile));
+                }
+            }
+        } finally {
+            memLock.unlock();
+        }
+
+        if (newCapacity == 0) {
+            // disk writes are not done while holding the memory lock
+            flushMemory();
+        } else {
+            writeEvictedTiles(victims);
+        }
+    }
+
+    /**
+     * Gets the amount of memory, in bytes, allocated for storage of
+     * resident tiles.
+     *
+     * @return resident tile memory capacity in bytes
+     */
+    public long getMemoryCapacity() {
+        return memCapacity;
+    }
+
+    /**
+     * Gets the maximum memory capacity. For a cache with adaptive capacity,
+     * this is the capacity to which the cache grows when the heap has headroom.
+     * Otherwise it is the same as {@linkplain #getMemoryCapacity()}.
+     *
+     * @return maximum capacity in bytes
+     * @see #KEY_HEAP_FRACTION
+     */
+    public long getMaxMemoryCapacity() {
+        return maxCapacity;
+    }
+
+    /**
+     * Queries whether the cache adapts its capacity to heap pressure.
+     *
+     * @return {@code true} if adaptive capacity is enabled
+     * @see #KEY_HEAP_FRACTION
+     */
+    public boolean isAdaptiveCapacityEnabled() {
+        return heapMonitor != null;
+    }
+
+    /**
+     * Package-private method called by the heap monitor when the heap is
+     * under pressure. Memory is freed on the cache's flush thread; further
+     * calls while this is pending are ignored.
+     */
+    void heapPressure() {
+        if (pressurePending.compareAndSet(false, true)) {
+            flushService.execute(new Runnable() {
+                public void run() {
+                    pressurePending.set(false);
+                    relieveHeapPressure();
+                }
+            });
+        }
+    }
+
+    /**
+     * Package-private method which reduces memory capacity in response to heap
+     * pressure, to the memory threshold fraction of the memory currently occupied
+     * (but no less than a sixteenth of the maximum capacity), removing tiles from
+     * memory as necessary. Recycled tile data arrays are released.
+     */
+    void relieveHeapPressure() {
+        List<PendingWrite> victims = new ArrayList<PendingWrite>();
+        acquire(memLock);
+        try {
+            lastPressureTime = System.currentTimeMillis();
+
+            long used = Math.min(curMemory, memCapacity);
+            long newCapacity = Math.max(maxCapacity / MIN_CAPACITY_DIVISOR,
+                    (long) (memThreshold * used));
+            if (newCapacity < memCapacity) {
+                memCapacity = newCapacity;
+                while (curMemory > newCapacity) {
+                    DiskCachedTile tile = nextVictim();
+                    if (tile == null) {
+                        break;
+                    }
+                    victims.add(evictResidentTile(tile));
+                }
+            }
+        } finally {
+            memLock.unlock();
+        }
+
+        writeEvictedTiles(victims);
+        if (bufferPool != null) {
+            bufferPool.clear();
+        }
+
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Heap pressure: cache capacity reduced to " + memCapacity);
+        }
+    }
+
+    /**
+     * Grows memory capacity towards its maximum, for a cache with adaptive
+     * capacity, if there has been no heap pressure for a while and the heap
+     * has headroom. The heap is checked at most once per quiet period. Must
+     * be called while holding the memory lock.
+     */
+    private void growCapacity() {
+        if (memCapacity >= maxCapacity) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        if (now - lastPressureTime < HEAP_QUIET_PERIOD ||
+                now - lastHeadroomCheck < HEAP_QUIET_PERIOD) {
+            return;
+        }
+
+        lastHeadroomCheck = now;
+        if (heapMonitor.hasHeadroom()) {
+            memCapacity = Math.min(maxCapacity, 2 * memCapacity);
+        }
+    }
+
+    /**
+     * Gets the amount of memory currently being used for storage of
+     * memory-resident tiles.
+     *
+     * @return current memory use in bytes
+     */
+    public long getCurrentMemory() {
+        return curMemory;
+    }
+
+    /**
+     * Sets the memoryThreshold value to a floating point number that ranges from
+     * 0.0 to 1.0. When the cache memory is full, the memory usage will be reduced
+     * to this fraction of the total cache memory capacity. For example, a value
+     * of .75 will cause 25% of the memory to be cleared, while retaining 75%.
+     *
+     * @param newThreshold the new memory threshold between 0 and 1
+     * 
+     * @throws IllegalArgumentException if the memoryThreshold is less than 0.0 or greater than 1.0
+     */
+    public void setMemoryThreshold(float newThreshold) {
+        if (newThreshold < 0.0F) {
+            memThreshold = 0.0F;
+        } else if (newThreshold > 1.0F) {
+            memThreshold = 1.0F;
+        } else {
+            memThreshold = newThreshold;
+        }
+
+        memoryControl();
+    }
+
+    /**
+     * Returns the memory threshold, which is the fractional amount of cache memory
+     * to retain during tile removal. This only applies if memory thresholding has
+     * been enabled by passing the parameter {@linkplain #KEY_USE_MEMORY_THRESHOLD} to
+     * the constructor with a value of {@code Boolean.TRUE}.
+     *
+     * @return the retained fraction of memory
+     */
+    public float getMemoryThreshold() {
+        return memThreshold;
+    }
+
+    /**
+     * Sets the comparator to use to assign memory-residence priority to
+     * tiles. If {@code comp} is {@code null} the default comparator
+     * ({@link TileAccessTimeComparator}) will be used.
+     * <p>
+     * With the default comparator, resident tiles are kept in an access-ordered
+     * list and the cost of choosing a tile to remove from memory does not depend
+     * on the number of resident tiles. Other comparators are applied via a
+     * priority queue which is rebuilt, in time proportional to the number of
+     * resident tiles, when tiles must be removed after others have been added.
+     * 
+     * @param comp the comparator or {@code null} for the default
+     */
+    public void setTileComparator(Comparator comp) {
+        // the TileCache interface takes a raw Comparator
+        @SuppressWarnings("unchecked")
+        Comparator<CachedTile> tileComp = comp;
+
+        acquire(memLock);
+        try {
+            if (tileComp == null || tileComp instanceof TileAccessTimeComparator) {
+                // switch to default comparator based on tile access time
+                comparator = tileComp == null ? new TileAccessTimeComparator() : tileComp;
+                installPolicy(new LruEvictionPolicy());
+            } else {
+                comparator = tileComp;
+                installPolicy(new ComparatorEvictionPolicy(comparator));
+            }
+            
+        } finally {
+            memLock.unlock();
+        }
+    }
+
+    /**
+     * Sets the policy which chooses tiles to remove from memory when space is
+     * required. This replaces any comparator set with
+     * {@linkplain #setTileComparator(Comparator)}, which is ignored until that
+     * method is called again. Passing {@code null} restores the default policy.
+     * <p>
+     * Besides the default policy, which approximates least-recently-used order,
+     * the scan-resistant {@linkplain ArcEvictionPolicy} and
+     * {@linkplain TwoQueueEvictionPolicy} and the {@linkplain CostAwareEvictionPolicy}
+     * are provided. A policy instance must not be shared between caches.
+     * 
+     * @param policy the policy or {@code null} for the default
+     */
+    public void setEvictionPolicy(EvictionPolicy policy) {
+        acquire(memLock);
+        try {
+            if (policy == null) {
+                comparator = new TileAccessTimeComparator();
+                installPolicy(new LruEvictionPolicy());
+            } else {
+                installPolicy(policy);
+            }
+            
+        } finally {
+            memLock.unlock();
+        }
+    }
+
+    /**
+     * Gets the policy currently used to choose tiles to remove from memory.
+     * 
+     * @return the current policy
+     */
+    public EvictionPolicy getEvictionPolicy() {
+        acquire(memLock);
+        try {
+            return evictionPolicy;
+        } finally {
+            memLock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the eviction policy, passing it all resident tiles. Must be
+     * called while holding the memory lock.
+     * 
+     * @param policy the new policy
+     */
+    private void installPolicy(EvictionPolicy policy) {
+        evictionPolicy.clear();
+        policy.clear();
+        evictionPolicy = policy;
+
+        for (Object key : residentTiles.keySet()) {
+            DiskCachedTile tile = tiles.get(key);
+            if (tile != null) {
+                evictionPolicy.add(tile);
+            }
+        }
+    }
+
+    /**
+     * Gets the comparator currently used to assign memory-residence
+     * priority to tiles.
+     * 
+     * @return the current comparator
+     */
+    public Comparator getTileComparator() {
+        return comparator;
+    }
+
+    /**
+     * Gets the total number of tiles currently in the cache.
+     * 
+     * @return number of cached tiles
+     */
+    public int getNumTiles() {
+        return tiles.size();
+    }
+
+    /**
+     * Gets the number of tiles currently residing in the
+     * cache's memory storage.
+     * 
+     * @return number of memory-resident tiles
+     */
+    public int getNumResidentTiles() {
+        return residentTiles.size();
+    }
+
+    /**
+     * Gets the number of tiles removed from memory whose data are held
+     * until written to disk. Used by unit tests.
+     *
+     * @return number of evicting tiles
+     */
+    int getNumEvictingTiles() {
+        return evictingTiles.size();
+    }
+
+    /**
+     * Gets the number of pinned tiles.
+     *
+     * @return number of pinned tiles
+     * @see #pinTile(RenderedImage, int, int)
+     */
+    public int getNumPinnedTiles() {
+        return numPinnedTiles;
+    }
+
+    /**
+     * Gets the amount of memory occupied by pinned tiles. This is included
+     * in the value returned by {@linkplain #getCurrentMemory()}.
+     *
+     * @return memory in bytes
+     * @see #pinTile(RenderedImage, int, int)
+     */
+    public long getPinnedMemory() {
+        return pinnedMemory;
+    }
+
+    /**
+     * Checks whether a given tile is in this cache.
+     * 
+     * @param owner the owning image
+     * @param tileX tile column
+     * @param tileY tile row
+     * @return {@code true} if the cache contains the tile; {@code false} otherwise
+     */
+    public boolean containsTile(RenderedImage owner, int tileX, int tileY) {
+        Object key = getTileId(owner, tileX, tileY);
+        return tiles.containsKey(key);
+    }
+
+    /**
+     * Checks whether a given tile is in this cache's memory storage.
+     *
+     * @param owner the owning image
+     * @param tileX tile column
+     * @param tileY tile row
+     * @return {@code true} if the tile is in cache memory; {@code false} otherwise
+     */
+    public boolean containsResidentTile(RenderedImage owner, int tileX, int tileY) {
+        Object key = getTileId(owner, tileX, tileY);
+        return residentTiles.containsKey(key);
+    }
+
+    /**
+     * Informs the cache that a tile's data have changed. The tile should
+     * be resident in memory as the result of a previous {@code getTile}
+     * request. If this is the case the tile is marked as dirty, and its
+     * data will be written to disk when it is next removed from memory.
+     * Tiles which have not been changed since they were last written to
+     * disk are removed from memory without being rewritten.
+     * <P>
+     * If the tile has just been removed from memory and is waiting to be
+     * written to disk, it is written immediately.
+     * <P>
+     * If the tile is not resident in memory, for instance
+     * because of memory swapping for other tile accesses, the disk copy
+     * will not be refreshed and a {@code TileNotResidentException} is
+     * thrown.
+     *
+     * @param owner the owning image
+     * @param tileX tile column
+     * @param tileY tile row
+     * @throws TileNotResidentException if the tile is not resident
+     * @throws DiskCacheFailedException if the tile was waiting to be written to disk
+     *     but its data could not be written
+     */
+    public void setTileChanged(RenderedImage owner, int tileX, int tileY)
+            throws TileNotResidentException, DiskCacheFailedException {
+
+        okToFlush.set(false);
+        Object tileId = getTileId(owner, tileX, tileY);
+        ReentrantLock lock = getTileLock(tileId);
+        acquire(lock);
         try {
-            for (int y = owner.getMinTileY(), ny = 0; ny < owner.getNumYTiles(); y++, ny++) {
-                for (int x = owner.getMinTileX(), nx = 0; nx < owner.getNumXTiles(); x++, nx++) {
-                    remove(owner, x, y);
+            DiskCachedTile tile = tiles.get(tileId);
+            Raster r = residentTiles.get(tileId);
+            boolean evicting = false;
+            if (r == null) {
+                PendingWrite pw = evictingTiles.get(tileId);
+                if (pw != null) {
+                    r = pw.raster;
+                    evicting = true;
+                }
+            }
+            if (r == null || tile == null) {
+                throw new TileNotResidentException(owner, tileX, tileY);
+            }
+
+            tile.markChanged();
+
+            /*
+             * A queued write might already have copied the tile's data
+             * so we write the changed data here
+             */
+            if (evicting) {
+                try {
+                    tile.writeData(r);
+                    metrics.recordBytesWritten(tile.getDiskSize());
+                } catch (IOException ioEx) {
+                    DiskCacheFailedException ex = new DiskCacheFailedException(owner, tileX, tileY);
+                    ex.initCause(ioEx);
+                    throw ex;
                 }
             }
+            
         } finally {
-            tileLock.unlock();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Enables or disables auto-flushing of memory resident with the
+     * currently set minimum interval. Auto-flushing cannot be enabled for a
+     * cache with adaptive capacity (see {@linkplain #KEY_HEAP_FRACTION}), which
+     * flushes memory in response to heap pressure instead.
+     *
+     * @param enable {@code true} to enable auto-flushing; {@code false} to disable
+     * @see #setAutoFlushMemoryInterval(long)
+     */
+    public final void setAutoFlushMemoryEnabled(boolean enable) {
+        if (enable && heapMonitor != null) {
+            LOGGER.info("Auto-flushing is not used with adaptive capacity");
+            return;
+        }
+
+        if (enable) {
+            if (!isAutoFlushMemoryEnabled()) {
+                if (flushService == null) {
+                    flushService = Executors.newSingleThreadScheduledExecutor(
+                            new DaemonThreadFactory(Thread.MIN_PRIORITY, "cache-flush"));
+                }
+
+                flushFuture = flushService.scheduleWithFixedDelay(
+                        new Runnable() {
+                            public void run() {
+                                if (okToFlush.getAndSet(true)) {
+                                    flushMemory();
+                                }
+                            }
+                        }, 
+                        autoFlushInterval, 
+                        autoFlushInterval, 
+                        TimeUnit.MILLISECONDS);
+            }
+
+        } else if (isAutoFlushMemoryEnabled()) {
+            flushFuture.cancel(true);
+        }
+    }
+
+    /**
+     * Checks whether auto-flushing of memory-resident tiles is currently enabled.
+     *
+     * @return {@code true} if the cache is auto-flushing; {@code false} otherwise
+     */
+    public boolean isAutoFlushMemoryEnabled() {
+        return (flushFuture != null && !flushFuture.isDone());
+    }
+
+    /**
+     * Sets the minimum period of cache inactivity, in milliseconds, that must
+     * elapse before automatically flushing memory-resident tiles.
+     *
+     * @param interval interval in milliseconds
+     *        (values less than or equal to zero are ignored)
+     */
+    public void setAutoFlushMemoryInterval(long interval) {
+        if (interval > 0 && interval != autoFlushInterval) {
+            if (isAutoFlushMemoryEnabled()) {
+                setAutoFlushMemoryEnabled(false);
+            }
+            autoFlushInterval = interval;
+            setAutoFlushMemoryEnabled(true);
         }
     }
+    
+    /**
+     * Gets the current auto-flush interval. This is the minimum period of 
+     * cache inactivity, in milliseconds, that must elapse before 
+     * automatically flushing tiles.
+     *
+     * @return interval in milliseconds
+     */
+    public long getAutoFlushMemoryInterval() {
+        return autoFlushInterval;
+    }
+
+    /**
+     * Enables or disables the publishing of cache messages to Observers.
+     *
+     * @param state {@code true} to publish diagnostic messages; {@code false} to suppress them
+     */
+    public void setDiagnostics(boolean state) {
+        diagnosticsEnabled = state;
+    }
 
     /**
-     * Sets the interval between polling each tile to check if its owning image
-     * has been garbage collected. Any such tiles are removed from the
-     * cache.
-     *
-     * @param interval interval in milliseconds
-     *        (values less than or equal to zero are ignored)
+     * Gets the performance metrics for this cache. The returned object is
+     * live: its values are updated as the cache is used.
+     * 
+     * @return the cache metrics
      */
-    public void setTilePollingInterval(long interval) {
-        if (interval > 0 && interval != tilePollingInterval) {
-            stopTilePolling();
-            tilePollingInterval = interval;
-            startTilePolling();
-        }
+    public CacheMetrics getMetrics() {
+        return metrics;
     }
 
     /**
-     * Sets the interval between polling each tile to check if its owning image
-     * has been garbage collected. Any such tiles are removed from the
-     * cache.     *
-     * @return interval in milliseconds
+     * Registers this cache's metrics as an MBean with the platform MBean server
+     * so that they can be monitored with JMX clients such as JConsole. The
+     * MBean's object name has the form
+     * {@code org.jaitools.tilecache:type=DiskMemTileCache,name=<name>}.
+     * If the metrics were already registered under another name, that
+     * registration is removed first.
+     * 
+     * @param name a name to identify this cache
+     * @return the object name of the registered MBean
+     * @throws JMException if the MBean could not be registered, e.g. because
+     *         another cache has been registered with the same name
+     * @see #getMetrics()
      */
-    public long getTilePollingInterval() {
-        return tilePollingInterval;
+    public synchronized ObjectName registerMBean(String name) throws JMException {
+        unregisterMBean();
+
+        ObjectName objName = new ObjectName(
+                "org.jaitools.tilecache:type=DiskMemTileCache,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, objName);
+        mbeanName = objName;
+        return objName;
     }
 
     /**
-     * Starts the tile polling task which calls {@link #removeNullTiles()}
-     * at a fixed interval.
+     * Removes the registration of this cache's metrics MBean, if any, from
+     * the platform MBean server.
+     * 
+     * @see #registerMBean(String)
      */
-    private void startTilePolling() {
-        if (!isPollingTiles()) {
-            tilePollingFuture = tilePollingService.scheduleAtFixedRate(
-                    new Runnable() {
-                        public void run() {
-                            removeNullTiles();
-                        }
-                    }, 
-                    tilePollingInterval, 
-                    tilePollingInterval, 
-                    TimeUnit.MILLISECONDS);
+    public synchronized void unregisterMBean() {
+        if (mbeanName != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            try {
+                if (server.isRegistered(mbeanName)) {
+                    server.unregisterMBean(mbeanName);
+                }
+            } catch (JMException ex) {
+                LOGGER.log(Level.WARNING, "Unable to unregister cache MBean", ex);
+            }
+            mbeanName = null;
         }
     }
-    
+
     /**
-     * Stops the tile polling task.
+     * Accepts a {@code DiskMemCacheVisitor} object and calls its
+     * {@code visit} method for each tile in the cache.
+     * 
+     * @param visitor the visitor
      */
-    private void stopTilePolling() {
-        if (isPollingTiles()) {
-            tilePollingFuture.cancel(true);
-            tilePollingFuture = null;
+    public void accept(DiskMemTileCacheVisitor visitor) {
+        okToFlush.set(false);
+        for (Map.Entry<Object, DiskCachedTile> e : tiles.entrySet()) {
+            visitor.visit(e.getValue(), residentTiles.containsKey(e.getKey()));
         }
     }
-    
-    private boolean isPollingTiles() {
-        return tilePollingFuture != null && !tilePollingFuture.isDone();
-    }
 
     /**
-     * Checks if any tiles have a {@code null} owner (e.g. owning image has been
-     * garbage collected) and, if so, removes them from the cache.
+     * Adds a raster to those resident in memory.
      */
-    private void removeNullTiles() {
-        if (!tileLock.tryLock()) {  // jumps the queue of waiting threads
-            return;
+    private boolean makeResident(DiskCachedTile tile, Raster data) {
+        if (tile.getTileSize() > memCapacity) {
+            return false;
         }
-
+        
+        List<PendingWrite> victims = new ArrayList<PendingWrite>();
+        boolean resident;
+        acquire(memLock);
         try {
-            Set<Object> nullTileKeys = CollectionFactory.set();
-            for (Object key : tiles.keySet()) {
-                DiskCachedTile tile = tiles.get(key);
-                if (tile.getOwner() == null) {
-                    nullTileKeys.add(key);
-                }
-            }
-
-            for (Object key : nullTileKeys) {
-                DiskCachedTile tile = tiles.get(key);
-                tile.deleteDiskCopy();
-                if (residentTiles.containsKey(key)) {
-                    residentTiles.remove(key);
-                    sortedResidentTiles.remove(tile);
-                    curMemory -= tile.getTileSize();
-                }
-                tiles.remove(key);
-            }
-
+            resident = makeResident(tile, data, victims);
         } finally {
-            tileLock.unlock();
+            memLock.unlock();
         }
+
+        writeEvictedTiles(victims);
+        return resident;
     }
 
     /**
-     * Adds all tiles for the given image to the cache.
-     * 
-     * @param owner the image that the tiles belong to
-     * @param tileIndices an array of Points specifying the column-row coordinates
-     * of each tile
-     * @param tiles tile data in the form of Raster objects
-     * @param tileCacheMetric optional metric (may be {@code null})
+     * Places a batch of tiles into memory with a single acquisition of the
+     * memory lock, as for {@linkplain #makeResident(DiskCachedTile, Raster)}.
+     * Tiles evicted to make room are written once all of the batch are
+     * resident.
+     *
+     * @param batch the tiles
+     * @param data data for each tile
+     * @return for each tile, whether it was placed into memory
      */
-    public void addTiles(RenderedImage owner,
-                     Point[] tileIndices,
-                     Raster[] tiles,
-                     Object tileCacheMetric) {
-
-        if (tileIndices.length != tiles.length) {
-            throw new IllegalArgumentException(
-                    "tileIndices and tiles args must be the same length");
+    private boolean[] makeResident(List<DiskCachedTile> batch, List<Raster> data) {
+        boolean[] resident = new boolean[batch.size()];
+        if (batch.isEmpty()) {
+            return resident;
         }
 
-        tileLock.lock();
+        List<PendingWrite> victims = new ArrayList<PendingWrite>();
+        acquire(memLock);
         try {
-            for (int i = 0; i < tiles.length; i++) {
-                add(owner, tileIndices[i].x, tileIndices[i].y, tiles[i], tileCacheMetric);
+            for (int i = 0; i < resident.length; i++) {
+                resident[i] = makeResident(batch.get(i), data.get(i), victims);
             }
-            
         } finally {
-            tileLock.unlock();
+            memLock.unlock();
         }
+
+        writeEvictedTiles(victims);
+        return resident;
     }
 
     /**
-     * Gets the specified tiles for the given image.
+     * Places a tile into memory, evicting other tiles if necessary. Must be
+     * called while holding the memory lock.
      *
-     * @param owner the image that the tiles belong to
-     * @param tileIndices an array of Points specifying the column-row coordinates
-     * of each tile
-     * @return data for the requested tiles as Raster objects
+     * @param tile the tile
+     * @param data the tile data
+     * @param victims receives records of the tiles evicted, which the caller
+     *        passes to {@linkplain #writeEvictedTiles(List)} after releasing
+     *        the memory lock
+     * @return {@code true} if the tile was placed into memory; {@code false}
+     *         if it is too large for the memory capacity
      */
-    public Raster[] getTiles(RenderedImage owner, Point[] tileIndices) {
-        tileLock.lock();
-        try {
-            Raster[] r = null;
-            
-            if (tileIndices.length > 0) {
-                r = new Raster[tileIndices.length];
-                for (int i = 0; i < tileIndices.length; i++) {
-                    r[i] = getTile(owner, tileIndices[i].x, tileIndices[i].y);
+    private boolean makeResident(DiskCachedTile tile, Raster data, List<PendingWrite> victims) {
+        if (tile.getTileSize() > memCapacity) {
+            return false;
+        }
+
+        if (heapMonitor != null && tile.getTileSize() > memCapacity - curMemory) {
+            growCapacity();
+        }
+
+        if (tile.getTileSize() > memCapacity - curMemory) {
+            thresholdMemoryControl(victims);
+
+            /*
+             * It is possible that the threshold rule fails to
+             * free enough memory for the tile
+             */
+            if (tile.getTileSize() > memCapacity - curMemory) {
+                defaultMemoryControl(tile.getTileSize(), victims);
+            }
+        }
+
+        residentTiles.put(tile.getTileId(), data);
+        curMemory += tile.getTileSize();
+        metrics.recordResidentBytes(curMemory);
+
+        evictionPolicy.add(tile);
+
+        /*
+         * If the tile takes its image's quota over the maximum,
+         * the oldest tiles charged to the quota make way for it
+         */
+        QuotaGroup quota = chargeQuota(tile);
+        if (quota != null) {
+            while (quota.isOverQuota()) {
+                DiskCachedTile oldest = quota.getOldest();
+                if (oldest == null || oldest == tile) {
+                    break;
                 }
+                victims.add(evictResidentTile(oldest));
             }
+        }
 
-            return r;
+        return true;
+    }
 
-        } finally {
-            tileLock.unlock();
+
+    /**
+     * Removes a tile from the cache's memory storage to free space for
+     * other tiles. Must be called while holding the memory lock. The tile's
+     * data are moved to the map of evicting tiles, where they remain
+     * available to {@code getTile} requests until {@linkplain #writeEvictedTiles(List)}
+     * has refreshed the tile's disk copy.
+     *
+     * @param tile the tile
+     * @return a record of the eviction to pass to {@linkplain #writeEvictedTiles(List)}
+     */
+    private PendingWrite evictResidentTile(DiskCachedTile tile) {
+        Object tileId = tile.getTileId();
+        Raster raster = residentTiles.get(tileId);
+
+        /*
+         * If the tile is writable, ie. its data are represented
+         * by a WritableRaster, or its image is saved by a persistent
+         * cache, and its data have changed since they were last
+         * written, we will cache it to disk. If the off-heap
+         * tier is enabled, any tile will be moved there instead. It must
+         * be findable in the evicting map before it disappears from the
+         * resident map. Otherwise the tile is simply dropped from memory.
+         */
+        PendingWrite pw;
+        if (raster != null && (offHeapTier != null || tile.needsWrite())) {
+            pw = new PendingWrite(tile, raster, raster);
+            evictingTiles.put(tileId, pw);
+        } else {
+            pw = new PendingWrite(tile, null, raster);
         }
+
+        residentTiles.remove(tileId);
+        evictionPolicy.remove(tile);
+        releaseQuota(tile);
+        curMemory -= tile.getTileSize();
+        metrics.recordEviction();
+
+        return pw;
     }
 
     /**
-     * Removes ALL tiles from the cache: all resident tiles will be
-     * removed from memory and all files for disk-cached tiles will
-     * be discarded.
-     * <p>
-     * The update action of each tile will be set to {@linkplain DiskCachedTile#ACTION_REMOVED}.
+     * Chooses the next resident tile to remove from memory. Pinned tiles are
+     * never chosen. Tiles charged to a quota which is over its maximum are
+     * chosen first, oldest first. Otherwise the eviction policy's choice is
+     * taken, passing over tiles whose removal would take their quota below its
+     * guaranteed minimum. Tiles passed over are skipped and then requeued, so
+     * that the policy does not count them as removed and returning, which would
+     * disturb its history of them. If all unpinned
+     * resident tiles are protected by their quotas, the first of them passed
+     * over is chosen. Must be called while holding the memory lock.
+     *
+     * @return the tile or {@code null} if there are no unpinned resident tiles
      */
-    public void flush() {
-        tileLock.lock();
+    private DiskCachedTile nextVictim() {
+        if (chargedQuotas.isEmpty() && numPinnedTiles == 0) {
+            return evictionPolicy.nextVictim();
+        }
 
-        try {
-            flushMemory();
+        for (QuotaGroup quota : chargedQuotas) {
+            if (quota.isOverQuota()) {
+                DiskCachedTile oldest = quota.getOldest();
+                if (oldest != null) {
+                    return oldest;
+                }
+            }
+        }
 
-            for (DiskCachedTile tile : tiles.values()) {
-                tile.deleteDiskCopy();
-                tile.setAction(DiskCachedTile.TileAction.ACTION_REMOVED);
-                if (diagnosticsEnabled) {
-                    setChanged();
-                    notifyObservers(tile);
+        List<DiskCachedTile> passed = null;
+        DiskCachedTile firstProtected = null;
+        DiskCachedTile victim;
+        while ((victim = evictionPolicy.nextVictim()) != null) {
+            if (victim.pinCount == 0) {
+                QuotaGroup quota = victim.quotaGroup;
+                if (quota == null || !quota.isProtected(victim)) {
+                    break;
+                }
+                if (firstProtected == null) {
+                    firstProtected = victim;
                 }
             }
-            tiles.clear();
 
-        } finally {
-            tileLock.unlock();
+            if (passed == null) {
+                passed = new ArrayList<DiskCachedTile>();
+            }
+            passed.add(victim);
+            evictionPolicy.skip(victim);
+        }
+
+        if (passed != null) {
+            for (DiskCachedTile tile : passed) {
+                evictionPolicy.requeue(tile);
+            }
+            if (victim == null) {
+                victim = firstProtected;
+            }
         }
+
+        return victim;
     }
 
     /**
-     * Removes all resident tiles from memory. No rewriting of tile data
-     * to disk is done.
+     * Charges a newly resident tile to its image's memory quota, if any.
+     * Must be called while holding the memory lock.
+     *
+     * @param tile the tile
+     * @return the quota or {@code null} if none applies
      */
-    public void flushMemory() {
-        tileLock.lock();
-        try {
-            residentTiles.clear();
-            sortedResidentTiles.clear();
-            curMemory = 0;
-            
-        } finally {
-            tileLock.unlock();
+    private QuotaGroup chargeQuota(DiskCachedTile tile) {
+        OwnerRecord rec = tile.ownerRecord;
+        QuotaGroup quota = rec == null ? null : rec.getQuota();
+        if (quota != null) {
+            quota.add(tile);
+            chargedQuotas.add(quota);
         }
+        return quota;
     }
 
     /**
-     * Frees memory for resident tiles so that the fraction of memory occupied is
-     * no more than the current value of the mamory threshold. 
+     * Removes the charge for a tile leaving memory from the quota it was
+     * charged to, if any. Must be called while holding the memory lock.
      *
-     * @see DiskMemTileCache#setMemoryThreshold(float)
+     * @param tile the tile
      */
-    public void memoryControl() {
-        tileLock.lock();
-        try {
-            long maxUsed = (long) (memThreshold * memCapacity);
-            long toFree = curMemory - maxUsed;
-            if (toFree > 0) {
-                defaultMemoryControl(toFree);
+    private void releaseQuota(DiskCachedTile tile) {
+        QuotaGroup quota = tile.quotaGroup;
+        if (quota != null) {
+            quota.remove(tile);
+            if (quota.getNumTiles() == 0) {
+                chargedQuotas.remove(quota);
             }
-        } finally {
-            tileLock.unlock();
         }
     }
 
     /**
-     * Makes the requested amount of memory cache available, removing
-     * resident tiles as necessary.
-     *
-     * @param memRequired memory requested (bytes)
+     * Moves the data of tiles removed from memory to the off-heap tier, if
+     * enabled, or writes them to disk. In write-behind mode, disk writes are
+     * queued. This method must not be called while holding the memory lock.
+     * 
+     * @param victims records created by {@linkplain #evictResidentTile(DiskCachedTile)}
      */
-    private void defaultMemoryControl( long memRequired ) {
-        if (memRequired > memCapacity) {
-            // @todo something better than this...
-            throw new RuntimeException("space required is greater than cache memory capacity");
-        }
+    private void writeEvictedTiles(List<PendingWrite> victims) {
+        writeEvictedTiles(victims, true);
+    }
 
-        /*
-         * Remove one or more lowest priority tiles to free
-         * space
-         */
-        Collections.sort(sortedResidentTiles, comparator);
-        while (memCapacity - curMemory < memRequired && !sortedResidentTiles.isEmpty()) {
-            Object key = sortedResidentTiles.get(sortedResidentTiles.size()-1).getTileId();
+    /**
+     * Moves the data of tiles removed from memory to the off-heap tier, if
+     * enabled and requested, or writes them to disk.
+     * 
+     * @param victims records created by {@linkplain #evictResidentTile(DiskCachedTile)}
+     * @param useOffHeap {@code true} to move tiles to the off-heap tier if enabled;
+     *        {@code false} to write them to disk
+     */
+    private void writeEvictedTiles(List<PendingWrite> victims, boolean useOffHeap) {
+        List<OffHeapTier.Entry> spills = null;
 
-            try {
-                removeResidentTile(key, true);
-            } catch (DiskCacheFailedException ex) {
-                /*
-                 * It would be nicer to just throw this exception
-                 * upwards be we can't in the overidden method
-                 */
-                LOGGER.log(Level.SEVERE, null, ex);
+        for (PendingWrite pw : victims) {
+            // notified before a synchronous write which might fail and return the tile to memory
+            pw.tile.setAction(DiskCachedTile.TileAction.ACTION_NON_RESIDENT);
+            if (diagnosticsEnabled) {
+                setChanged();
+                notifyObservers(pw.tile);
+            }
+
+            if (pw.raster != null) {
+                if (offHeapTier != null && useOffHeap) {
+                    if (spills == null) {
+                        spills = new ArrayList<OffHeapTier.Entry>();
+                    }
+
+                    boolean stored;
+                    try {
+                        // constant tiles are recorded rather than stored
+                        stored = pw.tile.writeConstant(pw.raster) ||
+                                offHeapTier.put(pw.tile, pw.raster, spills);
+                    } catch (IOException ex) {
+                        LOGGER.log(Level.WARNING, "Failed to move tile to off-heap tier", ex);
+                        stored = false;
+                    }
+
+                    if (stored || !pw.tile.needsWrite()) {
+                        evictingTiles.remove(pw.tile.getTileId(), pw);
+                        recycle(pw.tile, pw.raster);
+                    } else {
+                        // no room off-heap (tile larger than the tier)
+                        write(pw, pw.tile);
+                    }
+                } else {
+                    write(pw, pw.tile);
+                }
+            } else {
+                recycle(pw.tile, pw.evicted);
             }
         }
-    }
 
+        if (spills != null) {
+            for (OffHeapTier.Entry e : spills) {
+                write(new OffHeapSpill(e), e.tile);
+            }
+        }
 
-    /**
-     * Does nothing.
-     * 
-     * @deprecated Please do not use this method  
-     */
-    @Deprecated
-    public void setTileCapacity(int arg0) {
+        readmitFailedWrites();
     }
 
     /**
-     * Always returns 0.
-     * 
-     * @deprecated Please do not use this method  
+     * Returns to memory the tiles whose eviction writes have failed, so that
+     * their data are charged to the memory in use and the policy can choose
+     * them for eviction, and the write be tried again, later. The tiles are
+     * re-admitted without evicting others, which would only lead to more
+     * failed writes, so the cache can hold more than its capacity until
+     * writes succeed. A tile whose lock stripe is held by another thread is
+     * left for a later call (waiting for the lock could deadlock with a
+     * thread holding another stripe); meanwhile its data are served from
+     * the map of evicting tiles. This method must not be called while holding
+     * the memory lock.
      */
-    public int getTileCapacity() {
-        return 0;
+    private void readmitFailedWrites() {
+        List<PendingWrite> busy = null;
+        PendingWrite pw;
+        while ((pw = failedWrites.poll()) != null) {
+            if (!readmit(pw)) {
+                if (busy == null) {
+                    busy = new ArrayList<PendingWrite>();
+                }
+                busy.add(pw);
+            }
+        }
+
+        if (busy != null) {
+            failedWrites.addAll(busy);
+        }
     }
 
     /**
-     * Resets the memory capacity of the cache. Setting capacity to 0 will
-     * flush all resident tiles from memory. Setting a capacity less than the
-     * current capacity could cause some memory-resident tiles being
-     * removed from memory.
+     * Returns a tile whose eviction write failed to memory, unless it has
+     * since been removed from the cache or returned to memory by a request.
      *
-     * @param newCapacity requested memory capacity for resident tiles
+     * @param pw the record of the failed write
+     * @return {@code true} if done; {@code false} if the tile's lock was busy
      */
-    public void setMemoryCapacity(long newCapacity) {
-        tileLock.lock();
-
+    private boolean readmit(PendingWrite pw) {
+        DiskCachedTile tile = pw.tile;
+        Object key = tile.getTileId();
+        ReentrantLock lock = getTileLock(key);
+        if (!lock.tryLock()) {
+            return false;
+        }
         try {
-            okToFlush.set(false);
-            if (newCapacity < 0) {
-                throw new IllegalArgumentException("memory capacity must be >= 0");
+            if (tiles.get(key) != tile || !evictingTiles.remove(key, pw)) {
+                return true;
             }
 
-            long oldCapacity = memCapacity;
-            memCapacity = newCapacity;
-
-            if (newCapacity == 0) {
-                flushMemory();
+            acquire(memLock);
+            try {
+                residentTiles.put(key, pw.raster);
+                curMemory += tile.getTileSize();
+                metrics.recordResidentBytes(curMemory);
+                evictionPolicy.add(tile);
+                chargeQuota(tile);
+            } finally {
+                memLock.unlock();
+            }
 
-            } else if (newCapacity < oldCapacity && curMemory > newCapacity) {
-                /*
-                 * Note: we free memory here directly rather than using
-                 * memoryControl or defaultMemoryControl methods because
-                 * they will fail when memCapacity has been reduced
-                 */
-                Collections.sort(sortedResidentTiles, comparator);
-                while (curMemory > newCapacity) {
-                    Object key = sortedResidentTiles.get(sortedResidentTiles.size() - 1).getTileId();
-                    try {
-                        removeResidentTile(key, true);
-                    } catch (DiskCacheFailedException ex) {
-                        /*
-                         * It would be nicer to just throw this exception
-                         * upwards be we can't in the overidden method
-                         */
-                        LOGGER.log(Level.SEVERE, null, ex);
-                    }
-                }
+            tile.setAction(DiskCachedTile.TileAction.ACTION_RESIDENT);
+            if (diagnosticsEnabled) {
+                setChanged();
+                notifyObservers(tile);
             }
+            return true;
+
         } finally {
-            tileLock.unlock();
+            lock.unlock();
         }
     }
 
     /**
-     * Gets the amount of memory, in bytes, allocated for storage of
-     * resident tiles.
-     *
-     * @return resident tile memory capacity in bytes
+     * Offers the data arrays of a raster removed from memory to the pool of
+     * recycled arrays, if enabled. Nothing is done if the raster may still be
+     * used by the cache: that is, if it has been made resident again, or is
+     * held for another eviction, or if the tile's lock is busy (in which case
+     * a request for the tile may be taking the raster), or if its data are
+     * shared with other constant tiles.
+     * 
+     * @param tile the tile
+     * @param raster the raster removed from memory (may be {@code null})
      */
-    public long getMemoryCapacity() {
-        return memCapacity;
+    private void recycle(DiskCachedTile tile, Raster raster) {
+        if (bufferPool == null || raster == null) {
+            return;
+        }
+        if (constantTiles != null && constantTiles.isShared(raster.getDataBuffer())) {
+            return;
+        }
+
+        Object key = tile.getTileId();
+        ReentrantLock lock = getTileLock(key);
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            if (residentTiles.get(key) == raster) {
+                return;
+            }
+            PendingWrite pw = evictingTiles.get(key);
+            if (pw != null && pw.raster == raster) {
+                return;
+            }
+            bufferPool.recycle(raster.getDataBuffer());
+
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
-     * Gets the amount of memory currently being used for storage of
-     * memory-resident tiles.
-     *
-     * @return current memory use in bytes
-     */
-    public long getCurrentMemory() {
-        return curMemory;
+     * Creates a spill store from the stores for one or more folders.
+     * 
+     * @param stores the store for each folder
+     * @param placement placement of tiles across folders
+     * @return the spill store
+     */
+    private static SpillStore createSpillStore(SpillStore[] stores, SpillPlacement placement) {
+        if (stores.length == 1) {
+            return stores[0];
+        }
+        return new StripedSpillStore(stores, placement == SpillPlacement.LEAST_USED);
     }
 
     /**
-     * Sets the memoryThreshold value to a floating point number that ranges from
-     * 0.0 to 1.0. When the cache memory is full, the memory usage will be reduced
-     * to this fraction of the total cache memory capacity. For example, a value
-     * of .75 will cause 25% of the memory to be cleared, while retaining 75%.
-     *
-     * @param newThreshold the new memory threshold between 0 and 1
+     * Gets the usable folders from the value of the spill folders parameter,
+     * creating them if necessary.
      * 
-     * @throws IllegalArgumentException if the memoryThreshold is less than 0.0 or greater than 1.0
+     * @param value the parameter value (may be {@code null})
+     * @return the folders; a single {@code null} element denotes the
+     *         current cache folder
      */
-    public void setMemoryThreshold(float newThreshold) {
-        if (newThreshold < 0.0F) {
-            memThreshold = 0.0F;
-        } else if (newThreshold > 1.0F) {
-            memThreshold = 1.0F;
-        } else {
-            memThreshold = newThreshold;
+    private static File[] getSpillFolders(Object value) {
+        List<File> folders = new ArrayList<File>();
+        if (value instanceof File[]) {
+            for (File folder : (File[]) value) {
+                if (folder == null) {
+                    continue;
+                }
+                if (folder.isDirectory() || folder.mkdirs()) {
+                    folders.add(folder);
+                } else {
+                    LOGGER.log(Level.SEVERE, "Unable to create cache folder {0}", folder);
+                }
+            }
         }
 
-        memoryControl();
+        if (folders.isEmpty()) {
+            return new File[] {null};
+        }
+        return folders.toArray(new File[folders.size()]);
     }
 
     /**
-     * Returns the memory threshold, which is the fractional amount of cache memory
-     * to retain during tile removal. This only applies if memory thresholding has
-     * been enabled by passing the parameter {@linkplain #KEY_USE_MEMORY_THRESHOLD} to
-     * the constructor with a value of {@code Boolean.TRUE}.
-     *
-     * @return the retained fraction of memory
+     * Runs a disk write or, in write-behind mode, queues it on the queue for
+     * the spill folder which holds the tile.
+     * 
+     * @param task the write
+     * @param tile the tile being written
      */
-    public float getMemoryThreshold() {
-        return memThreshold;
+    private void write(Runnable task, DiskCachedTile tile) {
+        if (writeBehindServices == null) {
+            task.run();
+        } else {
+            queueWrite(task, tile.getTileSize(), writeBehindServices[tile.getStripe()]);
+        }
     }
 
     /**
-     * Sets the comparator to use to assign memory-residence priority to
-     * tiles. If {@code comp} is {@code null} the default comparator
-     * ({@link TileAccessTimeComparator}) will be used.
+     * Queues a tile for writing by the write-behind threads, first waiting
+     * if necessary until the tile fits within the write budget.
      * 
-     * @param comp the comparator or {@code null} for the default
+     * @param task the write
+     * @param size size of the tile being written
+     * @param service the write-behind threads for the tile's spill folder
      */
-    public void setTileComparator(Comparator comp) {
-        tileLock.lock();
+    private void queueWrite(final Runnable task, final long size, ExecutorService service) {
+        writeBudgetLock.lock();
         try {
-            if (comp == null) {
-                // switch to default comparator based on tile access time
-                comparator = new TileAccessTimeComparator();
-            } else {
-                comparator = comp;
+            while (pendingWriteBytes > 0 && pendingWriteBytes + size > writeBehindBudget) {
+                writeBudgetAvailable.awaitUninterruptibly();
             }
+            pendingWriteBytes += size;
+        } finally {
+            writeBudgetLock.unlock();
+        }
 
-            sortedResidentTiles = new ArrayList<DiskCachedTile>();
-            for (Object key : residentTiles.keySet()) {
-                sortedResidentTiles.addAll(tiles.values());
+        Runnable queued = new Runnable() {
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    writeBudgetLock.lock();
+                    try {
+                        pendingWriteBytes -= size;
+                        writeBudgetAvailable.signalAll();
+                    } finally {
+                        writeBudgetLock.unlock();
+                    }
+                }
             }
-            Collections.sort(sortedResidentTiles, comparator);
-            
-        } finally {
-            tileLock.unlock();
+        };
+
+        try {
+            service.execute(queued);
+        } catch (RejectedExecutionException ex) {
+            queued.run();
         }
     }
 
     /**
-     * Gets the comparator currently used to assign memory-residence
-     * priority to tiles.
+     * Gets the ratio of the in-memory size of tiles cached on disk to the
+     * space occupied by their disk copies. This will be 1.0 with the default
+     * {@linkplain RawTileCodec} and greater than 1.0 when a compressing codec
+     * is used (see {@linkplain #KEY_TILE_CODEC}). If no tiles are cached on
+     * disk, 1.0 is returned.
      * 
-     * @return the current comparator
+     * @return the compression ratio of disk-cached tiles
      */
-    public Comparator getTileComparator() {
-        return comparator;
+    public double getDiskCompressionRatio() {
+        long tileBytes = 0;
+        long diskBytes = 0;
+        for (DiskCachedTile tile : tiles.values()) {
+            long size = tile.getDiskSize();
+            if (size > 0) {
+                tileBytes += tile.getTileSize();
+                diskBytes += size;
+            }
+        }
+
+        return diskBytes == 0 ? 1.0 : (double) tileBytes / diskBytes;
     }
 
     /**
-     * Gets the total number of tiles currently in the cache.
+     * Gets the amount of direct memory occupied by tiles in the off-heap
+     * tier. This is always zero if the tier is not enabled.
      * 
-     * @return number of cached tiles
+     * @return occupied off-heap memory in bytes
+     * @see #KEY_OFF_HEAP_CAPACITY
      */
-    public int getNumTiles() {
-        return tiles.size();
+    public long getOffHeapMemory() {
+        return offHeapTier == null ? 0 : offHeapTier.getUsedBytes();
     }
 
     /**
-     * Gets the number of tiles currently residing in the
-     * cache's memory storage.
+     * Gets the capacity of the off-heap tier.
      * 
-     * @return number of memory-resident tiles
+     * @return capacity in bytes (zero if the tier is not enabled)
+     * @see #KEY_OFF_HEAP_CAPACITY
      */
-    public int getNumResidentTiles() {
-        return residentTiles.size();
+    public long getOffHeapCapacity() {
+        return offHeapTier == null ? 0 : offHeapTier.getCapacity();
     }
 
     /**
-     * Checks whether a given tile is in this cache.
+     * Gets the amount of memory held by recycled tile data arrays awaiting
+     * reuse.
      * 
-     * @param owner the owning image
-     * @param tileX tile column
-     * @param tileY tile row
-     * @return {@code true} if the cache contains the tile; {@code false} otherwise
+     * @return memory in bytes (zero if recycling is not enabled)
+     * @see #KEY_RECYCLE_CAPACITY
      */
-    public boolean containsTile(RenderedImage owner, int tileX, int tileY) {
-        Object key = getTileId(owner, tileX, tileY);
-        return tiles.containsKey(key);
+    public long getRecycledMemory() {
+        return bufferPool == null ? 0 : bufferPool.getSize();
     }
 
     /**
-     * Checks whether a given tile is in this cache's memory storage.
-     *
-     * @param owner the owning image
-     * @param tileX tile column
-     * @param tileY tile row
-     * @return {@code true} if the tile is in cache memory; {@code false} otherwise
+     * Gets the number of tiles held in the off-heap tier.
+     * 
+     * @return number of tiles (zero if the tier is not enabled)
+     * @see #KEY_OFF_HEAP_CAPACITY
      */
-    public boolean containsResidentTile(RenderedImage owner, int tileX, int tileY) {
-        Object key = getTileId(owner, tileX, tileY);
-        return residentTiles.containsKey(key);
+    public int getNumOffHeapTiles() {
+        return offHeapTier == null ? 0 : offHeapTier.getNumTiles();
     }
 
     /**
-     * Informs the cache that a tile's data have changed. The tile should
-     * be resident in memory as the result of a previous {@code getTile}
-     * request. If this is the case and the tile was previously written to
-     * disk, then the cache's disk copy of the tile will be refreshed.
-     * <P>
-     * If the tile is not resident in memory, for instance
-     * because of memory swapping for other tile accesses, the disk copy
-     * will not be refreshed and a {@code TileNotResidentException} is
-     * thrown.
-     *
-     * @param owner the owning image
-     * @param tileX tile column
-     * @param tileY tile row
-     * @throws TileNotResidentException if the tile is not resident
-     * @throws DiskCacheFailedException if the tile is cached to disk but its data could
-     *     not be updated
+     * Gets the ratio of the in-memory size of tiles held in the off-heap tier
+     * to the space they occupy in the tier. This will be close to 1.0 unless a
+     * compressing codec is used (see {@linkplain #KEY_OFF_HEAP_CODEC}). If the
+     * tier is empty or not enabled, 1.0 is returned.
+     * 
+     * @return the compression ratio of off-heap tiles
      */
-    public void setTileChanged(RenderedImage owner, int tileX, int tileY)
-            throws TileNotResidentException, DiskCacheFailedException {
+    public double getOffHeapCompressionRatio() {
+        return offHeapTier == null ? 1.0 : offHeapTier.getCompressionRatio();
+    }
 
-        tileLock.lock();
+    /**
+     * Gets the total size, in bytes, of tiles queued for writing to disk
+     * in write-behind mode. This is always zero if write-behind mode is
+     * not enabled.
+     * 
+     * @return size of queued tiles in bytes
+     * @see #KEY_WRITE_BEHIND_THREADS
+     */
+    public long getPendingWriteBytes() {
+        writeBudgetLock.lock();
         try {
-            okToFlush.set(false);
-            Object tileId = getTileId(owner, tileX, tileY);
-            Raster r = residentTiles.get(tileId);
-            if (r == null) {
-                throw new TileNotResidentException(owner, tileX, tileY);
-            }
+            return pendingWriteBytes;
+        } finally {
+            writeBudgetLock.unlock();
+        }
+    }
 
-            DiskCachedTile tile = tiles.get(tileId);
-            if (tile.cachedToDisk()) {
-                try {
-                    tile.writeData(r);
-                } catch (IOException ioEx) {
-                    throw new DiskCacheFailedException(owner, tileX, tileY);
-                }
+    /**
+     * A tile whose data are to be read from disk as part of a batch. Reads are
+     * ordered by file and then position within the file.
+     */
+    private static final class DiskRead implements Comparable<DiskRead> {
+        final int index;
+        final DiskCachedTile tile;
+        final SpillStore.Slot slot;
+
+        /**
+         * @param index index of the tile in the batch
+         * @param tile the tile
+         * @param slot the slot holding the tile's data
+         */
+        DiskRead(int index, DiskCachedTile tile, SpillStore.Slot slot) {
+            this.index = index;
+            this.tile = tile;
+            this.slot = slot;
+        }
+
+        public int compareTo(DiskRead other) {
+            int c = slot.file.getPath().compareTo(other.slot.file.getPath());
+            if (c == 0) {
+                c = slot.offset < other.slot.offset ? -1 :
+                        (slot.offset == other.slot.offset ? 0 : 1);
             }
-            
-        } finally {
-            tileLock.unlock();
+            return c;
         }
     }
 
     /**
-     * Enables or disables auto-flushing of memory resident with the
-     * currently set minimum interval.
-     *
-     * @param enable {@code true} to enable auto-flushing; {@code false} to disable
-     * @see #setAutoFlushMemoryInterval(long)
+     * The data of a tile removed from memory which are waiting to be written
+     * to disk. Each eviction creates a new instance so that, when a tile is
+     * evicted again before an earlier write has completed, the earlier write
+     * does not discard the later entry in the map of evicting tiles.
      */
-    public final void setAutoFlushMemoryEnabled(boolean enable) {
-        if (enable) {
-            if (!isAutoFlushMemoryEnabled()) {
-                if (flushService == null) {
-                    flushService = Executors.newSingleThreadScheduledExecutor(
-                            new DaemonThreadFactory(Thread.MIN_PRIORITY, "cache-flush"));
-                }
+    private final class PendingWrite implements Runnable {
+        final DiskCachedTile tile;
+        final Raster raster;
+        final Raster evicted;
 
-                flushFuture = flushService.scheduleWithFixedDelay(
-                        new Runnable() {
-                            public void run() {
-                                if (okToFlush.getAndSet(true)) {
-                                    flushMemory();
-                                }
-                            }
-                        }, 
-                        autoFlushInterval, 
-                        autoFlushInterval, 
-                        TimeUnit.MILLISECONDS);
+        /**
+         * @param tile the tile
+         * @param raster the data to write, or {@code null} if the data are
+         *        simply dropped from memory
+         * @param evicted the raster removed from memory
+         */
+        PendingWrite(DiskCachedTile tile, Raster raster, Raster evicted) {
+            this.tile = tile;
+            this.raster = raster;
+            this.evicted = evicted;
+        }
+
+        public void run() {
+            try {
+                tile.writeData(raster);
+                metrics.recordBytesWritten(tile.getDiskSize());
+
+            } catch (IOException ioEx) {
+                /*
+                 * It would be nicer to just throw this exception
+                 * upwards be we can't in the overidden method.
+                 * Rather than being lost, the data are returned
+                 * to memory, where they are charged to the memory
+                 * in use and the write is tried again when the
+                 * tile is next evicted.
+                 */
+                DiskCacheFailedException ex = new DiskCacheFailedException(
+                        tile.getOwner(), tile.getTileX(), tile.getTileY());
+                ex.initCause(ioEx);
+                LOGGER.log(Level.SEVERE, null, ex);
+
+                failedWrites.add(this);
+                readmitFailedWrites();
+                return;
             }
 
-        } else if (isAutoFlushMemoryEnabled()) {
-            flushFuture.cancel(true);
+            if (evictingTiles.remove(tile.getTileId(), this)) {
+                recycle(tile, raster);
+            }
         }
     }
 
     /**
-     * Checks whether auto-flushing of memory-resident tiles is currently enabled.
-     *
-     * @return {@code true} if the cache is auto-flushing; {@code false} otherwise
+     * The data of a tile displaced from the off-heap tier which must be
+     * written to disk. The tile remains available from the tier until
+     * the write has completed.
      */
-    public boolean isAutoFlushMemoryEnabled() {
-        return (flushFuture != null && !flushFuture.isDone());
+    private final class OffHeapSpill implements Runnable {
+        final OffHeapTier.Entry entry;
+
+        OffHeapSpill(OffHeapTier.Entry entry) {
+            this.entry = entry;
+        }
+
+        public void run() {
+            DiskCachedTile tile = entry.tile;
+            try {
+                tile.writeData(entry.data(), entry.version);
+                metrics.recordBytesWritten(tile.getDiskSize());
+            } catch (IOException ioEx) {
+                LOGGER.log(Level.SEVERE, null,
+                        new DiskCacheFailedException(tile.getOwner(), tile.getTileX(), tile.getTileY()));
+            } finally {
+                offHeapTier.spilled(entry);
+            }
+        }
     }
 
     /**
-     * Sets the minimum period of cache inactivity, in milliseconds, that must
-     * elapse before automatically flushing memory-resident tiles.
-     *
-     * @param interval interval in milliseconds
-     *        (values less than or equal to zero are ignored)
+     * Records an access to a tile. This does not require any lock: the
+     * eviction policy takes note of the access when it next examines
+     * the tile. An access which made the tile resident is not marked as
+     * a reference, so that policies can distinguish tiles in repeated use
+     * from those read once.
+     * 
+     * @param tile the tile
+     * @param wasResident whether the tile was resident before the access
      */
-    public void setAutoFlushMemoryInterval(long interval) {
-        if (interval > 0 && interval != autoFlushInterval) {
-            if (isAutoFlushMemoryEnabled()) {
-                setAutoFlushMemoryEnabled(false);
-            }
-            autoFlushInterval = interval;
-            setAutoFlushMemoryEnabled(true);
+    private void touch(DiskCachedTile tile, boolean wasResident) {
+        tile.setTileTimeStamp(System.currentTimeMillis());
+        if (wasResident) {
+            tile.setReferenced();
         }
     }
-    
+
     /**
-     * Gets the current auto-flush interval. This is the minimum period of 
-     * cache inactivity, in milliseconds, that must elapse before 
-     * automatically flushing tiles.
-     *
-     * @return interval in milliseconds
+     * Acquires a lock, recording the time spent waiting if the lock
+     * is not immediately available.
+     * 
+     * @param lock the lock
      */
-    public long getAutoFlushMemoryInterval() {
-        return autoFlushInterval;
+    private void acquire(ReentrantLock lock) {
+        if (!lock.tryLock()) {
+            long t0 = System.nanoTime();
+            lock.lock();
+            metrics.recordLockWait(System.nanoTime() - t0);
+        }
     }
 
     /**
-     * Enables or disables the publishing of cache messages to Observers.
-     *
-     * @param state {@code true} to publish diagnostic messages; {@code false} to suppress them
+     * Gets the lock stripe for the given tile.
+     * 
+     * @param tileId the tile's unique id
+     * @return the lock
      */
-    public void setDiagnostics(boolean state) {
-        diagnosticsEnabled = state;
+    private ReentrantLock getTileLock(Object tileId) {
+        return tileLocks[getTileLockIndex(tileId)];
     }
 
     /**
-     * Accepts a {@code DiskMemCacheVisitor} object and calls its
-     * {@code visit} method for each tile in the cache.
+     * Gets the index of the lock stripe for the given tile.
      * 
-     * @param visitor the visitor
+     * @param tileId the tile's unique id
+     * @return the index into {@code tileLocks}
      */
-    public void accept(DiskMemTileCacheVisitor visitor) {
-        tileLock.lock();
-        try {
-            okToFlush.set(false);
-            for (Object key : tiles.keySet()) {
-                visitor.visit(tiles.get(key), residentTiles.containsKey(key));
-            }
-        } finally {
-            tileLock.unlock();
-        }
+    private int getTileLockIndex(Object tileId) {
+        int h = tileId.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return h & (tileLocks.length - 1);
     }
 
     /**
-     * Adds a raster to those resident in memory.
+     * Acquires the lock stripes for a number of tiles. Each stripe is acquired
+     * once, in index order, so that threads locking overlapping sets of tiles
+     * cannot deadlock.
+     * 
+     * @param tileIds the tiles' unique ids
+     * @return the locks acquired, to be passed to {@linkplain #releaseTileLocks(List)}
      */
-    private boolean makeResident(DiskCachedTile tile, Raster data) {
-        if (tile.getTileSize() > memCapacity) {
-            return false;
+    private List<ReentrantLock> acquireTileLocks(List<Object> tileIds) {
+        boolean[] needed = new boolean[tileLocks.length];
+        for (Object tileId : tileIds) {
+            needed[getTileLockIndex(tileId)] = true;
         }
-        
-        if (tile.getTileSize() > memCapacity - curMemory) {
-            memoryControl();
 
-            /*
-             * It is possible that the threshold rule fails to
-             * free enough memory for the tile
-             */
-            if (tile.getTileSize() > memCapacity - curMemory) {
-                defaultMemoryControl(tile.getTileSize());
+        List<ReentrantLock> held = new ArrayList<ReentrantLock>();
+        for (int i = 0; i < needed.length; i++) {
+            if (needed[i]) {
+                acquire(tileLocks[i]);
+                held.add(tileLocks[i]);
             }
         }
-        
-        residentTiles.put(tile.getTileId(), data);
-        curMemory += tile.getTileSize();
-
-        /*
-         * We don't bother about sort order here. Instead, the list
-         * will be sorted by tile priority when resident tiles are
-         * being removed
-         */
-        sortedResidentTiles.add(tile);
-
-        return true;
+        return held;
     }
 
-
     /**
-     * Removes a tile from the cache's memory storage. This may be to free
-     * space for other tiles, in which case {@code writeData} will be
-     * set to {@code true} and, if the tile is writable, a request is made to write
-     * its data to disk again. If the tile is being removed from the cache
-     * entirely, this method will be called with {@code writeData} set
-     * to {@code false}.
-     *
-     * @param tileId the tile's unique id
-     * @param writeData if {@code true}, and the tile is writable, its data will be
-     * written to disk again; otherwise no writing is done.
+     * Releases locks acquired with {@linkplain #acquireTileLocks(List)}.
+     * 
+     * @param held the locks
      */
-    private void removeResidentTile(Object tileId, boolean writeData) throws DiskCacheFailedException {
-        DiskCachedTile tile = tiles.get(tileId);
-        Raster raster = residentTiles.remove(tileId);
-        sortedResidentTiles.remove(tile);
-        curMemory -= tile.getTileSize();
-
-        /**
-         * If the tile is writable, ie. its data are represented
-         * by a WritableRaster, we cache it to disk
-         */
-        if (writeData && tile.isWritable()) {
-            try {
-                tile.writeData(raster);
-            } catch (IOException ioEx) {
-                throw new DiskCacheFailedException(tile.getOwner(), tile.getTileX(), tile.getTileY());
-            }
-        }
-
-        tile.setAction(DiskCachedTile.TileAction.ACTION_NON_RESIDENT);
-        if (diagnosticsEnabled) {
-            setChanged();
-            notifyObservers(tile);
+    private void releaseTileLocks(List<ReentrantLock> held) {
+        for (int i = held.size() - 1; i >= 0; i--) {
+            held.get(i).unlock();
         }
     }
     
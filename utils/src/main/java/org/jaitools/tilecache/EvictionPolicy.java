@@ -0,0 +1,111 @@
+/* 
+ *  Copyright (c) 2013, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.tilecache;
+
+/**
+ * Determines the order in which memory-resident tiles are removed from memory
+ * by {@code DiskMemTileCache} when space is required for other tiles. A policy
+ * is installed with {@linkplain DiskMemTileCache#setEvictionPolicy(EvictionPolicy)}.
+ * Besides the default least-recently-used policy, the following are provided:
+ * <ul>
+ * <li> {@linkplain ArcEvictionPolicy} and {@linkplain TwoQueueEvictionPolicy},
+ *      which resist having frequently used tiles flushed from memory by a single
+ *      scan through a large image;
+ * <li> {@linkplain CostAwareEvictionPolicy}, which keeps tiles that are expensive
+ *      to recompute in memory longer than those that are cheap.
+ * </ul>
+ * <p>
+ * The cache calls all methods of a policy while holding its memory lock, so
+ * implementations need not be thread-safe. Accesses to resident tiles are not
+ * reported to the policy directly, because the cache serves them without taking
+ * the memory lock. Instead, each access marks the tile as referenced (see
+ * {@linkplain DiskCachedTile#clearReferenced()}) and policies may consult this
+ * mark when choosing victims.
+ * <p>
+ * A policy instance holds the state of a single cache and must not be shared
+ * between caches.
+ *
+ * @author Michael Bedward
+ * @since 1.4
+ * @version $Id$
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Called when a tile is placed into memory.
+     *
+     * @param tile the tile
+     */
+    void add(DiskCachedTile tile);
+
+    /**
+     * Called when a tile is removed from memory, either because it was
+     * chosen by {@linkplain #nextVictim()} or because it was removed from
+     * the cache.
+     *
+     * @param tile the tile
+     */
+    void remove(DiskCachedTile tile);
+
+    /**
+     * Gets the tile which should be the next to be removed from memory. The
+     * tile remains known to the policy until {@linkplain #remove(DiskCachedTile)}
+     * is called for it.
+     *
+     * @return the lowest priority tile or {@code null} if the policy holds no tiles
+     */
+    DiskCachedTile nextVictim();
+
+    /**
+     * Called when the cache passes over the tile last returned by
+     * {@linkplain #nextVictim()}, for example because it is pinned. The tile
+     * must not be returned by {@code nextVictim} again until
+     * {@linkplain #requeue(DiskCachedTile)} is called for it. This is not a
+     * removal: the policy should not record the tile in any history it keeps
+     * of removed tiles.
+     *
+     * @param tile the tile
+     */
+    void skip(DiskCachedTile tile);
+
+    /**
+     * Returns a tile passed over with {@linkplain #skip(DiskCachedTile)} to
+     * the policy. This is neither an arrival nor an access: the tile keeps
+     * any priority or classification it had with the policy before it was
+     * skipped. Policies which order tiles by recency place a requeued tile
+     * at the most recently used end of its list, so that the next eviction
+     * does not examine it again. The cache requeues tiles in the order in
+     * which it passed over them, and this order is kept among them.
+     *
+     * @param tile the tile
+     */
+    void requeue(DiskCachedTile tile);
+
+    /**
+     * Removes all tiles from this policy.
+     */
+    void clear();
+}
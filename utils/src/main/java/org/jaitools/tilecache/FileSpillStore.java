@@ -0,0 +1,138 @@
+/* 
+ *  Copyright (c) 2013, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.tilecache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The default spill store which writes each tile's data to its own temporary file
+ * in the folder given by {@linkplain DiskCachedTile#getCacheFolder()} or, for a
+ * store created for a particular folder, in that folder.
+ *
+ * @author Michael Bedward
+ * @since 1.4
+ * @version $Id$
+ */
+final class FileSpillStore extends SpillStore {
+
+    private static final Logger LOGGER = Logger.getLogger("org.jaitools.tilecache");
+
+    /** Shared instance using the current cache folder. */
+    static final FileSpillStore INSTANCE = new FileSpillStore(null);
+
+    // folder for tile files (null for the current cache folder)
+    private final File folder;
+
+    /**
+     * Creates a store which writes tile files to the given folder.
+     *
+     * @param folder the folder or {@code null} for the current cache folder
+     */
+    FileSpillStore(File folder) {
+        this.folder = folder;
+    }
+
+    @Override
+    Slot write(Slot slot, ByteBuffer data) throws IOException {
+        Slot newSlot = null;
+        if (slot == null) {
+            // first time this tile has been written to disk
+            newSlot = new Slot(DiskCachedTile.createFile(folder), 0, Integer.MAX_VALUE);
+            slot = newSlot;
+        }
+
+        boolean written = false;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(slot.file, "rw");
+            try {
+                FileChannel channel = raf.getChannel();
+                int len = data.remaining();
+                long pos = 0;
+                while (data.hasRemaining()) {
+                    pos += channel.write(data, pos);
+                }
+                slot.length = len;
+                written = true;
+
+            } finally {
+                raf.close();
+            }
+
+        } finally {
+            if (!written && newSlot != null) {
+                free(newSlot);
+            }
+        }
+
+        return slot;
+    }
+
+    @Override
+    ByteBuffer read(Slot slot, boolean mapped) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(slot.file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() < slot.length) {
+                throw new IOException("Cached tile file appears to be truncated");
+            }
+
+            ByteBuffer buf;
+            if (mapped) {
+                buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, slot.length);
+                buf.order(ByteOrder.nativeOrder());
+
+            } else {
+                buf = TileBuffers.getScratchBuffer(slot.length);
+                while (buf.hasRemaining()) {
+                    if (channel.read(buf, buf.position()) < 0) {
+                        throw new IOException("Cached tile file appears to be truncated");
+                    }
+                }
+                buf.flip();
+            }
+
+            return buf;
+
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Override
+    void free(Slot slot) {
+        if (!slot.file.delete()) {
+            LOGGER.log(Level.WARNING,
+                    "Unable to delete cached image tile file: {0}", slot.file.getPath());
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/* 
+ *  Copyright (c) 2013, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+
+package org.jaitools.tilecache;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+/**
+ * Package-private monitor of heap pressure used by {@code DiskMemTileCache} in
+ * adaptive capacity mode. The monitor sets a collection usage threshold on each
+ * heap memory pool which supports one (in practice, the old generation) and
+ * listens for the notifications sent when the memory still in use after a
+ * garbage collection exceeds it. Measuring usage after collection means that the
+ * cache responds to memory held by live objects rather than to garbage.
+ * <p>
+ * A pool has a single threshold, so where several caches are monitored the
+ * lowest threshold is set and each monitor checks its own threshold when
+ * notified. The threshold a pool had before the first monitor was started is
+ * saved, and restored when the last monitor is stopped. The monitor refers to
+ * its cache weakly and stops itself when notified after the cache has been
+ * garbage collected.
+ *
+ * @author Michael Bedward
+ * @since 1.4
+ * @version $Id$
+ */
+final class HeapPressureMonitor implements NotificationListener {
+
+    private static final Logger LOGGER = Logger.getLogger("org.jaitools.tilecache");
+
+    /*
+     * Usage after collection must fall this far below the threshold
+     * before the heap is considered to have headroom again.
+     */
+    private static final float HEADROOM_MARGIN = 0.1F;
+
+    // monitors which have been started and not stopped
+    private static final List<HeapPressureMonitor> monitors =
+            new ArrayList<HeapPressureMonitor>();
+
+    // pool thresholds from before the first monitor was started, by pool name
+    private static final Map<String, Long> savedThresholds = new HashMap<String, Long>();
+
+    private final WeakReference<DiskMemTileCache> cacheRef;
+    private final float threshold;
+    private final List<MemoryPoolMXBean> pools;
+    private final NotificationEmitter emitter;
+
+    /**
+     * Creates a new monitor and starts listening for notifications.
+     *
+     * @param cache the cache to notify of heap pressure
+     * @param threshold fraction of each pool's maximum size, in use after
+     *        collection, above which the heap is under pressure
+     */
+    HeapPressureMonitor(DiskMemTileCache cache, float threshold) {
+        this.cacheRef = new WeakReference<DiskMemTileCache>(cache);
+        this.threshold = threshold;
+        this.pools = new ArrayList<MemoryPoolMXBean>();
+
+        synchronized (monitors) {
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() != MemoryType.HEAP ||
+                        !pool.isCollectionUsageThresholdSupported() ||
+                        pool.getUsage().getMax() <= 0) {
+                    continue;
+                }
+
+                if (!savedThresholds.containsKey(pool.getName())) {
+                    savedThresholds.put(pool.getName(), pool.getCollectionUsageThreshold());
+                }
+                pools.add(pool);
+            }
+
+            if (!pools.isEmpty()) {
+                monitors.add(this);
+                updateThresholds();
+            }
+        }
+
+        emitter = (NotificationEmitter) ManagementFactory.getMemoryMXBean();
+        if (!pools.isEmpty()) {
+            emitter.addNotificationListener(this, null, null);
+        }
+    }
+
+    /**
+     * Queries whether any heap pools are being monitored.
+     *
+     * @return {@code true} if monitoring
+     */
+    boolean isMonitoring() {
+        return !pools.isEmpty();
+    }
+
+    /**
+     * Handles a notification from the platform memory MXBean.
+     *
+     * @param notification the notification
+     * @param handback not used
+     */
+    public void handleNotification(Notification notification, Object handback) {
+        if (!MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(
+                notification.getType())) {
+            return;
+        }
+
+        DiskMemTileCache cache = cacheRef.get();
+        if (cache == null) {
+            stop();
+        } else if (isUnderPressure()) {
+            cache.heapPressure();
+        }
+    }
+
+    /**
+     * Queries whether usage after the last collection of any monitored
+     * pool is above the threshold.
+     *
+     * @return {@code true} if the heap is under pressure
+     */
+    boolean isUnderPressure() {
+        return exceeds(threshold);
+    }
+
+    /**
+     * Queries whether usage after the last collection of every monitored
+     * pool is comfortably below the threshold.
+     *
+     * @return {@code true} if the heap has headroom
+     */
+    boolean hasHeadroom() {
+        return !exceeds(threshold - HEADROOM_MARGIN);
+    }
+
+    /**
+     * Stops listening for notifications and restores the thresholds of the
+     * monitored pools to those required by the remaining monitors or, if
+     * there are none, to their values before monitoring began. Calling this
+     * method more than once has no further effect.
+     */
+    void stop() {
+        synchronized (monitors) {
+            if (!monitors.remove(this)) {
+                return;
+            }
+            updateThresholds();
+        }
+
+        try {
+            emitter.removeNotificationListener(this);
+        } catch (ListenerNotFoundException ex) {
+            LOGGER.log(Level.FINE, "Heap pressure listener was not registered", ex);
+        }
+    }
+
+    /**
+     * Sets the threshold of each pool with a saved threshold to the lowest
+     * of that value, if set, and the thresholds of the monitors watching the
+     * pool. Pools no longer watched get their saved threshold back and are
+     * forgotten. Must be called while holding the lock on {@code monitors}.
+     */
+    private static void updateThresholds() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            final String name = pool.getName();
+            Long saved = savedThresholds.get(name);
+            if (saved == null) {
+                continue;
+            }
+
+            long bytes = saved;
+            boolean watched = false;
+            for (HeapPressureMonitor monitor : monitors) {
+                if (monitor.watches(name)) {
+                    long b = (long) (monitor.threshold * pool.getUsage().getMax());
+                    if (bytes == 0 || b < bytes) {
+                        bytes = b;
+                    }
+                    watched = true;
+                }
+            }
+
+            pool.setCollectionUsageThreshold(bytes);
+            if (!watched) {
+                savedThresholds.remove(name);
+            }
+        }
+    }
+
+    /**
+     * Tests whether this monitor watches the named pool.
+     */
+    private boolean watches(String poolName) {
+        for (MemoryPoolMXBean pool : pools) {
+            if (pool.getName().equals(poolName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tests whether usage after the last collection of any monitored pool
+     * is at or above the given fraction of the pool's maximum size.
+     */
+    private boolean exceeds(float fraction) {
+        for (MemoryPoolMXBean pool : pools) {
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (usage != null && usage.getMax() > 0 &&
+                    usage.getUsed() >= fraction * usage.getMax()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,143 @@
+/* 
+ *  Copyright (c) 2013, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.tilecache;
+
+/**
+ * The default eviction policy for {@code DiskMemTileCache}. Resident tiles are
+ * held in an access-ordered, doubly-linked list which is threaded through the
+ * tile objects themselves, so that adding, removing and evicting a tile are all
+ * constant time operations.
+ * <p>
+ * Tile accesses are recorded lazily: when the least recently added tile at the
+ * tail of the list has been referenced since it was last examined, it is given
+ * a second chance by being moved to the head of the list. This approximates
+ * least-recently-used order (the order of the default {@linkplain TileAccessTimeComparator})
+ * while allowing the cache to serve resident tiles without locking.
+ *
+ * @author Michael Bedward
+ * @since 1.4
+ * @version $Id$
+ */
+final class LruEvictionPolicy implements EvictionPolicy {
+
+    // most recently used tile
+    private DiskCachedTile head;
+    
+    // least recently used tile
+    private DiskCachedTile tail;
+    
+    private int size;
+
+    public void add(DiskCachedTile tile) {
+        if (!isLinked(tile)) {
+            linkFirst(tile);
+        }
+    }
+
+    public void remove(DiskCachedTile tile) {
+        if (isLinked(tile)) {
+            unlink(tile);
+        }
+    }
+
+    public DiskCachedTile nextVictim() {
+        /*
+         * Each referenced tile is moved to the head at most once
+         * per scan, so we examine no more than size tiles before
+         * returning to an unreferenced one
+         */
+        for (int i = 0; i < size && tail.clearReferenced(); i++) {
+            DiskCachedTile tile = tail;
+            unlink(tile);
+            linkFirst(tile);
+        }
+
+        return tail;
+    }
+
+    public void skip(DiskCachedTile tile) {
+        remove(tile);
+    }
+
+    /**
+     * {@inheritDoc}
+     * The tile is placed at the head of the list.
+     */
+    public void requeue(DiskCachedTile tile) {
+        add(tile);
+    }
+
+    public void clear() {
+        DiskCachedTile tile = head;
+        while (tile != null) {
+            DiskCachedTile next = tile.next;
+            tile.prev = null;
+            tile.next = null;
+            tile = next;
+        }
+
+        head = null;
+        tail = null;
+        size = 0;
+    }
+
+    private boolean isLinked(DiskCachedTile tile) {
+        return tile.prev != null || tile.next != null || head == tile;
+    }
+
+    private void linkFirst(DiskCachedTile tile) {
+        tile.prev = null;
+        tile.next = head;
+        if (head != null) {
+            head.prev = tile;
+        } else {
+            tail = tile;
+        }
+        head = tile;
+        size++ ;
+    }
+
+    private void unlink(DiskCachedTile tile) {
+        DiskCachedTile prev = tile.prev;
+        DiskCachedTile next = tile.next;
+
+        if (prev == null) {
+            head = next;
+        } else {
+            prev.next = next;
+        }
+
+        if (next == null) {
+            tail = prev;
+        } else {
+            next.prev = prev;
+        }
+
+        tile.prev = null;
+        tile.next = null;
+        size-- ;
+    }
+}
@@ -0,0 +1,419 @@
+/* 
+ *  Copyright (c) 2013, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.tilecache;
+
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Package-private off-heap storage tier for {@code DiskMemTileCache}. Tiles removed
+ * from the cache's heap memory are copied into direct byte buffers, optionally
+ * compressed with a {@linkplain TileCodec}. A tile's raster is re-created from the
+ * stored copy when the tile is next requested. Because the data are outside the
+ * Java heap, a large tier adds little to garbage collection work.
+ * <p>
+ * Storage is divided into fixed-size blocks carved from chunks of up to 64Mb, which
+ * are allocated as required up to the tier's capacity. Each tile occupies as many
+ * blocks as its (possibly compressed) data require, so tiles of varying size share
+ * the tier without fragmentation. When no blocks are free, least recently stored
+ * tiles are displaced: those with data not yet on disk are returned to the caller
+ * to be written out, after which their blocks are freed with {@linkplain #spilled(Entry)}.
+ * <p>
+ * All methods are thread-safe. No data are copied or encoded while holding the
+ * tier's lock.
+ *
+ * @author Michael Bedward
+ * @since 1.4
+ * @version $Id$
+ */
+final class OffHeapTier {
+
+    /** Size in bytes of the blocks in which tile data are stored. */
+    static final int BLOCK_SIZE = 1024;
+
+    /** Maximum number of blocks in each direct buffer. */
+    static final int BLOCKS_PER_CHUNK = 64 * 1024;
+
+    /**
+     * A tile held in the tier.
+     */
+    final class Entry {
+        final DiskCachedTile tile;
+        private final int[] blocks;
+        private final int length;
+
+        // version of the tile's data when stored
+        final long version;
+
+        // set while the entry's data are being written to disk
+        private boolean spilling;
+
+        private Entry(DiskCachedTile tile, int[] blocks, int length, long version) {
+            this.tile = tile;
+            this.blocks = blocks;
+            this.length = length;
+            this.version = version;
+        }
+
+        /**
+         * Gets the tile's data. The returned buffer may be one of the calling
+         * thread's scratch buffers and must not be retained beyond the current
+         * operation.
+         *
+         * @return a buffer, in native byte order, with position zero and limit
+         *         equal to the data length
+         * @throws IOException if the data cannot be decoded
+         */
+        ByteBuffer data() throws IOException {
+            ByteBuffer buf = TileBuffers.getScratchBuffer(length);
+            for (int i = 0, remaining = length; remaining > 0; i++) {
+                ByteBuffer block = getBlock(blocks[i]);
+                block.limit(block.position() + Math.min(BLOCK_SIZE, remaining));
+                remaining -= block.remaining();
+                buf.put(block);
+            }
+            buf.flip();
+            return codec.decode(buf, tile.getDataType(), tile.getByteLength());
+        }
+
+        /**
+         * Gets the number of bytes occupied by the entry.
+         *
+         * @return occupied bytes
+         */
+        long getStoredSize() {
+            return (long) blocks.length * BLOCK_SIZE;
+        }
+    }
+
+    private final long capacity;
+    private final int maxBlocks;
+    private final TileCodec codec;
+
+    private final List<ByteBuffer> chunks;
+    private int numBlocks;
+    private int[] freeBlocks;
+    private int numFree;
+
+    // stored tiles in order of storage (oldest first)
+    private final LinkedHashMap<Object, Entry> entries;
+
+    // displaced tiles being written to disk
+    private final Map<Object, Entry> spilling;
+
+    // total native size of stored tiles
+    private long tileBytes;
+
+    /**
+     * Creates a new tier.
+     *
+     * @param capacity maximum number of bytes of direct memory to use
+     * @param codec the codec used to encode tile data
+     */
+    OffHeapTier(long capacity, TileCodec codec) {
+        if (capacity < BLOCK_SIZE) {
+            throw new IllegalArgumentException("capacity must be at least " + BLOCK_SIZE);
+        }
+        this.capacity = capacity;
+        this.maxBlocks = (int) Math.min(Integer.MAX_VALUE, capacity / BLOCK_SIZE);
+        this.codec = codec;
+        this.chunks = new ArrayList<ByteBuffer>();
+        this.freeBlocks = new int[64];
+        this.entries = new LinkedHashMap<Object, Entry>();
+        this.spilling = new HashMap<Object, Entry>();
+    }
+
+    /**
+     * Gets the capacity of this tier.
+     *
+     * @return capacity in bytes
+     */
+    long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Gets the number of bytes occupied by stored tiles, including those
+     * being written to disk.
+     *
+     * @return occupied bytes
+     */
+    synchronized long getUsedBytes() {
+        return (long) (numBlocks - numFree) * BLOCK_SIZE;
+    }
+
+    /**
+     * Gets the number of tiles stored.
+     *
+     * @return number of tiles
+     */
+    synchronized int getNumTiles() {
+        return entries.size();
+    }
+
+    /**
+     * Gets the ratio of the native size of the stored tiles to the space
+     * they occupy.
+     *
+     * @return compression ratio (1.0 if no tiles are stored)
+     */
+    synchronized double getCompressionRatio() {
+        long used = 0;
+        for (Entry e : entries.values()) {
+            used += e.getStoredSize();
+        }
+        return used == 0 ? 1.0 : (double) tileBytes / used;
+    }
+
+    /**
+     * Stores a copy of a tile's data, displacing other tiles if necessary.
+     *
+     * @param tile the tile
+     * @param raster the tile's data
+     * @param spills receives displaced tiles whose data must be written to disk;
+     *        once written, {@linkplain #spilled(Entry)} must be called for each
+     *
+     * @return {@code true} if the tile was stored; {@code false} if there was
+     *         no room for it
+     * @throws IOException if the data cannot be encoded
+     */
+    boolean put(DiskCachedTile tile, Raster raster, List<Entry> spills) throws IOException {
+        final long version = tile.getVersion();
+
+        ByteBuffer buf = TileBuffers.getScratchBuffer(tile.getByteLength());
+        tile.putData(raster, buf);
+        buf.flip();
+        buf = codec.encode(buf, tile.getDataType());
+
+        final int length = buf.remaining();
+        final int n = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        if (n > maxBlocks) {
+            return false;
+        }
+
+        int[] blocks = new int[n];
+        synchronized (this) {
+            while (!allocate(blocks)) {
+                Iterator<Entry> iter = entries.values().iterator();
+                if (!iter.hasNext()) {
+                    return false;
+                }
+
+                Entry victim = iter.next();
+                iter.remove();
+                tileBytes -= victim.tile.getByteLength();
+                if (victim.tile.needsWrite()) {
+                    victim.spilling = true;
+                    spilling.put(victim.tile.getTileId(), victim);
+                    spills.add(victim);
+                } else {
+                    free(victim.blocks);
+                }
+            }
+        }
+
+        for (int i = 0, remaining = length; remaining > 0; i++) {
+            ByteBuffer block = getBlock(blocks[i]);
+            int len = Math.min(BLOCK_SIZE, remaining);
+            ByteBuffer src = buf.duplicate();
+            src.limit(src.position() + len);
+            block.put(src);
+            buf.position(buf.position() + len);
+            remaining -= len;
+        }
+
+        Entry entry = new Entry(tile, blocks, length, version);
+        synchronized (this) {
+            Entry old = entries.put(tile.getTileId(), entry);
+            tileBytes += tile.getByteLength();
+            if (old != null) {
+                tileBytes -= old.tile.getByteLength();
+                free(old.blocks);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Tests if the tier holds a tile, including a tile which is being
+     * written to disk.
+     *
+     * @param tileId the tile's unique id
+     * @return {@code true} if the tile is held
+     */
+    synchronized boolean contains(Object tileId) {
+        return entries.containsKey(tileId) || spilling.containsKey(tileId);
+    }
+
+    /**
+     * Removes a tile from the tier so that it can be made resident in heap memory.
+     * The caller must create the tile's raster from {@linkplain Entry#data()} and
+     * then call {@linkplain #release(Entry)}. If the tile is being written to disk
+     * its entry is returned but not removed. The entry's data are out of date if
+     * its version differs from the tile's current version.
+     *
+     * @param tileId the tile's unique id
+     * @return the tile's entry or {@code null} if the tile is not held
+     */
+    synchronized Entry take(Object tileId) {
+        Entry e = entries.remove(tileId);
+        if (e != null) {
+            tileBytes -= e.tile.getByteLength();
+        } else {
+            e = spilling.get(tileId);
+        }
+        return e;
+    }
+
+    /**
+     * Frees the blocks of an entry obtained from {@linkplain #take(Object)}.
+     *
+     * @param e the entry
+     */
+    synchronized void release(Entry e) {
+        if (!e.spilling) {
+            free(e.blocks);
+        }
+    }
+
+    /**
+     * Frees the blocks of a displaced entry once its data have been written to disk.
+     *
+     * @param e the entry
+     */
+    synchronized void spilled(Entry e) {
+        Object key = e.tile.getTileId();
+        if (spilling.get(key) == e) {
+            spilling.remove(key);
+        }
+        e.spilling = false;
+        free(e.blocks);
+    }
+
+    /**
+     * Discards a tile from the tier.
+     *
+     * @param tileId the tile's unique id
+     */
+    synchronized void remove(Object tileId) {
+        Entry e = entries.remove(tileId);
+        if (e != null) {
+            tileBytes -= e.tile.getByteLength();
+            free(e.blocks);
+        }
+    }
+
+    /**
+     * Removes all tiles from the tier other than those being written to disk.
+     *
+     * @param spills receives removed tiles whose data must be written to disk;
+     *        once written, {@linkplain #spilled(Entry)} must be called for each
+     */
+    synchronized void clear(List<Entry> spills) {
+        for (Entry e : entries.values()) {
+            if (e.tile.needsWrite() && e.version == e.tile.getVersion()) {
+                e.spilling = true;
+                spilling.put(e.tile.getTileId(), e);
+                spills.add(e);
+            } else {
+                free(e.blocks);
+            }
+        }
+        entries.clear();
+        tileBytes = 0;
+    }
+
+    /**
+     * Gets a view of a block. Chunks are never released, so this does not
+     * require the tier's lock once the block has been allocated.
+     *
+     * @param block block index
+     * @return a buffer with position at the start of the block
+     */
+    private ByteBuffer getBlock(int block) {
+        ByteBuffer chunk;
+        synchronized (chunks) {
+            chunk = chunks.get(block / BLOCKS_PER_CHUNK);
+        }
+        ByteBuffer buf = chunk.duplicate();
+        buf.position((block % BLOCKS_PER_CHUNK) * BLOCK_SIZE);
+        return buf;
+    }
+
+    /**
+     * Allocates blocks, if enough are available. Must be called while holding
+     * the tier's lock.
+     *
+     * @param blocks receives the indices of the allocated blocks
+     * @return {@code true} if the blocks were allocated
+     */
+    private boolean allocate(int[] blocks) {
+        if (numFree + (maxBlocks - numBlocks) < blocks.length) {
+            return false;
+        }
+
+        for (int i = 0; i < blocks.length; i++) {
+            if (numFree > 0) {
+                blocks[i] = freeBlocks[--numFree];
+
+            } else {
+                if (numBlocks % BLOCKS_PER_CHUNK == 0) {
+                    int size = Math.min(BLOCKS_PER_CHUNK, maxBlocks - numBlocks) * BLOCK_SIZE;
+                    ByteBuffer chunk = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+                    synchronized (chunks) {
+                        chunks.add(chunk);
+                    }
+                }
+                blocks[i] = numBlocks++ ;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns blocks to the free list. Must be called while holding the
+     * tier's lock.
+     *
+     * @param blocks block indices
+     */
+    private void free(int[] blocks) {
+        if (numFree + blocks.length > freeBlocks.length) {
+            int[] grown = new int[Math.max(freeBlocks.length * 2, numFree + blocks.length)];
+            System.arraycopy(freeBlocks, 0, grown, 0, numFree);
+            freeBlocks = grown;
+        }
+        System.arraycopy(blocks, 0, freeBlocks, numFree, blocks.length);
+        numFree += blocks.length;
+    }
+}
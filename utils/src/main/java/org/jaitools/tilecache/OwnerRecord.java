@@ -0,0 +1,203 @@
+/* 
+ *  Copyright (c) 2013, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.tilecache;
+
+import java.awt.image.RenderedImage;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Package-private record of per-image state held by {@code DiskMemTileCache}.
+ * Each cached tile refers to the record for its owning image.
+ * <p>
+ * The record is a weak reference to the image, registered with the cache's
+ * reference queue, and holds the keys of the image's cached tiles. When the
+ * image is garbage collected the cache takes the record from the queue and
+ * removes the listed tiles.
+ * <p>
+ * The record tracks the order in which the image's tiles are requested so that
+ * the cache can read ahead when tiles are being accessed sequentially in row-major
+ * order. Access tracking is deliberately done without locking: a lost update
+ * merely delays or repeats a read-ahead decision.
+ * <p>
+ * The record also holds the key, if any, under which the image's tiles are
+ * saved by a persistent cache, and the memory quota, if any, which applies
+ * to the image's resident tiles.
+ *
+ * @author Michael Bedward
+ * @since 1.4
+ * @version $Id$
+ */
+final class OwnerRecord extends WeakReference<RenderedImage> {
+
+    /**
+     * Number of consecutive sequential steps required before
+     * read-ahead begins.
+     */
+    static final int MIN_SEQUENTIAL_RUN = 2;
+
+    // keys of the image's cached tiles (used as a concurrent set)
+    private final ConcurrentHashMap<Object, Boolean> tileKeys;
+
+    // row-major index of the most recently accessed tile
+    private volatile long lastIndex = -2;
+
+    // number of consecutive sequential steps ending at lastIndex
+    private volatile int run;
+
+    // highest tile index already claimed for read-ahead
+    private volatile long prefetchedTo = -1;
+
+    // key identifying the image's tiles in a persistent cache
+    private volatile String persistentKey;
+
+    // memory quota for resident tiles (the image's own or its group's)
+    private volatile QuotaGroup quota;
+
+    /**
+     * Creates a new record.
+     *
+     * @param owner the image
+     * @param queue queue with which to register the record
+     */
+    OwnerRecord(RenderedImage owner, ReferenceQueue<? super RenderedImage> queue) {
+        super(owner, queue);
+        this.tileKeys = new ConcurrentHashMap<Object, Boolean>();
+    }
+
+    /**
+     * Gets the image described by this record.
+     *
+     * @return the image or {@code null} if it has been garbage collected
+     */
+    RenderedImage getOwner() {
+        return get();
+    }
+
+    /**
+     * Records that a tile of the image has been added to the cache.
+     *
+     * @param key the tile's unique id
+     */
+    void addTileKey(Object key) {
+        tileKeys.put(key, Boolean.TRUE);
+    }
+
+    /**
+     * Records that a tile of the image has been removed from the cache.
+     *
+     * @param key the tile's unique id
+     */
+    void removeTileKey(Object key) {
+        tileKeys.remove(key);
+    }
+
+    /**
+     * Gets the keys of the image's cached tiles. The returned set is a
+     * live view which may be iterated while tiles are being removed.
+     *
+     * @return tile keys
+     */
+    Set<Object> getTileKeys() {
+        return tileKeys.keySet();
+    }
+
+    /**
+     * Gets the key identifying the image's tiles in a persistent cache.
+     *
+     * @return the key or {@code null} if not set
+     */
+    String getPersistentKey() {
+        return persistentKey;
+    }
+
+    /**
+     * Sets the key identifying the image's tiles in a persistent cache.
+     *
+     * @param key the key or {@code null}
+     */
+    void setPersistentKey(String key) {
+        persistentKey = key;
+    }
+
+    /**
+     * Gets the memory quota which applies to the image's resident tiles.
+     *
+     * @return the quota or {@code null} if none
+     */
+    QuotaGroup getQuota() {
+        return quota;
+    }
+
+    /**
+     * Sets the memory quota which applies to the image's resident tiles.
+     *
+     * @param quota the quota or {@code null}
+     */
+    void setQuota(QuotaGroup quota) {
+        this.quota = quota;
+    }
+
+    /**
+     * Records an access to a tile and, if tiles are being accessed sequentially,
+     * claims the following tiles for read-ahead. Tiles claimed by an earlier call
+     * are not claimed again.
+     *
+     * @param index row-major index of the accessed tile
+     * @param n number of tiles to read ahead of the accessed tile
+     *
+     * @return index of the first tile to read; the last is {@code index + n};
+     *         or -1 if no tiles should be read
+     */
+    long claimReadAhead(long index, int n) {
+        long last = lastIndex;
+        lastIndex = index;
+
+        if (index != last + 1) {
+            run = 0;
+            if (index < last) {
+                // a new scan of the image
+                prefetchedTo = -1;
+            }
+            return -1;
+        }
+
+        if (++run < MIN_SEQUENTIAL_RUN) {
+            return -1;
+        }
+
+        long from = Math.max(index + 1, prefetchedTo + 1);
+        long to = index + n;
+        if (from > to) {
+            return -1;
+        }
+
+        prefetchedTo = to;
+        return from;
+    }
+}
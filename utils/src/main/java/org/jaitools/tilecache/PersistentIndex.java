@@ -0,0 +1,283 @@
+/* 
+ *  Copyright (c) 2013, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.tilecache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Package-private index of the tiles saved by a persistent {@code DiskMemTileCache}.
+ * The index maps the persistent key of each image, together with tile coordinates,
+ * to the tile's slot in the segment files of a {@linkplain SlabSpillStore}.
+ * <p>
+ * When the cache is created, the index file (if present) is read and the listed
+ * slots are reattached to the store. Each entry is then held until taken by the
+ * cache, when an image presenting the same key requests the tile. Entries which
+ * are never taken are kept, and written again by {@linkplain #write(Collection)},
+ * so that tiles of images not used in one session remain available to the next.
+ * <p>
+ * The index file is written to a temporary file, forced to disk, which then replaces
+ * the previous index. Tile data are verified against the checksum recorded in the index when
+ * they are first read, so an out of date index results in recomputation of tiles
+ * rather than incorrect data.
+ *
+ * @author Michael Bedward
+ * @since 1.4
+ * @version $Id$
+ */
+final class PersistentIndex {
+
+    private static final Logger LOGGER = Logger.getLogger("org.jaitools.tilecache");
+
+    /** Name of the index file. */
+    static final String INDEX_FILE = "tileindex.dat";
+
+    private static final int MAGIC = 0x4a54494e;
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * A saved tile.
+     */
+    static final class Entry {
+        final String ownerKey;
+        final int tileX;
+        final int tileY;
+        final int tileWidth;
+        final int tileHeight;
+        final int dataType;
+        final int numBanks;
+        final int dataLen;
+        final boolean writable;
+        final SpillStore.Slot slot;
+
+        Entry(String ownerKey, int tileX, int tileY, int tileWidth, int tileHeight,
+                int dataType, int numBanks, int dataLen, boolean writable,
+                SpillStore.Slot slot) {
+            this.ownerKey = ownerKey;
+            this.tileX = tileX;
+            this.tileY = tileY;
+            this.tileWidth = tileWidth;
+            this.tileHeight = tileHeight;
+            this.dataType = dataType;
+            this.numBanks = numBanks;
+            this.dataLen = dataLen;
+            this.writable = writable;
+            this.slot = slot;
+        }
+    }
+
+    private final File folder;
+    private final SlabSpillStore store;
+    private final String codecName;
+
+    // entries read from the index file and not yet taken
+    private final Map<String, Entry> entries;
+
+    /**
+     * Opens the index in the given folder, reattaching the slots of the
+     * tiles it lists to the store.
+     *
+     * @param folder folder holding the index file and the store's segment files
+     * @param store the store
+     * @param codec the codec used to encode tile data; if different to that
+     *        recorded in the index, the index is discarded
+     */
+    PersistentIndex(File folder, SlabSpillStore store, TileCodec codec) {
+        this.folder = folder;
+        this.store = store;
+        this.codecName = codec.getClass().getName();
+        this.entries = new HashMap<String, Entry>();
+
+        File file = new File(folder, INDEX_FILE);
+        if (!file.isFile()) {
+            // an index written completely but not yet renamed (see write)
+            file = new File(folder, INDEX_FILE + ".tmp");
+        }
+        if (file.isFile()) {
+            try {
+                read(file);
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, "Unable to read cache index " + file, ex);
+                for (Entry e : entries.values()) {
+                    store.free(e.slot);
+                }
+                entries.clear();
+            }
+        }
+
+        store.reclaim();
+    }
+
+    /**
+     * Takes the entry for a tile, if present. The caller becomes responsible
+     * for the entry's slot.
+     *
+     * @param ownerKey persistent key of the owning image
+     * @param tileX tile column
+     * @param tileY tile row
+     * @return the entry or {@code null}
+     */
+    synchronized Entry take(String ownerKey, int tileX, int tileY) {
+        return entries.remove(getKey(ownerKey, tileX, tileY));
+    }
+
+    /**
+     * Gets the number of entries not yet taken.
+     *
+     * @return number of entries
+     */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Writes the index file, listing the given tiles and the entries not
+     * yet taken. The store's segment files are forced to disk first, and the
+     * new index is forced to disk before it replaces the previous one.
+     * <p>
+     * The replacement is a rename, which is atomic on most platforms. Where a
+     * file cannot be renamed over an existing one, the previous index is
+     * deleted first, and a crash between the deletion and the rename leaves
+     * only the temporary file, which is then read when the index is next
+     * opened.
+     *
+     * @param saved entries for the tiles currently saved
+     * @throws IOException on error writing the file
+     */
+    synchronized void write(Collection<Entry> saved) throws IOException {
+        store.force();
+
+        File tmp = new File(folder, INDEX_FILE + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(codecName);
+            out.writeInt(saved.size() + entries.size());
+            for (Entry e : saved) {
+                write(out, e);
+            }
+            for (Entry e : entries.values()) {
+                write(out, e);
+            }
+
+            out.flush();
+            fos.getFD().sync();
+
+        } finally {
+            out.close();
+        }
+
+        File file = new File(folder, INDEX_FILE);
+        if (!tmp.renameTo(file)) {
+            // some platforms will not rename over an existing file (not atomic)
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Unable to replace cache index " + file);
+            }
+        }
+    }
+
+    private void read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                throw new IOException("Unrecognized cache index format");
+            }
+
+            if (!codecName.equals(in.readUTF())) {
+                LOGGER.log(Level.INFO, "Discarding cache index written with a different tile codec");
+                return;
+            }
+
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                String ownerKey = in.readUTF();
+                int tileX = in.readInt();
+                int tileY = in.readInt();
+                int tileWidth = in.readInt();
+                int tileHeight = in.readInt();
+                int dataType = in.readInt();
+                int numBanks = in.readInt();
+                int dataLen = in.readInt();
+                boolean writable = in.readBoolean();
+                String fileName = in.readUTF();
+                long offset = in.readLong();
+                int capacity = in.readInt();
+                int length = in.readInt();
+                long checksum = in.readLong();
+
+                SpillStore.Slot slot = store.attach(fileName, offset, capacity, length, checksum);
+                if (slot != null) {
+                    Entry e = new Entry(ownerKey, tileX, tileY, tileWidth, tileHeight,
+                            dataType, numBanks, dataLen, writable, slot);
+
+                    Entry old = entries.put(getKey(ownerKey, tileX, tileY), e);
+                    if (old != null) {
+                        store.free(old.slot);
+                    }
+                }
+            }
+
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void write(DataOutputStream out, Entry e) throws IOException {
+        out.writeUTF(e.ownerKey);
+        out.writeInt(e.tileX);
+        out.writeInt(e.tileY);
+        out.writeInt(e.tileWidth);
+        out.writeInt(e.tileHeight);
+        out.writeInt(e.dataType);
+        out.writeInt(e.numBanks);
+        out.writeInt(e.dataLen);
+        out.writeBoolean(e.writable);
+        out.writeUTF(e.slot.file.getName());
+        out.writeLong(e.slot.offset);
+        out.writeInt(e.slot.capacity);
+        out.writeInt(e.slot.length);
+        out.writeLong(e.slot.checksum);
+    }
+
+    private static String getKey(String ownerKey, int tileX, int tileY) {
+        return ownerKey + '\u0000' + tileX + ',' + tileY;
+    }
+}
@@ -0,0 +1,169 @@
+/* 
+ *  Copyright (c) 2013, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.tilecache;
+
+import java.util.LinkedHashSet;
+
+/**
+ * Package-private record of a memory quota in {@code DiskMemTileCache}, which
+ * applies to the resident tiles of a single image or of a named group of
+ * images. The cache charges each resident tile to the quota of its image at
+ * the time the tile was placed into memory.
+ * <p>
+ * All fields and methods are guarded by the controlling cache's memory lock.
+ *
+ * @author Michael Bedward
+ * @since 1.4
+ * @version $Id$
+ */
+final class QuotaGroup {
+
+    /** Group name, or {@code null} for the quota of a single image. */
+    final String name;
+
+    // guaranteed and maximum resident memory
+    private long minBytes;
+    private long maxBytes;
+
+    private long residentBytes;
+
+    // resident tiles charged to this quota, oldest first
+    private final LinkedHashSet<DiskCachedTile> tiles;
+
+    /**
+     * Creates a new quota with no minimum or maximum.
+     *
+     * @param name group name or {@code null}
+     */
+    QuotaGroup(String name) {
+        this.name = name;
+        this.maxBytes = Long.MAX_VALUE;
+        this.tiles = new LinkedHashSet<DiskCachedTile>();
+    }
+
+    /**
+     * Sets the limits of this quota.
+     *
+     * @param minBytes guaranteed resident memory
+     * @param maxBytes maximum resident memory
+     */
+    void setLimits(long minBytes, long maxBytes) {
+        this.minBytes = minBytes;
+        this.maxBytes = maxBytes;
+    }
+
+    long getMinBytes() {
+        return minBytes;
+    }
+
+    long getMaxBytes() {
+        return maxBytes;
+    }
+
+    long getResidentBytes() {
+        return residentBytes;
+    }
+
+    /**
+     * Charges a resident tile to this quota.
+     *
+     * @param tile the tile
+     */
+    void add(DiskCachedTile tile) {
+        if (tiles.add(tile)) {
+            residentBytes += tile.getTileSize();
+            tile.quotaGroup = this;
+        }
+    }
+
+    /**
+     * Removes the charge for a tile which has left memory.
+     *
+     * @param tile the tile
+     */
+    void remove(DiskCachedTile tile) {
+        if (tiles.remove(tile)) {
+            residentBytes -= tile.getTileSize();
+            tile.quotaGroup = null;
+        }
+    }
+
+    /**
+     * Removes all charges.
+     */
+    void clear() {
+        for (DiskCachedTile tile : tiles) {
+            tile.quotaGroup = null;
+        }
+        tiles.clear();
+        residentBytes = 0;
+    }
+
+    /**
+     * Queries whether the resident tiles charged to this quota occupy
+     * more than its maximum.
+     *
+     * @return {@code true} if over quota
+     */
+    boolean isOverQuota() {
+        return residentBytes > maxBytes;
+    }
+
+    /**
+     * Queries whether removing a tile from memory would take this quota
+     * below its guaranteed minimum.
+     *
+     * @param tile a tile charged to this quota
+     * @return {@code true} if the tile is protected
+     */
+    boolean isProtected(DiskCachedTile tile) {
+        return residentBytes - tile.getTileSize() < minBytes;
+    }
+
+    /**
+     * Gets the tile which has been charged to this quota for longest,
+     * passing over pinned tiles.
+     *
+     * @return the tile or {@code null} if there are no unpinned tiles
+     */
+    DiskCachedTile getOldest() {
+        for (DiskCachedTile tile : tiles) {
+            if (tile.pinCount == 0) {
+                return tile;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the number of resident tiles charged to this quota.
+     *
+     * @return number of tiles
+     */
+    int getNumTiles() {
+        return tiles.size();
+    }
+}
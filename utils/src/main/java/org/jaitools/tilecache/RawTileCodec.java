@@ -0,0 +1,69 @@
+/* 
+ *  Copyright (c) 2013, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.tilecache;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@code TileCodec} which leaves tile data unchanged. This is the
+ * default codec used by {@code DiskMemTileCache}.
+ *
+ * @author Michael Bedward
+ * @since 1.4
+ * @version $Id$
+ */
+public final class RawTileCodec implements TileCodec {
+
+    /**
+     * Shared instance. This class has no state.
+     */
+    public static final RawTileCodec INSTANCE = new RawTileCodec();
+
+    private RawTileCodec() {}
+
+    /**
+     * Returns the input buffer.
+     *
+     * @param data tile data
+     * @param dataType the {@code DataBuffer} type of the tile data
+     * @return {@code data}
+     */
+    public ByteBuffer encode(ByteBuffer data, int dataType) {
+        return data;
+    }
+
+    /**
+     * Returns the input buffer.
+     *
+     * @param data tile data
+     * @param dataType the {@code DataBuffer} type of the tile data
+     * @param length the length in bytes of the tile data
+     * @return {@code data}
+     */
+    public ByteBuffer decode(ByteBuffer data, int dataType, int length) {
+        return data;
+    }
+}
@@ -0,0 +1,724 @@
+/* 
+ *  Copyright (c) 2013, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.tilecache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A spill store which writes tile data into slots within a small number of large
+ * segment files, rather than one file per tile. Each segment file is created with
+ * its full length when first needed. Slots are allocated sequentially within the
+ * current segment. Freed slots are merged with any adjacent free space and kept on
+ * a free list ordered by size. A new slot is taken from the smallest free space
+ * which can hold it, and any remainder is returned to the free list, so that space
+ * freed by tiles of one size can be reused by tiles of another, as happens when
+ * tile data are compressed. Spilling a tile then costs a single positioned write,
+ * with no file creation or deletion.
+ * <p>
+ * Segment files are created in the folder given by {@linkplain DiskCachedTile#getCacheFolder()},
+ * or a folder given when the store is created. They are deleted when no longer
+ * holding any slots and {@linkplain #trim()} is called, when the store is
+ * {@linkplain #close() closed}, or otherwise when the JVM exits.
+ * <p>
+ * Alternatively, a store can be persistent, with segment files created in a given
+ * folder and kept when the JVM exits. A persistent store records a checksum of the
+ * data written to each slot, so that the data can be verified when slots listed in
+ * a {@linkplain PersistentIndex} are reattached with
+ * {@linkplain #attach(String, long, int, int, long)} in a later session.
+ *
+ * @author Michael Bedward
+ * @since 1.4
+ * @version $Id$
+ */
+final class SlabSpillStore extends SpillStore {
+
+    private static final Logger LOGGER = Logger.getLogger("org.jaitools.tilecache");
+
+    /** Slot capacities are rounded up to a multiple of this value. */
+    static final int SLOT_ALIGNMENT = 512;
+
+    /** Name prefix of persistent segment files. */
+    static final String SEGMENT_PREFIX = "segment-";
+
+    /** Name suffix of persistent segment files. */
+    static final String SEGMENT_SUFFIX = ".dat";
+
+    /** The largest capacity of a free space. */
+    private static final int MAX_FREE_CAPACITY = (Integer.MAX_VALUE / SLOT_ALIGNMENT) * SLOT_ALIGNMENT;
+
+    private static class Segment {
+        final int id;
+        final File file;
+        final RandomAccessFile raf;
+        final FileChannel channel;
+        final long length;
+        long used;
+
+        // number of slots allocated and not yet freed
+        int numSlots;
+
+        // free spaces in this segment by offset
+        final TreeMap<Long, SegmentSlot> free = new TreeMap<Long, SegmentSlot>();
+
+        // slots reattached when the store was opened
+        List<SegmentSlot> attached;
+
+        Segment(int id, File file, long length) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.length = length;
+            this.raf = new RandomAccessFile(file, "rw");
+            this.raf.setLength(length);
+            this.channel = raf.getChannel();
+            this.used = 0;
+        }
+
+        /*
+         * Opens an existing segment file. No new slots are
+         * allocated within it.
+         */
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+            this.length = raf.length();
+            this.channel = raf.getChannel();
+            this.used = length;
+            this.attached = new ArrayList<SegmentSlot>();
+        }
+    }
+
+    private static class SegmentSlot extends Slot {
+        final Segment segment;
+
+        SegmentSlot(Segment segment, long offset, int capacity) {
+            super(segment.file, offset, capacity);
+            this.segment = segment;
+        }
+
+        /*
+         * Creates a slot with no segment, used to search the free list
+         */
+        SegmentSlot(int capacity) {
+            super(null, -1, capacity);
+            this.segment = null;
+        }
+    }
+
+    /*
+     * Orders free spaces by capacity, then by position
+     */
+    private static final Comparator<SegmentSlot> FREE_ORDER = new Comparator<SegmentSlot>() {
+        public int compare(SegmentSlot s1, SegmentSlot s2) {
+            if (s1.capacity != s2.capacity) {
+                return s1.capacity < s2.capacity ? -1 : 1;
+            }
+            int id1 = s1.segment == null ? -1 : s1.segment.id;
+            int id2 = s2.segment == null ? -1 : s2.segment.id;
+            if (id1 != id2) {
+                return id1 < id2 ? -1 : 1;
+            }
+            return s1.offset < s2.offset ? -1 : (s1.offset > s2.offset ? 1 : 0);
+        }
+    };
+
+    private final long segmentSize;
+    private final File folder;
+    private final boolean persistent;
+    private final Object lock = new Object();
+    private final List<Segment> segments;
+    private final TreeSet<SegmentSlot> freeSlots;
+    private Segment current;
+    private int nextSegmentId;
+    private boolean closed;
+
+    // existing segment files of a persistent store, by name
+    private final Map<String, Segment> existing;
+    private int nextSegmentNumber;
+
+    /**
+     * Creates a new store whose segment files are deleted when the JVM exits.
+     *
+     * @param segmentSize length in bytes of each segment file
+     */
+    SlabSpillStore(long segmentSize) {
+        this(segmentSize, null, false);
+    }
+
+    /**
+     * Creates a new store.
+     *
+     * @param segmentSize length in bytes of each segment file
+     * @param folder folder for persistent segment files, or {@code null} for
+     *        a non-persistent store
+     */
+    SlabSpillStore(long segmentSize, File folder) {
+        this(segmentSize, folder, folder != null);
+    }
+
+    /**
+     * Creates a new store.
+     *
+     * @param segmentSize length in bytes of each segment file
+     * @param folder folder for segment files, or {@code null} for the current
+     *        cache folder (non-persistent stores only)
+     * @param persistent whether segment files are kept when the JVM exits
+     */
+    SlabSpillStore(long segmentSize, File folder, boolean persistent) {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("segment size must be positive");
+        }
+        if (persistent && folder == null) {
+            throw new IllegalArgumentException("a persistent store requires a folder");
+        }
+        this.segmentSize = segmentSize;
+        this.folder = folder;
+        this.persistent = persistent;
+        this.segments = new ArrayList<Segment>();
+        this.freeSlots = new TreeSet<SegmentSlot>(FREE_ORDER);
+        this.existing = new HashMap<String, Segment>();
+
+        if (persistent) {
+            File[] files = folder.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    int n = getSegmentNumber(f.getName());
+                    if (n >= nextSegmentNumber) {
+                        nextSegmentNumber = n + 1;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Queries whether this store keeps its segment files when the JVM exits.
+     *
+     * @return {@code true} if persistent
+     */
+    boolean isPersistent() {
+        return persistent;
+    }
+
+    @Override
+    Slot write(Slot slot, ByteBuffer data) throws IOException {
+        int len = data.remaining();
+
+        SegmentSlot sslot = (SegmentSlot) slot;
+        SegmentSlot oldSlot = null;
+        if (sslot == null || sslot.capacity < len) {
+            // the old slot is only freed once the data are written
+            oldSlot = sslot;
+            sslot = allocate(len);
+        }
+
+        if (persistent) {
+            sslot.checksum = checksum(data.duplicate());
+        }
+
+        try {
+            long pos = sslot.offset;
+            while (data.hasRemaining()) {
+                pos += sslot.segment.channel.write(data, pos);
+            }
+
+        } catch (IOException ex) {
+            if (sslot != slot) {
+                free(sslot);
+            }
+            throw ex;
+        }
+
+        sslot.length = len;
+        if (oldSlot != null) {
+            free(oldSlot);
+        }
+        return sslot;
+    }
+
+    @Override
+    ByteBuffer read(Slot slot, boolean mapped) throws IOException {
+        SegmentSlot sslot = (SegmentSlot) slot;
+        FileChannel channel = sslot.segment.channel;
+
+        ByteBuffer buf;
+        if (mapped) {
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, sslot.offset, sslot.length);
+            buf.order(ByteOrder.nativeOrder());
+
+        } else {
+            buf = TileBuffers.getScratchBuffer(sslot.length);
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, sslot.offset + buf.position()) < 0) {
+                    throw new IOException("Cache segment file appears to be truncated");
+                }
+            }
+            buf.flip();
+        }
+
+        return buf;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Runs of slots which lie end to end in the same segment file are read
+     * with a single positioned read, and the buffers returned for them are
+     * views of the data read for the run.
+     */
+    @Override
+    ByteBuffer[] read(Slot[] slots) throws IOException {
+        ByteBuffer[] bufs = new ByteBuffer[slots.length];
+
+        int i = 0;
+        while (i < slots.length) {
+            SegmentSlot first = (SegmentSlot) slots[i];
+            SegmentSlot last = first;
+            int j = i + 1;
+            while (j < slots.length) {
+                SegmentSlot next = (SegmentSlot) slots[j];
+                if (next.segment != first.segment ||
+                        next.offset != last.offset + last.capacity) {
+                    break;
+                }
+                last = next;
+                j++;
+            }
+
+            long runLength = last.offset + last.length - first.offset;
+            ByteBuffer run = ByteBuffer.allocate((int) runLength);
+            FileChannel channel = first.segment.channel;
+            while (run.hasRemaining()) {
+                if (channel.read(run, first.offset + run.position()) < 0) {
+                    throw new IOException("Cache segment file appears to be truncated");
+                }
+            }
+
+            for (int k = i; k < j; k++) {
+                Slot slot = slots[k];
+                run.limit((int) (slot.offset - first.offset) + slot.length);
+                run.position((int) (slot.offset - first.offset));
+                bufs[k] = run.slice().order(ByteOrder.nativeOrder());
+            }
+
+            i = j;
+        }
+
+        return bufs;
+    }
+
+    @Override
+    void free(Slot slot) {
+        SegmentSlot sslot = (SegmentSlot) slot;
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            sslot.segment.numSlots-- ;
+            release(sslot.segment, sslot.offset, sslot.capacity);
+        }
+    }
+
+    /**
+     * Returns space in a segment to the free list, merging it with any adjacent
+     * free space. Space at the end of the allocated part of the current segment
+     * is instead returned to the unallocated part. Must be called while holding
+     * the store's lock.
+     *
+     * @param seg the segment
+     * @param offset start of the space
+     * @param capacity length of the space
+     */
+    private void release(Segment seg, long offset, int capacity) {
+        long end = offset + capacity;
+
+        SortedMap<Long, SegmentSlot> before = seg.free.headMap(offset);
+        if (!before.isEmpty()) {
+            SegmentSlot p = before.get(before.lastKey());
+            if (p.offset + p.capacity == offset &&
+                    (long) p.capacity + (end - offset) <= MAX_FREE_CAPACITY) {
+                removeFree(p);
+                offset = p.offset;
+            }
+        }
+
+        SegmentSlot next = seg.free.get(end);
+        if (next != null && (end - offset) + next.capacity <= MAX_FREE_CAPACITY) {
+            removeFree(next);
+            end += next.capacity;
+        }
+
+        if (seg == current && end == current.used) {
+            current.used = offset;
+        } else {
+            SegmentSlot space = new SegmentSlot(seg, offset, (int) (end - offset));
+            seg.free.put(space.offset, space);
+            freeSlots.add(space);
+        }
+    }
+
+    /**
+     * Removes a space from the free list. Must be called while
+     * holding the store's lock.
+     */
+    private void removeFree(SegmentSlot space) {
+        freeSlots.remove(space);
+        space.segment.free.remove(space.offset);
+    }
+
+    /**
+     * Reattaches a slot in an existing segment file of a persistent store.
+     * Once all slots listed in the store's index have been reattached,
+     * {@linkplain #reclaim()} must be called.
+     *
+     * @param fileName name of the segment file
+     * @param offset position of the slot in the file
+     * @param capacity capacity of the slot
+     * @param length length of the data in the slot
+     * @param checksum CRC-32 of the data
+     *
+     * @return the slot, or {@code null} if the segment file is missing or
+     *         does not contain the slot
+     */
+    Slot attach(String fileName, long offset, int capacity, int length, long checksum) {
+        if (!persistent || getSegmentNumber(fileName) < 0 ||
+                offset < 0 || length < 0 || length > capacity) {
+            return null;
+        }
+
+        synchronized (lock) {
+            Segment seg = existing.get(fileName);
+            if (seg == null) {
+                File file = new File(folder, fileName);
+                if (!file.isFile()) {
+                    return null;
+                }
+
+                try {
+                    seg = new Segment(nextSegmentId++, file);
+                } catch (IOException ex) {
+                    LOGGER.log(Level.WARNING, "Unable to open cache segment file " + file, ex);
+                    return null;
+                }
+                existing.put(fileName, seg);
+                segments.add(seg);
+            }
+
+            if (offset + capacity > seg.length) {
+                return null;
+            }
+
+            SegmentSlot slot = new SegmentSlot(seg, offset, capacity);
+            slot.length = length;
+            slot.checksum = checksum;
+            seg.attached.add(slot);
+            seg.numSlots++ ;
+            return slot;
+        }
+    }
+
+    /**
+     * Completes the opening of a persistent store. Space in existing segment files
+     * which is not occupied by reattached slots is made available for reuse, and
+     * segment files with no reattached slots are deleted.
+     */
+    void reclaim() {
+        if (!persistent) {
+            return;
+        }
+
+        synchronized (lock) {
+            File[] files = folder.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    if (getSegmentNumber(f.getName()) >= 0 && !existing.containsKey(f.getName())) {
+                        if (!f.delete()) {
+                            LOGGER.log(Level.WARNING, "Unable to delete cache segment file {0}", f);
+                        }
+                    }
+                }
+            }
+
+            for (Segment seg : existing.values()) {
+                reclaim(seg);
+                seg.attached = null;
+            }
+        }
+    }
+
+    /**
+     * Adds the gaps between the attached slots of an existing segment to the
+     * free list. Must be called while holding the store's lock.
+     */
+    private void reclaim(Segment seg) {
+        List<SegmentSlot> slots = seg.attached;
+        Collections.sort(slots, new Comparator<SegmentSlot>() {
+            public int compare(SegmentSlot s1, SegmentSlot s2) {
+                return s1.offset < s2.offset ? -1 : (s1.offset > s2.offset ? 1 : 0);
+            }
+        });
+
+        long pos = 0;
+        Iterator<SegmentSlot> iter = slots.iterator();
+        while (pos < seg.length) {
+            long end = (seg.length / SLOT_ALIGNMENT) * SLOT_ALIGNMENT;
+            SegmentSlot next = null;
+            if (iter.hasNext()) {
+                next = iter.next();
+                end = next.offset;
+            }
+
+            while (end - pos >= SLOT_ALIGNMENT) {
+                int capacity = (int) Math.min(end - pos, MAX_FREE_CAPACITY);
+                release(seg, pos, capacity);
+                pos += capacity;
+            }
+
+            if (next == null) {
+                break;
+            }
+            pos = Math.max(pos, next.offset + next.capacity);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Deletes the segment files of a non-persistent store which no longer hold
+     * any slots.
+     */
+    @Override
+    void trim() {
+        if (persistent) {
+            return;
+        }
+
+        synchronized (lock) {
+            Iterator<Segment> iter = segments.iterator();
+            while (iter.hasNext()) {
+                Segment seg = iter.next();
+                if (seg.numSlots == 0) {
+                    for (SegmentSlot space : seg.free.values()) {
+                        freeSlots.remove(space);
+                    }
+                    seg.free.clear();
+                    if (seg == current) {
+                        current = null;
+                    }
+                    iter.remove();
+                    closeSegment(seg);
+                }
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Closes all segment files and, unless this store is persistent,
+     * deletes them.
+     */
+    @Override
+    void close() {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            for (Segment seg : segments) {
+                closeSegment(seg);
+            }
+            segments.clear();
+            existing.clear();
+            freeSlots.clear();
+            current = null;
+        }
+    }
+
+    /**
+     * Closes a segment file and, unless this store is persistent, deletes it.
+     */
+    private void closeSegment(Segment seg) {
+        try {
+            seg.raf.close();
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "Unable to close cache segment file " + seg.file, ex);
+        }
+
+        if (!persistent && !seg.file.delete()) {
+            LOGGER.log(Level.WARNING, "Unable to delete cache segment file {0}", seg.file);
+        }
+    }
+
+    /**
+     * Forces data written to the segment files of a persistent store
+     * onto the storage device.
+     *
+     * @throws IOException on error
+     */
+    void force() throws IOException {
+        List<Segment> copy;
+        synchronized (lock) {
+            copy = new ArrayList<Segment>(segments);
+        }
+
+        for (Segment seg : copy) {
+            seg.channel.force(false);
+        }
+    }
+
+    /**
+     * Calculates the CRC-32 checksum of the data in a buffer from position to
+     * limit. The buffer's position is advanced to its limit.
+     *
+     * @param buf the buffer
+     * @return the checksum
+     */
+    static long checksum(ByteBuffer buf) {
+        CRC32 crc = new CRC32();
+        if (buf.hasArray()) {
+            crc.update(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            buf.position(buf.limit());
+
+        } else {
+            byte[] chunk = new byte[Math.min(8192, Math.max(1, buf.remaining()))];
+            while (buf.hasRemaining()) {
+                int n = Math.min(chunk.length, buf.remaining());
+                buf.get(chunk, 0, n);
+                crc.update(chunk, 0, n);
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Gets the number of a persistent segment file from its name.
+     *
+     * @param name file name
+     * @return the number, or -1 if the name is not that of a segment file
+     */
+    static int getSegmentNumber(String name) {
+        if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+            try {
+                return Integer.parseInt(name.substring(
+                        SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException ex) {
+                // not one of ours
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the number of segment files created by this store.
+     *
+     * @return number of segment files
+     */
+    int getNumSegments() {
+        synchronized (lock) {
+            return segments.size();
+        }
+    }
+
+    /**
+     * Allocates a slot, taking space from the smallest free space which is
+     * large enough if there is one.
+     *
+     * @param len number of bytes required
+     * @return the slot
+     * @throws IOException if a new segment file could not be created
+     *         or the store has been closed
+     */
+    private SegmentSlot allocate(int len) throws IOException {
+        int capacity = ((len + SLOT_ALIGNMENT - 1) / SLOT_ALIGNMENT) * SLOT_ALIGNMENT;
+
+        synchronized (lock) {
+            if (closed) {
+                throw new IOException("Spill store has been closed");
+            }
+
+            SortedSet<SegmentSlot> fits = freeSlots.tailSet(new SegmentSlot(capacity));
+            if (!fits.isEmpty()) {
+                SegmentSlot space = fits.first();
+                removeFree(space);
+                if (space.capacity > capacity) {
+                    release(space.segment, space.offset + capacity, space.capacity - capacity);
+                }
+                space.segment.numSlots++ ;
+                return new SegmentSlot(space.segment, space.offset, capacity);
+            }
+
+            if (current == null || current.length - current.used < capacity) {
+                Segment prev = current;
+                if (!persistent) {
+                    current = new Segment(nextSegmentId++,
+                            DiskCachedTile.createFile(folder), Math.max(segmentSize, capacity));
+                    current.file.deleteOnExit();
+                } else {
+                    File file = new File(folder, SEGMENT_PREFIX + nextSegmentNumber++ + SEGMENT_SUFFIX);
+                    current = new Segment(nextSegmentId++, file, Math.max(segmentSize, capacity));
+                }
+                segments.add(current);
+                LOGGER.log(Level.FINE, "Created cache segment file {0}", current.file.getPath());
+
+                // the unused end of the previous segment becomes free space
+                if (prev != null) {
+                    long end = (prev.length / SLOT_ALIGNMENT) * SLOT_ALIGNMENT;
+                    if (end - prev.used >= SLOT_ALIGNMENT) {
+                        release(prev, prev.used,
+                                (int) Math.min(end - prev.used, MAX_FREE_CAPACITY));
+                    }
+                    prev.used = prev.length;
+                }
+            }
+
+            SegmentSlot slot = new SegmentSlot(current, current.used, capacity);
+            current.used += capacity;
+            current.numSlots++ ;
+            return slot;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/* 
+ *  Copyright (c) 2013, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.tilecache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Base class for the disk storage used by {@code DiskCachedTile} objects to
+ * hold tile data which have been spilled from memory. A store hands out
+ * {@linkplain Slot} objects which record where a tile's data were written.
+ * <p>
+ * Implementations must allow concurrent calls for different slots. Calls for
+ * a given slot are serialized by the tile which owns it.
+ *
+ * @author Michael Bedward
+ * @since 1.4
+ * @version $Id$
+ */
+abstract class SpillStore {
+
+    /**
+     * Records the location and size of a tile's data within a store.
+     */
+    static class Slot {
+        final File file;
+        final long offset;
+        final int capacity;
+        int length;
+
+        // CRC-32 of the stored data (only maintained by persistent stores)
+        long checksum;
+
+        // index of the stripe holding the slot (only used by striped stores)
+        int stripe;
+
+        /**
+         * Creates a new slot.
+         *
+         * @param file the file holding the slot
+         * @param offset position of the slot in the file
+         * @param capacity maximum number of bytes that the slot can hold
+         */
+        Slot(File file, long offset, int capacity) {
+            this.file = file;
+            this.offset = offset;
+            this.capacity = capacity;
+        }
+    }
+
+    /**
+     * Writes data to the store with a single positioned write.
+     *
+     * @param slot the slot previously used for this tile, or {@code null}
+     *        if the tile has not been written before; the store may reuse it
+     *        or free it and return a different slot
+     * @param data the data to write, from position to limit
+     *
+     * @return the slot holding the data
+     * @throws IOException on error writing the data; the slot passed in is
+     *         then still allocated to the tile, but its data may have been
+     *         partly overwritten
+     */
+    abstract Slot write(Slot slot, ByteBuffer data) throws IOException;
+
+    /**
+     * Writes data to the store in a given stripe. Stores which are not striped
+     * have a single stripe and ignore the {@code stripe} argument.
+     *
+     * @param slot the slot previously used for this tile, or {@code null}
+     * @param data the data to write, from position to limit
+     * @param stripe stripe chosen for the tile by {@linkplain #selectStripe(long)}
+     *
+     * @return the slot holding the data
+     * @throws IOException on error writing the data
+     */
+    Slot write(Slot slot, ByteBuffer data, int stripe) throws IOException {
+        return write(slot, data);
+    }
+
+    /**
+     * Gets the number of stripes, ie. independent storage locations such as
+     * folders on different disks, across which this store places tile data.
+     *
+     * @return number of stripes
+     */
+    int getNumStripes() {
+        return 1;
+    }
+
+    /**
+     * Chooses the stripe to hold a tile's data.
+     *
+     * @param size size of the tile's data in bytes
+     * @return the stripe index
+     */
+    int selectStripe(long size) {
+        return 0;
+    }
+
+    /**
+     * Records that a tile placed in a stripe has been discarded.
+     *
+     * @param stripe the stripe index returned by {@linkplain #selectStripe(long)}
+     * @param size size of the tile's data in bytes
+     */
+    void releaseStripe(int stripe, long size) {
+    }
+
+    /**
+     * Reads the data held in a slot.
+     *
+     * @param slot the slot
+     * @param mapped if {@code true} the store may return a read-only,
+     *        memory-mapped buffer
+     *
+     * @return a buffer in native byte order, with position zero and limit equal
+     *         to the slot's data length; unless memory-mapped, the buffer is the
+     *         calling thread's scratch buffer (see {@linkplain TileBuffers#getScratchBuffer(int)})
+     * @throws IOException on error reading the data
+     */
+    abstract ByteBuffer read(Slot slot, boolean mapped) throws IOException;
+
+    /**
+     * Reads the data held in a number of slots. Callers should order the slots
+     * by file and offset so that stores can combine reads of adjacent slots.
+     * This implementation reads each slot in turn.
+     *
+     * @param slots the slots
+     *
+     * @return a buffer for each slot, in native byte order, with position zero
+     *         and limit equal to the slot's data length; the buffers are never
+     *         the calling thread's scratch buffer
+     * @throws IOException on error reading the data
+     */
+    ByteBuffer[] read(Slot[] slots) throws IOException {
+        ByteBuffer[] bufs = new ByteBuffer[slots.length];
+        for (int i = 0; i < slots.length; i++) {
+            ByteBuffer src = read(slots[i], false);
+            ByteBuffer buf = ByteBuffer.allocate(src.remaining()).order(ByteOrder.nativeOrder());
+            buf.put(src);
+            buf.flip();
+            bufs[i] = buf;
+        }
+        return bufs;
+    }
+
+    /**
+     * Releases a slot. The slot must not be used after this call.
+     *
+     * @param slot the slot
+     */
+    abstract void free(Slot slot);
+
+    /**
+     * Releases any files which no longer hold data. This implementation
+     * does nothing.
+     */
+    void trim() {
+    }
+
+    /**
+     * Releases the files and other resources held by this store. The store
+     * must not be used after this call. This implementation does nothing.
+     */
+    void close() {
+    }
+}
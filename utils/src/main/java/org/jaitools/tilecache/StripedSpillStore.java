@@ -0,0 +1,168 @@
+/* 
+ *  Copyright (c) 2013, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.tilecache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A spill store which places tile data across several stores, each writing to
+ * its own folder, so that spill I/O can be spread across several disks. Each
+ * tile is assigned to a stripe when its data are first written and stays
+ * there. Stripes are chosen either in turn or, to balance stripes when tiles
+ * are discarded unevenly, by choosing the stripe holding the least tile data.
+ *
+ * @author Michael Bedward
+ * @since 1.4
+ * @version $Id$
+ */
+final class StripedSpillStore extends SpillStore {
+
+    private final SpillStore[] stripes;
+    private final boolean leastUsed;
+
+    // bytes of tile data assigned to each stripe, and the next stripe in turn
+    private final long[] usage;
+    private int next;
+
+    /**
+     * Creates a new store.
+     *
+     * @param stripes the store for each stripe
+     * @param leastUsed {@code true} to place tiles in the stripe holding
+     *        the least data; {@code false} to place them in turn
+     */
+    StripedSpillStore(SpillStore[] stripes, boolean leastUsed) {
+        if (stripes.length == 0) {
+            throw new IllegalArgumentException("at least one stripe is required");
+        }
+        this.stripes = stripes.clone();
+        this.leastUsed = leastUsed;
+        this.usage = new long[stripes.length];
+    }
+
+    @Override
+    int getNumStripes() {
+        return stripes.length;
+    }
+
+    @Override
+    synchronized int selectStripe(long size) {
+        int stripe;
+        if (leastUsed) {
+            stripe = 0;
+            for (int i = 1; i < usage.length; i++) {
+                if (usage[i] < usage[stripe]) {
+                    stripe = i;
+                }
+            }
+        } else {
+            stripe = next;
+            next = (next + 1) % stripes.length;
+        }
+
+        usage[stripe] += size;
+        return stripe;
+    }
+
+    @Override
+    synchronized void releaseStripe(int stripe, long size) {
+        usage[stripe] -= size;
+    }
+
+    @Override
+    Slot write(Slot slot, ByteBuffer data) throws IOException {
+        return write(slot, data, slot == null ? selectStripe(0) : slot.stripe);
+    }
+
+    @Override
+    Slot write(Slot slot, ByteBuffer data, int stripe) throws IOException {
+        if (slot != null && slot.stripe != stripe) {
+            // the old slot is only freed once the data are written
+            Slot newSlot = stripes[stripe].write(null, data);
+            newSlot.stripe = stripe;
+            stripes[slot.stripe].free(slot);
+            return newSlot;
+        }
+
+        slot = stripes[stripe].write(slot, data);
+        slot.stripe = stripe;
+        return slot;
+    }
+
+    @Override
+    ByteBuffer read(Slot slot, boolean mapped) throws IOException {
+        return stripes[slot.stripe].read(slot, mapped);
+    }
+
+    @Override
+    ByteBuffer[] read(Slot[] slots) throws IOException {
+        ByteBuffer[] bufs = new ByteBuffer[slots.length];
+        int[] index = new int[slots.length];
+
+        for (int s = 0; s < stripes.length; s++) {
+            int n = 0;
+            for (int i = 0; i < slots.length; i++) {
+                if (slots[i].stripe == s) {
+                    index[n++] = i;
+                }
+            }
+
+            if (n > 0) {
+                Slot[] stripeSlots = new Slot[n];
+                for (int k = 0; k < n; k++) {
+                    stripeSlots[k] = slots[index[k]];
+                }
+
+                ByteBuffer[] stripeBufs = stripes[s].read(stripeSlots);
+                for (int k = 0; k < n; k++) {
+                    bufs[index[k]] = stripeBufs[k];
+                }
+            }
+        }
+
+        return bufs;
+    }
+
+    @Override
+    void free(Slot slot) {
+        stripes[slot.stripe].free(slot);
+    }
+
+    @Override
+    void trim() {
+        for (SpillStore stripe : stripes) {
+            stripe.trim();
+        }
+    }
+
+    @Override
+    void close() {
+        for (SpillStore stripe : stripes) {
+            stripe.close();
+        }
+    }
+}
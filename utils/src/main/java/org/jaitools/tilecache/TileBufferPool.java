@@ -0,0 +1,186 @@
+/* 
+ *  Copyright (c) 2013, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.tilecache;
+
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferDouble;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferShort;
+import java.awt.image.DataBufferUShort;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Package-private pool of tile data arrays used by {@code DiskMemTileCache} to
+ * recycle the arrays of tiles removed from memory into tiles reloaded from disk
+ * or the off-heap tier. Arrays are pooled by data type, number of banks and bank
+ * length, which are the same for all tiles of an image, so that in steady state
+ * reloading a tile allocates no new data arrays.
+ * <p>
+ * The pool holds no more than its capacity in bytes: arrays offered when it
+ * is full are left to the garbage collector. All methods are thread-safe.
+ *
+ * @author Michael Bedward
+ * @since 1.4
+ * @version $Id$
+ */
+final class TileBufferPool {
+
+    private final long capacity;
+    private long size;
+
+    // bank arrays (eg. byte[][]) keyed by data type, banks and length
+    private final Map<Long, List<Object>> pool;
+
+    /**
+     * Creates a new pool.
+     *
+     * @param capacity maximum size of pooled arrays in bytes
+     */
+    TileBufferPool(long capacity) {
+        this.capacity = capacity;
+        this.pool = new HashMap<Long, List<Object>>();
+    }
+
+    /**
+     * Offers the arrays of a data buffer which is no longer in use. They are
+     * pooled if the pool has room and the buffer's banks are unshared arrays
+     * with no offset.
+     *
+     * @param dataBuf the data buffer
+     */
+    void recycle(DataBuffer dataBuf) {
+        final int dataType = dataBuf.getDataType();
+        final int numBanks = dataBuf.getNumBanks();
+        final int dataLen = dataBuf.getSize();
+
+        for (int offset : dataBuf.getOffsets()) {
+            if (offset != 0) {
+                return;
+            }
+        }
+
+        Object bankData = getBankData(dataBuf);
+        if (bankData == null || !hasBankLength(bankData, dataLen)) {
+            return;
+        }
+
+        final long bytes = TileBuffers.getByteLength(dataType, numBanks, dataLen);
+        synchronized (this) {
+            if (size + bytes > capacity) {
+                return;
+            }
+
+            Long key = getKey(dataType, numBanks, dataLen);
+            List<Object> arrays = pool.get(key);
+            if (arrays == null) {
+                arrays = new ArrayList<Object>();
+                pool.put(key, arrays);
+            }
+            arrays.add(bankData);
+            size += bytes;
+        }
+    }
+
+    /**
+     * Takes bank arrays from the pool.
+     *
+     * @param dataType a {@code DataBuffer} type constant
+     * @param numBanks number of banks
+     * @param dataLen number of elements per bank
+     * @return the arrays (eg. a {@code byte[numBanks][dataLen]}) or {@code null}
+     *         if none are available
+     */
+    synchronized Object take(int dataType, int numBanks, int dataLen) {
+        List<Object> arrays = pool.get(getKey(dataType, numBanks, dataLen));
+        if (arrays == null || arrays.isEmpty()) {
+            return null;
+        }
+
+        size -= TileBuffers.getByteLength(dataType, numBanks, dataLen);
+        return arrays.remove(arrays.size() - 1);
+    }
+
+    /**
+     * Removes all pooled arrays.
+     */
+    synchronized void clear() {
+        pool.clear();
+        size = 0;
+    }
+
+    /**
+     * Gets the size of pooled arrays.
+     *
+     * @return size in bytes
+     */
+    synchronized long getSize() {
+        return size;
+    }
+
+    private static Long getKey(int dataType, int numBanks, int dataLen) {
+        return Long.valueOf(((long) dataLen << 32) | ((long) numBanks << 8) | dataType);
+    }
+
+    /**
+     * Gets the bank arrays of a standard data buffer.
+     */
+    private static Object getBankData(DataBuffer dataBuf) {
+        if (dataBuf instanceof DataBufferByte) {
+            return ((DataBufferByte) dataBuf).getBankData();
+        } else if (dataBuf instanceof DataBufferUShort) {
+            return ((DataBufferUShort) dataBuf).getBankData();
+        } else if (dataBuf instanceof DataBufferShort) {
+            return ((DataBufferShort) dataBuf).getBankData();
+        } else if (dataBuf instanceof DataBufferInt) {
+            return ((DataBufferInt) dataBuf).getBankData();
+        } else if (dataBuf instanceof DataBufferFloat) {
+            return ((DataBufferFloat) dataBuf).getBankData();
+        } else if (dataBuf instanceof DataBufferDouble) {
+            return ((DataBufferDouble) dataBuf).getBankData();
+        }
+        return null;
+    }
+
+    /**
+     * Checks that each bank array has exactly the given length, so that
+     * the arrays can be used for any tile with the same key.
+     */
+    private static boolean hasBankLength(Object bankData, int dataLen) {
+        Object[] banks = (Object[]) bankData;
+        for (Object bank : banks) {
+            if (Array.getLength(bank) != dataLen) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,73 @@
+/* 
+ *  Copyright (c) 2013, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.tilecache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes tile data written to disk by {@code DiskMemTileCache}.
+ * A codec is set for a cache with the {@linkplain DiskMemTileCache#KEY_TILE_CODEC}
+ * parameter. The default, {@linkplain RawTileCodec}, writes data unchanged;
+ * {@linkplain DeflateTileCodec} compresses them.
+ * <p>
+ * Tile data are presented to the codec as the elements of all banks of the tile's
+ * {@code DataBuffer}, one bank after another, in native byte order. Codec
+ * methods may be called concurrently by several threads.
+ *
+ * @author Michael Bedward
+ * @since 1.4
+ * @version $Id$
+ */
+public interface TileCodec {
+
+    /**
+     * Encodes tile data. The buffer returned may be {@code data} itself
+     * or a buffer owned by the codec which remains valid until the calling
+     * thread next calls a method of this codec.
+     *
+     * @param data tile data in native byte order, from position to limit
+     * @param dataType the {@code DataBuffer} type of the tile data
+     *
+     * @return encoded data, from position to limit
+     * @throws IOException on error encoding the data
+     */
+    ByteBuffer encode(ByteBuffer data, int dataType) throws IOException;
+
+    /**
+     * Decodes tile data. The buffer returned may be {@code data} itself
+     * or a buffer owned by the codec which remains valid until the calling
+     * thread next calls a method of this codec.
+     *
+     * @param data encoded data, from position to limit
+     * @param dataType the {@code DataBuffer} type of the tile data
+     * @param length the length in bytes of the decoded data
+     *
+     * @return decoded data in native byte order, from position to limit
+     * @throws IOException if the data cannot be decoded
+     */
+    ByteBuffer decode(ByteBuffer data, int dataType, int length) throws IOException;
+}
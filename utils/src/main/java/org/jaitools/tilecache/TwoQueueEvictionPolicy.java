@@ -0,0 +1,206 @@
+/* 
+ *  Copyright (c) 2013, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.tilecache;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * A scan-resistant eviction policy for {@code DiskMemTileCache} based on the
+ * 2Q algorithm of Johnson and Shasha.
+ * <p>
+ * A tile placed into memory for the first time joins a first-in, first-out
+ * queue (A1in) whose size is limited to a fraction of the resident tiles. When
+ * removed from that queue, the tile's ID is remembered in a second queue (A1out).
+ * If the tile returns to memory while its ID is remembered, it joins the main
+ * queue (Am), which is managed in least-recently-used order. Tiles read once, as
+ * in a scan through all of the tiles of a large image, therefore pass through
+ * A1in without displacing tiles in repeated use.
+ * <p>
+ * The queue sizes are proportional to the largest number of tiles that have been
+ * resident at once, so the policy works best when cached tiles are of similar size.
+ * Example of use:
+ * <pre><code>
+ * DiskMemTileCache cache = new DiskMemTileCache();
+ * cache.setEvictionPolicy(new TwoQueueEvictionPolicy());
+ * </code></pre>
+ *
+ * @author Michael Bedward
+ * @since 1.4
+ * @version $Id$
+ */
+public final class TwoQueueEvictionPolicy implements EvictionPolicy {
+
+    /**
+     * Default maximum size of the A1in queue (0.25) as a fraction
+     * of the number of resident tiles.
+     */
+    public static final double DEFAULT_IN_FRACTION = 0.25;
+
+    /**
+     * Default maximum size of the A1out queue (0.5) as a fraction
+     * of the number of resident tiles.
+     */
+    public static final double DEFAULT_OUT_FRACTION = 0.5;
+
+    private final double inFraction;
+    private final double outFraction;
+
+    // resident tiles, oldest first
+    private final LinkedHashSet<DiskCachedTile> a1in;
+    private final LinkedHashSet<DiskCachedTile> am;
+
+    // IDs of tiles recently removed from a1in
+    private final LinkedHashSet<Object> a1out;
+
+    // tiles passed over by the cache and the queue each came from
+    private final Map<DiskCachedTile, LinkedHashSet<DiskCachedTile>> skipped;
+
+    // largest number of resident tiles seen
+    private int c;
+
+    /**
+     * Creates a new policy with default queue sizes.
+     */
+    public TwoQueueEvictionPolicy() {
+        this(DEFAULT_IN_FRACTION, DEFAULT_OUT_FRACTION);
+    }
+
+    /**
+     * Creates a new policy.
+     *
+     * @param inFraction maximum size of the A1in queue as a fraction of the number
+     *        of resident tiles (must be between 0 and 1)
+     * @param outFraction maximum size of the A1out queue as a fraction of the number
+     *        of resident tiles (must be positive)
+     */
+    public TwoQueueEvictionPolicy(double inFraction, double outFraction) {
+        if (inFraction <= 0 || inFraction >= 1) {
+            throw new IllegalArgumentException("inFraction must be between 0 and 1");
+        }
+        if (outFraction <= 0) {
+            throw new IllegalArgumentException("outFraction must be positive");
+        }
+
+        this.inFraction = inFraction;
+        this.outFraction = outFraction;
+        a1in = new LinkedHashSet<DiskCachedTile>();
+        am = new LinkedHashSet<DiskCachedTile>();
+        a1out = new LinkedHashSet<Object>();
+        skipped = new IdentityHashMap<DiskCachedTile, LinkedHashSet<DiskCachedTile>>();
+    }
+
+    public void add(DiskCachedTile tile) {
+        if (a1in.contains(tile) || am.contains(tile) || skipped.containsKey(tile)) {
+            return;
+        }
+
+        // the request which made the tile resident is not a reuse
+        tile.clearReferenced();
+
+        if (a1out.remove(tile.getTileId())) {
+            am.add(tile);
+        } else {
+            a1in.add(tile);
+        }
+
+        c = Math.max(c, a1in.size() + am.size());
+    }
+
+    public void remove(DiskCachedTile tile) {
+        LinkedHashSet<DiskCachedTile> queue = skipped.remove(tile);
+        if (a1in.remove(tile) || queue == a1in) {
+            a1out.add(tile.getTileId());
+
+            int maxOut = Math.max(1, (int) (c * outFraction));
+            while (a1out.size() > maxOut) {
+                Iterator<Object> iter = a1out.iterator();
+                iter.next();
+                iter.remove();
+            }
+
+        } else {
+            am.remove(tile);
+        }
+    }
+
+    public DiskCachedTile nextVictim() {
+        int maxIn = Math.max(1, (int) (c * inFraction));
+        if (!a1in.isEmpty() && (a1in.size() > maxIn || am.isEmpty())) {
+            return a1in.iterator().next();
+        }
+
+        if (am.isEmpty()) {
+            return null;
+        }
+
+        /*
+         * Least recently used tile in am, giving referenced tiles
+         * a second chance
+         */
+        final int n = am.size();
+        for (int i = 0; i < n; i++) {
+            DiskCachedTile tile = am.iterator().next();
+            if (!tile.clearReferenced()) {
+                return tile;
+            }
+            am.remove(tile);
+            am.add(tile);
+        }
+
+        return am.iterator().next();
+    }
+
+    /**
+     * {@inheritDoc}
+     * The tile leaves its queue without its ID being added to A1out,
+     * and returns to the tail of the same queue when it is requeued.
+     */
+    public void skip(DiskCachedTile tile) {
+        if (a1in.remove(tile)) {
+            skipped.put(tile, a1in);
+        } else if (am.remove(tile)) {
+            skipped.put(tile, am);
+        }
+    }
+
+    public void requeue(DiskCachedTile tile) {
+        LinkedHashSet<DiskCachedTile> queue = skipped.remove(tile);
+        if (queue != null) {
+            queue.add(tile);
+        }
+    }
+
+    public void clear() {
+        a1in.clear();
+        am.clear();
+        skipped.clear();
+        a1out.clear();
+        c = 0;
+    }
+}
@@ -35,9 +35,15 @@ import java.awt.image.SampleModel;
 import java.awt.image.TileObserver;
 import java.awt.image.WritableRaster;
 import java.awt.image.WritableRenderedImage;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -45,7 +51,7 @@ import javax.media.jai.ImageLayout;
 import javax.media.jai.PlanarImage;
 
 import org.jaitools.tilecache.DiskMemTileCache;
-import org.jaitools.CollectionFactory;
+import org.jaitools.tilecache.TileNotResidentException;
 
 
 /**
@@ -78,6 +84,20 @@ import org.jaitools.CollectionFactory;
  *     long memCapacity = 128 * 1024 * 1024; // 128 Mb
  *     DiskMemImage.getCommonCache().setMemoryCapacity(memCapacity);
  * </code></pre>
+ * Tiles can be checked out for writing by several threads at once. Each tile
+ * has its own count of writers, and checking out or releasing a tile only
+ * locks a stripe of tiles which includes it, so threads writing into different
+ * tiles rarely wait for each other. Registered {@code TileObserver}s are notified
+ * after the stripe has been unlocked, so observers may themselves check out or
+ * release tiles. Each check-out and each release produces one notification, but
+ * when several threads check out and release the same tile at once, the
+ * notifications may not arrive in the order of the check-outs and releases.
+ * <p>
+ * Since version 1.4 the counts of writers for each tile are private. Subclasses
+ * which used the protected {@code numWriters} and {@code numTilesInUse} fields of
+ * earlier versions should call {@linkplain #getNumWriters(int, int)},
+ * {@linkplain #isTileWritable(int, int)}, {@linkplain #hasTileWriters()} or
+ * {@linkplain #getWritableTileIndices()} instead.
  *
  * @see DiskMemTileCache
  * 
@@ -158,20 +178,22 @@ public class DiskMemImage
      */
     protected Rectangle tileGrid;
 
-    /**
-     * A 2D array with dimensions corresponding to the tile grid width
-     * and height that records, for each tile, the number of writers
-     * that have the tile checked out currently
+    /*
+     * Records, for each tile, the number of writers that have the tile
+     * checked out currently. Tiles are indexed in row-major order of the
+     * tile grid (see getTileIndex).
      */
-    protected int[][] numWriters;
+    private AtomicIntegerArray numWriters;
 
-    /**
-     * The number of tiles that are currently checked out
-     * for writing
-     *
-     * @see #getWritableTileIndices()
+    // the number of tiles that are currently checked out for writing
+    private AtomicInteger numTilesInUse;
+
+    /*
+     * Lock stripes for checking out tiles. The number of
+     * stripes must be a power of 2.
      */
-    protected int numTilesInUse;
+    private static final int NUM_TILE_LOCKS = 32;
+    private final ReentrantLock[] tileLocks;
 
     /**
      * The amount of memory (in bytes) required to hold
@@ -315,14 +337,19 @@ public class DiskMemImage
                 getMaxTileX() - getMinTileX() + 1,
                 getMaxTileY() - getMinTileY() + 1);
 
-        numWriters = new int[tileGrid.width][tileGrid.height];
-        numTilesInUse = 0;
+        numWriters = new AtomicIntegerArray(tileGrid.width * tileGrid.height);
+        numTilesInUse = new AtomicInteger();
+
+        tileLocks = new ReentrantLock[NUM_TILE_LOCKS];
+        for (int i = 0; i < NUM_TILE_LOCKS; i++) {
+            tileLocks[i] = new ReentrantLock();
+        }
 
         DataBuffer db = tileSampleModel.createDataBuffer();
         tileMemorySize = DataBuffer.getDataTypeSize(db.getDataType()) / 8L *
                 db.getSize() * db.getNumBanks();
 
-        tileObservers = CollectionFactory.set();
+        tileObservers = new CopyOnWriteArraySet<TileObserver>();
 
         // just to remind us that we are deferring creation of
         // the tile cache
@@ -343,8 +370,18 @@ public class DiskMemImage
         if (tileGrid.contains(tileX, tileY)) {
             r = getTileCache().getTile(this, tileX, tileY);
             if (r == null) {
-                r = createTile(tileX, tileY);
-                getTileCache().add(this, tileX, tileY, r);
+                ReentrantLock lock = getTileLock(tileX, tileY);
+                lock.lock();
+                try {
+                    // another thread may have created the tile
+                    r = getTileCache().getTile(this, tileX, tileY);
+                    if (r == null) {
+                        r = createTile(tileX, tileY);
+                        getTileCache().add(this, tileX, tileY, r);
+                    }
+                } finally {
+                    lock.unlock();
+                }
             }
         }
 
@@ -368,9 +405,11 @@ public class DiskMemImage
     /**
      * Checks out a tile for writing. The tile will be unavailable to other
      * callers through this method until it is released via
-     * {@linkplain #releaseWritableTile(int, int)}. If this method is
-     * called for the same time prior to the tile being released
-     * it returns {@code null} and a warning message is logged.
+     * {@linkplain #releaseWritableTile(int, int)}. While checked out, the
+     * tile is pinned in cache memory (see {@linkplain DiskMemTileCache#pinTile})
+     * so that changes made to it cannot be lost. A tile can be checked
+     * out by more than one writer at a time, and different tiles can be
+     * checked out concurrently by different threads.
      *
      * @param tileX tile X ordinate
      * @param tileY tile Y ordinate
@@ -380,32 +419,72 @@ public class DiskMemImage
     public WritableRaster getWritableTile(int tileX, int tileY) {
         WritableRaster r = null;
         if (tileGrid.contains(tileX, tileY)) {
-            numWriters[tileX - tileGrid.x][tileY - tileGrid.y]++ ;
-            if (numWriters[tileX - tileGrid.x][tileY - tileGrid.y] == 1) {
-                numTilesInUse++ ;
+            ReentrantLock lock = getTileLock(tileX, tileY);
+            lock.lock();
+            try {
+                r = checkOutTile(tileX, tileY);
+            } finally {
+                lock.unlock();
             }
+            notifyTileObservers(tileX, tileY, true);
+        }
+        return r;
+    }
 
-            r = (WritableRaster) getTileCache().getTile(this, tileX, tileY);
-            if (r == null) {
-                r = createTile(tileX, tileY);
-                getTileCache().add(this, tileX, tileY, r);
-            }
+    /**
+     * Checks out a tile for writing. The caller holds the tile's lock.
+     *
+     * @param tileX tile X ordinate
+     * @param tileY tile Y ordinate
+     * @return the tile data for writing
+     */
+    private WritableRaster checkOutTile(int tileX, int tileY) {
+        WritableRaster r = null;
+        if (numWriters.incrementAndGet(getTileIndex(tileX, tileY)) == 1) {
+            numTilesInUse.incrementAndGet();
+        }
 
-            for (TileObserver obs : tileObservers) {
-                obs.tileUpdate(this, tileX, tileY, true);
-            }
+        /*
+         * Pin the tile so that it stays in memory while checked out.
+         * The cache then gives us a tile with its own data even if it
+         * holds constant tiles with shared data.
+         */
+        DiskMemTileCache cache = getTileCache();
+        WritableRaster newTile = null;
+        if (!cache.pinTile(this, tileX, tileY)) {
+            newTile = createTile(tileX, tileY);
+            cache.add(this, tileX, tileY, newTile);
+            cache.pinTile(this, tileX, tileY);
+        }
+
+        r = (WritableRaster) cache.getTileForWriting(this, tileX, tileY);
+        if (r == null) {
+            r = newTile;
+        }
+
+        /*
+         * Mark the tile as dirty now, rather than only when it is
+         * released, so that changes are not lost if the cache
+         * swaps the tile out of memory while it is checked out
+         */
+        try {
+            getTileCache().setTileChanged(this, tileX, tileY);
+
+        } catch (TileNotResidentException ex) {
+            // the tile is too large to be held in cache memory
+
+        } catch (Exception ex) {
+            Logger.getLogger(DiskMemImage.class.getName()).
+                    log(Level.SEVERE, null, ex);
         }
+
         return r;
     }
 
     /**
-     * Releases a tile that was checked out for writing. The cache's disk copy of
-     * the tile's data will be refreshed.
-     * <p>
-     * If the cache no longer has the tile in its memory storage, e.g.
-     * because of memory swapping for other tile accesses, the cache
-     * will be unable to refresh the tile's data on disk. In this case
-     * a warning message is logged.
+     * Releases a tile that was checked out for writing. The tile is marked as
+     * changed so that the cache's disk copy of the tile's data will be refreshed
+     * when the tile is next removed from memory, and is unpinned.
      * <p>
      * If the tile was not previously checked-out via
      * {@linkplain #getWritableTile(int, int)} a warning message is
@@ -416,33 +495,70 @@ public class DiskMemImage
      */
     public void releaseWritableTile(int tileX, int tileY) {
         if (tileGrid.contains(tileX, tileY)) {
-            numWriters[tileX - tileGrid.x][tileY - tileGrid.y]-- ;
-            if (numWriters[tileX - tileGrid.x][tileY - tileGrid.y] < 0) {
-                Logger.getLogger(
-                        DiskMemImage.class.getName()).log(Level.SEVERE,
-                            String.format("Tile %d,%d released more times than it has been checked out",
-                                tileX, tileY));
-
-            } else if (numWriters[tileX - tileGrid.x][tileY - tileGrid.y] == 0) {
-                numTilesInUse--;
+            ReentrantLock lock = getTileLock(tileX, tileY);
+            lock.lock();
+            try {
+                releaseTile(tileX, tileY);
+            } finally {
+                lock.unlock();
             }
+            notifyTileObservers(tileX, tileY, false);
+        }
+    }
 
-            /*
-             * TODO: Consider skipping this step. It is mostly here as a
-             * precaution against the cached tile being garbage collected
-             * if the system runs very low on memory.
-             */
-            try {
-                getTileCache().setTileChanged(this, tileX, tileY);
+    /**
+     * Releases a tile that was checked out for writing. The caller
+     * holds the tile's lock.
+     *
+     * @param tileX tile X ordinate
+     * @param tileY tile Y ordinate
+     */
+    private void releaseTile(int tileX, int tileY) {
+        int index = getTileIndex(tileX, tileY);
+        int n = numWriters.decrementAndGet(index);
+        if (n < 0) {
+            numWriters.incrementAndGet(index);
+            Logger.getLogger(
+                    DiskMemImage.class.getName()).log(Level.SEVERE,
+                        String.format("Tile %d,%d released more times than it has been checked out",
+                            tileX, tileY));
+
+        } else if (n == 0) {
+            numTilesInUse.decrementAndGet();
+        }
 
-            } catch (Exception ex) {
-                Logger.getLogger(DiskMemImage.class.getName()).
-                        log(Level.SEVERE, null, ex);
-            }
+        /*
+         * TODO: Consider skipping this step. It is mostly here as a
+         * precaution against the cached tile being garbage collected
+         * if the system runs very low on memory.
+         */
+        try {
+            getTileCache().setTileChanged(this, tileX, tileY);
 
-            for (TileObserver obs : tileObservers) {
-                obs.tileUpdate(this, tileX, tileY, false);
-            }
+        } catch (TileNotResidentException ex) {
+            // the tile is too large to be held in cache memory
+
+        } catch (Exception ex) {
+            Logger.getLogger(DiskMemImage.class.getName()).
+                    log(Level.SEVERE, null, ex);
+        }
+        if (n >= 0) {
+            getTileCache().unpinTile(this, tileX, tileY);
+        }
+    }
+
+    /**
+     * Notifies registered tile observers that a tile has been checked out
+     * or released. Called without holding the tile's lock.
+     *
+     * @param tileX tile X ordinate
+     * @param tileY tile Y ordinate
+     * @param willBeWritable {@code true} if the tile has been checked out;
+     *        {@code false} if it has been released
+     */
+    private void notifyTileObservers(int tileX, int tileY, boolean willBeWritable) {
+        for (TileObserver obs : tileObservers) {
+            obs.tileUpdate(this, tileX, tileY, willBeWritable);
         }
     }
 
@@ -453,10 +569,25 @@ public class DiskMemImage
      * @param tileX tile X ordinate
      * @param tileY tile Y ordinate
      * @return {@code true} if the tile is currently checked-out for
-     *          writing; {@code false} otherwise.
+     *          writing; {@code false} otherwise or if the tile is not
+     *          within the tile grid
      */
     public boolean isTileWritable(int tileX, int tileY) {
-        return numWriters[tileX - tileGrid.x][tileY - tileGrid.y] > 0;
+        return getNumWriters(tileX, tileY) > 0;
+    }
+
+    /**
+     * Gets the number of writers that currently have a tile checked out.
+     *
+     * @param tileX tile X ordinate
+     * @param tileY tile Y ordinate
+     * @return number of writers (0 if the tile is not within the tile grid)
+     */
+    protected int getNumWriters(int tileX, int tileY) {
+        if (!tileGrid.contains(tileX, tileY)) {
+            return 0;
+        }
+        return numWriters.get(getTileIndex(tileX, tileY));
     }
 
     /**
@@ -468,16 +599,19 @@ public class DiskMemImage
     public Point[] getWritableTileIndices() {
         Point[] indices = null;
 
-        if (numTilesInUse > 0) {
-            indices = new Point[numTilesInUse];
-            int k = 0;
+        if (numTilesInUse.get() > 0) {
+            // the tiles checked out may change while we look
+            List<Point> points = new ArrayList<Point>();
             for (int y = tileGrid.y, ny = 0; ny < tileGrid.height; y++, ny++) {
                 for (int x = tileGrid.x, nx = 0; nx < tileGrid.width; x++, nx++) {
-                    if (numWriters[nx][ny] > 0) {
-                        indices[k++] = new Point(x, y);
+                    if (numWriters.get(getTileIndex(x, y)) > 0) {
+                        points.add(new Point(x, y));
                     }
                 }
             }
+            if (!points.isEmpty()) {
+                indices = points.toArray(new Point[points.size()]);
+            }
         }
 
         return indices;
@@ -489,7 +623,7 @@ public class DiskMemImage
      *         {@code false} otherwise
      */
     public boolean hasTileWriters() {
-        return numTilesInUse > 0;
+        return numTilesInUse.get() > 0;
     }
 
 
@@ -656,21 +790,26 @@ public class DiskMemImage
         for (int y = minTileY; y <= maxTileY; y++) {
             for (int x = minTileX; x <= maxTileX; x++) {
                 WritableRaster tile = getWritableTile(x, y);
-                Rectangle tileOverlap = tile.getBounds().intersection(common);
+                try {
+                    Rectangle tileOverlap = tile.getBounds().intersection(common);
+
+                    Raster dataChild = data.createChild(
+                            tileOverlap.x, tileOverlap.y,
+                            tileOverlap.width, tileOverlap.height,
+                            tileOverlap.x, tileOverlap.y,
+                            null);
 
-                Raster dataChild = data.createChild(
-                        tileOverlap.x, tileOverlap.y,
-                        tileOverlap.width, tileOverlap.height,
-                        tileOverlap.x, tileOverlap.y,
-                        null);
+                    WritableRaster tChild = tile.createWritableChild(
+                            tileOverlap.x, tileOverlap.y,
+                            tileOverlap.width, tileOverlap.height,
+                            tileOverlap.x, tileOverlap.y,
+                            null);
 
-                WritableRaster tChild = tile.createWritableChild(
-                        tileOverlap.x, tileOverlap.y,
-                        tileOverlap.width, tileOverlap.height,
-                        tileOverlap.x, tileOverlap.y,
-                        null);
+                    tChild.setRect(dataChild);
 
-                tChild.setRect(dataChild);
+                } finally {
+                    releaseWritableTile(x, y);
+                }
             }
         }
     }
@@ -802,6 +941,30 @@ public class DiskMemImage
         return tileCache != null && tileCache == commonCache;
     }
 
+    /**
+     * Gets the index of a tile in row-major order of the tile grid. The
+     * tile ordinates are not checked: the caller must ensure that the tile
+     * is within the grid.
+     *
+     * @param tileX tile X ordinate
+     * @param tileY tile Y ordinate
+     * @return the index
+     */
+    protected int getTileIndex(int tileX, int tileY) {
+        return (tileY - tileGrid.y) * tileGrid.width + (tileX - tileGrid.x);
+    }
+
+    /**
+     * Gets the lock stripe for a tile.
+     *
+     * @param tileX tile X ordinate
+     * @param tileY tile Y ordinate
+     * @return the lock
+     */
+    private ReentrantLock getTileLock(int tileX, int tileY) {
+        return tileLocks[getTileIndex(tileX, tileY) & (NUM_TILE_LOCKS - 1)];
+    }
+
     /**
      * Creates a new image tile
      * @param tileX tile X ordinate
@@ -35,6 +35,7 @@ import java.awt.GraphicsConfiguration;
 import java.awt.Image;
 import java.awt.Paint;
 import java.awt.Point;
+import java.awt.Polygon;
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.RenderingHints.Key;
@@ -44,9 +45,13 @@ import java.awt.font.FontRenderContext;
 import java.awt.font.GlyphVector;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Area;
+import java.awt.geom.CubicCurve2D;
+import java.awt.geom.GeneralPath;
+import java.awt.geom.Line2D;
 import java.awt.geom.NoninvertibleTransformException;
-import java.awt.geom.Point2D;
+import java.awt.geom.QuadCurve2D;
 import java.awt.geom.Rectangle2D;
+import java.awt.geom.RectangularShape;
 import java.awt.image.BufferedImage;
 import java.awt.image.BufferedImageOp;
 import java.awt.image.ColorModel;
@@ -56,13 +61,22 @@ import java.awt.image.RenderedImage;
 import java.awt.image.SampleModel;
 import java.awt.image.WritableRaster;
 import java.awt.image.renderable.RenderableImage;
+import java.lang.ref.SoftReference;
 import java.lang.reflect.Method;
 import java.text.AttributedCharacterIterator;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.media.jai.PlanarImage;
 
+import org.jaitools.DaemonThreadFactory;
+
 /**
  * A Graphics class for drawing into a <code>DiskMemImage</code>.
  * As with JAI's <code>TiledImageGraphics</code> class, java.awt
@@ -71,6 +85,19 @@ import javax.media.jai.PlanarImage;
  * <p>
  * Most of the methods in this class are identical in function to
  * those in Graphics2D; these have not been documented here.
+ * <p>
+ * By default, the tiles intersected by a drawing operation are drawn one
+ * after another in the calling thread. Where a drawing operation covers many
+ * tiles, such as filling a large polygon, it can instead be drawn into several
+ * tiles at once by setting the number of rendering threads with
+ * {@linkplain #setRenderingThreads(int)}. Each tile is checked out for writing
+ * while it is drawn, and the result is the same as when drawing serially.
+ * <p>
+ * When drawing many shapes, operations can be recorded in a display list
+ * with {@linkplain #startRecording()} and then drawn in a single pass over
+ * the image's tiles with {@linkplain #stopRecording()}, so that each tile is
+ * checked out, and read from the tile cache's disk storage if necessary,
+ * only once rather than once per shape.
  *
  * @see DiskMemImage
  *
@@ -85,6 +112,38 @@ public class DiskMemImageGraphics extends Graphics2D {
     private Hashtable<String, Object> properties;
     private RenderingHints renderingHints;
 
+    /*
+     * Executor shared by all instances for drawing into tiles concurrently.
+     * It has one thread per processor.
+     */
+    private static ExecutorService renderService;
+
+    // number of threads, including the calling thread, to draw into tiles
+    private int renderingThreads = 1;
+
+    // operations recorded for drawing later, or null if not recording
+    private List<DrawCommand> displayList;
+
+    // the graphics state last captured for an operation
+    private GraphicsState lastState;
+
+    /*
+     * Graphics objects for drawing into recently drawn tiles, re-used while
+     * the image's tile cache returns the same raster for the tile. They refer
+     * to the tiles' data, so they are held softly while not in use.
+     */
+    private static final int TILE_GRAPHICS_CACHE_SIZE = 16;
+    @SuppressWarnings("unchecked")
+    private final SoftReference<TileGraphics>[] tileGraphics =
+            new SoftReference[TILE_GRAPHICS_CACHE_SIZE];
+    private long tileGraphicsClock;
+
+    /*
+     * Margin, in pixels, added to tile bounds when testing whether an
+     * operation's outline touches a tile
+     */
+    private static final int CULL_MARGIN = 2;
+
     /**
      * Constants for paint mode: PAINT or XOR.
      */
@@ -210,11 +269,28 @@ public class DiskMemImageGraphics extends Graphics2D {
 
         private String methodName;
         private Class<?>[] paramTypes;
+        private Method method;
 
         private OpType(String methodName, Class<?> ...types) {
             this.methodName = methodName;
             this.paramTypes = new Class<?>[types.length];
             System.arraycopy(types, 0, this.paramTypes, 0, types.length);
+
+            try {
+                this.method = Graphics2D.class.getMethod(methodName, this.paramTypes);
+
+            } catch (NoSuchMethodException nsmEx) {
+                // programmer error :-(
+                throw new RuntimeException("No such method: " + getFullMethodName());
+            }
+        }
+
+        /**
+         * Gets the Graphics2D method which performs the operation.
+         * @return the method
+         */
+        Method getMethod() {
+            return method;
         }
 
         /**
@@ -530,9 +606,37 @@ public class DiskMemImageGraphics extends Graphics2D {
     public Graphics create() {
         DiskMemImageGraphics gr = new DiskMemImageGraphics(targetImage);
         copyGraphicsParams(gr);
+        gr.setRenderingThreads(renderingThreads);
         return gr;
     }
 
+    /**
+     * Sets the number of threads used to draw into the tiles intersected by
+     * each drawing operation. With a value greater than 1, the calling thread
+     * and threads of an executor shared by all instances of this class draw
+     * into separate tiles concurrently. The executor has one thread per
+     * available processor. Drawing operations which take an
+     * {@code AttributedCharacterIterator} or {@code GlyphVector}, or which
+     * draw the target image into itself, are always drawn serially.
+     *
+     * @param numThreads number of threads (values less than 1 are
+     *        treated as 1, which is the default)
+     */
+    public void setRenderingThreads(int numThreads) {
+        renderingThreads = Math.max(1, numThreads);
+    }
+
+    /**
+     * Gets the number of threads used to draw into the tiles intersected by
+     * each drawing operation.
+     *
+     * @return number of threads
+     * @see #setRenderingThreads(int)
+     */
+    public int getRenderingThreads() {
+        return renderingThreads;
+    }
+
     @Override
     public Color getColor() {
         return color;
@@ -755,11 +859,19 @@ public class DiskMemImageGraphics extends Graphics2D {
                       bgcolor, obs);
     }
 
+    /**
+     * Draws any operations being recorded and releases the resources held
+     * by this object. Between drawing operations, the Graphics2D objects used
+     * to draw into the most recently drawn tiles are kept for re-use and,
+     * through them, the data of those tiles are kept in memory, even if the
+     * image's tile cache has since removed the tiles from memory. They are
+     * held by soft references, so that the garbage collector can reclaim
+     * them when memory is short, and are released by this method.
+     */
     @Override
     public void dispose() {
-        /*
-         * No need to do anything here
-         */
+        stopRecording();
+        clearTileGraphics();
     }
 
     /**
@@ -822,27 +934,19 @@ public class DiskMemImageGraphics extends Graphics2D {
 
     /**
      * Performs the graphics operation by partitioning the work across the image's
-     * tiles and using Graphics2D routines to draw into each tile.
+     * tiles and using Graphics2D routines to draw into each tile. When recording,
+     * the operation is added to the display list instead.
      *
      * @param opType the type of operation
      * @param bounds bounds of the element to be drawn
      * @param args a variable length list of arguments for the operation
      */
     private boolean doDraw(OpType opType, Rectangle2D bounds, Object ...args) {
-        Method method = null;
-        boolean rtnVal = false;
+        Method method = opType.getMethod();
 
         // Transform requested area to obtain actual bounds.
         bounds = getTransform().createTransformedShape(bounds).getBounds();
 
-        try {
-            method = Graphics2D.class.getMethod(opType.getMethodName(), opType.getArgTypes());
-
-        } catch (NoSuchMethodException nsmEx) {
-            // programmer error :-(
-            throw new RuntimeException("No such method: " + opType.getFullMethodName());
-        }
-
         int minTileX = Math.max(targetImage.XToTileX((int)bounds.getMinX()),
                                 targetImage.getMinTileX());
 
@@ -855,61 +959,801 @@ public class DiskMemImageGraphics extends Graphics2D {
         int maxTileY = Math.min(targetImage.YToTileY((int)(bounds.getMaxY() + 0.5)),
                                 targetImage.getMaxTileY());
 
-        for (int tileY = minTileY; tileY <= maxTileY; tileY++) {
-            int minY = targetImage.tileYToY(tileY);
+        if (minTileX > maxTileX || minTileY > maxTileY) {
+            return false;
+        }
 
-            for (int tileX = minTileX; tileX <= maxTileX; tileX++) {
-                int minX = targetImage.tileXToX(tileX);
+        Shape cullShape = null;
+        if (minTileX < maxTileX || minTileY < maxTileY) {
+            cullShape = getCullShape(opType, args);
+        }
 
-                WritableRaster tile = targetImage.getWritableTile(tileX, tileY);
+        boolean readsTarget = readsTargetImage(args);
+        if (displayList != null) {
+            if (!readsTarget) {
+                displayList.add(new DrawCommand(method, captureState(), copyArgs(args),
+                        minTileX, minTileY, maxTileX, maxTileY, cullShape,
+                        !isStateful(opType)));
+                return false;
+            }
 
-                // create a live-copy of the tile with the upper-left corner
-                // translated to 0,0
-                WritableRaster copy = tile.createWritableTranslatedChild(0, 0);
+            // the operation must see the results of those recorded so far
+            replayDisplayList();
+        }
 
-                BufferedImage bufImg = new BufferedImage(
-                        colorModel,
-                        copy,
-                        colorModel.isAlphaPremultiplied(),
-                        properties);
+        DrawCommand cmd = new DrawCommand(method, captureState(), args,
+                minTileX, minTileY, maxTileX, maxTileY, cullShape,
+                !isStateful(opType) && !readsTarget);
 
-                Graphics2D gr = bufImg.createGraphics();
-                
-                // Note: we use the version of copyGraphicsParams taking a 
-                // Point arg used to adjust the clip area before copying it
-                // into the graphics object
-                copyGraphicsParams(gr, new Point(minX, minY));
+        return drawBlock(new DrawBlock(cmd));
+    }
 
-                try {
-                    Point2D p2d = gr.getTransform().transform(new Point2D.Double(0, 0), null);
-                    Point p = new Point((int)p2d.getX() - minX, (int)p2d.getY() - minY);
-                    p2d = gr.getTransform().inverseTransform(p, null);
-                    gr.translate(p2d.getX(), p2d.getY());
+    /**
+     * Starts recording drawing operations in a display list rather than
+     * drawing them immediately. Each operation is recorded with the current
+     * graphics state (colour, paint, stroke, transform, clip etc.). The
+     * recorded operations are drawn by {@linkplain #stopRecording()}, which
+     * checks out each tile that they touch only once and draws into it all
+     * of the operations which touch it, in the order they were recorded.
+     * This is much faster than immediate drawing when many shapes are drawn
+     * into an image whose tiles do not all fit in memory.
+     * <p>
+     * While recording, the image does not show the recorded operations, and
+     * methods which return a boolean value (such as {@code drawImage})
+     * return {@code false}. Integer arrays and standard shapes ({@code Polygon},
+     * {@code RectangularShape}, {@code Line2D}, {@code GeneralPath} etc.)
+     * are copied when recorded. Other arguments, such as images, are held by
+     * reference and should not be modified until recording is stopped. An
+     * operation which reads from the target image is drawn immediately, after
+     * the operations recorded before it.
+     * <p>
+     * If recording is already in progress this method does nothing.
+     *
+     * @see #stopRecording()
+     */
+    public void startRecording() {
+        if (displayList == null) {
+            displayList = new ArrayList<DrawCommand>();
+        }
+    }
 
-                } catch(NoninvertibleTransformException nte) {
-                    // TODO replace this with decent error handling
-                    throw new RuntimeException(nte);
+    /**
+     * Draws the operations recorded since {@linkplain #startRecording()} and
+     * stops recording. If recording is not in progress this method does nothing.
+     */
+    public void stopRecording() {
+        if (displayList != null) {
+            try {
+                replayDisplayList();
+            } finally {
+                displayList = null;
+            }
+        }
+    }
+
+    /**
+     * Tests if drawing operations are being recorded.
+     *
+     * @return {@code true} if recording
+     * @see #startRecording()
+     */
+    public boolean isRecording() {
+        return displayList != null;
+    }
+
+    /**
+     * Draws the operations in the display list, which is left empty.
+     * Each tile touched by any of the operations is checked out once.
+     */
+    @SuppressWarnings("unchecked")
+    private void replayDisplayList() {
+        if (displayList.isEmpty()) {
+            return;
+        }
+        List<DrawCommand> commands = displayList;
+        displayList = new ArrayList<DrawCommand>();
+
+        int minTileX = Integer.MAX_VALUE, minTileY = Integer.MAX_VALUE;
+        int maxTileX = Integer.MIN_VALUE, maxTileY = Integer.MIN_VALUE;
+        boolean concurrent = true;
+        for (DrawCommand cmd : commands) {
+            minTileX = Math.min(minTileX, cmd.minTileX);
+            minTileY = Math.min(minTileY, cmd.minTileY);
+            maxTileX = Math.max(maxTileX, cmd.maxTileX);
+            maxTileY = Math.max(maxTileY, cmd.maxTileY);
+            concurrent &= cmd.concurrent;
+        }
+
+        int numTilesX = maxTileX - minTileX + 1;
+        int numTilesY = maxTileY - minTileY + 1;
+        List<DrawCommand>[] tileCommands = new List[numTilesX * numTilesY];
+
+        for (DrawCommand cmd : commands) {
+            for (int tileY = cmd.minTileY; tileY <= cmd.maxTileY; tileY++) {
+                for (int tileX = cmd.minTileX; tileX <= cmd.maxTileX; tileX++) {
+                    if (!touchesTile(cmd, tileX, tileY)) {
+                        continue;
+                    }
+                    int k = (tileY - minTileY) * numTilesX + (tileX - minTileX);
+                    if (tileCommands[k] == null) {
+                        tileCommands[k] = new ArrayList<DrawCommand>();
+                    }
+                    tileCommands[k].add(cmd);
+                }
+            }
+        }
+
+        drawBlock(new DrawBlock(minTileX, minTileY, numTilesX, numTilesY,
+                tileCommands, concurrent));
+    }
+
+    /**
+     * Draws into a block of tiles, serially or concurrently depending on the
+     * number of rendering threads and the operations being drawn.
+     *
+     * @param block the block
+     * @return the value returned by the last operation drawn into the last tile,
+     *         if boolean; otherwise {@code false}
+     */
+    private boolean drawBlock(DrawBlock block) {
+        boolean rtnVal = false;
+        int numTiles = block.numTilesX * block.numTilesY;
+
+        if (renderingThreads > 1 && numTiles > 1 && block.concurrent) {
+            Boolean[] results = new Boolean[numTiles];
+            ConcurrentDraw draw = new ConcurrentDraw(block, results);
+
+            ExecutorService service = getRenderService();
+            int numWorkers = Math.min(renderingThreads, numTiles) - 1;
+            for (int i = 0; i < numWorkers; i++) {
+                service.execute(draw);
+            }
+
+            draw.drawAndWait();
+
+            for (Boolean b : results) {
+                if (b != null) {
+                    rtnVal = b.booleanValue();
+                }
+            }
+
+        } else {
+            for (int k = 0; k < numTiles; k++) {
+                Boolean b = drawTile(block, k);
+                if (b != null) {
+                    rtnVal = b.booleanValue();
+                }
+            }
+        }
+
+        return rtnVal;
+    }
+
+    /**
+     * Draws the operations for a tile of a block. The tile is checked out for
+     * writing while drawing. The operations are drawn with a Graphics2D object
+     * for the tile, which is kept for re-use while the tile's raster stays the
+     * same, and set to each operation's graphics state.
+     *
+     * @param block the block
+     * @param k index of the tile within the block, in row-major order
+     * @return the value returned by the last operation if boolean, or {@code null}
+     */
+    private Boolean drawTile(DrawBlock block, int k) {
+        List<DrawCommand> commands = block.getCommands(k);
+        if (commands == null) {
+            return null;
+        }
+
+        int tileX = block.minTileX + k % block.numTilesX;
+        int tileY = block.minTileY + k / block.numTilesX;
+        if (block.isSingle() && !touchesTile(commands.get(0), tileX, tileY)) {
+            return null;
+        }
+
+        Boolean rtnVal = null;
+        WritableRaster tile = targetImage.getWritableTile(tileX, tileY);
+
+        TileGraphics tg = null;
+        try {
+            tg = getTileGraphics(tileX, tileY, tile);
+
+            for (DrawCommand cmd : commands) {
+                Graphics2D gr = tg.graphics;
+                if (tg.state != cmd.state) {
+                    tg.state = null;
+                    tg.transform.setToIdentity();
+                    gr.setTransform(tg.transform);
+
+                    // Note: we pass the tile origin, which is used to adjust
+                    // the clip area before copying it into the graphics object
+                    applyState(gr, cmd.state, tg.origin);
+
+                    /*
+                     * Align the transform with the tile: keep its linear part
+                     * and set its translation to the whole-pixel offset of the
+                     * image origin from the tile origin
+                     */
+                    AffineTransform tr = cmd.state.transform;
+                    tg.transform.setTransform(
+                            tr.getScaleX(), tr.getShearY(), tr.getShearX(), tr.getScaleY(),
+                            (int)tr.getTranslateX() - tg.origin.x,
+                            (int)tr.getTranslateY() - tg.origin.y);
+                    gr.setTransform(tg.transform);
+
+                    tg.state = cmd.state;
                 }
 
                 try {
-                    Object oRtnVal = method.invoke(gr, args);
+                    Object oRtnVal = cmd.method.invoke(gr, cmd.args);
                     if(oRtnVal != null && oRtnVal.getClass() == boolean.class) {
-                        rtnVal = ((Boolean)oRtnVal).booleanValue();
+                        rtnVal = (Boolean)oRtnVal;
                     }
 
                 } catch(Exception ex) {
                     // TODO replace this with decent error handling
                     throw new RuntimeException(ex);
                 }
+            }
 
-                gr.dispose();
-                targetImage.releaseWritableTile(tileX, tileY);
+        } finally {
+            if (tg != null) {
+                releaseTileGraphics(tg);
             }
+            targetImage.releaseWritableTile(tileX, tileY);
         }
 
         return rtnVal;
     }
 
+    /**
+     * Gets a Graphics2D object for drawing into a tile which is checked out.
+     * A cached object is returned if it was created for the same raster;
+     * otherwise a new one is created and cached in place of the least
+     * recently used object which is not in use, or of one which has been
+     * reclaimed by the garbage collector.
+     *
+     * @param tileX tile X ordinate
+     * @param tileY tile Y ordinate
+     * @param tile the tile's raster
+     * @return the graphics object, to be passed to {@linkplain #releaseTileGraphics}
+     */
+    private synchronized TileGraphics getTileGraphics(int tileX, int tileY, WritableRaster tile) {
+        int replace = -1;
+        TileGraphics replaced = null;
+        for (int i = 0; i < tileGraphics.length; i++) {
+            TileGraphics tg = tileGraphics[i] == null ? null : tileGraphics[i].get();
+            if (tg == null) {
+                if (replace < 0 || replaced != null) {
+                    replace = i;
+                    replaced = null;
+                }
+
+            } else if (!tg.inUse) {
+                if (tg.tile == tile && tg.tileX == tileX && tg.tileY == tileY) {
+                    tg.inUse = true;
+                    tg.lastUsed = ++tileGraphicsClock;
+                    return tg;
+                }
+                if (replace < 0 || (replaced != null && tg.lastUsed < replaced.lastUsed)) {
+                    replace = i;
+                    replaced = tg;
+                }
+            }
+        }
+
+        // create a live-copy of the tile with the upper-left corner
+        // translated to 0,0
+        WritableRaster copy = tile.createWritableTranslatedChild(0, 0);
+
+        BufferedImage bufImg = new BufferedImage(
+                colorModel,
+                copy,
+                colorModel.isAlphaPremultiplied(),
+                properties);
+
+        TileGraphics tg = new TileGraphics(tileX, tileY, tile, bufImg.createGraphics(),
+                new Point(targetImage.tileXToX(tileX), targetImage.tileYToY(tileY)));
+        tg.inUse = true;
+        tg.lastUsed = ++tileGraphicsClock;
+
+        if (replace >= 0) {
+            if (replaced != null) {
+                replaced.graphics.dispose();
+            }
+            tileGraphics[replace] = new SoftReference<TileGraphics>(tg);
+            tg.cached = true;
+        }
+        return tg;
+    }
+
+    /**
+     * Releases a Graphics2D object obtained from {@linkplain #getTileGraphics}.
+     *
+     * @param tg the graphics object
+     */
+    private synchronized void releaseTileGraphics(TileGraphics tg) {
+        tg.inUse = false;
+        if (!tg.cached) {
+            tg.graphics.dispose();
+        }
+    }
+
+    /**
+     * Disposes of the cached Graphics2D objects for tiles.
+     */
+    private synchronized void clearTileGraphics() {
+        for (int i = 0; i < tileGraphics.length; i++) {
+            TileGraphics tg = tileGraphics[i] == null ? null : tileGraphics[i].get();
+            if (tg != null) {
+                if (tg.inUse) {
+                    tg.cached = false;
+                } else {
+                    tg.graphics.dispose();
+                }
+            }
+            tileGraphics[i] = null;
+        }
+    }
+
+    /**
+     * Gets the number of cached Graphics2D objects for tiles. Used by
+     * unit tests.
+     *
+     * @return number of cached objects
+     */
+    synchronized int getNumTileGraphics() {
+        int n = 0;
+        for (SoftReference<TileGraphics> ref : tileGraphics) {
+            if (ref != null && ref.get() != null) {
+                n++ ;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Gets the outline, in image coordinates, of the area that an operation
+     * could draw into, which is used to skip tiles within the operation's
+     * bounds that it does not touch.
+     *
+     * @param opType the type of operation
+     * @param args arguments for the operation
+     * @return the outline, or {@code null} if tiles are not to be skipped
+     *         for this type of operation
+     */
+    private Shape getCullShape(OpType opType, Object[] args) {
+        Shape s = null;
+        boolean stroked = false;
+
+        switch (opType) {
+            case DRAW_SHAPE:
+                stroked = true;
+                // fall through
+            case FILL:
+                s = (Shape) args[0];
+                break;
+
+            case DRAW_POLYGON:
+                stroked = true;
+                // fall through
+            case FILL_POLYGON:
+                int[] xPoints = (int[]) args[0];
+                int[] yPoints = (int[]) args[1];
+                int nPoints = (Integer) args[2];
+                if (nPoints >= 0 && nPoints <= xPoints.length && nPoints <= yPoints.length) {
+                    s = new Polygon(xPoints, yPoints, nPoints);
+                }
+                break;
+
+            default:
+                break;
+        }
+
+        if (s == null) {
+            return null;
+        }
+        if (stroked) {
+            s = stroke.createStrokedShape(s);
+        }
+        return transform.createTransformedShape(s);
+    }
+
+    /**
+     * Tests if an operation could draw into a tile. The operation's outline,
+     * if it has one, is tested against the tile's bounds expanded by
+     * {@linkplain #CULL_MARGIN} to allow for antialiasing and stroke
+     * normalization.
+     *
+     * @param cmd the operation
+     * @param tileX tile X ordinate
+     * @param tileY tile Y ordinate
+     * @return {@code true} if the operation could draw into the tile
+     */
+    private boolean touchesTile(DrawCommand cmd, int tileX, int tileY) {
+        if (cmd.cullShape == null) {
+            return true;
+        }
+
+        return cmd.cullShape.intersects(
+                targetImage.tileXToX(tileX) - CULL_MARGIN,
+                targetImage.tileYToY(tileY) - CULL_MARGIN,
+                targetImage.getTileWidth() + 2 * CULL_MARGIN,
+                targetImage.getTileHeight() + 2 * CULL_MARGIN);
+    }
+
+    /**
+     * Tests if an operation's arguments have state which changes as they are
+     * drawn, so that the operation cannot be drawn into several tiles at once.
+     *
+     * @param opType the type of operation
+     * @return {@code true} if the operation must be drawn serially
+     */
+    private boolean isStateful(OpType opType) {
+        return opType == OpType.DRAW_STRING_ITER_XY || opType == OpType.DRAW_GLYPH_VECTOR;
+    }
+
+    /**
+     * Tests if an operation reads from the target image.
+     *
+     * @param args arguments for the operation
+     * @return {@code true} if the target image is one of the arguments
+     */
+    private boolean readsTargetImage(Object[] args) {
+        for (Object arg : args) {
+            if (arg == targetImage) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copies the arguments of an operation being recorded, where they are
+     * of a mutable type that can be copied.
+     *
+     * @param args arguments for the operation
+     * @return the copied arguments
+     */
+    private static Object[] copyArgs(Object[] args) {
+        Object[] copy = new Object[args.length];
+        for (int i = 0; i < args.length; i++) {
+            Object arg = args[i];
+            if (arg instanceof int[]) {
+                arg = ((int[]) arg).clone();
+            } else if (arg instanceof Polygon) {
+                Polygon poly = (Polygon) arg;
+                arg = new Polygon(poly.xpoints, poly.ypoints, poly.npoints);
+            } else if (arg instanceof RectangularShape) {
+                arg = ((RectangularShape) arg).clone();
+            } else if (arg instanceof Line2D) {
+                arg = ((Line2D) arg).clone();
+            } else if (arg instanceof QuadCurve2D) {
+                arg = ((QuadCurve2D) arg).clone();
+            } else if (arg instanceof CubicCurve2D) {
+                arg = ((CubicCurve2D) arg).clone();
+            } else if (arg instanceof GeneralPath) {
+                arg = ((GeneralPath) arg).clone();
+            } else if (arg instanceof Area) {
+                arg = ((Area) arg).clone();
+            } else if (arg instanceof AffineTransform) {
+                arg = new AffineTransform((AffineTransform) arg);
+            } else if (arg instanceof AttributedCharacterIterator) {
+                arg = ((AttributedCharacterIterator) arg).clone();
+            }
+            copy[i] = arg;
+        }
+        return copy;
+    }
+
+    /**
+     * A drawing operation with the graphics state to draw it with and the
+     * block of tiles that it touches.
+     */
+    private static final class DrawCommand {
+        final Method method;
+        final GraphicsState state;
+        final Object[] args;
+        final int minTileX;
+        final int minTileY;
+        final int maxTileX;
+        final int maxTileY;
+
+        // outline of the area drawn into, or null
+        final Shape cullShape;
+
+        // whether the operation can be drawn into several tiles at once
+        final boolean concurrent;
+
+        DrawCommand(Method method, GraphicsState state, Object[] args,
+                int minTileX, int minTileY, int maxTileX, int maxTileY,
+                Shape cullShape, boolean concurrent) {
+            this.method = method;
+            this.state = state;
+            this.args = args;
+            this.minTileX = minTileX;
+            this.minTileY = minTileY;
+            this.maxTileX = maxTileX;
+            this.maxTileY = maxTileY;
+            this.cullShape = cullShape;
+            this.concurrent = concurrent;
+        }
+    }
+
+    /**
+     * A block of tiles to draw, with the operations to draw into each tile:
+     * either a single operation for every tile, or a list of operations
+     * (possibly {@code null}) for each tile from a display list.
+     */
+    private static final class DrawBlock {
+        final int minTileX;
+        final int minTileY;
+        final int numTilesX;
+        final int numTilesY;
+        final boolean concurrent;
+        private final List<DrawCommand> allTiles;
+        private final List<DrawCommand>[] tileCommands;
+
+        /**
+         * Creates a block for a single operation.
+         */
+        DrawBlock(DrawCommand cmd) {
+            this.minTileX = cmd.minTileX;
+            this.minTileY = cmd.minTileY;
+            this.numTilesX = cmd.maxTileX - cmd.minTileX + 1;
+            this.numTilesY = cmd.maxTileY - cmd.minTileY + 1;
+            this.concurrent = cmd.concurrent;
+            this.allTiles = Collections.singletonList(cmd);
+            this.tileCommands = null;
+        }
+
+        /**
+         * Creates a block with a list of operations for each tile.
+         */
+        DrawBlock(int minTileX, int minTileY, int numTilesX, int numTilesY,
+                List<DrawCommand>[] tileCommands, boolean concurrent) {
+            this.minTileX = minTileX;
+            this.minTileY = minTileY;
+            this.numTilesX = numTilesX;
+            this.numTilesY = numTilesY;
+            this.concurrent = concurrent;
+            this.allTiles = null;
+            this.tileCommands = tileCommands;
+        }
+
+        /**
+         * Gets the operations for a tile.
+         *
+         * @param k index of the tile in row-major order
+         * @return the operations or {@code null} if there are none
+         */
+        List<DrawCommand> getCommands(int k) {
+            return tileCommands == null ? allTiles : tileCommands[k];
+        }
+
+        /**
+         * Tests if this block is for a single operation.
+         *
+         * @return {@code true} if for a single operation
+         */
+        boolean isSingle() {
+            return tileCommands == null;
+        }
+    }
+
+    /**
+     * A Graphics2D object for drawing into a tile's raster, with the graphics
+     * state last applied to it.
+     */
+    private static final class TileGraphics {
+        final int tileX;
+        final int tileY;
+        final WritableRaster tile;
+        final Graphics2D graphics;
+        final Point origin;
+        final AffineTransform transform;
+
+        // guarded by the owning DiskMemImageGraphics object
+        boolean inUse;
+        boolean cached;
+        long lastUsed;
+
+        // only used by the thread drawing into the tile
+        GraphicsState state;
+
+        TileGraphics(int tileX, int tileY, WritableRaster tile, Graphics2D graphics, Point origin) {
+            this.tileX = tileX;
+            this.tileY = tileY;
+            this.tile = tile;
+            this.graphics = graphics;
+            this.origin = origin;
+            this.transform = new AffineTransform();
+        }
+    }
+
+    /**
+     * The graphics state used to draw an operation.
+     */
+    private static final class GraphicsState {
+        Point origin;
+        Color color;
+        Shape clip;
+        PaintMode paintMode;
+        Color XORColor;
+        Font font;
+        Color background;
+        Composite composite;
+        Paint paint;
+        RenderingHints renderingHints;
+        Stroke stroke;
+        AffineTransform transform;
+    }
+
+    /**
+     * Captures the current graphics state. The origin, transform and
+     * rendering hints, which can be changed in place, are copied.
+     *
+     * @return the state
+     */
+    private GraphicsState captureState() {
+        if (lastState != null && isCurrent(lastState)) {
+            return lastState;
+        }
+
+        GraphicsState state = new GraphicsState();
+        state.origin = new Point(origin);
+        state.color = color;
+        state.clip = compClip;
+        state.paintMode = paintMode;
+        state.XORColor = XORColor;
+        state.font = font;
+        state.background = background;
+        state.composite = composite;
+        state.paint = paint;
+        state.renderingHints = renderingHints == null ? null : (RenderingHints) renderingHints.clone();
+        state.stroke = stroke;
+        state.transform = new AffineTransform(transform);
+
+        lastState = state;
+        return state;
+    }
+
+    /**
+     * Tests if a captured graphics state is the same as the current state.
+     *
+     * @param state the state
+     * @return {@code true} if the same
+     */
+    private boolean isCurrent(GraphicsState state) {
+        return state.color == color &&
+                state.clip == compClip &&
+                state.paintMode == paintMode &&
+                state.XORColor == XORColor &&
+                state.font == font &&
+                state.background == background &&
+                state.composite == composite &&
+                state.paint == paint &&
+                state.stroke == stroke &&
+                state.origin.equals(origin) &&
+                state.transform.equals(transform) &&
+                (state.renderingHints == null ? renderingHints == null :
+                        state.renderingHints.equals(renderingHints));
+    }
+
+    /**
+     * Draws the tiles of a block with several threads. Each thread takes the
+     * next tile, in row-major order, until all tiles have been drawn. If drawing
+     * any tile fails, no further tiles are started and the exception is re-thrown
+     * in the calling thread.
+     */
+    private final class ConcurrentDraw implements Runnable {
+        private final DrawBlock block;
+        private final Boolean[] results;
+        private final AtomicInteger nextTile;
+
+        // guarded by this
+        private RuntimeException failure;
+        private int numRunning;
+        private boolean closed;
+
+        /**
+         * @param block the block to draw
+         * @param results receives the value returned for each tile
+         */
+        ConcurrentDraw(DrawBlock block, Boolean[] results) {
+            this.block = block;
+            this.results = results;
+            this.nextTile = new AtomicInteger();
+        }
+
+        /**
+         * Draws tiles in a worker thread. A worker which starts after the
+         * calling thread has finished does nothing.
+         */
+        public void run() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                numRunning++ ;
+            }
+
+            try {
+                drawTiles();
+            } finally {
+                synchronized (this) {
+                    numRunning-- ;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Draws tiles in the calling thread until all have been taken and
+         * then waits for the workers to finish theirs.
+         */
+        void drawAndWait() {
+            drawTiles();
+
+            boolean interrupted = false;
+            synchronized (this) {
+                closed = true;
+                while (numRunning > 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        interrupted = true;
+                    }
+                }
+            }
+
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+
+            synchronized (this) {
+                if (failure != null) {
+                    throw failure;
+                }
+            }
+        }
+
+        private void drawTiles() {
+            int k;
+            while (!isFailed() && (k = nextTile.getAndIncrement()) < results.length) {
+                try {
+                    results[k] = drawTile(block, k);
+
+                } catch (RuntimeException ex) {
+                    synchronized (this) {
+                        if (failure == null) {
+                            failure = ex;
+                        }
+                    }
+                }
+            }
+        }
+
+        private synchronized boolean isFailed() {
+            return failure != null;
+        }
+    }
+
+    /**
+     * Gets the executor shared by all instances for drawing into tiles
+     * concurrently, creating it if necessary.
+     *
+     * @return the executor
+     */
+    private static synchronized ExecutorService getRenderService() {
+        if (renderService == null) {
+            renderService = Executors.newFixedThreadPool(
+                    Runtime.getRuntime().availableProcessors(),
+                    new DaemonThreadFactory(Thread.NORM_PRIORITY, "graphics-render"));
+        }
+        return renderService;
+    }
+
     /**
      * Takes a bounding rectangle calculated by
      * one of the drawing methods and expands it, if necessary, to
@@ -1065,37 +1909,50 @@ public class DiskMemImageGraphics extends Graphics2D {
      * @param gr a Graphics2D object
      */
     private void copyGraphicsParams(Graphics2D gr, Point workingOrigin) {
-        gr.translate(origin.x, origin.y);
-        gr.setColor(getColor());
+        applyState(gr, captureState(), workingOrigin);
+    }
+
+    /**
+     * Copies a graphics state into the given <code>Graphics2D</code>
+     * object. If {@code workingOrigin} is non-null it is used to translate the
+     * clip area before copying it across.
+     *
+     * @param gr a Graphics2D object
+     * @param state the graphics state
+     * @param workingOrigin origin for the clip area, or {@code null}
+     */
+    private static void applyState(Graphics2D gr, GraphicsState state, Point workingOrigin) {
+        gr.translate(state.origin.x, state.origin.y);
+        gr.setColor(state.color);
         
         if (workingOrigin == null) {
-            gr.setClip(compClip);
+            gr.setClip(state.clip);
         } else {
             AffineTransform tr = AffineTransform.getTranslateInstance(
                     -workingOrigin.x, -workingOrigin.y);
-            Shape trclip = tr.createTransformedShape(compClip);
+            Shape trclip = tr.createTransformedShape(state.clip);
             gr.setClip(trclip);
         }
 
-        if(paintMode == PaintMode.PAINT) {
+        if(state.paintMode == PaintMode.XOR && state.XORColor != null) {
+            gr.setXORMode(state.XORColor);
+        } else {
             gr.setPaintMode();
-        } else if (XORColor != null) {
-            gr.setXORMode(XORColor);
         }
 
-        gr.setFont(font);
+        gr.setFont(state.font);
 
         // java.awt.Graphics2D state
-        gr.setBackground(background);
-        gr.setComposite(composite);
-        if(paint != null) {
-            gr.setPaint(paint);
+        gr.setBackground(state.background);
+        gr.setComposite(state.composite);
+        if(state.paint != null) {
+            gr.setPaint(state.paint);
         }
-        if (renderingHints != null) {
-            gr.setRenderingHints(renderingHints);
+        if (state.renderingHints != null) {
+            gr.setRenderingHints(state.renderingHints);
         }
-        gr.setStroke(stroke);
-        gr.setTransform(transform);
+        gr.setStroke(state.stroke);
+        gr.setTransform(state.transform);
     }
 
     /**
@@ -0,0 +1,176 @@
+/* 
+ *  Copyright (c) 2013, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+
+package org.jaitools.tilecache;
+
+import java.awt.image.RenderedImage;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.Notification;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.jaitools.tilecache.TileCacheTestHelper.createImage;
+import static org.jaitools.tilecache.TileCacheTestHelper.createTile;
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+/**
+ * Unit tests for adaptive memory capacity in {@code DiskMemTileCache}.
+ *
+ * @author Michael Bedward
+ * @since 1.4
+ * @version $Id$
+ */
+public class AdaptiveCapacityTest {
+
+    private static final int TILE_WIDTH = 64;
+
+    // memory occupied by each test tile
+    private static final long TILE_SIZE = TILE_WIDTH * TILE_WIDTH * 4;
+
+    private static final double HEAP_FRACTION = 0.1;
+
+    private DiskMemTileCache cache;
+    private Map<String, Long> thresholds;
+
+    @Before
+    public void setup() {
+        thresholds = getThresholds();
+
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put(DiskMemTileCache.KEY_HEAP_FRACTION, HEAP_FRACTION);
+        cache = new DiskMemTileCache(params);
+        assumeTrue(cache.isAdaptiveCapacityEnabled());
+    }
+
+    @After
+    public void cleanup() {
+        if (cache != null) {
+            cache.dispose();
+        }
+    }
+
+    @Test
+    public void capacityFromHeapFraction() {
+        System.out.println("   initial capacity is a fraction of max heap");
+
+        long expected = (long) (HEAP_FRACTION * Runtime.getRuntime().maxMemory());
+        assertEquals(expected, cache.getMemoryCapacity());
+        assertEquals(expected, cache.getMaxMemoryCapacity());
+    }
+
+    @Test
+    public void pressureReducesCapacity() {
+        System.out.println("   heap pressure reduces capacity");
+
+        cache.setMemoryCapacity(16 * TILE_SIZE);
+        RenderedImage image = createImage(TILE_WIDTH);
+        for (int i = 0; i < 16; i++) {
+            cache.add(image, i, 0, createTile(image.getSampleModel(), 0, true));
+        }
+        assertEquals(16, cache.getNumResidentTiles());
+
+        cache.relieveHeapPressure();
+        long expected = (long) (cache.getMemoryThreshold() * 16 * TILE_SIZE);
+        assertEquals(expected, cache.getMemoryCapacity());
+        assertEquals(16 * TILE_SIZE, cache.getMaxMemoryCapacity());
+        assertTrue(cache.getCurrentMemory() <= expected);
+    }
+
+    @Test
+    public void noAutoFlush() {
+        System.out.println("   auto-flush is not used with adaptive capacity");
+
+        cache.setAutoFlushMemoryEnabled(true);
+        assertFalse(cache.isAutoFlushMemoryEnabled());
+    }
+
+    @Test
+    public void disposeRestoresThresholds() {
+        System.out.println("   dispose restores heap pool thresholds");
+
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put(DiskMemTileCache.KEY_HEAP_FRACTION, HEAP_FRACTION);
+        params.put(DiskMemTileCache.KEY_HEAP_PRESSURE_THRESHOLD, 0.5F);
+        DiskMemTileCache other = new DiskMemTileCache(params);
+        assertTrue(other.isAdaptiveCapacityEnabled());
+        Map<String, Long> lowered = getThresholds();
+
+        // the lower threshold of the second cache is withdrawn
+        other.dispose();
+        Map<String, Long> single = getThresholds();
+        assertFalse(lowered.equals(single));
+
+        cache.dispose();
+        cache = null;
+        assertEquals(thresholds, getThresholds());
+    }
+
+    @Test
+    public void collectedCacheRestoresThresholds() throws Exception {
+        System.out.println("   monitor of a collected cache restores thresholds");
+
+        cache.dispose();
+        cache = null;
+
+        DiskMemTileCache plain = new DiskMemTileCache();
+        WeakReference<DiskMemTileCache> ref = new WeakReference<DiskMemTileCache>(plain);
+        HeapPressureMonitor monitor = new HeapPressureMonitor(plain, 0.5F);
+        plain.dispose();
+        plain = null;
+        assertFalse(thresholds.equals(getThresholds()));
+
+        for (int i = 0; i < 50 && ref.get() != null; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assumeTrue(ref.get() == null);
+
+        monitor.handleNotification(new Notification(
+                MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED, this, 0), null);
+        assertEquals(thresholds, getThresholds());
+    }
+
+    /*
+     * Gets the collection usage thresholds of all pools which support one.
+     */
+    private Map<String, Long> getThresholds() {
+        Map<String, Long> map = new HashMap<String, Long>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.isCollectionUsageThresholdSupported()) {
+                map.put(pool.getName(), pool.getCollectionUsageThreshold());
+            }
+        }
+        return map;
+    }
+}
@@ -0,0 +1,194 @@
+/* 
+ *  Copyright (c) 2013, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+
+package org.jaitools.tilecache;
+
+import java.awt.Point;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.jaitools.tilecache.TileCacheTestHelper.createImage;
+import static org.jaitools.tilecache.TileCacheTestHelper.createTile;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for getting batches of tiles from {@code DiskMemTileCache}.
+ *
+ * @author Michael Bedward
+ * @since 1.4
+ * @version $Id$
+ */
+public class BatchTilesTest {
+
+    private static final int TILE_WIDTH = 64;
+
+    // memory occupied by each test tile
+    private static final long TILE_SIZE = TILE_WIDTH * TILE_WIDTH * 4;
+
+    private static final int NUM_TILES = 8;
+
+    private DiskMemTileCache cache;
+    private RenderedImage image;
+    private File[] folders;
+
+    @Before
+    public void setup() throws Exception {
+        image = createImage(TILE_WIDTH);
+        folders = new File[2];
+        for (int i = 0; i < folders.length; i++) {
+            folders[i] = File.createTempFile("batchtest", "");
+            folders[i].delete();
+            folders[i].mkdirs();
+        }
+    }
+
+    @After
+    public void cleanup() {
+        if (cache != null) {
+            cache.flush();
+        }
+        for (File folder : folders) {
+            File[] files = folder.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    f.delete();
+                }
+            }
+            folder.delete();
+        }
+    }
+
+    @Test
+    public void getTilesFromFiles() {
+        System.out.println("   get batch of tiles from per-tile files");
+
+        cache = new DiskMemTileCache();
+        addTiles();
+        assertTiles(cache.getTiles(image, getTileIndices()));
+    }
+
+    @Test
+    public void getTilesFromSlabFiles() {
+        System.out.println("   get batch of tiles from slab files");
+
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put(DiskMemTileCache.KEY_USE_SLAB_FILES, Boolean.TRUE);
+        cache = new DiskMemTileCache(params);
+        addTiles();
+        assertTiles(cache.getTiles(image, getTileIndices()));
+    }
+
+    @Test
+    public void getTilesFromStripedSlabFiles() {
+        System.out.println("   get batch of tiles from slab files in spill folders");
+
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put(DiskMemTileCache.KEY_USE_SLAB_FILES, Boolean.TRUE);
+        params.put(DiskMemTileCache.KEY_SPILL_FOLDERS, folders);
+        cache = new DiskMemTileCache(params);
+        addTiles();
+        assertTiles(cache.getTiles(image, getTileIndices()));
+    }
+
+    @Test
+    public void missingTilesAreNull() {
+        System.out.println("   batch returns null for tiles not cached");
+
+        cache = new DiskMemTileCache();
+        addTiles();
+        cache.remove(image, 3, 0);
+
+        Raster[] tiles = cache.getTiles(image, getTileIndices());
+        assertEquals(NUM_TILES, tiles.length);
+        for (int i = 0; i < NUM_TILES; i++) {
+            if (i == 3) {
+                assertNull(tiles[i]);
+            } else {
+                assertEquals(i, tiles[i].getSample(0, 0, 0));
+            }
+        }
+    }
+
+    @Test
+    public void addTilesSkipsCachedTiles() {
+        System.out.println("   batch add skips tiles already cached");
+
+        cache = new DiskMemTileCache();
+        cache.add(image, 0, 0, createTile(image.getSampleModel(), 100, true));
+        addTiles();
+
+        assertEquals(NUM_TILES, cache.getNumTiles());
+        assertEquals(2 * TILE_SIZE, cache.getCurrentMemory());
+
+        Raster[] tiles = cache.getTiles(image, getTileIndices());
+        assertEquals(100, tiles[0].getSample(0, 0, 0));
+        for (int i = 1; i < NUM_TILES; i++) {
+            assertEquals(i, tiles[i].getSample(0, 0, 0));
+        }
+    }
+
+    /**
+     * Adds the test tiles, with memory capacity for only two of them
+     * so that the others are written to disk.
+     */
+    private void addTiles() {
+        cache.setMemoryCapacity(2 * TILE_SIZE);
+        Point[] indices = getTileIndices();
+        Raster[] tiles = new Raster[NUM_TILES];
+        for (int i = 0; i < NUM_TILES; i++) {
+            tiles[i] = createTile(image.getSampleModel(), i, true);
+        }
+        cache.addTiles(image, indices, tiles, null);
+        assertEquals(2, cache.getNumResidentTiles());
+    }
+
+    /**
+     * Checks that each tile holds the value it was created with.
+     */
+    private void assertTiles(Raster[] tiles) {
+        assertEquals(NUM_TILES, tiles.length);
+        for (int i = 0; i < NUM_TILES; i++) {
+            Raster r = tiles[i];
+            assertNotNull(r);
+            assertEquals(i, r.getSample(0, 0, 0));
+            assertEquals(i, r.getSample(TILE_WIDTH - 1, TILE_WIDTH - 1, 0));
+        }
+    }
+
+    private Point[] getTileIndices() {
+        Point[] indices = new Point[NUM_TILES];
+        for (int i = 0; i < NUM_TILES; i++) {
+            indices[i] = new Point(i, 0);
+        }
+        return indices;
+    }
+}
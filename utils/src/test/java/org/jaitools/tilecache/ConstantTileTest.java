@@ -0,0 +1,173 @@
+/* 
+ *  Copyright (c) 2013, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+
+package org.jaitools.tilecache;
+
+import java.awt.Point;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.jaitools.tilecache.TileCacheTestHelper.createImage;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the sharing of constant tile data in {@code DiskMemTileCache}.
+ *
+ * @author Michael Bedward
+ * @since 1.4
+ * @version $Id$
+ */
+public class ConstantTileTest {
+
+    private static final int TILE_WIDTH = 64;
+
+    // memory occupied by each test tile
+    private static final long TILE_SIZE = TILE_WIDTH * TILE_WIDTH * 4;
+
+    private DiskMemTileCache cache;
+
+    @Before
+    public void setup() {
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put(DiskMemTileCache.KEY_SHARE_CONSTANT_TILES, Boolean.TRUE);
+        cache = new DiskMemTileCache(params);
+    }
+
+    @After
+    public void cleanup() {
+        cache.flush();
+    }
+
+    @Test
+    public void constantTilesShareData() {
+        System.out.println("   constant tiles share data");
+
+        RenderedImage image = createImage(TILE_WIDTH);
+        cache.add(image, 0, 0, createTile(image, 42));
+        cache.add(image, 1, 0, createTile(image, 42));
+        cache.add(image, 2, 0, createTile(image, 7));
+
+        WritableRaster varying = createTile(image, 42);
+        varying.setSample(10, 10, 0, 0);
+        cache.add(image, 3, 0, varying);
+
+        DataBuffer db = cache.getTile(image, 0, 0).getDataBuffer();
+        assertSame(db, cache.getTile(image, 1, 0).getDataBuffer());
+        assertNotSame(db, cache.getTile(image, 2, 0).getDataBuffer());
+        assertSame(varying, cache.getTile(image, 3, 0));
+        assertEquals(7, cache.getTile(image, 2, 0).getSample(63, 63, 0));
+    }
+
+    @Test
+    public void constantTilesAreNotWritten() {
+        System.out.println("   constant tiles are not written to disk");
+
+        cache.setMemoryCapacity(TILE_SIZE);
+        RenderedImage image = createImage(TILE_WIDTH);
+        for (int i = 0; i < 4; i++) {
+            cache.add(image, i, 0, createTile(image, i));
+        }
+        assertEquals(1, cache.getNumResidentTiles());
+
+        for (int i = 0; i < 4; i++) {
+            Raster r = cache.getTile(image, i, 0);
+            assertNotNull(r);
+            assertEquals(i, r.getSample(TILE_WIDTH / 2, TILE_WIDTH / 2, 0));
+        }
+        assertEquals(0, cache.getMetrics().getBytesWritten());
+    }
+
+    @Test
+    public void copyOnWrite() throws Exception {
+        System.out.println("   tiles obtained for writing have their own data");
+
+        RenderedImage image = createImage(TILE_WIDTH);
+        cache.add(image, 0, 0, createTile(image, 42));
+        cache.add(image, 1, 0, createTile(image, 42));
+
+        WritableRaster r = (WritableRaster) cache.getTileForWriting(image, 0, 0);
+        assertSame(r, cache.getTile(image, 0, 0));
+        r.setSample(0, 0, 0, 1);
+        cache.setTileChanged(image, 0, 0);
+
+        assertEquals(1, cache.getTile(image, 0, 0).getSample(0, 0, 0));
+        assertEquals(42, cache.getTile(image, 1, 0).getSample(0, 0, 0));
+    }
+
+    @Test
+    public void interleavedBands() {
+        System.out.println("   constant tiles with interleaved bands");
+
+        RenderedImage image = new BufferedImage(TILE_WIDTH, TILE_WIDTH, BufferedImage.TYPE_3BYTE_BGR);
+        cache.add(image, 0, 0, createTile(image, 1, 2, 3));
+        cache.add(image, 1, 0, createTile(image, 1, 2, 3));
+
+        Raster r = cache.getTile(image, 0, 0);
+        assertSame(r.getDataBuffer(), cache.getTile(image, 1, 0).getDataBuffer());
+        int[] pixel = r.getPixel(TILE_WIDTH - 1, TILE_WIDTH - 1, (int[]) null);
+        assertArrayEquals(new int[]{1, 2, 3}, pixel);
+    }
+
+    @Test
+    public void floatNaN() {
+        System.out.println("   float tiles of NaN are constant");
+
+        ColorModel cm = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY),
+                false, false, Transparency.OPAQUE, DataBuffer.TYPE_FLOAT);
+        RenderedImage image = new BufferedImage(cm,
+                cm.createCompatibleWritableRaster(TILE_WIDTH, TILE_WIDTH), false, null);
+        cache.add(image, 0, 0, createTile(image, Float.NaN));
+        cache.add(image, 1, 0, createTile(image, Float.NaN));
+
+        Raster r = cache.getTile(image, 0, 0);
+        assertSame(r.getDataBuffer(), cache.getTile(image, 1, 0).getDataBuffer());
+        assertTrue(Float.isNaN(r.getSampleFloat(0, 0, 0)));
+    }
+
+    private WritableRaster createTile(RenderedImage image, double ...values) {
+        WritableRaster r = Raster.createWritableRaster(image.getSampleModel(), new Point(0, 0));
+        for (int b = 0; b < values.length; b++) {
+            for (int y = 0; y < TILE_WIDTH; y++) {
+                for (int x = 0; x < TILE_WIDTH; x++) {
+                    r.setSample(x, y, b, values[b]);
+                }
+            }
+        }
+        return r;
+    }
+}
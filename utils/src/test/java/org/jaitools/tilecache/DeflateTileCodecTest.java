@@ -0,0 +1,121 @@
+/* 
+ *  Copyright (c) 2013, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.tilecache;
+
+import java.awt.Point;
+import java.awt.image.BandedSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+
+import org.jaitools.tiledimage.DiskMemImage;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@code DeflateTileCodec}.
+ *
+ * @author Michael Bedward
+ * @since 1.4
+ * @version $Id$
+ */
+public class DeflateTileCodecTest {
+
+    private static final int TILE_WIDTH = 64;
+
+    @Test
+    public void roundTripAllTypes() throws Exception {
+        System.out.println("   round trip for all data types");
+
+        int[] types = {
+            DataBuffer.TYPE_BYTE, DataBuffer.TYPE_USHORT, DataBuffer.TYPE_SHORT,
+            DataBuffer.TYPE_INT, DataBuffer.TYPE_FLOAT, DataBuffer.TYPE_DOUBLE
+        };
+
+        TileCodec[] codecs = {
+            new DeflateTileCodec(), new DeflateTileCodec(6, false)
+        };
+
+        for (TileCodec codec : codecs) {
+            for (int type : types) {
+                assertRoundTrip(codec, type);
+            }
+        }
+    }
+
+    @Test
+    public void compressesRuns() throws Exception {
+        System.out.println("   compression of runs of equal values");
+
+        SampleModel sm = new BandedSampleModel(DataBuffer.TYPE_FLOAT, TILE_WIDTH, TILE_WIDTH, 1);
+        DiskMemImage image = new DiskMemImage(0, 0, TILE_WIDTH, TILE_WIDTH, 0, 0, sm);
+        WritableRaster raster = createRaster(sm);
+
+        DiskCachedTile tile = new DiskCachedTile(Integer.valueOf(1), image, 0, 0, raster, true, null,
+                FileSpillStore.INSTANCE, new DeflateTileCodec());
+
+        assertTrue(tile.getDiskSize() * 3 < tile.getTileSize());
+        tile.dispose();
+    }
+
+    private void assertRoundTrip(TileCodec codec, int type) throws Exception {
+        SampleModel sm = new BandedSampleModel(type, TILE_WIDTH, TILE_WIDTH, 2);
+        DiskMemImage image = new DiskMemImage(0, 0, TILE_WIDTH, TILE_WIDTH, 0, 0, sm);
+        WritableRaster raster = createRaster(sm);
+
+        DiskCachedTile tile = new DiskCachedTile(Integer.valueOf(1), image, 0, 0, raster, true, null,
+                FileSpillStore.INSTANCE, codec);
+
+        Raster r = tile.readData();
+        assertNotNull(r);
+        for (int b = 0; b < 2; b++) {
+            for (int y = 0; y < TILE_WIDTH; y++) {
+                for (int x = 0; x < TILE_WIDTH; x++) {
+                    assertEquals(raster.getSampleDouble(x, y, b), r.getSampleDouble(x, y, b), 0.0);
+                }
+            }
+        }
+
+        tile.dispose();
+    }
+
+    /*
+     * Creates a raster with runs of equal values
+     */
+    private WritableRaster createRaster(SampleModel sm) {
+        WritableRaster raster = Raster.createWritableRaster(sm, new Point(0, 0));
+        for (int b = 0; b < sm.getNumBands(); b++) {
+            for (int y = 0; y < TILE_WIDTH; y++) {
+                for (int x = 0; x < TILE_WIDTH; x++) {
+                    raster.setSample(x, y, b, (x / 16 + y / 8) % 100);
+                }
+            }
+        }
+        return raster;
+    }
+}
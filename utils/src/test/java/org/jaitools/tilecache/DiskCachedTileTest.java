@@ -26,8 +26,11 @@
 package org.jaitools.tilecache;
 
 import java.awt.Point;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
 import java.awt.image.ComponentSampleModel;
 import java.awt.image.DataBuffer;
 import java.awt.image.Raster;
@@ -35,6 +38,8 @@ import java.awt.image.RenderedImage;
 import java.awt.image.SampleModel;
 import java.awt.image.WritableRaster;
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import javax.media.jai.TiledImage;
 
@@ -273,4 +278,132 @@ public class DiskCachedTileTest {
         }
     }
 
+    @Test
+    public void testMappedReadWrite() throws Exception {
+        System.out.println("   writing and reading data via memory-mapped reads");
+
+        boolean wasMapped = DiskCachedTile.isUsingMemoryMappedReads();
+        DiskCachedTile.setMemoryMappedReads(true);
+        try {
+            int[] types = {
+                DataBuffer.TYPE_BYTE, DataBuffer.TYPE_DOUBLE, DataBuffer.TYPE_FLOAT,
+                DataBuffer.TYPE_INT, DataBuffer.TYPE_SHORT, DataBuffer.TYPE_USHORT
+            };
+
+            for (int dataType : types) {
+                testMappedReadWrite(dataType, new RecordingStore(FileSpillStore.INSTANCE));
+
+                SlabSpillStore slabs = new SlabSpillStore(1024 * 1024);
+                testMappedReadWrite(dataType, new RecordingStore(slabs));
+            }
+
+        } finally {
+            DiskCachedTile.setMemoryMappedReads(wasMapped);
+        }
+    }
+
+    @Test
+    public void testWriteFailure() throws Exception {
+        System.out.println("   failure to write data");
+
+        RecordingStore store = new RecordingStore(FileSpillStore.INSTANCE);
+        DiskCachedTile instance = new DiskCachedTile(Integer.valueOf(1234), image, 0, 0, raster, true, null,
+                store, RawTileCodec.INSTANCE);
+        File file = instance.getFile();
+        assertFalse(instance.isDirty());
+
+        instance.markChanged();
+        store.failWrites = true;
+        try {
+            instance.writeData(raster);
+            fail("Expected IOException");
+        } catch (IOException ex) {
+            // expected
+        }
+
+        // the tile keeps its disk copy but is still dirty
+        assertTrue(instance.isDirty());
+        assertEquals(file, instance.getFile());
+
+        store.failWrites = false;
+        instance.writeData(raster);
+        assertFalse(instance.isDirty());
+
+        instance.deleteDiskCopy();
+    }
+
+    private void testMappedReadWrite(int dataType, RecordingStore store) throws Exception {
+        final int w = 10;
+        SampleModel sm = new ComponentSampleModel(dataType, w, w, 1, w, new int[]{0});
+        ColorModel cm = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY),
+                false, false, Transparency.OPAQUE, dataType);
+
+        WritableRaster wr = Raster.createWritableRaster(sm, new Point(0, 0));
+        int k = 0;
+        for (int y = 0; y < w; y++) {
+            for (int x = 0; x < w; x++) {
+                wr.setSample(x, y, 0, k++);
+            }
+        }
+        RenderedImage img = new BufferedImage(cm, wr, false, null);
+
+        // Only the data of tiles which are not writable are read via mapping
+        Raster r = new Raster(sm, wr.getDataBuffer(), new Point(0, 0)) {};
+
+        DiskCachedTile instance = new DiskCachedTile(0, img, 0, 0, r, true, null,
+                store, RawTileCodec.INSTANCE);
+        assertFalse(instance.isWritable());
+
+        Raster read = instance.readData();
+        assertEquals(1, store.numMappedReads);
+
+        assertNotNull(read);
+        assertTrue(read.getWidth() == w && read.getHeight() == w);
+        assertTrue(read.getSampleModel().getDataType() == dataType);
+
+        k = 0;
+        for (int y = 0; y < w; y++) {
+            for (int x = 0; x < w; x++) {
+                assertEquals(k, read.getSample(x, y, 0));
+                k++ ;
+            }
+        }
+
+        instance.deleteDiskCopy();
+    }
+
+    /**
+     * A store which counts the memory-mapped reads that it serves
+     * and can be made to fail writes.
+     */
+    private static class RecordingStore extends SpillStore {
+        private final SpillStore delegate;
+        int numMappedReads;
+        boolean failWrites;
+
+        RecordingStore(SpillStore delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        Slot write(Slot slot, ByteBuffer data) throws IOException {
+            if (failWrites) {
+                throw new IOException("write failure for testing");
+            }
+            return delegate.write(slot, data);
+        }
+
+        @Override
+        ByteBuffer read(Slot slot, boolean mapped) throws IOException {
+            if (mapped) {
+                numMappedReads++ ;
+            }
+            return delegate.read(slot, mapped);
+        }
+
+        @Override
+        void free(Slot slot) {
+            delegate.free(slot);
+        }
+    }
 }
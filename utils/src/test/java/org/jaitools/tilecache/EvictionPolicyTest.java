@@ -0,0 +1,385 @@
+/* 
+ *  Copyright (c) 2013, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.tilecache;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import javax.media.jai.CachedTile;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the eviction policies used by {@code DiskMemTileCache}.
+ *
+ * @author Michael Bedward
+ * @since 1.4
+ * @version $Id$
+ */
+public class EvictionPolicyTest {
+
+    private static final int TILE_WIDTH = 8;
+
+    private static final WritableRaster raster;
+    private static final RenderedImage image;
+
+    static {
+        ColorModel cm = ColorModel.getRGBdefault();
+        SampleModel sm = cm.createCompatibleSampleModel(TILE_WIDTH, TILE_WIDTH);
+
+        raster = Raster.createWritableRaster(sm, new Point(0, 0));
+        image = new BufferedImage(cm, raster, false, null);
+    }
+
+    @Test
+    public void lruOrder() throws Exception {
+        System.out.println("   LRU eviction order");
+
+        LruEvictionPolicy policy = new LruEvictionPolicy();
+        DiskCachedTile[] t = createTiles(4);
+        for (DiskCachedTile tile : t) {
+            policy.add(tile);
+        }
+
+        assertSame(t[0], policy.nextVictim());
+        policy.remove(t[0]);
+        assertSame(t[1], policy.nextVictim());
+    }
+
+    @Test
+    public void lruSecondChance() throws Exception {
+        System.out.println("   LRU second chance for referenced tiles");
+
+        LruEvictionPolicy policy = new LruEvictionPolicy();
+        DiskCachedTile[] t = createTiles(3);
+        for (DiskCachedTile tile : t) {
+            policy.add(tile);
+        }
+
+        t[0].setReferenced();
+        assertSame(t[1], policy.nextVictim());
+        policy.remove(t[1]);
+        assertSame(t[2], policy.nextVictim());
+        policy.remove(t[2]);
+        assertSame(t[0], policy.nextVictim());
+    }
+
+    @Test
+    public void lruClear() throws Exception {
+        System.out.println("   LRU clear");
+
+        LruEvictionPolicy policy = new LruEvictionPolicy();
+        DiskCachedTile[] t = createTiles(3);
+        for (DiskCachedTile tile : t) {
+            policy.add(tile);
+        }
+
+        policy.clear();
+        assertNull(policy.nextVictim());
+
+        policy.add(t[2]);
+        assertSame(t[2], policy.nextVictim());
+    }
+
+    @Test
+    public void comparatorOrder() throws Exception {
+        System.out.println("   comparator eviction order");
+
+        // highest priority for the highest tileX
+        Comparator<CachedTile> comp = new Comparator<CachedTile>() {
+            public int compare(CachedTile t1, CachedTile t2) {
+                return ((DiskCachedTile) t2).getTileX() - ((DiskCachedTile) t1).getTileX();
+            }
+        };
+
+        ComparatorEvictionPolicy policy = new ComparatorEvictionPolicy(comp);
+        DiskCachedTile[] t = createTiles(4);
+        for (int i = t.length - 1; i >= 0; i--) {
+            policy.add(t[i]);
+        }
+
+        for (int i = 0; i < t.length; i++) {
+            assertSame(t[i], policy.nextVictim());
+            policy.remove(t[i]);
+        }
+        assertNull(policy.nextVictim());
+    }
+
+    @Test
+    public void arcScanResistance() throws Exception {
+        System.out.println("   ARC retains tiles in use during a scan");
+        assertEquals(HOT_TILES, hotTilesAfterScan(new ArcEvictionPolicy()));
+    }
+
+    @Test
+    public void twoQueueScanResistance() throws Exception {
+        System.out.println("   2Q retains tiles in use during a scan");
+        assertEquals(HOT_TILES, hotTilesAfterScan(new TwoQueueEvictionPolicy()));
+    }
+
+    @Test
+    public void lruScan() throws Exception {
+        System.out.println("   LRU loses tiles in use during a scan");
+        assertEquals(0, hotTilesAfterScan(new LruEvictionPolicy()));
+    }
+
+    @Test
+    public void costAwareOrder() throws Exception {
+        System.out.println("   cost-aware eviction order");
+
+        CostAwareEvictionPolicy policy = new CostAwareEvictionPolicy();
+        DiskCachedTile cheap = new DiskCachedTile(0, image, 0, 0, raster, false, 1.0);
+        DiskCachedTile costly = new DiskCachedTile(1, image, 1, 0, raster, false, 100.0);
+        DiskCachedTile plain = new DiskCachedTile(2, image, 2, 0, raster, false, null);
+        policy.add(costly);
+        policy.add(cheap);
+        policy.add(plain);
+
+        assertSame(cheap, policy.nextVictim());
+        policy.remove(cheap);
+        assertSame(plain, policy.nextVictim());
+        policy.remove(plain);
+        assertSame(costly, policy.nextVictim());
+    }
+
+    @Test
+    public void costAwareAging() throws Exception {
+        System.out.println("   cost-aware policy ages out unused costly tiles");
+
+        CostAwareEvictionPolicy policy = new CostAwareEvictionPolicy();
+        DiskCachedTile costly = new DiskCachedTile(-1, image, 0, 1, raster, false, 4.0);
+        policy.add(costly);
+
+        // cheap tiles in use are re-prioritized above the idle costly tile
+        DiskCachedTile[] t = createTiles(2);
+        for (DiskCachedTile tile : t) {
+            policy.add(tile);
+        }
+
+        boolean evicted = false;
+        for (int i = 0; i < 10 && !evicted; i++) {
+            DiskCachedTile victim = policy.nextVictim();
+            policy.remove(victim);
+            evicted = victim == costly;
+
+            DiskCachedTile tile = new DiskCachedTile(100 + i, image, i, 2, raster, false, null);
+            policy.add(tile);
+            for (DiskCachedTile other : t) {
+                other.setReferenced();
+            }
+        }
+        assertTrue(evicted);
+    }
+
+    @Test
+    public void skippedTilesAreRequeued() throws Exception {
+        System.out.println("   skipped tiles are passed over until requeued");
+
+        Comparator<CachedTile> comp = new Comparator<CachedTile>() {
+            public int compare(CachedTile t1, CachedTile t2) {
+                return ((DiskCachedTile) t2).getTileX() - ((DiskCachedTile) t1).getTileX();
+            }
+        };
+
+        EvictionPolicy[] policies = {
+            new LruEvictionPolicy(),
+            new ArcEvictionPolicy(),
+            new TwoQueueEvictionPolicy(),
+            new ComparatorEvictionPolicy(comp),
+            new CostAwareEvictionPolicy()
+        };
+
+        for (EvictionPolicy policy : policies) {
+            DiskCachedTile[] t = createTiles(3);
+            for (DiskCachedTile tile : t) {
+                policy.add(tile);
+            }
+
+            DiskCachedTile first = policy.nextVictim();
+            assertNotNull(first);
+            policy.skip(first);
+
+            DiskCachedTile second = policy.nextVictim();
+            assertNotNull(second);
+            assertNotSame(first, second);
+            policy.skip(second);
+
+            DiskCachedTile third = policy.nextVictim();
+            assertNotNull(third);
+            policy.skip(third);
+            assertNull(policy.nextVictim());
+
+            policy.requeue(first);
+            policy.requeue(second);
+            policy.requeue(third);
+
+            // all tiles are known to the policy again, in their original order
+            DiskCachedTile[] expected = {first, second, third};
+            for (int i = 0; i < t.length; i++) {
+                DiskCachedTile victim = policy.nextVictim();
+                assertSame(expected[i], victim);
+                policy.remove(victim);
+            }
+            assertNull(policy.nextVictim());
+        }
+    }
+
+    @Test
+    public void requeuedTilesAreMostRecent() throws Exception {
+        System.out.println("   recency policies requeue tiles at the most recent end");
+
+        EvictionPolicy[] policies = {
+            new LruEvictionPolicy(),
+            new ArcEvictionPolicy(),
+            new TwoQueueEvictionPolicy()
+        };
+
+        for (EvictionPolicy policy : policies) {
+            DiskCachedTile[] t = createTiles(4);
+            for (DiskCachedTile tile : t) {
+                policy.add(tile);
+            }
+
+            DiskCachedTile first = policy.nextVictim();
+            assertSame(t[0], first);
+            policy.skip(first);
+            DiskCachedTile second = policy.nextVictim();
+            assertSame(t[1], second);
+            policy.skip(second);
+
+            policy.requeue(first);
+            policy.requeue(second);
+
+            // the passed-over tiles keep their order behind the others
+            DiskCachedTile[] expected = {t[2], t[3], t[0], t[1]};
+            for (int i = 0; i < t.length; i++) {
+                DiskCachedTile victim = policy.nextVictim();
+                assertSame(expected[i], victim);
+                policy.remove(victim);
+            }
+            assertNull(policy.nextVictim());
+        }
+    }
+
+    @Test
+    public void skipLeavesCostAwareInflation() throws Exception {
+        System.out.println("   skipping a costly tile does not inflate priorities");
+
+        CostAwareEvictionPolicy policy = new CostAwareEvictionPolicy();
+        DiskCachedTile cheap = new DiskCachedTile(0, image, 0, 0, raster, false, 1.0);
+        DiskCachedTile costly = new DiskCachedTile(1, image, 1, 0, raster, false, 100.0);
+        DiskCachedTile other = new DiskCachedTile(2, image, 2, 0, raster, false, 2.0);
+        policy.add(cheap);
+        policy.add(costly);
+
+        // pass over both tiles, as when they are pinned
+        assertSame(cheap, policy.nextVictim());
+        policy.skip(cheap);
+        assertSame(costly, policy.nextVictim());
+        policy.skip(costly);
+        policy.requeue(cheap);
+        policy.requeue(costly);
+
+        // priority of a new tile is not inflated to that of the costly tile
+        policy.add(other);
+        assertSame(cheap, policy.nextVictim());
+        policy.remove(cheap);
+        assertSame(other, policy.nextVictim());
+    }
+
+    private static final int HOT_TILES = 4;
+
+    /*
+     * Simulates a cache of 8 tiles in which a small set of tiles is used
+     * repeatedly along with others used once, followed by a scan through
+     * many tiles used once. Returns the number of the repeatedly used
+     * tiles still resident after the scan.
+     */
+    private int hotTilesAfterScan(EvictionPolicy policy) throws Exception {
+        final int capacity = 8;
+        Set<DiskCachedTile> resident = new LinkedHashSet<DiskCachedTile>();
+        DiskCachedTile[] hot = createTiles(HOT_TILES);
+
+        int id = 1000;
+        for (int round = 0; round < 10; round++) {
+            for (DiskCachedTile tile : hot) {
+                access(policy, resident, tile, capacity);
+            }
+            for (int i = 0; i < 3; i++) {
+                DiskCachedTile tile = new DiskCachedTile(id, image, id, 0, raster, false, null);
+                id++ ;
+                access(policy, resident, tile, capacity);
+            }
+        }
+
+        for (int i = 0; i < 50; i++) {
+            DiskCachedTile tile = new DiskCachedTile(id, image, id, 0, raster, false, null);
+            id++ ;
+            access(policy, resident, tile, capacity);
+        }
+
+        int n = 0;
+        for (DiskCachedTile tile : hot) {
+            if (resident.contains(tile)) {
+                n++ ;
+            }
+        }
+        return n;
+    }
+
+    private void access(EvictionPolicy policy, Set<DiskCachedTile> resident,
+            DiskCachedTile tile, int capacity) {
+
+        if (resident.contains(tile)) {
+            tile.setReferenced();
+        } else {
+            while (resident.size() >= capacity) {
+                DiskCachedTile victim = policy.nextVictim();
+                policy.remove(victim);
+                resident.remove(victim);
+            }
+            policy.add(tile);
+            resident.add(tile);
+        }
+    }
+
+    private DiskCachedTile[] createTiles(int n) throws Exception {
+        DiskCachedTile[] tiles = new DiskCachedTile[n];
+        for (int i = 0; i < n; i++) {
+            tiles[i] = new DiskCachedTile(Integer.valueOf(i), image, i, 0, raster, false, null);
+        }
+        return tiles;
+    }
+}
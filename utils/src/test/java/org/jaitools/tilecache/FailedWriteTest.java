@@ -0,0 +1,115 @@
+/* 
+ *  Copyright (c) 2013, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+package org.jaitools.tilecache;
+
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.jaitools.tilecache.TileCacheTestHelper.createImage;
+import static org.jaitools.tilecache.TileCacheTestHelper.createTile;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the handling of failed disk writes by {@code DiskMemTileCache}.
+ *
+ * @author Michael Bedward
+ * @since 1.4
+ * @version $Id$
+ */
+public class FailedWriteTest {
+
+    private static final int TILE_WIDTH = 64;
+
+    // memory occupied by each test tile
+    private static final long TILE_SIZE = TILE_WIDTH * TILE_WIDTH * 4;
+
+    private File folder;
+    private DiskMemTileCache cache;
+    private RenderedImage image;
+
+    @Before
+    public void setup() throws Exception {
+        folder = File.createTempFile("cachetest", "");
+        folder.delete();
+        folder.mkdirs();
+
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put(DiskMemTileCache.KEY_SPILL_FOLDERS, new File[] {folder});
+        cache = new DiskMemTileCache(params);
+        image = createImage(TILE_WIDTH);
+    }
+
+    @After
+    public void cleanup() {
+        cache.dispose();
+
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        folder.delete();
+    }
+
+    @Test
+    public void failedWritesStayCharged() {
+        System.out.println("   tiles whose writes fail stay charged to memory");
+
+        cache.setMemoryCapacity(4 * TILE_SIZE);
+        for (int i = 0; i < 4; i++) {
+            cache.add(image, i, 0, createTile(image.getSampleModel(), i, true));
+        }
+
+        // writes fail while the spill folder is missing
+        assertTrue(folder.delete());
+        for (int i = 4; i < 12; i++) {
+            cache.add(image, i, 0, createTile(image.getSampleModel(), i, true));
+
+            assertEquals(0, cache.getNumEvictingTiles());
+            assertEquals(cache.getNumResidentTiles() * TILE_SIZE, cache.getCurrentMemory());
+        }
+        assertEquals(12, cache.getNumResidentTiles());
+
+        // once writes succeed the cache returns within its capacity
+        assertTrue(folder.mkdirs());
+        cache.add(image, 12, 0, createTile(image.getSampleModel(), 12, true));
+        assertTrue(cache.getCurrentMemory() <= 4 * TILE_SIZE);
+        assertEquals(0, cache.getNumEvictingTiles());
+
+        for (int i = 0; i <= 12; i++) {
+            Raster r = cache.getTile(image, i, 0);
+            assertNotNull(r);
+            assertEquals(i, r.getSample(0, 0, 0));
+        }
+        assertTrue(cache.getCurrentMemory() <= 4 * TILE_SIZE);
+    }
+}
@@ -0,0 +1,153 @@
+/* 
+ *  Copyright (c) 2013, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.tilecache;
+
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.jaitools.tilecache.TileCacheTestHelper.createImage;
+import static org.jaitools.tilecache.TileCacheTestHelper.createTile;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the persistent mode of {@code DiskMemTileCache}.
+ *
+ * @author Michael Bedward
+ * @since 1.4
+ * @version $Id$
+ */
+public class PersistentCacheTest {
+
+    private static final int TILE_WIDTH = 64;
+
+    private File folder;
+
+    @Before
+    public void setup() throws Exception {
+        folder = File.createTempFile("cachetest", "");
+        folder.delete();
+        folder.mkdirs();
+    }
+
+    @After
+    public void cleanup() {
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        folder.delete();
+    }
+
+    @Test
+    public void tilesSurviveRestart() throws Exception {
+        System.out.println("   saved tiles are served after restart");
+
+        DiskMemTileCache cache = createCache();
+        RenderedImage image = createImage(TILE_WIDTH);
+        cache.setPersistentKey(image, "test");
+        cache.add(image, 0, 0, createTile(image.getSampleModel(), 42, false));
+        cache.checkpoint();
+
+        DiskMemTileCache restarted = createCache();
+        RenderedImage sameImage = createImage(TILE_WIDTH);
+        assertNull(restarted.getTile(sameImage, 0, 0));
+
+        restarted.setPersistentKey(sameImage, "test");
+        Raster r = restarted.getTile(sameImage, 0, 0);
+        assertNotNull(r);
+        assertEquals(42, r.getSample(1, 2, 0));
+        assertEquals(1, restarted.getNumTiles());
+
+        RenderedImage otherImage = createImage(TILE_WIDTH);
+        restarted.setPersistentKey(otherImage, "other");
+        assertNull(restarted.getTile(otherImage, 0, 0));
+    }
+
+    @Test
+    public void changedDataAreRejected() throws Exception {
+        System.out.println("   saved tiles which fail checksum are discarded");
+
+        DiskMemTileCache cache = createCache();
+        RenderedImage image = createImage(TILE_WIDTH);
+        cache.setPersistentKey(image, "test");
+        cache.add(image, 0, 0, createTile(image.getSampleModel(), 42, false));
+        cache.checkpoint();
+
+        File[] files = folder.listFiles();
+        for (File f : files) {
+            if (SlabSpillStore.getSegmentNumber(f.getName()) >= 0) {
+                RandomAccessFile raf = new RandomAccessFile(f, "rw");
+                raf.seek(16);
+                raf.write(7);
+                raf.close();
+            }
+        }
+
+        DiskMemTileCache restarted = createCache();
+        RenderedImage sameImage = createImage(TILE_WIDTH);
+        restarted.setPersistentKey(sameImage, "test");
+        assertNull(restarted.getTile(sameImage, 0, 0));
+        assertEquals(0, restarted.getNumTiles());
+    }
+
+    @Test
+    public void unrenamedIndexIsRead() throws Exception {
+        System.out.println("   index left under its temporary name is read");
+
+        DiskMemTileCache cache = createCache();
+        RenderedImage image = createImage(TILE_WIDTH);
+        cache.setPersistentKey(image, "test");
+        cache.add(image, 0, 0, createTile(image.getSampleModel(), 42, false));
+        cache.checkpoint();
+
+        // as if interrupted between deleting the old index and renaming the new one
+        File index = new File(folder, PersistentIndex.INDEX_FILE);
+        assertTrue(index.renameTo(new File(folder, PersistentIndex.INDEX_FILE + ".tmp")));
+
+        DiskMemTileCache restarted = createCache();
+        RenderedImage sameImage = createImage(TILE_WIDTH);
+        restarted.setPersistentKey(sameImage, "test");
+        Raster r = restarted.getTile(sameImage, 0, 0);
+        assertNotNull(r);
+        assertEquals(42, r.getSample(1, 2, 0));
+    }
+
+    private DiskMemTileCache createCache() {
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put(DiskMemTileCache.KEY_PERSISTENT_FOLDER, folder);
+        params.put(DiskMemTileCache.KEY_SLAB_FILE_SIZE, 1024 * 1024);
+        return new DiskMemTileCache(params);
+    }
+}
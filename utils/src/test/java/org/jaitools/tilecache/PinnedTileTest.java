@@ -0,0 +1,173 @@
+/* 
+ *  Copyright (c) 2013, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+
+package org.jaitools.tilecache;
+
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.jaitools.tilecache.TileCacheTestHelper.createImage;
+import static org.jaitools.tilecache.TileCacheTestHelper.createTile;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for pinning tiles in {@code DiskMemTileCache}.
+ *
+ * @author Michael Bedward
+ * @since 1.4
+ * @version $Id$
+ */
+public class PinnedTileTest {
+
+    private static final int TILE_WIDTH = 64;
+
+    // memory occupied by each test tile
+    private static final long TILE_SIZE = TILE_WIDTH * TILE_WIDTH * 4;
+
+    private DiskMemTileCache cache;
+    private RenderedImage image;
+
+    @Before
+    public void setup() {
+        cache = new DiskMemTileCache();
+        image = createImage(TILE_WIDTH);
+    }
+
+    @After
+    public void cleanup() {
+        cache.flush();
+    }
+
+    @Test
+    public void pinnedTileStaysResident() {
+        System.out.println("   pinned tile stays resident");
+
+        cache.setMemoryCapacity(2 * TILE_SIZE);
+        cache.add(image, 0, 0, createTile(image.getSampleModel(), 0, true));
+        Raster pinned = cache.getTile(image, 0, 0);
+        assertTrue(cache.pinTile(image, 0, 0));
+
+        for (int i = 1; i < 6; i++) {
+            cache.add(image, i, 0, createTile(image.getSampleModel(), 0, true));
+        }
+
+        assertTrue(cache.isTilePinned(image, 0, 0));
+        assertSame(pinned, cache.getTile(image, 0, 0));
+        assertEquals(1, cache.getNumPinnedTiles());
+        assertEquals(TILE_SIZE, cache.getPinnedMemory());
+    }
+
+    @Test
+    public void pinsAreCounted() {
+        System.out.println("   tile pinned twice needs two unpins");
+
+        cache.add(image, 0, 0, createTile(image.getSampleModel(), 0, true));
+        cache.pinTile(image, 0, 0);
+        cache.pinTile(image, 0, 0);
+
+        cache.unpinTile(image, 0, 0);
+        assertTrue(cache.isTilePinned(image, 0, 0));
+        cache.unpinTile(image, 0, 0);
+        assertFalse(cache.isTilePinned(image, 0, 0));
+        assertEquals(0, cache.getPinnedMemory());
+    }
+
+    @Test
+    public void unpinRestoresCapacity() {
+        System.out.println("   unpinning frees memory taken beyond capacity");
+
+        cache.setMemoryCapacity(TILE_SIZE);
+        cache.add(image, 0, 0, createTile(image.getSampleModel(), 0, true));
+        cache.pinTile(image, 0, 0);
+        cache.add(image, 1, 0, createTile(image.getSampleModel(), 0, true));
+        assertEquals(2 * TILE_SIZE, cache.getCurrentMemory());
+
+        cache.unpinTile(image, 0, 0);
+        assertEquals(TILE_SIZE, cache.getCurrentMemory());
+        assertEquals(1, cache.getNumResidentTiles());
+    }
+
+    @Test
+    public void pinnedTilesKeepArcHistory() {
+        System.out.println("   passing over pinned tiles leaves ARC history unchanged");
+
+        ArcEvictionPolicy policy = new ArcEvictionPolicy();
+        cache.setEvictionPolicy(policy);
+        cache.setMemoryCapacity(4 * TILE_SIZE);
+        for (int i = 0; i < 4; i++) {
+            cache.add(image, i, 0, createTile(image.getSampleModel(), 0, true));
+        }
+        for (int i = 0; i < 3; i++) {
+            cache.pinTile(image, i, 0);
+        }
+
+        final int p = policy.getTargetSize();
+        assertArrayEquals(new int[] {4, 0, 0, 0}, policy.getListSizes());
+        cache.add(image, 4, 0, createTile(image.getSampleModel(), 0, true));
+
+        /*
+         * The pinned tiles are passed over without being counted as removed
+         * and returning, which would raise p and promote them to t2. The
+         * ID of the evicted tile is trimmed from the history since t1 is full.
+         */
+        assertEquals(p, policy.getTargetSize());
+        assertArrayEquals(new int[] {4, 0, 0, 0}, policy.getListSizes());
+        for (int i = 0; i < 3; i++) {
+            assertTrue(cache.containsResidentTile(image, i, 0));
+        }
+        assertFalse(cache.containsResidentTile(image, 3, 0));
+    }
+
+    @Test
+    public void flushMemoryKeepsPinnedTiles() {
+        System.out.println("   flushMemory keeps pinned tiles");
+
+        cache.add(image, 0, 0, createTile(image.getSampleModel(), 0, true));
+        cache.add(image, 1, 0, createTile(image.getSampleModel(), 0, true));
+        cache.pinTile(image, 1, 0);
+
+        cache.flushMemory();
+        assertEquals(1, cache.getNumResidentTiles());
+        assertEquals(TILE_SIZE, cache.getCurrentMemory());
+        assertTrue(cache.isTilePinned(image, 1, 0));
+    }
+
+    @Test
+    public void removeReleasesPin() {
+        System.out.println("   removing a pinned tile releases its pin");
+
+        cache.add(image, 0, 0, createTile(image.getSampleModel(), 0, true));
+        cache.pinTile(image, 0, 0);
+        cache.remove(image, 0, 0);
+
+        assertEquals(0, cache.getNumPinnedTiles());
+        assertEquals(0, cache.getPinnedMemory());
+        assertFalse(cache.pinTile(image, 0, 0));
+    }
+}
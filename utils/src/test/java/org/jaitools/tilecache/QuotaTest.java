@@ -0,0 +1,129 @@
+/* 
+ *  Copyright (c) 2013, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.tilecache;
+
+import java.awt.image.RenderedImage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.jaitools.tilecache.TileCacheTestHelper.createImage;
+import static org.jaitools.tilecache.TileCacheTestHelper.createTile;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for memory quotas in {@code DiskMemTileCache}.
+ *
+ * @author Michael Bedward
+ * @since 1.4
+ * @version $Id$
+ */
+public class QuotaTest {
+
+    private static final int TILE_WIDTH = 64;
+
+    // memory occupied by each test tile
+    private static final long TILE_SIZE = TILE_WIDTH * TILE_WIDTH * 4;
+
+    private DiskMemTileCache cache;
+
+    @Before
+    public void setup() {
+        cache = new DiskMemTileCache();
+    }
+
+    @After
+    public void cleanup() {
+        cache.flush();
+    }
+
+    @Test
+    public void maximumCapsOwner() {
+        System.out.println("   image quota maximum caps resident tiles");
+
+        cache.setMemoryCapacity(10 * TILE_SIZE);
+        RenderedImage image = createImage(TILE_WIDTH);
+        cache.setOwnerQuota(image, 0, 2 * TILE_SIZE);
+
+        for (int i = 0; i < 5; i++) {
+            cache.add(image, i, 0, createTile(image.getSampleModel(), 0, false));
+        }
+
+        assertEquals(2 * TILE_SIZE, cache.getQuotaMemory(image));
+        assertEquals(2, cache.getNumResidentTiles());
+        assertEquals(5, cache.getNumTiles());
+    }
+
+    @Test
+    public void minimumProtectsOwner() {
+        System.out.println("   image quota minimum protects resident tiles");
+
+        cache.setMemoryCapacity(4 * TILE_SIZE);
+        RenderedImage protectedImage = createImage(TILE_WIDTH);
+        cache.setOwnerQuota(protectedImage, 2 * TILE_SIZE, Long.MAX_VALUE);
+        cache.add(protectedImage, 0, 0, createTile(protectedImage.getSampleModel(), 0, false));
+        cache.add(protectedImage, 1, 0, createTile(protectedImage.getSampleModel(), 0, false));
+
+        RenderedImage bulkImage = createImage(TILE_WIDTH);
+        for (int i = 0; i < 10; i++) {
+            cache.add(bulkImage, i, 0, createTile(bulkImage.getSampleModel(), 0, false));
+        }
+
+        assertEquals(2 * TILE_SIZE, cache.getQuotaMemory(protectedImage));
+        assertEquals(4, cache.getNumResidentTiles());
+    }
+
+    @Test
+    public void groupSharesQuota() {
+        System.out.println("   images in a group share a quota");
+
+        cache.setMemoryCapacity(10 * TILE_SIZE);
+        cache.setGroupQuota("group", 0, 3 * TILE_SIZE);
+
+        RenderedImage image1 = createImage(TILE_WIDTH);
+        RenderedImage image2 = createImage(TILE_WIDTH);
+        cache.setOwnerGroup(image1, "group");
+        cache.setOwnerGroup(image2, "group");
+
+        for (int i = 0; i < 2; i++) {
+            cache.add(image1, i, 0, createTile(image1.getSampleModel(), 0, false));
+            cache.add(image2, i, 0, createTile(image2.getSampleModel(), 0, false));
+        }
+
+        assertEquals(3 * TILE_SIZE, cache.getGroupMemory("group"));
+        assertEquals(3 * TILE_SIZE, cache.getQuotaMemory(image1));
+
+        cache.setGroupQuota("group", 0, TILE_SIZE);
+        assertEquals(TILE_SIZE, cache.getGroupMemory("group"));
+        assertEquals(1, cache.getNumResidentTiles());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void invalidLimits() {
+        System.out.println("   invalid quota limits are rejected");
+        cache.setGroupQuota("group", 2 * TILE_SIZE, TILE_SIZE);
+    }
+}
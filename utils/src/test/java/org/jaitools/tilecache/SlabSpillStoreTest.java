@@ -0,0 +1,230 @@
+/* 
+ *  Copyright (c) 2013, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.tilecache;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@code SlabSpillStore}.
+ *
+ * @author Michael Bedward
+ * @since 1.4
+ * @version $Id$
+ */
+public class SlabSpillStoreTest {
+
+    private static final int TILE_WIDTH = 64;
+
+    // 4 bytes per pixel
+    private static final long TILE_BYTES = 4L * TILE_WIDTH * TILE_WIDTH;
+
+    private static final WritableRaster raster;
+    private static final RenderedImage image;
+
+    static {
+        ColorModel cm = ColorModel.getRGBdefault();
+        SampleModel sm = cm.createCompatibleSampleModel(TILE_WIDTH, TILE_WIDTH);
+
+        raster = Raster.createWritableRaster(sm, new Point(0, 0));
+        for (int y = 0; y < TILE_WIDTH; y++) {
+            for (int x = 0; x < TILE_WIDTH; x++) {
+                raster.setSample(x, y, 0, (x + y) & 0xff);
+            }
+        }
+        image = new BufferedImage(cm, raster, false, null);
+    }
+
+    @Test
+    public void tilesShareSlabFile() throws Exception {
+        System.out.println("   tiles share a slab file");
+
+        SlabSpillStore store = new SlabSpillStore(10 * TILE_BYTES);
+        DiskCachedTile t0 = createTile(0, store);
+        DiskCachedTile t1 = createTile(1, store);
+
+        File file = t0.getFile();
+        assertNotNull(file);
+        assertTrue(file.exists());
+        assertEquals(file, t1.getFile());
+        assertEquals(1, store.getNumSegments());
+
+        Raster r = t1.readData();
+        assertNotNull(r);
+        for (int y = 0; y < TILE_WIDTH; y++) {
+            for (int x = 0; x < TILE_WIDTH; x++) {
+                assertEquals((x + y) & 0xff, r.getSample(x, y, 0));
+            }
+        }
+    }
+
+    @Test
+    public void freedSlotsAreReused() throws Exception {
+        System.out.println("   freed slots are reused");
+
+        SlabSpillStore store = new SlabSpillStore(2 * TILE_BYTES);
+        DiskCachedTile t0 = createTile(0, store);
+        createTile(1, store);
+        assertEquals(1, store.getNumSegments());
+
+        t0.deleteDiskCopy();
+        assertFalse(t0.cachedToDisk());
+
+        DiskCachedTile t2 = createTile(2, store);
+        assertEquals(1, store.getNumSegments());
+        assertNotNull(t2.readData());
+
+        createTile(3, store);
+        assertEquals(2, store.getNumSegments());
+    }
+
+    @Test
+    public void largerFreeSlotsAreSplit() throws Exception {
+        System.out.println("   larger free slots are split for smaller data");
+
+        SlabSpillStore store = new SlabSpillStore(4 * TILE_BYTES);
+        SpillStore.Slot big = store.write(null, data(3 * (int) TILE_BYTES));
+        SpillStore.Slot after = store.write(null, data((int) TILE_BYTES));
+        assertEquals(1, store.getNumSegments());
+
+        store.free(big);
+        SpillStore.Slot s0 = store.write(null, data((int) TILE_BYTES));
+        SpillStore.Slot s1 = store.write(null, data(2 * (int) TILE_BYTES - 100));
+        assertEquals(1, store.getNumSegments());
+        assertEquals(0, s0.offset);
+        assertEquals(TILE_BYTES, s1.offset);
+
+        // freed neighbours are merged
+        store.free(s0);
+        store.free(s1);
+        store.free(after);
+        SpillStore.Slot all = store.write(null, data(4 * (int) TILE_BYTES));
+        assertEquals(1, store.getNumSegments());
+        assertEquals(0, all.offset);
+
+        store.close();
+    }
+
+    @Test
+    public void compressedReplacementsStayBounded() throws Exception {
+        System.out.println("   replacing compressed tiles does not grow the store");
+
+        final int numTiles = 16;
+        SlabSpillStore store = new SlabSpillStore(4 * TILE_BYTES);
+        TileCodec codec = new DeflateTileCodec();
+        Random rr = new Random(42);
+
+        DiskCachedTile[] tiles = new DiskCachedTile[numTiles];
+        for (int i = 0; i < numTiles; i++) {
+            tiles[i] = new DiskCachedTile(Integer.valueOf(i), image, 0, 0, raster, true, null,
+                    store, codec);
+        }
+
+        for (int pass = 0; pass < 50; pass++) {
+            for (int i = 0; i < numTiles; i++) {
+                // vary the proportion of noise, and hence the compressed size
+                WritableRaster r = raster.createCompatibleWritableRaster();
+                float noise = rr.nextFloat();
+                for (int y = 0; y < TILE_WIDTH; y++) {
+                    for (int x = 0; x < TILE_WIDTH; x++) {
+                        int value = rr.nextFloat() < noise ? rr.nextInt(256) : 0;
+                        r.setSample(x, y, 0, value);
+                    }
+                }
+                tiles[i].deleteDiskCopy();
+                tiles[i] = new DiskCachedTile(Integer.valueOf(i), image, 0, 0, r, true, null,
+                        store, codec);
+            }
+        }
+
+        // the uncompressed data of all tiles would fill 4 segments
+        assertTrue(store.getNumSegments() <= 4);
+        store.close();
+    }
+
+    @Test
+    public void trimDeletesEmptySegments() throws Exception {
+        System.out.println("   trim deletes empty segment files");
+
+        SlabSpillStore store = new SlabSpillStore(TILE_BYTES);
+        DiskCachedTile t0 = createTile(0, store);
+        DiskCachedTile t1 = createTile(1, store);
+        File f0 = t0.getFile();
+        File f1 = t1.getFile();
+        assertEquals(2, store.getNumSegments());
+
+        t0.deleteDiskCopy();
+        store.trim();
+        assertEquals(1, store.getNumSegments());
+        assertFalse(f0.exists());
+        assertTrue(f1.exists());
+        assertNotNull(t1.readData());
+
+        store.close();
+    }
+
+    @Test
+    public void closeDeletesSegments() throws Exception {
+        System.out.println("   close deletes segment files");
+
+        SlabSpillStore store = new SlabSpillStore(10 * TILE_BYTES);
+        DiskCachedTile t0 = createTile(0, store);
+        File file = t0.getFile();
+        assertTrue(file.exists());
+
+        store.close();
+        assertFalse(file.exists());
+        assertEquals(0, store.getNumSegments());
+
+        try {
+            store.write(null, data(100));
+            fail("Expected IOException writing to a closed store");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+
+    private ByteBuffer data(int len) {
+        return ByteBuffer.allocate(len);
+    }
+
+    private DiskCachedTile createTile(int id, SpillStore store) throws Exception {
+        return new DiskCachedTile(Integer.valueOf(id), image, 0, 0, raster, true, null,
+                store, RawTileCodec.INSTANCE);
+    }
+}
@@ -0,0 +1,147 @@
+/* 
+ *  Copyright (c) 2013, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.tilecache;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@code StripedSpillStore}.
+ *
+ * @author Michael Bedward
+ * @since 1.4
+ * @version $Id$
+ */
+public class StripedSpillStoreTest {
+
+    private static final int TILE_WIDTH = 64;
+
+    private static final WritableRaster raster;
+    private static final RenderedImage image;
+
+    static {
+        ColorModel cm = ColorModel.getRGBdefault();
+        SampleModel sm = cm.createCompatibleSampleModel(TILE_WIDTH, TILE_WIDTH);
+
+        raster = Raster.createWritableRaster(sm, new Point(0, 0));
+        for (int y = 0; y < TILE_WIDTH; y++) {
+            for (int x = 0; x < TILE_WIDTH; x++) {
+                raster.setSample(x, y, 0, (x + y) & 0xff);
+            }
+        }
+        image = new BufferedImage(cm, raster, false, null);
+    }
+
+    private File[] folders;
+
+    @Before
+    public void setup() throws Exception {
+        folders = new File[2];
+        for (int i = 0; i < folders.length; i++) {
+            folders[i] = File.createTempFile("stripetest", "");
+            folders[i].delete();
+            folders[i].mkdirs();
+        }
+    }
+
+    @After
+    public void cleanup() {
+        for (File folder : folders) {
+            File[] files = folder.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    f.delete();
+                }
+            }
+            folder.delete();
+        }
+    }
+
+    @Test
+    public void roundRobinPlacement() throws Exception {
+        System.out.println("   tiles placed across folders in turn");
+
+        StripedSpillStore store = createStore(false);
+        DiskCachedTile[] tiles = new DiskCachedTile[4];
+        for (int i = 0; i < tiles.length; i++) {
+            tiles[i] = createTile(i, store);
+        }
+
+        assertEquals(2, folders[0].list().length);
+        assertEquals(2, folders[1].list().length);
+        for (int i = 0; i < tiles.length; i++) {
+            assertEquals(folders[i % 2], tiles[i].getFile().getParentFile());
+            assertData(tiles[i].readData());
+        }
+    }
+
+    @Test
+    public void leastUsedPlacement() throws Exception {
+        System.out.println("   tiles placed in the least used folder");
+
+        StripedSpillStore store = createStore(true);
+        DiskCachedTile t0 = createTile(0, store);
+        createTile(1, store);
+        t0.dispose();
+
+        DiskCachedTile t2 = createTile(2, store);
+        assertEquals(folders[0], t2.getFile().getParentFile());
+        assertData(t2.readData());
+    }
+
+    private StripedSpillStore createStore(boolean leastUsed) {
+        SpillStore[] stores = new SpillStore[folders.length];
+        for (int i = 0; i < stores.length; i++) {
+            stores[i] = new FileSpillStore(folders[i]);
+        }
+        return new StripedSpillStore(stores, leastUsed);
+    }
+
+    private DiskCachedTile createTile(int id, SpillStore store) throws Exception {
+        return new DiskCachedTile(Integer.valueOf(id), image, 0, 0, raster, true, null,
+                store, RawTileCodec.INSTANCE);
+    }
+
+    private void assertData(Raster r) {
+        assertNotNull(r);
+        for (int y = 0; y < TILE_WIDTH; y++) {
+            for (int x = 0; x < TILE_WIDTH; x++) {
+                assertEquals((x + y) & 0xff, r.getSample(x, y, 0));
+            }
+        }
+    }
+}
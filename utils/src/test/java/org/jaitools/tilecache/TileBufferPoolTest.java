@@ -0,0 +1,162 @@
+/* 
+ *  Copyright (c) 2013, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.tilecache;
+
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.DataBufferInt;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@code TileBufferPool} and the scratch buffers of
+ * {@code TileBuffers}.
+ *
+ * @author Michael Bedward
+ * @since 1.4
+ * @version $Id$
+ */
+public class TileBufferPoolTest {
+
+    private static final int LEN = 256;
+
+    @Test
+    public void reusedOnlyForMatchingTypeAndSize() throws Exception {
+        System.out.println("   pooled arrays only reused for matching type and size");
+
+        TileBufferPool pool = new TileBufferPool(1024 * 1024);
+        DataBufferInt dataBuf = new DataBufferInt(LEN, 3);
+        pool.recycle(dataBuf);
+        assertEquals(3 * LEN * 4, pool.getSize());
+
+        assertNull(pool.take(DataBuffer.TYPE_FLOAT, 3, LEN));
+        assertNull(pool.take(DataBuffer.TYPE_INT, 1, LEN));
+        assertNull(pool.take(DataBuffer.TYPE_INT, 3, LEN / 2));
+        assertNull(pool.take(DataBuffer.TYPE_INT, 3, 2 * LEN));
+
+        int[][] banks = (int[][]) pool.take(DataBuffer.TYPE_INT, 3, LEN);
+        assertNotNull(banks);
+        for (int b = 0; b < 3; b++) {
+            assertSame(dataBuf.getData(b), banks[b]);
+        }
+        assertEquals(0, pool.getSize());
+        assertNull(pool.take(DataBuffer.TYPE_INT, 3, LEN));
+    }
+
+    @Test
+    public void unsuitableBuffersAreNotPooled() throws Exception {
+        System.out.println("   buffers with offsets or odd bank lengths not pooled");
+
+        TileBufferPool pool = new TileBufferPool(1024 * 1024);
+
+        pool.recycle(new DataBufferByte(new byte[LEN + 10], LEN, 10));
+        pool.recycle(new DataBufferByte(new byte[][] {new byte[LEN], new byte[2 * LEN]}, LEN));
+        assertEquals(0, pool.getSize());
+        assertNull(pool.take(DataBuffer.TYPE_BYTE, 1, LEN));
+        assertNull(pool.take(DataBuffer.TYPE_BYTE, 2, LEN));
+    }
+
+    @Test
+    public void reusedArraysAreOverwritten() throws Exception {
+        System.out.println("   reused arrays fully overwritten");
+
+        TileBufferPool pool = new TileBufferPool(1024 * 1024);
+        float[][] stale = new float[2][LEN];
+        for (float[] bank : stale) {
+            Arrays.fill(bank, -1f);
+        }
+        pool.recycle(new DataBufferFloat(stale, LEN));
+
+        ByteBuffer src = ByteBuffer.allocateDirect(2 * LEN * 4).order(ByteOrder.nativeOrder());
+        for (int i = 0; i < 2 * LEN; i++) {
+            src.putFloat(i);
+        }
+        src.flip();
+
+        Object banks = pool.take(DataBuffer.TYPE_FLOAT, 2, LEN);
+        assertNotNull(banks);
+
+        DataBufferFloat dataBuf = (DataBufferFloat) TileBuffers.get(
+                src, DataBuffer.TYPE_FLOAT, 2, LEN, banks);
+        assertFalse(src.hasRemaining());
+
+        for (int b = 0; b < 2; b++) {
+            assertSame(stale[b], dataBuf.getData(b));
+            for (int i = 0; i < LEN; i++) {
+                assertEquals((float) (b * LEN + i), dataBuf.getElemFloat(b, i), 0f);
+            }
+        }
+    }
+
+    @Test
+    public void poolStaysWithinCapacity() throws Exception {
+        System.out.println("   pool stays within capacity");
+
+        final int bufBytes = LEN;
+        TileBufferPool pool = new TileBufferPool(5 * bufBytes + bufBytes / 2);
+
+        for (int i = 0; i < 20; i++) {
+            pool.recycle(new DataBufferByte(LEN));
+            assertTrue(pool.getSize() <= 5 * bufBytes + bufBytes / 2);
+        }
+        assertEquals(5 * bufBytes, pool.getSize());
+
+        int n = 0;
+        while (pool.take(DataBuffer.TYPE_BYTE, 1, LEN) != null) {
+            n++;
+        }
+        assertEquals(5, n);
+        assertEquals(0, pool.getSize());
+
+        pool.recycle(new DataBufferByte(LEN));
+        pool.clear();
+        assertEquals(0, pool.getSize());
+        assertNull(pool.take(DataBuffer.TYPE_BYTE, 1, LEN));
+    }
+
+    @Test
+    public void largeScratchBuffersNotRetained() throws Exception {
+        System.out.println("   large scratch buffers not retained");
+
+        ByteBuffer small = TileBuffers.getScratchBuffer(1024);
+        assertTrue(small.isDirect());
+        assertSame(small, TileBuffers.getScratchBuffer(512));
+        assertEquals(512, small.limit());
+
+        ByteBuffer large = TileBuffers.getScratchBuffer(TileBuffers.MAX_SCRATCH_SIZE + 1);
+        assertEquals(TileBuffers.MAX_SCRATCH_SIZE + 1, large.limit());
+        assertEquals(ByteOrder.nativeOrder(), large.order());
+        assertNotSame(large, TileBuffers.getScratchBuffer(TileBuffers.MAX_SCRATCH_SIZE + 1));
+
+        // the thread's retained buffer is unaffected by the large request
+        assertSame(small, TileBuffers.getScratchBuffer(1024));
+    }
+}
@@ -25,8 +25,23 @@
 
 package org.jaitools.tilecache;
 
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
 import java.io.File;
-
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.media.jai.JAI;
 import javax.media.jai.RenderedOp;
 import javax.media.jai.TileCache;
@@ -218,6 +233,37 @@ public class TileCacheTest {
         helper.stopObserving(cache);
     }
 
+    /**
+     * Test that tiles are removed once their image has been
+     * garbage collected
+     */
+    @Test
+    public void removeTilesForCollectedImage() throws Exception {
+        System.out.println("   removal of tiles for a garbage collected image");
+
+        ColorModel cm = ColorModel.getRGBdefault();
+        SampleModel sm = cm.createCompatibleSampleModel(64, 64);
+        BufferedImage kept = new BufferedImage(cm,
+                Raster.createWritableRaster(sm, new Point(0, 0)), false, null);
+        cache.add(kept, 0, 0, Raster.createWritableRaster(sm, new Point(0, 0)));
+
+        BufferedImage discarded = new BufferedImage(cm,
+                Raster.createWritableRaster(sm, new Point(0, 0)), false, null);
+        for (int x = 0; x < 4; x++) {
+            cache.add(discarded, x, 0, Raster.createWritableRaster(sm, new Point(0, 0)));
+        }
+        assertEquals(5, cache.getNumTiles());
+
+        discarded = null;
+        for (int i = 0; i < 50 && cache.getNumTiles() > 1; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+
+        assertEquals(1, cache.getNumTiles());
+        assertNotNull(cache.getTile(kept, 0, 0));
+    }
+
     /**
      * Test flushing the cache
      */
@@ -241,6 +287,43 @@ public class TileCacheTest {
         assertTrue(cache.getNumTiles() == 0);
     }
 
+    /**
+     * Test that flushing memory keeps changes to tile data
+     */
+    @Test
+    public void testFlushKeepsChanges() throws Exception {
+        System.out.println("   flushMemory keeps changed tile data");
+
+        ColorModel cm = ColorModel.getRGBdefault();
+        SampleModel sm = cm.createCompatibleSampleModel(64, 64);
+        BufferedImage image = new BufferedImage(cm,
+                Raster.createWritableRaster(sm, new Point(0, 0)), false, null);
+
+        for (int x = 0; x < 2; x++) {
+            cache.add(image, x, 0, Raster.createWritableRaster(sm, new Point(64 * x, 0)));
+        }
+
+        // write the tiles to disk, then change them
+        cache.flushMemory();
+        for (int x = 0; x < 2; x++) {
+            WritableRaster r = (WritableRaster) cache.getTile(image, x, 0);
+            r.setSample(64 * x, 0, 0, 42 + x);
+            cache.setTileChanged(image, x, 0);
+        }
+
+        cache.flushMemory();
+        assertEquals(0, cache.getNumResidentTiles());
+        Raster r = cache.getTile(image, 0, 0);
+        assertEquals(42, r.getSample(0, 0, 0));
+
+        // flushing by setting capacity to zero
+        long capacity = cache.getMemoryCapacity();
+        cache.setMemoryCapacity(0);
+        cache.setMemoryCapacity(capacity);
+        r = cache.getTile(image, 1, 0);
+        assertEquals(43, r.getSample(64, 0, 0));
+    }
+
     /**
      * Test auto-flushing of resident tiles
      */
@@ -300,5 +383,196 @@ public class TileCacheTest {
         helper.stopObserving(cache);
     }
 
+    /**
+     * Test that tiles are served correctly when many threads access
+     * a striped cache with limited memory
+     */
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        System.out.println("   concurrent tile access");
+
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put(DiskMemTileCache.KEY_CONCURRENCY_LEVEL, 8);
+        final DiskMemTileCache striped = new DiskMemTileCache(params);
+        JAI.getDefaultInstance().setTileCache(striped);
+
+        final RenderedOp op = helper.simpleJAIOp(4, 4);
+        striped.setMemoryCapacity(helper.getTileMemSize() * 5);
+        op.getTiles();
+
+        final AtomicInteger errors = new AtomicInteger(0);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int t = 0; t < 8; t++) {
+            executor.submit(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < 50; i++) {
+                        Raster r = op.getTile(i % 4, (i / 4) % 4);
+                        if (r == null || Math.abs(r.getSampleDouble(r.getMinX(), r.getMinY(), 0) - 2.0) > FLOAT_TOL) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        assertEquals(0, errors.get());
+        assertEquals(16, striped.getNumTiles());
+        assertTrue(striped.getCurrentMemory() <= striped.getMemoryCapacity());
+
+        striped.flush();
+        JAI.getDefaultInstance().setTileCache(cache);
+    }
+
+    @Test
+    public void testWriteBehind() throws Exception {
+        System.out.println("   write-behind eviction");
+
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put(DiskMemTileCache.KEY_WRITE_BEHIND_THREADS, 2);
+        params.put(DiskMemTileCache.KEY_WRITE_BEHIND_BUDGET, helper.getTileMemSize() * 2);
+        DiskMemTileCache writeBehind = new DiskMemTileCache(params);
+        JAI.getDefaultInstance().setTileCache(writeBehind);
+
+        RenderedOp op = helper.simpleJAIOp(4, 4);
+        writeBehind.setMemoryCapacity(helper.getTileMemSize() * 5);
+        op.getTiles();
+
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 4; x++) {
+                Raster r = op.getTile(x, y);
+                assertEquals(2.0, r.getSampleDouble(r.getMinX(), r.getMinY(), 0), FLOAT_TOL);
+            }
+        }
+
+        assertTrue(writeBehind.getPendingWriteBytes() <= helper.getTileMemSize() * 2);
+        assertEquals(16, writeBehind.getNumTiles());
+
+        writeBehind.flush();
+        JAI.getDefaultInstance().setTileCache(cache);
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        System.out.println("   cache metrics");
+
+        RenderedOp op = helper.simpleJAIOp(2, 2);
+        cache.setMemoryCapacity(helper.getTileMemSize() * 2);
+        op.getTiles();
+
+        CacheMetrics metrics = cache.getMetrics();
+        metrics.reset();
+
+        // two tiles are resident and two have been swapped to disk
+        for (int y = 0; y < 2; y++) {
+            for (int x = 0; x < 2; x++) {
+                assertNotNull(op.getTile(x, y));
+            }
+        }
+
+        assertEquals(4, metrics.getMemoryHits() + metrics.getDiskHits());
+        assertTrue(metrics.getDiskHits() > 0);
+        assertTrue(metrics.getBytesRead() > 0);
+        assertTrue(metrics.getEvictions() > 0);
+        assertTrue(metrics.getGetTileLatencyP99Nanos() >= metrics.getGetTileLatencyP50Nanos());
+        assertTrue(metrics.getResidentBytesHighWaterMark() <= cache.getMemoryCapacity());
+
+        ObjectName name = cache.registerMBean("test");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertTrue(server.isRegistered(name));
+        assertEquals(metrics.getDiskHits(), server.getAttribute(name, "DiskHits"));
+
+        cache.unregisterMBean();
+        assertFalse(server.isRegistered(name));
+    }
+
+    @Test
+    public void testReadAhead() throws Exception {
+        System.out.println("   read-ahead of sequentially accessed tiles");
+
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put(DiskMemTileCache.KEY_READ_AHEAD_TILES, 2);
+        DiskMemTileCache readAhead = new DiskMemTileCache(params);
+        JAI.getDefaultInstance().setTileCache(readAhead);
+
+        RenderedOp op = helper.simpleJAIOp(8, 1);
+        readAhead.setMemoryCapacity(helper.getTileMemSize() * 4);
+        op.getTiles();
+
+        // access tiles in row-major order
+        for (int x = 0; x < 8; x++) {
+            Raster r = op.getTile(x, 0);
+            assertEquals(2.0, r.getSampleDouble(r.getMinX(), r.getMinY(), 0), FLOAT_TOL);
+        }
+
+        // read-ahead is asynchronous
+        CacheMetrics metrics = readAhead.getMetrics();
+        long limit = System.currentTimeMillis() + 5000;
+        while (metrics.getReadAheadTiles() == 0 && System.currentTimeMillis() < limit) {
+            Thread.sleep(50);
+        }
+        assertTrue(metrics.getReadAheadTiles() > 0);
+
+        readAhead.flush();
+        JAI.getDefaultInstance().setTileCache(cache);
+    }
+
+    @Test
+    public void testOffHeapTier() throws Exception {
+        System.out.println("   tiles restored from off-heap tier");
+
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put(DiskMemTileCache.KEY_OFF_HEAP_CAPACITY, helper.getTileMemSize() * 8);
+        DiskMemTileCache offHeap = new DiskMemTileCache(params);
+        JAI.getDefaultInstance().setTileCache(offHeap);
+
+        RenderedOp op = helper.simpleJAIOp(8, 1);
+        offHeap.setMemoryCapacity(helper.getTileMemSize() * 4);
+        op.getTiles();
+        assertTrue(offHeap.getOffHeapMemory() > 0);
+        assertTrue(offHeap.getOffHeapMemory() <= offHeap.getOffHeapCapacity());
+
+        for (int x = 0; x < 8; x++) {
+            Raster r = op.getTile(x, 0);
+            assertEquals(2.0, r.getSampleDouble(r.getMinX(), r.getMinY(), 0), FLOAT_TOL);
+        }
+
+        CacheMetrics metrics = offHeap.getMetrics();
+        assertTrue(metrics.getOffHeapHits() > 0);
+        assertEquals(0, metrics.getDiskHits());
+
+        offHeap.flush();
+        assertEquals(0, offHeap.getOffHeapMemory());
+        JAI.getDefaultInstance().setTileCache(cache);
+    }
+
+    @Test
+    public void testCompressedOffHeapTier() throws Exception {
+        System.out.println("   tiles restored from compressed off-heap tier");
+
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put(DiskMemTileCache.KEY_OFF_HEAP_CAPACITY, helper.getTileMemSize() * 2);
+        params.put(DiskMemTileCache.KEY_OFF_HEAP_CODEC, new DeflateTileCodec());
+        DiskMemTileCache compressed = new DiskMemTileCache(params);
+        JAI.getDefaultInstance().setTileCache(compressed);
+
+        RenderedOp op = helper.simpleJAIOp(8, 1);
+        compressed.setMemoryCapacity(helper.getTileMemSize() * 2);
+        op.getTiles();
+
+        // constant tiles compress well, so all evicted tiles fit in the tier
+        assertEquals(6, compressed.getNumOffHeapTiles());
+        assertTrue(compressed.getOffHeapCompressionRatio() > 1.0);
+
+        for (int x = 0; x < 8; x++) {
+            Raster r = op.getTile(x, 0);
+            assertEquals(2.0, r.getSampleDouble(r.getMinX(), r.getMinY(), 0), FLOAT_TOL);
+        }
+        assertTrue(compressed.getMetrics().getOffHeapHits() > 0);
+
+        compressed.flush();
+        JAI.getDefaultInstance().setTileCache(cache);
+    }
 
 }
@@ -25,7 +25,14 @@
 
 package org.jaitools.tilecache;
 
+import java.awt.Point;
 import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -189,4 +196,46 @@ class TileCacheTestHelper implements Observer {
         }
     }
 
+    /**
+     * Creates a single-tile image with the default RGB colour model
+     * and integer samples. The tiles of this image occupy
+     * {@code 4 * tileWidth * tileWidth} bytes.
+     *
+     * @param tileWidth width and height of the image
+     * @return a new image
+     */
+    static RenderedImage createImage(int tileWidth) {
+        ColorModel cm = ColorModel.getRGBdefault();
+        SampleModel sm = cm.createCompatibleSampleModel(tileWidth, tileWidth);
+        WritableRaster raster = Raster.createWritableRaster(sm, new Point(0, 0));
+        return new BufferedImage(cm, raster, false, null);
+    }
+
+    /**
+     * Creates a tile at the origin with every sample of the first band
+     * set to the given value.
+     *
+     * @param sm sample model for the tile, eg. that of an image created with
+     *        {@linkplain #createImage(int)}
+     * @param value the value
+     * @param writable {@code true} to create a {@code WritableRaster};
+     *        {@code false} for a read-only tile, as produced by a JAI operator
+     * @return a new tile
+     */
+    static Raster createTile(SampleModel sm, int value, boolean writable) {
+        WritableRaster raster = Raster.createWritableRaster(sm, new Point(0, 0));
+        if (value != 0) {
+            for (int y = 0; y < sm.getHeight(); y++) {
+                for (int x = 0; x < sm.getWidth(); x++) {
+                    raster.setSample(x, y, 0, value);
+                }
+            }
+        }
+
+        if (writable) {
+            return raster;
+        }
+        return Raster.createRaster(sm, raster.getDataBuffer(), new Point(0, 0));
+    }
+
 }
@@ -0,0 +1,264 @@
+/* 
+ *  Copyright (c) 2013, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.tiledimage;
+
+import java.awt.image.Raster;
+import java.awt.image.TileObserver;
+import java.awt.image.WritableRaster;
+import java.awt.image.WritableRenderedImage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests checking out and writing tiles of a {@code DiskMemImage} from
+ * several threads at once.
+ *
+ * @author Michael Bedward
+ * @since 1.4
+ * @version $Id$
+ */
+public class ConcurrentWritersTest extends TiledImageTestBase {
+
+    private static final int TILE_WIDTH = 16;
+    private static final int NUM_TILES = 12;
+    private static final int NUM_THREADS = 6;
+    private static final int NUM_PASSES = 20;
+
+    @Test
+    public void disjointTiles() throws Exception {
+        System.out.println("   concurrent writers into disjoint tiles");
+
+        final DiskMemImage image = makeImage(TILE_WIDTH, NUM_TILES, NUM_TILES);
+        final AtomicIntegerArray numCheckedOut = new AtomicIntegerArray(NUM_TILES * NUM_TILES);
+        final AtomicInteger unbalanced = new AtomicInteger();
+        image.addTileObserver(new TileObserver() {
+            public void tileUpdate(WritableRenderedImage source,
+                    int tileX, int tileY, boolean willBeWritable) {
+                // each tile is written by a single thread, so its
+                // notifications arrive in order
+                int k = tileY * NUM_TILES + tileX;
+                if (numCheckedOut.addAndGet(k, willBeWritable ? 1 : -1) < 0) {
+                    unbalanced.incrementAndGet();
+                }
+            }
+        });
+
+        Thread[] threads = new Thread[NUM_THREADS];
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger errors = new AtomicInteger();
+
+        for (int i = 0; i < NUM_THREADS; i++) {
+            final int id = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int pass = 0; pass < NUM_PASSES; pass++) {
+                            for (int k = id; k < NUM_TILES * NUM_TILES; k += NUM_THREADS) {
+                                writeTile(image, k % NUM_TILES, k / NUM_TILES, pass);
+                            }
+                        }
+                    } catch (Throwable t) {
+                        errors.incrementAndGet();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        assertEquals(0, errors.get());
+        assertEquals(0, unbalanced.get());
+        assertFalse(image.hasTileWriters());
+        assertNull(image.getWritableTileIndices());
+
+        for (int k = 0; k < numCheckedOut.length(); k++) {
+            assertEquals(0, numCheckedOut.get(k));
+        }
+
+        for (int y = 0; y < NUM_TILES; y++) {
+            for (int x = 0; x < NUM_TILES; x++) {
+                Raster r = image.getTile(x, y);
+                assertEquals(tileValue(x, y, NUM_PASSES - 1),
+                        r.getSample(r.getMinX(), r.getMinY(), 0));
+                assertEquals(tileValue(x, y, NUM_PASSES - 1),
+                        r.getSample(r.getMinX() + TILE_WIDTH - 1, r.getMinY() + TILE_WIDTH - 1, 0));
+            }
+        }
+    }
+
+    @Test
+    public void sharedTile() throws Exception {
+        System.out.println("   concurrent writers sharing a tile");
+
+        final DiskMemImage image = makeImage(TILE_WIDTH, 2, 2);
+        Thread[] threads = new Thread[NUM_THREADS];
+        final CountDownLatch start = new CountDownLatch(1);
+
+        for (int i = 0; i < NUM_THREADS; i++) {
+            final int row = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    for (int pass = 0; pass < NUM_PASSES; pass++) {
+                        WritableRaster tile = image.getWritableTile(1, 1);
+                        try {
+                            tile.setSample(TILE_WIDTH, TILE_WIDTH + row, 0, row + 1);
+                        } finally {
+                            image.releaseWritableTile(1, 1);
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        assertFalse(image.isTileWritable(1, 1));
+        assertFalse(image.hasTileWriters());
+
+        Raster r = image.getTile(1, 1);
+        for (int i = 0; i < NUM_THREADS; i++) {
+            assertEquals(i + 1, r.getSample(TILE_WIDTH, TILE_WIDTH + i, 0));
+        }
+    }
+
+    @Test
+    public void observerUsesImage() throws Exception {
+        System.out.println("   tile observer checks out tiles from another thread");
+
+        final DiskMemImage image = makeImage(TILE_WIDTH, NUM_TILES, NUM_TILES);
+        final AtomicInteger blocked = new AtomicInteger();
+        image.addTileObserver(new TileObserver() {
+            public void tileUpdate(WritableRenderedImage source,
+                    int tileX, int tileY, boolean willBeWritable) {
+                if (tileX != 0 || tileY != 0 || !willBeWritable) {
+                    return;
+                }
+
+                /*
+                 * Tile index 32 shares a lock stripe with tile 0, so this
+                 * would wait forever if observers were notified with the
+                 * stripe locked
+                 */
+                final int k = 32;
+                Thread t = new Thread() {
+                    @Override
+                    public void run() {
+                        writeTile(image, k % NUM_TILES, k / NUM_TILES, 0);
+                    }
+                };
+                t.setDaemon(true);
+                t.start();
+                try {
+                    t.join(TimeUnit.SECONDS.toMillis(5));
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                if (t.isAlive()) {
+                    blocked.incrementAndGet();
+                }
+            }
+        });
+
+        writeTile(image, 0, 0, 0);
+        assertEquals(0, blocked.get());
+        assertFalse(image.hasTileWriters());
+    }
+
+    @Test
+    public void overRelease() {
+        System.out.println("   releasing a tile too many times");
+
+        DiskMemImage image = makeImage(TILE_WIDTH, 2, 2);
+        image.getWritableTile(0, 0);
+        image.releaseWritableTile(0, 0);
+        image.releaseWritableTile(0, 0);
+        assertFalse(image.hasTileWriters());
+
+        image.getWritableTile(0, 0);
+        assertTrue(image.isTileWritable(0, 0));
+        assertEquals(1, image.getWritableTileIndices().length);
+        image.releaseWritableTile(0, 0);
+        assertFalse(image.isTileWritable(0, 0));
+    }
+
+    @Test
+    public void tilesOutsideGrid() {
+        System.out.println("   tiles outside the grid are never writable");
+
+        DiskMemImage image = makeImage(TILE_WIDTH, 2, 2);
+        image.getWritableTile(0, 1);
+        assertTrue(image.isTileWritable(0, 1));
+
+        // (2,0) would share its row-major index with (0,1)
+        assertFalse(image.isTileWritable(2, 0));
+        assertEquals(0, image.getNumWriters(2, 0));
+        assertFalse(image.isTileWritable(-1, 0));
+        assertFalse(image.isTileWritable(0, 2));
+
+        image.releaseWritableTile(0, 1);
+    }
+
+    private void writeTile(DiskMemImage image, int tileX, int tileY, int pass) {
+        WritableRaster tile = image.getWritableTile(tileX, tileY);
+        try {
+            int value = tileValue(tileX, tileY, pass);
+            int x0 = tile.getMinX();
+            int y0 = tile.getMinY();
+            for (int y = 0; y < TILE_WIDTH; y++) {
+                for (int x = 0; x < TILE_WIDTH; x++) {
+                    tile.setSample(x0 + x, y0 + y, 0, value);
+                }
+            }
+        } finally {
+            image.releaseWritableTile(tileX, tileY);
+        }
+    }
+
+    private int tileValue(int tileX, int tileY, int pass) {
+        return (tileY * NUM_TILES + tileX + pass) & 0xff;
+    }
+}
@@ -0,0 +1,161 @@
+/* 
+ *  Copyright (c) 2013, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+
+package org.jaitools.tiledimage;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Polygon;
+import java.awt.geom.Ellipse2D;
+import java.awt.image.Raster;
+import java.awt.image.TileObserver;
+import java.awt.image.WritableRenderedImage;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests recording drawing operations with {@code DiskMemImageGraphics}
+ * and drawing them in a single pass.
+ *
+ * @author Michael Bedward
+ * @since 1.4
+ * @version $Id$
+ */
+public class DisplayListTest extends TiledImageTestBase {
+
+    private static final int TILE_WIDTH = 32;
+    private static final int NUM_TILES = 6;
+
+    @Test
+    public void recordedMatchesImmediate() {
+        System.out.println("   recorded drawing matches immediate drawing");
+
+        DiskMemImage immediate = makeImage(TILE_WIDTH, NUM_TILES, NUM_TILES);
+        draw(immediate, false, 1);
+
+        DiskMemImage recorded = makeImage(TILE_WIDTH, NUM_TILES, NUM_TILES);
+        draw(recorded, true, 1);
+
+        assertImagesEqual(immediate, recorded);
+    }
+
+    @Test
+    public void recordedWithThreadsMatchesImmediate() {
+        System.out.println("   recorded drawing with rendering threads matches immediate drawing");
+
+        DiskMemImage immediate = makeImage(TILE_WIDTH, NUM_TILES, NUM_TILES);
+        draw(immediate, false, 1);
+
+        DiskMemImage recorded = makeImage(TILE_WIDTH, NUM_TILES, NUM_TILES);
+        draw(recorded, true, 4);
+
+        assertImagesEqual(immediate, recorded);
+    }
+
+    @Test
+    public void eachTileCheckedOutOnce() {
+        System.out.println("   each tile is checked out once when replaying");
+
+        DiskMemImage image = makeImage(TILE_WIDTH, NUM_TILES, NUM_TILES);
+        final int[][] checkouts = new int[NUM_TILES][NUM_TILES];
+        image.addTileObserver(new TileObserver() {
+            public void tileUpdate(WritableRenderedImage source, int tileX, int tileY, boolean willBeWritable) {
+                if (willBeWritable) {
+                    checkouts[tileX][tileY]++ ;
+                }
+            }
+        });
+
+        DiskMemImageGraphics gr = (DiskMemImageGraphics) image.createGraphics();
+        gr.startRecording();
+        assertTrue(gr.isRecording());
+
+        int w = TILE_WIDTH * NUM_TILES;
+        for (int i = 0; i < 20; i++) {
+            gr.fillRect(i, i, w - 2 * i, w - 2 * i);
+        }
+        for (int[] col : checkouts) {
+            for (int n : col) {
+                assertEquals(0, n);
+            }
+        }
+
+        gr.stopRecording();
+        assertFalse(gr.isRecording());
+        assertFalse(image.hasTileWriters());
+        for (int[] col : checkouts) {
+            for (int n : col) {
+                assertEquals(1, n);
+            }
+        }
+    }
+
+    private void draw(DiskMemImage image, boolean record, int numThreads) {
+        DiskMemImageGraphics gr = (DiskMemImageGraphics) image.createGraphics();
+        gr.setRenderingThreads(numThreads);
+        if (record) {
+            gr.startRecording();
+        }
+
+        int w = TILE_WIDTH * NUM_TILES;
+        Polygon poly = new Polygon(
+                new int[]{5, w - 20, w / 2},
+                new int[]{3, w / 3, w - 7},
+                3);
+
+        gr.setColor(Color.ORANGE);
+        gr.fill(poly);
+
+        // changing the shape after drawing must not affect the recording
+        poly.translate(15, 10);
+        gr.setColor(Color.GREEN);
+        gr.fill(poly);
+
+        gr.setColor(Color.BLUE);
+        gr.setStroke(new BasicStroke(3.5f));
+        gr.translate(10, 5);
+        gr.draw(new Ellipse2D.Double(20, 30, w - 50, w - 70));
+
+        gr.rotate(0.3);
+        gr.setColor(Color.RED);
+        gr.fillRect(40, 0, 60, 20);
+
+        gr.dispose();
+    }
+
+    private void assertImagesEqual(DiskMemImage expected, DiskMemImage actual) {
+        for (int y = 0; y < NUM_TILES; y++) {
+            for (int x = 0; x < NUM_TILES; x++) {
+                Raster re = expected.getTile(x, y);
+                Raster ra = actual.getTile(x, y);
+                assertArrayEquals(
+                        re.getPixels(re.getMinX(), re.getMinY(), TILE_WIDTH, TILE_WIDTH, (int[]) null),
+                        ra.getPixels(ra.getMinX(), ra.getMinY(), TILE_WIDTH, TILE_WIDTH, (int[]) null));
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/* 
+ *  Copyright (c) 2013, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.tiledimage;
+
+import java.awt.AlphaComposite;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.Ellipse2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that {@code DiskMemImageGraphics} draws correctly when it re-uses
+ * the graphics state captured for earlier operations and the Graphics2D
+ * objects it holds for tiles.
+ *
+ * @author Michael Bedward
+ * @since 1.4
+ * @version $Id$
+ */
+public class ImageGraphicsReuseTest extends TiledImageTestBase {
+
+    private static final int TILE_WIDTH = 32;
+    private static final int NUM_TILES = 4;
+    private static final int WIDTH = TILE_WIDTH * NUM_TILES;
+
+    @Test
+    public void reusedTileGraphicsMatchReference() {
+        System.out.println("   drawing with re-used tile graphics matches reference");
+
+        DiskMemImage image = makeImage(TILE_WIDTH, NUM_TILES, NUM_TILES);
+        DiskMemImageGraphics gr = (DiskMemImageGraphics) image.createGraphics();
+        BufferedImage ref = new BufferedImage(WIDTH, WIDTH, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D refGr = ref.createGraphics();
+
+        draw(gr);
+        draw(refGr);
+
+        // the image's tiles are now held by cached graphics objects
+        assertEquals(NUM_TILES * NUM_TILES, gr.getNumTileGraphics());
+
+        // draw again over the same tiles, re-using the cached objects
+        draw(gr);
+        draw(refGr);
+        assertEquals(NUM_TILES * NUM_TILES, gr.getNumTileGraphics());
+
+        gr.dispose();
+        refGr.dispose();
+        assertImageEquals(ref, image);
+    }
+
+    @Test
+    public void unchangedStateAcrossWrappers() {
+        System.out.println("   unchanged state is applied to each tile's graphics");
+
+        DiskMemImage image = makeImage(TILE_WIDTH, NUM_TILES, NUM_TILES);
+        DiskMemImageGraphics gr = (DiskMemImageGraphics) image.createGraphics();
+        BufferedImage ref = new BufferedImage(WIDTH, WIDTH, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D refGr = ref.createGraphics();
+
+        Graphics2D[] both = {gr, refGr};
+        for (Graphics2D g : both) {
+            // each operation touches a different set of tiles with the same state
+            g.setColor(Color.MAGENTA);
+            g.translate(3, 2);
+            g.fillRect(0, 0, TILE_WIDTH, TILE_WIDTH);
+            g.fillRect(WIDTH / 2, 10, TILE_WIDTH, WIDTH / 2);
+            g.fillRect(5, WIDTH - 20, WIDTH - 10, 10);
+
+            // the state changes only for later operations
+            g.setColor(Color.CYAN);
+            g.fillRect(TILE_WIDTH / 2, TILE_WIDTH / 2, TILE_WIDTH, TILE_WIDTH);
+            g.translate(-3, -2);
+            g.fillRect(0, 0, TILE_WIDTH, TILE_WIDTH);
+        }
+
+        gr.dispose();
+        refGr.dispose();
+        assertImageEquals(ref, image);
+    }
+
+    @Test
+    public void disposeReleasesTileGraphics() {
+        System.out.println("   dispose releases cached tile graphics");
+
+        DiskMemImage image = makeImage(TILE_WIDTH, NUM_TILES, NUM_TILES);
+        DiskMemImageGraphics gr = (DiskMemImageGraphics) image.createGraphics();
+        gr.setColor(Color.RED);
+        gr.fillRect(0, 0, TILE_WIDTH + 1, 1);
+        assertEquals(2, gr.getNumTileGraphics());
+
+        gr.dispose();
+        assertEquals(0, gr.getNumTileGraphics());
+        assertFalse(image.hasTileWriters());
+    }
+
+    /*
+     * Draws a sequence of operations which changes the graphics state
+     * between some operations and not others.
+     */
+    private void draw(Graphics2D g) {
+        g.setColor(Color.RED);
+        g.fillRect(10, 10, WIDTH - 40, 30);
+        g.fillRect(20, 50, 40, WIDTH - 60);
+
+        // an equal but distinct colour object
+        g.setColor(new Color(Color.RED.getRGB()));
+        g.fillRect(WIDTH - 30, 5, 20, WIDTH - 10);
+
+        g.setColor(Color.BLUE);
+        g.setStroke(new BasicStroke(3));
+        g.drawRect(TILE_WIDTH - 5, TILE_WIDTH - 5, 2 * TILE_WIDTH, TILE_WIDTH + 10);
+        g.drawLine(0, WIDTH - 1, WIDTH - 1, 0);
+
+        g.setClip(new Rectangle(TILE_WIDTH / 2, TILE_WIDTH / 2, 2 * TILE_WIDTH, 2 * TILE_WIDTH));
+        g.setColor(Color.GREEN);
+        g.fillRect(0, 0, WIDTH, WIDTH / 2);
+        g.setClip(null);
+
+        /*
+         * translate(int, int) sets rather than adds to the origin used
+         * for clipping, so the double version is used to leave the clip
+         * of the next pass unaffected
+         */
+        g.translate(7.0, 5.0);
+        g.fill(new Ellipse2D.Double(TILE_WIDTH, TILE_WIDTH, TILE_WIDTH, TILE_WIDTH / 2));
+        g.translate(-7.0, -5.0);
+
+        g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.5f));
+        g.setColor(Color.YELLOW);
+        g.fillRect(5, 5, WIDTH - 10, WIDTH - 10);
+        g.setComposite(AlphaComposite.SrcOver);
+
+        g.scale(2, 2);
+        g.setColor(Color.BLACK);
+        g.fillRect(TILE_WIDTH / 4, 3 * TILE_WIDTH / 4, TILE_WIDTH / 2, TILE_WIDTH / 4);
+        g.scale(0.5, 0.5);
+    }
+
+    private void assertImageEquals(BufferedImage expected, DiskMemImage actual) {
+        Raster re = expected.getRaster();
+        for (int y = 0; y < NUM_TILES; y++) {
+            for (int x = 0; x < NUM_TILES; x++) {
+                Raster ra = actual.getTile(x, y);
+                assertArrayEquals(
+                        re.getPixels(ra.getMinX(), ra.getMinY(), TILE_WIDTH, TILE_WIDTH, (int[]) null),
+                        ra.getPixels(ra.getMinX(), ra.getMinY(), TILE_WIDTH, TILE_WIDTH, (int[]) null));
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/* 
+ *  Copyright (c) 2013, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+
+package org.jaitools.tiledimage;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Polygon;
+import java.awt.RenderingHints;
+import java.awt.geom.Ellipse2D;
+import java.awt.image.Raster;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that drawing into tiles concurrently with {@code DiskMemImageGraphics}
+ * gives the same result as drawing serially.
+ *
+ * @author Michael Bedward
+ * @since 1.4
+ * @version $Id$
+ */
+public class ParallelDrawingTest extends TiledImageTestBase {
+
+    private static final int TILE_WIDTH = 32;
+    private static final int NUM_TILES = 8;
+
+    @Test
+    public void renderingThreadsSetting() {
+        System.out.println("   number of rendering threads");
+
+        DiskMemImage image = makeImage(TILE_WIDTH, NUM_TILES, NUM_TILES);
+        DiskMemImageGraphics gr = (DiskMemImageGraphics) image.createGraphics();
+        assertEquals(1, gr.getRenderingThreads());
+
+        gr.setRenderingThreads(0);
+        assertEquals(1, gr.getRenderingThreads());
+
+        gr.setRenderingThreads(4);
+        DiskMemImageGraphics copy = (DiskMemImageGraphics) gr.create();
+        assertEquals(4, copy.getRenderingThreads());
+    }
+
+    @Test
+    public void parallelMatchesSerial() {
+        System.out.println("   parallel drawing matches serial drawing");
+
+        DiskMemImage serial = makeImage(TILE_WIDTH, NUM_TILES, NUM_TILES);
+        draw(serial, 1);
+
+        DiskMemImage parallel = makeImage(TILE_WIDTH, NUM_TILES, NUM_TILES);
+        draw(parallel, 4);
+
+        assertFalse(parallel.hasTileWriters());
+
+        for (int y = 0; y < NUM_TILES; y++) {
+            for (int x = 0; x < NUM_TILES; x++) {
+                Raster rs = serial.getTile(x, y);
+                Raster rp = parallel.getTile(x, y);
+                int[] expected = rs.getPixels(rs.getMinX(), rs.getMinY(), TILE_WIDTH, TILE_WIDTH, (int[]) null);
+                int[] actual = rp.getPixels(rp.getMinX(), rp.getMinY(), TILE_WIDTH, TILE_WIDTH, (int[]) null);
+                assertArrayEquals(expected, actual);
+            }
+        }
+    }
+
+    private void draw(DiskMemImage image, int numThreads) {
+        DiskMemImageGraphics gr = (DiskMemImageGraphics) image.createGraphics();
+        gr.setRenderingThreads(numThreads);
+        gr.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+
+        int w = TILE_WIDTH * NUM_TILES;
+        Polygon poly = new Polygon(
+                new int[]{5, w - 20, w / 2, 10},
+                new int[]{3, w / 3, w - 7, w / 2},
+                4);
+
+        gr.setColor(Color.ORANGE);
+        gr.fill(poly);
+
+        gr.setColor(Color.BLUE);
+        gr.setStroke(new BasicStroke(3.5f));
+        gr.draw(new Ellipse2D.Double(20, 30, w - 50, w - 70));
+        gr.dispose();
+    }
+}
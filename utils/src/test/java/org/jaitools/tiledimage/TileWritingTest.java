@@ -89,4 +89,35 @@ public class TileWritingTest extends TiledImageTestBase {
 
     }
 
+    @Test
+    public void testChangesSurviveSwapping() {
+        System.out.println("   changes to tiles survive memory swapping");
+
+        // room for two tiles only
+        image.getTileCache().setMemoryCapacity(2 * image.getTileMemorySize());
+
+        final int passes = 3;
+        for (int pass = 0; pass < passes; pass++) {
+            for (int y = image.getMinTileY(); y < image.getMaxTileY(); y++) {
+                for (int x = image.getMinTileX(); x < image.getMaxTileX(); x++) {
+                    WritableRaster tile = image.getWritableTile(x, y);
+                    int px = tile.getMinX();
+                    int py = tile.getMinY();
+                    tile.setSample(px, py, 0, tile.getSample(px, py, 0) + 1);
+                    image.releaseWritableTile(x, y);
+
+                    // read another tile, causing this one to be swapped out
+                    image.getTile((x + 2) % XTILES, y);
+                }
+            }
+        }
+
+        for (int y = image.getMinTileY(); y < image.getMaxTileY(); y++) {
+            for (int x = image.getMinTileX(); x < image.getMaxTileX(); x++) {
+                Raster tile = image.getTile(x, y);
+                assertEquals(passes, tile.getSample(tile.getMinX(), tile.getMinY(), 0));
+            }
+        }
+    }
+
 }